@@ -0,0 +1,258 @@
+package com.nagihong.videocompressor.transcoder;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.nagihong.videocompressor.strategies.Android720pFormatStrategy;
+import com.nagihong.videocompressor.strategies.MediaFormatExtraConstants;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * end to end runs on a device, input is encoded by the device's own codecs first
+ */
+@RunWith(AndroidJUnit4.class)
+public class VideoCompressEngineTest {
+    private static final long TIMEOUT_US = 10000;
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int FRAME_RATE = 30;
+    private static final int VIDEO_FRAMES = 30;
+    private static final int SAMPLE_RATE = 44100;
+    private static final int SAMPLES_PER_BUFFER = 1024;
+    private static final int AUDIO_BUFFERS = 43;
+
+    private Context context;
+    private File input;
+    private final List<File> outputs = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        input = new File(context.getCacheDir(), "engine-test-input.mp4");
+    }
+
+    @After
+    public void tearDown() {
+        input.delete();
+        for (File output : outputs) {
+            output.delete();
+        }
+    }
+
+    @Test
+    public void transcodeRenditionsPassesAudioThroughToEveryOutput() throws Exception {
+        int audioSamples = writeInput(input);
+        File first = output("engine-test-first.mp4");
+        File second = output("engine-test-second.mp4");
+        // audio as is, so it is passed through and mirrored into the second output
+        List<Rendition> renditions = Arrays.asList(
+                new Rendition(first.getPath(), new Android720pFormatStrategy(2000 * 1000)),
+                new Rendition(second.getPath(), new Android720pFormatStrategy(500 * 1000)));
+
+        new VideoCompressEngine().transcodeRenditions(context, input.getPath(), renditions);
+
+        for (File output : outputs) {
+            MediaExtractor extractor = new MediaExtractor();
+            try {
+                extractor.setDataSource(output.getPath());
+                assertEquals(output.getName(), 2, extractor.getTrackCount());
+                int audioTrack = findTrack(extractor, "audio/");
+                assertTrue(output.getName() + " has no video", findTrack(extractor, "video/") >= 0);
+                assertTrue(output.getName() + " has no audio", audioTrack >= 0);
+                assertEquals(output.getName(), audioSamples, countSamples(extractor, audioTrack));
+            } finally {
+                extractor.release();
+            }
+        }
+    }
+
+    //========================= helpers ========================================================
+    private File output(String name) {
+        File file = new File(context.getCacheDir(), name);
+        outputs.add(file);
+        return file;
+    }
+
+    private static int findTrack(MediaExtractor extractor, String mimePrefix) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            if (extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME).startsWith(mimePrefix)) return i;
+        }
+        return -1;
+    }
+
+    private static int countSamples(MediaExtractor extractor, int track) {
+        extractor.selectTrack(track);
+        int count = 0;
+        while (extractor.getSampleTrackIndex() >= 0) {
+            count++;
+            extractor.advance();
+        }
+        extractor.unselectTrack(track);
+        return count;
+    }
+
+    /**
+     * writes an mp4 of gray frames getting brighter and a sine tone
+     *
+     * @return number of audio samples written
+     */
+    private static int writeInput(File file) throws IOException {
+        MediaFormat videoFormat = MediaFormat.createVideoFormat(MediaFormatExtraConstants.MIMETYPE_VIDEO_AVC, WIDTH, HEIGHT);
+        videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, 1000 * 1000);
+        videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        List<Sample> videoSamples = new ArrayList<>();
+        // uniform planes look the same planar or semi-planar
+        MediaFormat videoOutput = encode(videoFormat, VIDEO_FRAMES, 1000000L / FRAME_RATE, (buffer, index) -> {
+            int lumaSize = WIDTH * HEIGHT;
+            int size = lumaSize * 3 / 2;
+            for (int i = 0; i < size; i++) {
+                buffer.put((byte) (i < lumaSize ? 64 + 4 * index : 128));
+            }
+            return size;
+        }, videoSamples);
+
+        MediaFormat audioFormat = MediaFormat.createAudioFormat(MediaFormatExtraConstants.MIMETYPE_AUDIO_AAC, SAMPLE_RATE, 1);
+        audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, 64 * 1000);
+        audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, SAMPLES_PER_BUFFER * 2);
+        List<Sample> audioSamples = new ArrayList<>();
+        MediaFormat audioOutput = encode(audioFormat, AUDIO_BUFFERS, SAMPLES_PER_BUFFER * 1000000L / SAMPLE_RATE, (buffer, index) -> {
+            buffer.order(ByteOrder.nativeOrder());
+            for (int i = 0; i < SAMPLES_PER_BUFFER; i++) {
+                double t = (index * SAMPLES_PER_BUFFER + i) / (double) SAMPLE_RATE;
+                buffer.putShort((short) (Math.sin(2 * Math.PI * 440 * t) * 8000));
+            }
+            return SAMPLES_PER_BUFFER * 2;
+        }, audioSamples);
+
+        MediaMuxer muxer = new MediaMuxer(file.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        try {
+            int videoTrack = muxer.addTrack(videoOutput);
+            int audioTrack = muxer.addTrack(audioOutput);
+            muxer.start();
+            write(muxer, videoTrack, videoSamples);
+            write(muxer, audioTrack, audioSamples);
+            muxer.stop();
+        } finally {
+            muxer.release();
+        }
+        return audioSamples.size();
+    }
+
+    private static void write(MediaMuxer muxer, int track, List<Sample> samples) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        for (Sample sample : samples) {
+            info.set(0, sample.data.length, sample.presentationTimeUs, sample.flags);
+            muxer.writeSampleData(track, ByteBuffer.wrap(sample.data), info);
+        }
+    }
+
+    /**
+     * @return output format of the encoder, encoded samples are added to samples
+     */
+    private static MediaFormat encode(MediaFormat format, int inputCount, long inputDurationUs,
+                                      InputFiller filler, List<Sample> samples) throws IOException {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        MediaCodec codec = MediaCodec.createEncoderByType(mime);
+        try {
+            if (mime.startsWith("video/")) {
+                format.setInteger(MediaFormat.KEY_COLOR_FORMAT, selectColorFormat(codec.getCodecInfo(), mime));
+            }
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codec.start();
+            ByteBuffer[] inputBuffers = codec.getInputBuffers();
+            ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            MediaFormat outputFormat = null;
+            int queued = 0;
+            while (true) {
+                if (queued <= inputCount) {
+                    int index = codec.dequeueInputBuffer(TIMEOUT_US);
+                    if (index >= 0) {
+                        long presentationTimeUs = queued * inputDurationUs;
+                        if (queued == inputCount) {
+                            codec.queueInputBuffer(index, 0, 0, presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        } else {
+                            ByteBuffer buffer = inputBuffers[index];
+                            buffer.clear();
+                            int size = filler.fill(buffer, queued);
+                            codec.queueInputBuffer(index, 0, size, presentationTimeUs, 0);
+                        }
+                        queued++;
+                    }
+                }
+                int index = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    outputFormat = codec.getOutputFormat();
+                } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    outputBuffers = codec.getOutputBuffers();
+                } else if (index >= 0) {
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                        ByteBuffer buffer = outputBuffers[index];
+                        buffer.position(info.offset).limit(info.offset + info.size);
+                        byte[] data = new byte[info.size];
+                        buffer.get(data);
+                        samples.add(new Sample(data, info.presentationTimeUs, info.flags));
+                    }
+                    codec.releaseOutputBuffer(index, false);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) break;
+                }
+            }
+            codec.stop();
+            assertNotNull(mime + " output format", outputFormat);
+            return outputFormat;
+        } finally {
+            codec.release();
+        }
+    }
+
+    private static int selectColorFormat(MediaCodecInfo codecInfo, String mime) {
+        int selected = -1;
+        for (int colorFormat : codecInfo.getCapabilitiesForType(mime).colorFormats) {
+            if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar) return colorFormat;
+            if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar) selected = colorFormat;
+        }
+        assertTrue(codecInfo.getName() + " takes no planar or semi-planar yuv input", selected >= 0);
+        return selected;
+    }
+
+    private interface InputFiller {
+        /**
+         * @return bytes put into buffer
+         */
+        int fill(ByteBuffer buffer, int index);
+    }
+
+    private static class Sample {
+        final byte[] data;
+        final long presentationTimeUs;
+        final int flags;
+
+        Sample(byte[] data, long presentationTimeUs, int flags) {
+            this.data = data;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+        }
+    }
+}
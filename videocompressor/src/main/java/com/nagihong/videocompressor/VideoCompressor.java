@@ -1,20 +1,82 @@
 package com.nagihong.videocompressor;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.os.Build;
+
+import com.nagihong.videocompressor.dataSource.HttpRangeSource;
+import com.nagihong.videocompressor.dataSource.RandomAccessSource;
+import com.nagihong.videocompressor.sampleIndex.SampleIndex;
+import com.nagihong.videocompressor.sampleIndex.SampleIndexCache;
 import com.nagihong.videocompressor.strategies.Android720pFormatStrategy;
 import com.nagihong.videocompressor.strategies.MediaFormatStrategy;
+import com.nagihong.videocompressor.transcoder.ClipConcatenator;
+import com.nagihong.videocompressor.transcoder.ConcurrencyController;
+import com.nagihong.videocompressor.transcoder.MemoryBudget;
+import com.nagihong.videocompressor.transcoder.Rendition;
 import com.nagihong.videocompressor.transcoder.VideoCompressEngine;
+import com.nagihong.videocompressor.utils.ByteBufferPool;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 public class VideoCompressor {
+    private static final String SAMPLE_INDEX_DIRECTORY = "sample_index";
+    private static final long SAMPLE_INDEX_CACHE_BYTES = 16 * 1024 * 1024;
+
+    private MemoryBudget memoryBudget;
+    private ConcurrencyController concurrencyController;
+
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @param memoryBudget shared by compressions run at the same time on several threads, e.g. {@link MemoryBudget#create(Context)}
+     *                     registered with {@link MemoryBudget#register(Context)}, each waits until it fits. null to start right away.
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public ConcurrencyController getConcurrencyController() {
+        return concurrencyController;
+    }
+
+    /**
+     * @param concurrencyController shared by compressions run at the same time on several threads, tunes how many of them
+     *                              run by encoded frames per second, e.g. capped by {@link ConcurrencyController#getCodecInstanceLimit(String)}.
+     *                              null to start right away.
+     */
+    public void setConcurrencyController(ConcurrencyController concurrencyController) {
+        this.concurrencyController = concurrencyController;
+    }
+
+    /**
+     * Track buffers of the pool shared by all compressions, to catch ones released twice and to find leaked ones
+     * with {@link #logBufferLeaks()}. Costs a stack trace per buffer, turn it on in debug builds of the app,
+     * e.g. with the app's BuildConfig.DEBUG, before compressing anything. It is off by default.
+     */
+    public static void setBufferLeakTracking(boolean leakTracking) {
+        ByteBufferPool.getDefault().setLeakTracking(leakTracking);
+    }
+
+    /**
+     * log where buffers still in use were acquired, call it when no compression runs
+     *
+     * @return number of leaked buffers, 0 without {@link #setBufferLeakTracking(boolean)}
+     */
+    public static int logBufferLeaks() {
+        return ByteBufferPool.getDefault().logLeaks();
+    }
 
     public boolean compressVideo(Context context, String inputPath, String outPath) {
         return compressVideo(context, inputPath, outPath, new Android720pFormatStrategy(1280000, 128000, 1));
     }
 
     public boolean compressVideo(Context context, String inputPath, String outputPath, MediaFormatStrategy strategy) {
-        VideoCompressEngine engine = new VideoCompressEngine();
+        VideoCompressEngine engine = createEngine();
         try {
             engine.transcodeVideo(context, inputPath, outputPath, strategy);
         } catch (IOException | InterruptedException e) {
@@ -23,4 +85,117 @@ public class VideoCompressor {
         }
         return true;
     }
+
+    /**
+     * compress a video into several outputs of different sizes and bitrates, decoding it only once
+     */
+    public boolean compressRenditions(Context context, String inputPath, List<Rendition> renditions) {
+        VideoCompressEngine engine = createEngine();
+        try {
+            engine.transcodeRenditions(context, inputPath, renditions);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * compress a video into an hls playlist with fragmented mp4 segments in outputDirectory
+     */
+    public boolean compressToHls(Context context, String inputPath, String outputDirectory, int segmentDurationSeconds, MediaFormatStrategy strategy) {
+        VideoCompressEngine engine = createEngine();
+        try {
+            engine.transcodeHls(context, inputPath, outputDirectory, segmentDurationSeconds, strategy);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * compress a video into mp4 files of at most about maxPartBytes each, split at key frames, e.g. for upload limits
+     *
+     * @return paths of the parts in order, null when failed
+     */
+    public List<String> compressVideoInParts(Context context, String inputPath, String outputPath, MediaFormatStrategy strategy, long maxPartBytes) {
+        VideoCompressEngine engine = createEngine();
+        engine.setMaxPartBytes(maxPartBytes);
+        try {
+            engine.transcodeVideo(context, inputPath, outputPath, strategy);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return engine.getOutputPaths();
+    }
+
+    /**
+     * join clips into one video, clips with the codec config of the first one are copied without re-encoding
+     */
+    public boolean concatVideos(Context context, List<String> inputPaths, String outputPath, MediaFormatStrategy strategy) {
+        try {
+            ClipConcatenator concatenator = new ClipConcatenator(context);
+            concatenator.setMemoryBudget(memoryBudget);
+            concatenator.setConcurrencyController(concurrencyController);
+            concatenator.concatenate(inputPaths, outputPath, strategy);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * sample times, sizes and key frames of every track of a video, indexed once and kept in the cache directory
+     *
+     * @return null when the video could not be read
+     */
+    public SampleIndex getSampleIndex(Context context, String inputPath) {
+        SampleIndexCache cache = new SampleIndexCache(new File(context.getCacheDir(), SAMPLE_INDEX_DIRECTORY), SAMPLE_INDEX_CACHE_BYTES);
+        try {
+            return cache.get(new File(inputPath));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * copy the audio track of a video into an m4a file, nothing is decoded and the video track is never read
+     */
+    public boolean extractAudio(Context context, String inputPath, String outputPath) {
+        VideoCompressEngine engine = createEngine();
+        engine.setTrackMode(VideoCompressEngine.TrackMode.AUDIO_ONLY);
+        try {
+            engine.transcodeVideo(context, inputPath, outputPath, new Android720pFormatStrategy());
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * compress a video served over http with range request support, without downloading it first
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    public boolean compressRemoteVideo(Context context, String inputUrl, String outputPath, MediaFormatStrategy strategy) {
+        VideoCompressEngine engine = createEngine();
+        try (RandomAccessSource source = HttpRangeSource.cached(inputUrl)) {
+            engine.transcodeVideo(context, source, outputPath, strategy);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    private VideoCompressEngine createEngine() {
+        VideoCompressEngine engine = new VideoCompressEngine();
+        engine.setMemoryBudget(memoryBudget);
+        engine.setConcurrencyController(concurrencyController);
+        return engine;
+    }
 }
@@ -1,38 +1,31 @@
 package com.nagihong.videocompressor.audioProcessor;
 
+import android.media.AudioFormat;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.util.Log;
 
 import com.nagihong.videocompressor.MediaCodecBufferWrapper;
+import com.nagihong.videocompressor.utils.ByteBufferPool;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
-import java.util.ArrayDeque;
-import java.util.Queue;
 
 public class AudioProcessor {
 
     private final String Tag = AudioProcessor.class.getName();
 
-    private static class AudioBuffer {
-        int bufferIndex;
-        long presentationTimeUs;
-        ShortBuffer data;
-    }
-
     private static final int BYTES_PER_SHORT = 2;
+    private static final int BYTES_PER_FLOAT = 4;
     public static final int BUFFER_INDEX_END_OF_STREAM = -1;
 
-    private static final long MICROSECS_PER_SEC = 1000000;
-
-    private final Queue<AudioBuffer> emptyBuffers = new ArrayDeque<>();
-    private final Queue<AudioBuffer> filledBuffers = new ArrayDeque<>();
+    // ring holds at least this many frames, or 4 decoded chunks when they are larger
+    private static final int MIN_RING_FRAMES = 8 * PcmPacker.AAC_FRAME_SIZE;
+    private static final int RING_CHUNKS = 4;
 
     private final MediaCodecBufferWrapper decoderBuffers;
     private final MediaCodecBufferWrapper encoderBuffers;
-    private final AudioBuffer overFlowBuffer = new AudioBuffer();
 
     private final MediaCodec decoder;
     private final MediaCodec encoder;
@@ -40,10 +33,34 @@ public class AudioProcessor {
     private MediaFormat actualDecodedFormat;
 
     private int inputSampleRate;
+    private int outputSampleRate;
     private int inputChannelCount;
     private int outputChannelCount;
 
+    //========================= decoder side ========================================================
     private AudioRemixer remixer;
+    private AudioResampler resampler;
+    private PcmConverter converter;
+    // views of buffers from ByteBufferPool, the buffers themselves are kept to give them back
+    private ByteBuffer convertedBytes;
+    private ShortBuffer converted;
+    private ByteBuffer convertedFloatBytes;
+    private FloatBuffer convertedFloat;
+    private ByteBuffer resampledBytes;
+    private ShortBuffer resampled;
+    // chunk which did not fit into the ring yet, and the decoder buffer it belongs to
+    private ShortBuffer pendingData;
+    private int pendingBufferIndex = -1;
+    private boolean pendingEnd;
+
+    //========================= shared, decoder side writes ========================================================
+    private volatile PcmPacker packer;
+    private volatile boolean inputEnded;
+
+    //========================= encoder side ========================================================
+    // encoder input buffer held until the packer has enough frames to fill it
+    private int encoderInBuffIndex = -1;
+    private boolean encoderEndQueued;
 
     public AudioProcessor(final MediaCodec decoder,
                           final MediaCodec encoder, final MediaFormat encodeFormat) {
@@ -60,7 +77,10 @@ public class AudioProcessor {
 		    read KEY_SAMPLE_RATE;
 		    read KEY_CHANNEL_COUNT from actualDecodedFormat;
 		    read KEY_CHANNEL_COUNT from encoderFormat;
+		    read KEY_PCM_ENCODING;
 
+		    init(PcmConverter) if not 16 bit;
+		    init(AudioResampler) if sample rates differ;
 		    init(AudioRemixer);
 	    }
      */
@@ -70,195 +90,222 @@ public class AudioProcessor {
 
         //KEY_SAMPLE_RATE
         inputSampleRate = actualDecodedFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
-        if (inputSampleRate != encodeFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE)) {
-            throw new UnsupportedOperationException("Audio sample rate conversion not supported yet.");
-        }
+        outputSampleRate = encodeFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
 
         //KEY_CHANNEL_COUNT
         inputChannelCount = actualDecodedFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
         outputChannelCount = encodeFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
-        checkChannelCount(inputChannelCount);
-        checkChannelCount(outputChannelCount);
+        checkChannelCount(inputChannelCount, MatrixAudioRemixer.MAX_INPUT_CHANNELS);
+        checkChannelCount(outputChannelCount, 2);
 
-        remixer = getRemixer(inputChannelCount, outputChannelCount);
+        //KEY_PCM_ENCODING, encoder always takes 16 bit
+        final int pcmEncoding = getPcmEncoding(actualDecodedFormat);
+        converter = pcmEncoding == AudioFormat.ENCODING_PCM_16BIT ? null : new PcmConverter(pcmEncoding);
 
-        overFlowBuffer.presentationTimeUs = 0;
+        remixer = getRemixer(inputChannelCount, outputChannelCount, getChannelMask(actualDecodedFormat));
+        // resample before remixing, the remixer then only sees frames at the output rate
+        resampler = inputSampleRate == outputSampleRate
+                ? null : new AudioResampler(inputSampleRate, outputSampleRate, inputChannelCount);
     }
 
     /*
         drainDecoderBufferAndQueue() -> {
 		    buffer = decoderBuffers.getOutputBuffer();
-		    emptyBuffer = emptyBuffers.poll();
-		    copy (buffer) to (emptyBuffer, overflowBuffer)
-		    filledBuffers.add(emptyBuffer);
+		    convert (buffer) to 16 bit, or float when resampling, if it is not 16 bit
+		    resample (buffer) if needed
+		    decoder buffer is released right after converting or resampling
+		    remix (buffer) into ring;
+		    decoder.releaseOutputBuffer(buffer) once all of it is in the ring;
 	    }
+	    Call drainPendingDecoderBuffer() before dequeuing the next decoder output buffer.
      */
     public void drainDecoderBufferAndQueue(final int bufferIndex, final long presentationTimeUs) {
         checkActualDecodedFormat();
+        if (null != pendingData || pendingEnd) {
+            throw new IllegalStateException("Previous decoder buffer is still pending.");
+        }
 
-        final ByteBuffer data =
-                bufferIndex == BUFFER_INDEX_END_OF_STREAM ? null : decoderBuffers.getOutputBuffer(bufferIndex);
+        if (bufferIndex == BUFFER_INDEX_END_OF_STREAM) {
+            if (null != resampler && null != packer) {
+                // frames the resampler still held back
+                pendingData = obtainResampledBuffer(0);
+                resampler.drain(pendingData);
+                pendingData.flip();
+            }
+            pendingEnd = true;
+            drainPendingDecoderBuffer();
+            return;
+        }
 
-        AudioBuffer buffer = pollEmptyBuffer();
-        buffer.bufferIndex = bufferIndex;
-        buffer.presentationTimeUs = presentationTimeUs;
-        buffer.data = null == data ? null : data.asShortBuffer();
+        final ByteBuffer bytes = decoderBuffers.getOutputBuffer(bufferIndex);
+        if (null != converter) {
+            // float / 24 bit / 32 bit, converted once here, straight to float when it is resampled anyway
+            final int samples = converter.sampleCount(bytes);
+            if (null != resampler) {
+                final FloatBuffer floats = obtainConvertedFloatBuffer(samples);
+                converter.toFloat(bytes, floats);
+                floats.flip();
+                decoder.releaseOutputBuffer(bufferIndex, false);
+                final ShortBuffer out = obtainResampledBuffer(samples / inputChannelCount);
+                resampler.resample(floats, out);
+                out.flip();
+                pendingData = out;
+            } else {
+                final ShortBuffer shorts = obtainConvertedBuffer(samples);
+                converter.toShort(bytes, shorts);
+                shorts.flip();
+                decoder.releaseOutputBuffer(bufferIndex, false);
+                pendingData = shorts;
+            }
+        } else {
+            final ShortBuffer data = bytes.asShortBuffer();
+            // Reset position to 0, and set limit to capacity (Since MediaCodec doesn't do that for us)
+            data.clear();
+
+            if (null != resampler) {
+                final ShortBuffer out = obtainResampledBuffer(data.remaining() / inputChannelCount);
+                resampler.resample(data, out);
+                out.flip();
+                // PCM is copied out, decoder can have its buffer back now
+                decoder.releaseOutputBuffer(bufferIndex, false);
+                pendingData = out;
+            } else {
+                pendingData = data;
+                pendingBufferIndex = bufferIndex;
+            }
+        }
+
+        if (null == packer) {
+            final int chunkFrames = pendingData.remaining() / inputChannelCount;
+            final PcmPacker newPacker = new PcmPacker(outputChannelCount, outputSampleRate,
+                    Math.max(MIN_RING_FRAMES, chunkFrames * RING_CHUNKS));
+            newPacker.setStartPresentationTimeUs(presentationTimeUs);
+            packer = newPacker;
+        }
+        drainPendingDecoderBuffer();
+    }
+
+    /**
+     * decoder side, remix the rest of a chunk the ring could not take before
+     *
+     * @return false while a chunk is still pending, no further decoder output should be dequeued then.
+     */
+    public boolean drainPendingDecoderBuffer() {
+        if (null != pendingData) {
+            packer.write(remixer, pendingData);
+            if (pendingData.hasRemaining()) return false;
+            if (pendingBufferIndex >= 0) {
+                decoder.releaseOutputBuffer(pendingBufferIndex, false);
+            }
+            pendingData = null;
+            pendingBufferIndex = -1;
+        }
+        if (pendingEnd) {
+            // publish end after the last frames
+            pendingEnd = false;
+            inputEnded = true;
+        }
+        return true;
+    }
+
+    private ShortBuffer obtainConvertedBuffer(final int samples) {
+        if (null == converted || converted.capacity() < samples) {
+            ByteBufferPool.getDefault().release(convertedBytes);
+            convertedBytes = ByteBufferPool.getDefault().acquire(samples * BYTES_PER_SHORT);
+            converted = convertedBytes.asShortBuffer();
+        }
+        converted.clear();
+        return converted;
+    }
 
-        if (null == overFlowBuffer.data && null != data) {
-            overFlowBuffer.data = ByteBuffer
-                    .allocateDirect(data.capacity()).order(ByteOrder.nativeOrder()).asShortBuffer();
-            overFlowBuffer.data.clear().flip();
+    private FloatBuffer obtainConvertedFloatBuffer(final int samples) {
+        if (null == convertedFloat || convertedFloat.capacity() < samples) {
+            ByteBufferPool.getDefault().release(convertedFloatBytes);
+            convertedFloatBytes = ByteBufferPool.getDefault().acquire(samples * BYTES_PER_FLOAT);
+            convertedFloat = convertedFloatBytes.asFloatBuffer();
         }
+        convertedFloat.clear();
+        return convertedFloat;
+    }
 
-        filledBuffers.add(buffer);
+    private ShortBuffer obtainResampledBuffer(final int inputFrames) {
+        final int capacity = resampler.getMaxOutputFrames(inputFrames) * inputChannelCount;
+        if (null == resampled || resampled.capacity() < capacity) {
+            ByteBufferPool.getDefault().release(resampledBytes);
+            resampledBytes = ByteBufferPool.getDefault().acquire(capacity * BYTES_PER_SHORT);
+            resampled = resampledBytes.asShortBuffer();
+        }
+        resampled.clear();
+        return resampled;
     }
 
     /*
         feedEncoder() -> {
-		    buffer = encoder.dequeueInputBuffer();
+		    buffer = encoder.dequeueInputBuffer(), held until it can be filled;
 		    reusedBuffer = encoderBuffers.getInputBuffer(buffer);
-		    if(hasOverFlow) {
-    			drainOverFlow(reusedBuffer);
-	    		encoder.queueInputBuffer(reusedBuffer); 			return;
+		    if(ring holds a full reusedBuffer) {
+		        packer.pack(reusedBuffer);
+		        encoder.queueInputBuffer(reusedBuffer);
 		    }
-		    filledBuffer = filledBuffers.poll();
-		    remixAndMaybeFillOverflow(filledBuffer, reusedBuffer);
-		    encoder.queueInputBuffer(reusedBuffer);
-		    decoder.releaseOutputBuffer(filledBuffer);
-		    emptyBuffers.add(filledBuffer);
 	    }
+	    Encoder side, may run on another thread than the decoder side.
      */
     public boolean feedEncoder(long timeoutUs) {
-        final boolean hasOverflow = hasOverflow();
-        if (filledBuffers.isEmpty() && !hasOverflow) return false;
-
-        final int encoderInBuffIndex = encoder.dequeueInputBuffer(timeoutUs);
-        if (encoderInBuffIndex < 0) return false;
+        if (encoderEndQueued) return false;
+        // read end before frames, everything written before the end is visible then
+        final boolean ended = inputEnded;
+        final PcmPacker packer = this.packer;
+        final int availableFrames = null == packer ? 0 : packer.availableFrames();
+        if (encoderInBuffIndex < 0) {
+            if (availableFrames == 0 && !ended) return false;
+            encoderInBuffIndex = encoder.dequeueInputBuffer(timeoutUs);
+            if (encoderInBuffIndex < 0) return false;
+        }
 
         final ShortBuffer outBuffer = encoderBuffers.getInputBuffer(encoderInBuffIndex).asShortBuffer();
 
-        // Drain overflow first
-        if (hasOverflow) {
-            final long presentationTimeUs = drainOverflow(outBuffer);
-            encoder.queueInputBuffer(encoderInBuffIndex,
-                    0, outBuffer.position() * BYTES_PER_SHORT, presentationTimeUs, 0);
-            return true;
-        }
+        //wait for a full buffer, only the last one may be shorter
+        final int packFrames = null == packer ? 0 : packer.getPackFrames(outBuffer.capacity() / outputChannelCount);
+        if (availableFrames < packFrames && !ended) return false;
 
-        //check EOS first
-        final AudioBuffer inBuffer = filledBuffers.poll();
-        if (inBuffer.bufferIndex == BUFFER_INDEX_END_OF_STREAM) {
-            encoder.queueInputBuffer(encoderInBuffIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        if (availableFrames == 0) {
+            final long presentationTimeUs = null == packer ? 0 : packer.getPresentationTimeUs();
+            encoder.queueInputBuffer(encoderInBuffIndex, 0, 0, presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            encoderInBuffIndex = -1;
+            encoderEndQueued = true;
             return false;
         }
 
-        //feedEncoder
-        /*
-            这里实际上不需要合成outBuffer，因为outBuffer已经被consume了，主要是因为AudioRemixer的入参有两个
-            而一个声音与一个静音合成，并不影响结果，所以就与outBuffer合成了
-            同时与名字outBuffer的表义保持一致，数据写入到outBuffer中，然后放入到encoder作为inputBuffer
-            所以上面的drainOverflow入参也是outBuffer
-         */
-        final long presentationTimeUs = remixAndMaybeFillOverflow(inBuffer, outBuffer);
+        final int frames = Math.min(packFrames, availableFrames);
+        final long presentationTimeUs = packer.pack(outBuffer, frames);
         encoder.queueInputBuffer(encoderInBuffIndex, 0, outBuffer.position() * BYTES_PER_SHORT, presentationTimeUs, 0);
-        if (inBuffer != null) {
-            decoder.releaseOutputBuffer(inBuffer.bufferIndex, false);
-            emptyBuffers.add(inBuffer);
-        }
-
+        encoderInBuffIndex = -1;
         return true;
     }
 
-    /*
-        drainOverflow(buffer) -> {
-            put overFlowBuffer into buffer;
-            clear overFlowBuffer;
-        }
+    /**
+     * give buffers back to {@link ByteBufferPool}, after both codecs stopped
      */
-    private long drainOverflow(final ShortBuffer outBuff) {
-        final ShortBuffer overflowBuff = overFlowBuffer.data;
-        final int overflowLimit = overflowBuff.limit();
-        final int overflowSize = overflowBuff.remaining();
-
-        /*
-            overflow上的数据有两种
-            第一种:
-                直接是从decoder.outputBuffers出来的一份完整数据
-            第二种:
-                remixAndMaybeFillOverflow(inBuffer, outBuffer)过程中，剩余的部分
-
-            所以此方法返回的时间是拿到多少数据，重新通过加法去计算presentationTimeUs
-            而不是简单的通过overFlowBuffer.presentationTimeUs获取
-         */
-        final long beginPresentationTimeUs = overFlowBuffer.presentationTimeUs +
-                sampleCountToDurationUs(overflowBuff.position(), inputSampleRate, outputChannelCount);
-
-        outBuff.clear();
-        // Limit overflowBuff to outBuff's capacity
-        overflowBuff.limit(outBuff.capacity());
-        // Load overflowBuff onto outBuff
-        outBuff.put(overflowBuff);
-
-        if (overflowSize >= outBuff.capacity()) {
-            // Overflow fully consumed - Reset
-            overflowBuff.clear().limit(0);
-        } else {
-            // Only partially consumed - Keep position & restore previous limit
-            overflowBuff.limit(overflowLimit);
+    public void release() {
+        ByteBufferPool pool = ByteBufferPool.getDefault();
+        pool.release(convertedBytes);
+        pool.release(convertedFloatBytes);
+        pool.release(resampledBytes);
+        convertedBytes = convertedFloatBytes = resampledBytes = null;
+        converted = null;
+        convertedFloat = null;
+        resampled = null;
+        pendingData = null;
+        final PcmPacker packer = this.packer;
+        if (null != packer) {
+            this.packer = null;
+            packer.release();
         }
-
-        return beginPresentationTimeUs;
-    }
-
-    /*
-        remixAndMaybeFillOverflow(inBuffer, outBuffer) -> {
-            if(inBuffer.remaining() > outBuffer.remaining()) {
-                remixer.remix(inBuffer, outBuffer);
-                remixer.remix(inBuffer, overFlowBuffer);
-            } else {
-                remixer.remix(inBuffer, outBuffer);
-            }
-        }
-     */
-    private long remixAndMaybeFillOverflow(final AudioBuffer input,
-                                           final ShortBuffer outBuff) {
-        final ShortBuffer inBuff = input.data;
-        final ShortBuffer overflowBuff = overFlowBuffer.data;
-
-        outBuff.clear();
-
-        // Reset position to 0, and set limit to capacity (Since MediaCodec doesn't do that for us)
-        inBuff.clear();
-
-        if (inBuff.remaining() > outBuff.remaining()) {
-            // Overflow
-            // Limit inBuff to outBuff's capacity
-            inBuff.limit(outBuff.capacity());
-            remixer.remix(inBuff, outBuff);
-
-            // Reset limit to its own capacity & Keep position
-            inBuff.limit(inBuff.capacity());
-
-            // Remix the rest onto overflowBuffer
-            // NOTE: We should only reach this point when overflow buffer is empty
-            final long consumedDurationUs =
-                    sampleCountToDurationUs(inBuff.position(), inputSampleRate, inputChannelCount);
-            remixer.remix(inBuff, overflowBuff);
-
-            // Seal off overflowBuff & mark limit
-            overflowBuff.flip();
-            overFlowBuffer.presentationTimeUs = input.presentationTimeUs + consumedDurationUs;
-        } else {
-            // No overflow
-            remixer.remix(inBuff, outBuff);
-        }
-
-        return input.presentationTimeUs;
     }
 
     //========================= checkers ========================================================
-    private void checkChannelCount(int channelCount) {
-        if (channelCount != 1 && channelCount != 2) {
+    private void checkChannelCount(int channelCount, int maxChannelCount) {
+        if (channelCount < 1 || channelCount > maxChannelCount) {
             throw new UnsupportedOperationException(String.format("channel count (%d) not supported.", channelCount));
         }
     }
@@ -269,31 +316,27 @@ public class AudioProcessor {
         }
     }
 
-    private boolean hasOverflow() {
-        return null != overFlowBuffer.data && overFlowBuffer.data.hasRemaining();
-    }
-
     //========================= getters and setters ========================================================
-    private AudioRemixer getRemixer(int inputChannelCount, int outputChannelCount) {
-        if (inputChannelCount > outputChannelCount) {
-            return AudioRemixer.DOWNMIX;
+    private AudioRemixer getRemixer(int inputChannelCount, int outputChannelCount, int channelMask) {
+        if (inputChannelCount > 2) {
+            // surround sources, 5.1 / 7.1 straight to stereo or mono
+            return MatrixAudioRemixer.create(inputChannelCount, outputChannelCount, channelMask);
+        } else if (inputChannelCount > outputChannelCount) {
+            return new AudioRemixer.DownMix();
         } else if (inputChannelCount < outputChannelCount) {
-            return AudioRemixer.UPMIX;
+            return new AudioRemixer.UpMix();
         } else {
-            return AudioRemixer.PASSTHROUGH;
+            return new AudioRemixer.PassThrough();
         }
     }
 
-    private AudioBuffer pollEmptyBuffer() {
-        AudioBuffer buffer = emptyBuffers.poll();
-        if (buffer == null) {
-            buffer = new AudioBuffer();
-        }
-        return buffer;
+    private static int getPcmEncoding(MediaFormat format) {
+        return format.containsKey(MediaFormat.KEY_PCM_ENCODING)
+                ? format.getInteger(MediaFormat.KEY_PCM_ENCODING) : AudioFormat.ENCODING_PCM_16BIT;
     }
 
-    private static long sampleCountToDurationUs(final int sampleCount, final int sampleRate, final int channelCount) {
-        return (sampleCount / (sampleRate * MICROSECS_PER_SEC)) / channelCount;
+    private static int getChannelMask(MediaFormat format) {
+        return format.containsKey(MediaFormat.KEY_CHANNEL_MASK) ? format.getInteger(MediaFormat.KEY_CHANNEL_MASK) : 0;
     }
 
 }
@@ -11,84 +11,81 @@ import java.nio.ShortBuffer;
  * Z = (AB) / 128;
  * 否则
  * Z = 2(A + B) - (AB)/128 - 256;
+ * <p>
+ * Implementations keep scratch blocks, create one per AudioProcessor instead of sharing them.
  */
 public interface AudioRemixer {
     void remix(final ShortBuffer inSBuff, final ShortBuffer outSBuff);
 
     void remix(final ByteBuffer inSBuff, final ByteBuffer outSBuff);
 
-    AudioRemixer DOWNMIX = new AudioRemixer() {
+    class DownMix extends BlockAudioRemixer {
         private static final int SIGNED_SHORT_LIMIT = 32768;
         private static final int UNSIGNED_SHORT_MAX = 65535;
 
+        public DownMix() {
+            super(2, 1);
+        }
+
         @Override
-        public void remix(final ShortBuffer inSBuff, final ShortBuffer outSBuff) {
+        protected void remixBlock(short[] in, short[] out, int frames) {
             // Down-mix stereo to mono
             // Viktor Toth's algorithm -
             // See: http://www.vttoth.com/CMS/index.php/technical-notes/68
             //      http://stackoverflow.com/a/25102339
-            final int inRemaining = inSBuff.remaining() / 2;
-            final int outSpace = outSBuff.remaining();
-
-            final int samplesToBeProcessed = Math.min(inRemaining, outSpace);
-            for (int i = 0; i < samplesToBeProcessed; ++i) {
+            for (int i = 0, j = 0; i < frames; i++, j += 2) {
                 // Convert to unsigned
-                final int a = inSBuff.get() + SIGNED_SHORT_LIMIT;
-                final int b = inSBuff.get() + SIGNED_SHORT_LIMIT;
-                int m;
-                // Pick the equation
-                if ((a < SIGNED_SHORT_LIMIT) || (b < SIGNED_SHORT_LIMIT)) {
-                    // Viktor's first equation when both sources are "quiet"
-                    // (i.e. less than middle of the dynamic range)
-                    m = a * b / SIGNED_SHORT_LIMIT;
-                } else {
-                    // Viktor's second equation when one or both sources are loud
-                    m = 2 * (a + b) - (a * b) / SIGNED_SHORT_LIMIT - UNSIGNED_SHORT_MAX;
-                }
+                final int a = in[j] + SIGNED_SHORT_LIMIT;
+                final int b = in[j + 1] + SIGNED_SHORT_LIMIT;
+                // a * b / SIGNED_SHORT_LIMIT as a shift, rounding toward zero like the division,
+                // int overflow of a * b for loud samples is kept on purpose to stay bit-exact
+                final int ab = a * b;
+                final int product = (ab + ((ab >> 31) & (SIGNED_SHORT_LIMIT - 1))) >> 15;
+                // all ones when either source is "quiet" (i.e. less than middle of the dynamic range)
+                final int quiet = ((a - SIGNED_SHORT_LIMIT) | (b - SIGNED_SHORT_LIMIT)) >> 31;
+                // Viktor's first equation for quiet sources, second one when sources are loud,
+                // picked by mask instead of a branch, which mispredicts on real audio
+                int m = (product & quiet) | ((2 * (a + b) - product - UNSIGNED_SHORT_MAX) & ~quiet);
                 // Convert output back to signed short
                 if (m == UNSIGNED_SHORT_MAX + 1) m = UNSIGNED_SHORT_MAX;
-                outSBuff.put((short) (m - SIGNED_SHORT_LIMIT));
+                out[i] = (short) (m - SIGNED_SHORT_LIMIT);
             }
         }
+    }
 
-        @Override
-        public void remix(ByteBuffer inSBuff, ByteBuffer outSBuff) {
-            remix(inSBuff.asShortBuffer(), outSBuff.asShortBuffer());
+    class UpMix extends BlockAudioRemixer {
+        public UpMix() {
+            super(1, 2);
         }
-    };
 
-    AudioRemixer UPMIX = new AudioRemixer() {
         @Override
-        public void remix(final ShortBuffer inSBuff, final ShortBuffer outSBuff) {
+        protected void remixBlock(short[] in, short[] out, int frames) {
             // Up-mix mono to stereo
-            final int inRemaining = inSBuff.remaining();
-            final int outSpace = outSBuff.remaining() / 2;
-
-            final int samplesToBeProcessed = Math.min(inRemaining, outSpace);
-            for (int i = 0; i < samplesToBeProcessed; ++i) {
-                final short inSample = inSBuff.get();
+            for (int i = 0, j = 0; i < frames; i++, j += 2) {
                 //upmix就是同样的声音数据，放两份进去,等于效果*2
-                outSBuff.put(inSample);
-                outSBuff.put(inSample);
+                final short inSample = in[i];
+                out[j] = inSample;
+                out[j + 1] = inSample;
             }
         }
+    }
 
-        @Override
-        public void remix(ByteBuffer inSBuff, ByteBuffer outSBuff) {
-            remix(inSBuff.asShortBuffer(), outSBuff.asShortBuffer());
-        }
-    };
-
-    AudioRemixer PASSTHROUGH = new AudioRemixer() {
+    class PassThrough implements AudioRemixer {
         @Override
         public void remix(final ShortBuffer inSBuff, final ShortBuffer outSBuff) {
-            // Passthrough
+            // Passthrough, a single bulk copy
+            final int inLimit = inSBuff.limit();
+            inSBuff.limit(inSBuff.position() + Math.min(inSBuff.remaining(), outSBuff.remaining()));
             outSBuff.put(inSBuff);
+            inSBuff.limit(inLimit);
         }
 
         @Override
         public void remix(ByteBuffer inSBuff, ByteBuffer outSBuff) {
-            remix(inSBuff.asShortBuffer(), outSBuff.asShortBuffer());
+            final int inLimit = inSBuff.limit();
+            inSBuff.limit(inSBuff.position() + (Math.min(inSBuff.remaining(), outSBuff.remaining()) & ~1));
+            outSBuff.put(inSBuff);
+            inSBuff.limit(inLimit);
         }
-    };
+    }
 }
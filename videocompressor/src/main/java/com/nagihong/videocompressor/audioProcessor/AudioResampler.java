@@ -0,0 +1,309 @@
+package com.nagihong.videocompressor.audioProcessor;
+
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streaming polyphase resampler for interleaved 16 bit PCM.
+ * <p>
+ * Rates are reduced to up / down = outputRate / inputRate by their gcd, output frame n is computed from
+ * input frames around n * down / up with the filter phase (n * down) % up of a windowed sinc low-pass.
+ * Phase tables are built once per rate pair and shared. The last input frames are kept as history,
+ * so buffers can be fed one by one without clicks at their borders, and the filter delay is
+ * compensated, output frame 0 lines up with input frame 0.
+ * Buffers are allocated in the constructor, resampling does not allocate.
+ */
+public class AudioResampler {
+    private static final int TAPS_PER_PHASE = 32;
+    private static final int MAX_PHASES = 4096;
+    private static final int BLOCK_FRAMES = 1024;
+    private static final double KAISER_BETA = 8.6;
+    // keep pass band a bit below nyquist of the lower rate, so the transition band does not alias
+    private static final double CUTOFF_RATIO = 0.91;
+    private static final float SHORT_SCALE = 32768f;
+
+    private static final Map<Long, float[]> FILTER_CACHE = new HashMap<>();
+
+    private final int inputSampleRate;
+    private final int outputSampleRate;
+    private final int channelCount;
+    private final int up;
+    private final int down;
+    private final float[] filter; // phase p, tap k at p * TAPS_PER_PHASE + k
+
+    // interleaved input frames, first TAPS_PER_PHASE - 1 frames are history
+    private final float[] input;
+    private int inputFrames;
+    private int inputIndex;
+    private int phase;
+    private final float[] accumulators;
+
+    private long inputFrameCount;
+    private long outputFrameCount;
+    private int padFrames;
+
+    public AudioResampler(int inputSampleRate, int outputSampleRate, int channelCount) {
+        if (inputSampleRate <= 0 || outputSampleRate <= 0 || channelCount <= 0) {
+            throw new IllegalArgumentException(String.format("resample %d -> %d with %d channels",
+                    inputSampleRate, outputSampleRate, channelCount));
+        }
+        int gcd = gcd(inputSampleRate, outputSampleRate);
+        this.inputSampleRate = inputSampleRate;
+        this.outputSampleRate = outputSampleRate;
+        this.channelCount = channelCount;
+        up = outputSampleRate / gcd;
+        down = inputSampleRate / gcd;
+        // history only covers one filter length, larger steps would skip input frames
+        if (up > MAX_PHASES || down > up * (TAPS_PER_PHASE - 1)) {
+            throw new UnsupportedOperationException(String.format("Audio sample rate conversion %d -> %d not supported.",
+                    inputSampleRate, outputSampleRate));
+        }
+        filter = getFilter(up, down);
+        input = new float[(TAPS_PER_PHASE - 1 + BLOCK_FRAMES) * channelCount];
+        accumulators = new float[channelCount];
+        reset();
+    }
+
+    public void reset() {
+        Arrays.fill(input, 0);
+        inputFrames = TAPS_PER_PHASE - 1;
+        // start at the filter center, in the up-sampled domain, to cancel its delay
+        long start = (long) (TAPS_PER_PHASE - 1) * up + filterCenter(up);
+        inputIndex = (int) (start / up);
+        phase = (int) (start % up);
+        inputFrameCount = 0;
+        outputFrameCount = 0;
+        padFrames = -1;
+    }
+
+    public int getInputSampleRate() {
+        return inputSampleRate;
+    }
+
+    public int getOutputSampleRate() {
+        return outputSampleRate;
+    }
+
+    /**
+     * @return frames written since construction or {@link #reset()}, to derive sample accurate timestamps.
+     */
+    public long getOutputFrameCount() {
+        return outputFrameCount;
+    }
+
+    /**
+     * @return upper bound of frames produced from inputFrames, including history and drain.
+     */
+    public int getMaxOutputFrames(int inputFrames) {
+        return (int) (((long) inputFrames + TAPS_PER_PHASE) * up / down) + 1;
+    }
+
+    /**
+     * Consume frames from in and write resampled frames to out, until in is empty or out is full.
+     *
+     * @return frames written.
+     */
+    public int resample(final ShortBuffer in, final ShortBuffer out) {
+        int written = 0;
+        while (true) {
+            written += produce(out);
+            if (out.remaining() < channelCount) break;
+            if (in.remaining() < channelCount) break;
+            fill(in);
+        }
+        return written;
+    }
+
+    /**
+     * Same as {@link #resample(ShortBuffer, ShortBuffer)} for float samples in [-1, 1),
+     * so float and 24 bit sources are quantized to 16 bit only once, after filtering.
+     */
+    public int resample(final FloatBuffer in, final ShortBuffer out) {
+        int written = 0;
+        while (true) {
+            written += produce(out);
+            if (out.remaining() < channelCount) break;
+            if (in.remaining() < channelCount) break;
+            fill(in);
+        }
+        return written;
+    }
+
+    /**
+     * Flush frames still held back by the filter delay, call once at end of stream.
+     *
+     * @return frames written.
+     */
+    public int drain(final ShortBuffer out) {
+        if (padFrames < 0) {
+            // silence up to the last input frame which still contributes to output
+            padFrames = TAPS_PER_PHASE / 2 + 1;
+        }
+        // output of a complete stream is ceil(inputFrameCount * up / down) frames
+        final long totalFrames = (inputFrameCount * up + down - 1) / down;
+        int written = 0;
+        while (true) {
+            written += produce(out, totalFrames - outputFrameCount);
+            if (out.remaining() < channelCount || padFrames == 0 || outputFrameCount >= totalFrames) break;
+            compact();
+            int frames = Math.min(padFrames, input.length / channelCount - inputFrames);
+            Arrays.fill(input, inputFrames * channelCount, (inputFrames + frames) * channelCount, 0);
+            inputFrames += frames;
+            padFrames -= frames;
+        }
+        return written;
+    }
+
+    //========================= filtering ========================================================
+    private int produce(final ShortBuffer out) {
+        return produce(out, Long.MAX_VALUE);
+    }
+
+    private int produce(final ShortBuffer out, final long maxFrames) {
+        final int taps = TAPS_PER_PHASE;
+        final int channels = channelCount;
+        int written = 0;
+        while (inputIndex < inputFrames && out.remaining() >= channels && written < maxFrames) {
+            final int filterOffset = phase * taps;
+            for (int c = 0; c < channels; c++) {
+                accumulators[c] = 0;
+            }
+            int sample = inputIndex * channels;
+            for (int k = 0; k < taps; k++, sample -= channels) {
+                final float coefficient = filter[filterOffset + k];
+                for (int c = 0; c < channels; c++) {
+                    accumulators[c] += coefficient * input[sample + c];
+                }
+            }
+            for (int c = 0; c < channels; c++) {
+                out.put(toShort(accumulators[c]));
+            }
+            written++;
+            phase += down;
+            inputIndex += phase / up;
+            phase %= up;
+        }
+        outputFrameCount += written;
+        return written;
+    }
+
+    private void fill(final ShortBuffer in) {
+        compact();
+        final int channels = channelCount;
+        int frames = Math.min(in.remaining() / channels, input.length / channels - inputFrames);
+        int index = inputFrames * channels;
+        int end = index + frames * channels;
+        while (index < end) {
+            input[index++] = in.get();
+        }
+        inputFrames += frames;
+        inputFrameCount += frames;
+    }
+
+    private void fill(final FloatBuffer in) {
+        compact();
+        final int channels = channelCount;
+        final int frames = Math.min(in.remaining() / channels, input.length / channels - inputFrames);
+        final int index = inputFrames * channels;
+        final int end = index + frames * channels;
+        in.get(input, index, frames * channels);
+        for (int i = index; i < end; i++) {
+            input[i] *= SHORT_SCALE;
+        }
+        inputFrames += frames;
+        inputFrameCount += frames;
+    }
+
+    /**
+     * keep only frames the next output still needs
+     */
+    private void compact() {
+        int keepFrom = inputIndex - (TAPS_PER_PHASE - 1);
+        if (keepFrom <= 0) return;
+        int keepFrames = Math.max(0, inputFrames - keepFrom);
+        System.arraycopy(input, keepFrom * channelCount, input, 0, keepFrames * channelCount);
+        inputFrames = keepFrames;
+        inputIndex -= keepFrom;
+    }
+
+    private static short toShort(float value) {
+        int rounded = Math.round(value);
+        if (rounded > Short.MAX_VALUE) return Short.MAX_VALUE;
+        if (rounded < Short.MIN_VALUE) return Short.MIN_VALUE;
+        return (short) rounded;
+    }
+
+    //========================= filter design ========================================================
+    private static float[] getFilter(int up, int down) {
+        Long key = ((long) up << 32) | down;
+        synchronized (FILTER_CACHE) {
+            float[] filter = FILTER_CACHE.get(key);
+            if (filter == null) {
+                filter = createFilter(up, down);
+                FILTER_CACHE.put(key, filter);
+            }
+            return filter;
+        }
+    }
+
+    /**
+     * Kaiser windowed sinc in the up-sampled domain, split into up phases of TAPS_PER_PHASE taps,
+     * each phase normalized to unity gain at DC.
+     */
+    private static float[] createFilter(int up, int down) {
+        final int taps = TAPS_PER_PHASE;
+        final int length = taps * up;
+        final double cutoff = CUTOFF_RATIO * 0.5 / Math.max(up, down);
+        // center on a whole up-sampled frame, a half frame offset would shift all output by 1 / (2 * up)
+        final int center = filterCenter(up);
+        final double besselBeta = bessel0(KAISER_BETA);
+        double[] prototype = new double[length];
+        for (int j = 0; j < length; j++) {
+            double x = j - center;
+            double sinc = x == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+            double ratio = x / (double) center;
+            double window = bessel0(KAISER_BETA * Math.sqrt(Math.max(0, 1 - ratio * ratio))) / besselBeta;
+            prototype[j] = sinc * window;
+        }
+        float[] filter = new float[length];
+        for (int p = 0; p < up; p++) {
+            double sum = 0;
+            for (int k = 0; k < taps; k++) {
+                sum += prototype[p + k * up];
+            }
+            for (int k = 0; k < taps; k++) {
+                filter[p * taps + k] = (float) (prototype[p + k * up] / sum);
+            }
+        }
+        return filter;
+    }
+
+    private static int filterCenter(int up) {
+        return TAPS_PER_PHASE * up / 2;
+    }
+
+    // zeroth order modified bessel function of the first kind
+    private static double bessel0(double x) {
+        double sum = 1;
+        double term = 1;
+        double halfX = x / 2;
+        for (int k = 1; k < 50; k++) {
+            term *= (halfX / k) * (halfX / k);
+            sum += term;
+            if (term < sum * 1e-12) break;
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,59 @@
+package com.nagihong.videocompressor.audioProcessor;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Remixes interleaved 16 bit PCM in blocks of {@value #BLOCK_FRAMES} frames.
+ * <p>
+ * Samples are moved with bulk get/put into reusable short[] blocks and remixed there by {@link #remixBlock(short[], short[], int)},
+ * a plain array loop the JIT can unroll, instead of one buffer call per sample.
+ * Holds its blocks, so use one instance per AudioProcessor.
+ */
+public abstract class BlockAudioRemixer implements AudioRemixer {
+    static final int BLOCK_FRAMES = 1024;
+
+    private final int inChannelCount;
+    private final int outChannelCount;
+    private final short[] inBlock;
+    private final short[] outBlock;
+
+    protected BlockAudioRemixer(int inChannelCount, int outChannelCount) {
+        this.inChannelCount = inChannelCount;
+        this.outChannelCount = outChannelCount;
+        inBlock = new short[BLOCK_FRAMES * inChannelCount];
+        outBlock = new short[BLOCK_FRAMES * outChannelCount];
+    }
+
+    /**
+     * @param in     frames * inChannelCount interleaved samples
+     * @param out    receives frames * outChannelCount interleaved samples
+     * @param frames frame count, at most {@value #BLOCK_FRAMES}
+     */
+    protected abstract void remixBlock(short[] in, short[] out, int frames);
+
+    @Override
+    public void remix(final ShortBuffer inSBuff, final ShortBuffer outSBuff) {
+        int frames = Math.min(inSBuff.remaining() / inChannelCount, outSBuff.remaining() / outChannelCount);
+        while (frames > 0) {
+            int blockFrames = Math.min(frames, BLOCK_FRAMES);
+            inSBuff.get(inBlock, 0, blockFrames * inChannelCount);
+            remixBlock(inBlock, outBlock, blockFrames);
+            outSBuff.put(outBlock, 0, blockFrames * outChannelCount);
+            frames -= blockFrames;
+        }
+    }
+
+    /**
+     * moves shorts through {@link ByteBuffer#asShortBuffer()} views, in the buffers' own byte order, so blocks are
+     * still filled and drained by bulk get/put. Positions are advanced by the bytes consumed and produced.
+     */
+    @Override
+    public void remix(final ByteBuffer inSBuff, final ByteBuffer outSBuff) {
+        ShortBuffer in = inSBuff.asShortBuffer();
+        ShortBuffer out = outSBuff.asShortBuffer();
+        remix(in, out);
+        inSBuff.position(inSBuff.position() + 2 * in.position());
+        outSBuff.position(outSBuff.position() + 2 * out.position());
+    }
+}
@@ -0,0 +1,172 @@
+package com.nagihong.videocompressor.audioProcessor;
+
+import android.media.AudioFormat;
+
+/**
+ * Maps any input channel layout to the output channels with a coefficient matrix,
+ * out[o] = sum(coefficients[o][i] * in[i]) for every frame.
+ * <p>
+ * Default matrices follow ITU-R BS.775 downmix gains: center and surrounds go into both sides at -3dB,
+ * LFE is dropped, each output row is normalized so a full scale input can not clip.
+ * Input speaker positions come from the decoder's channel mask when it has one,
+ * otherwise from the usual AAC / Android order FL FR FC LFE BL BR SL SR.
+ */
+public class MatrixAudioRemixer extends BlockAudioRemixer {
+    private static final float MINUS_3DB = 0.7071f;
+
+    public static final float[][] STEREO_TO_MONO = {{0.5f, 0.5f}};
+    // FL FR FC LFE BL BR
+    public static final float[][] SURROUND_5_1_TO_STEREO = normalize(new float[][]{
+            {1, 0, MINUS_3DB, 0, MINUS_3DB, 0},
+            {0, 1, MINUS_3DB, 0, 0, MINUS_3DB}});
+    // FL FR FC LFE BL BR SL SR
+    public static final float[][] SURROUND_7_1_TO_STEREO = normalize(new float[][]{
+            {1, 0, MINUS_3DB, 0, MINUS_3DB, 0, MINUS_3DB, 0},
+            {0, 1, MINUS_3DB, 0, 0, MINUS_3DB, 0, MINUS_3DB}});
+
+    private static final int FRONT_LEFT = AudioFormat.CHANNEL_OUT_FRONT_LEFT;
+    private static final int FRONT_RIGHT = AudioFormat.CHANNEL_OUT_FRONT_RIGHT;
+    private static final int FRONT_CENTER = AudioFormat.CHANNEL_OUT_FRONT_CENTER;
+    private static final int LOW_FREQUENCY = AudioFormat.CHANNEL_OUT_LOW_FREQUENCY;
+    private static final int BACK_LEFT = AudioFormat.CHANNEL_OUT_BACK_LEFT;
+    private static final int BACK_RIGHT = AudioFormat.CHANNEL_OUT_BACK_RIGHT;
+    private static final int FRONT_LEFT_OF_CENTER = AudioFormat.CHANNEL_OUT_FRONT_LEFT_OF_CENTER;
+    private static final int FRONT_RIGHT_OF_CENTER = AudioFormat.CHANNEL_OUT_FRONT_RIGHT_OF_CENTER;
+    private static final int BACK_CENTER = AudioFormat.CHANNEL_OUT_BACK_CENTER;
+    private static final int SIDE_LEFT = AudioFormat.CHANNEL_OUT_SIDE_LEFT;
+    private static final int SIDE_RIGHT = AudioFormat.CHANNEL_OUT_SIDE_RIGHT;
+
+    // speaker positions by channel count, when the decoder does not report a mask
+    private static final int[][] DEFAULT_POSITIONS = {
+            {},
+            {FRONT_CENTER},
+            {FRONT_LEFT, FRONT_RIGHT},
+            {FRONT_LEFT, FRONT_RIGHT, FRONT_CENTER},
+            {FRONT_LEFT, FRONT_RIGHT, BACK_LEFT, BACK_RIGHT},
+            {FRONT_LEFT, FRONT_RIGHT, FRONT_CENTER, BACK_LEFT, BACK_RIGHT},
+            {FRONT_LEFT, FRONT_RIGHT, FRONT_CENTER, LOW_FREQUENCY, BACK_LEFT, BACK_RIGHT},
+            {FRONT_LEFT, FRONT_RIGHT, FRONT_CENTER, LOW_FREQUENCY, BACK_CENTER, SIDE_LEFT, SIDE_RIGHT},
+            {FRONT_LEFT, FRONT_RIGHT, FRONT_CENTER, LOW_FREQUENCY, BACK_LEFT, BACK_RIGHT, SIDE_LEFT, SIDE_RIGHT},
+    };
+    public static final int MAX_INPUT_CHANNELS = DEFAULT_POSITIONS.length - 1;
+
+    private final int inChannelCount;
+    private final int outChannelCount;
+    // row major, out channel o uses coefficients[o * inChannelCount .. (o + 1) * inChannelCount)
+    private final float[] coefficients;
+
+    /**
+     * @param coefficients [outChannel][inChannel] gains
+     */
+    public MatrixAudioRemixer(float[][] coefficients) {
+        super(coefficients[0].length, coefficients.length);
+        outChannelCount = coefficients.length;
+        inChannelCount = coefficients[0].length;
+        this.coefficients = new float[outChannelCount * inChannelCount];
+        for (int o = 0; o < outChannelCount; o++) {
+            if (coefficients[o].length != inChannelCount) {
+                throw new IllegalArgumentException("Matrix rows must have the same length.");
+            }
+            System.arraycopy(coefficients[o], 0, this.coefficients, o * inChannelCount, inChannelCount);
+        }
+    }
+
+    /**
+     * @param channelMask decoder's KEY_CHANNEL_MASK, 0 when unknown
+     */
+    public static MatrixAudioRemixer create(int inChannelCount, int outChannelCount, int channelMask) {
+        return new MatrixAudioRemixer(createMatrix(inChannelCount, outChannelCount, channelMask));
+    }
+
+    @Override
+    protected void remixBlock(short[] in, short[] out, int frames) {
+        final int inCount = inChannelCount;
+        final int outCount = outChannelCount;
+        final float[] matrix = coefficients;
+        for (int f = 0, i = 0, j = 0; f < frames; f++, i += inCount, j += outCount) {
+            for (int o = 0, row = 0; o < outCount; o++, row += inCount) {
+                float sum = 0;
+                for (int c = 0; c < inCount; c++) {
+                    sum += matrix[row + c] * in[i + c];
+                }
+                int value = Math.round(sum);
+                if (value > Short.MAX_VALUE) value = Short.MAX_VALUE;
+                else if (value < Short.MIN_VALUE) value = Short.MIN_VALUE;
+                out[j + o] = (short) value;
+            }
+        }
+    }
+
+    //========================= matrix ========================================================
+    static float[][] createMatrix(int inChannelCount, int outChannelCount, int channelMask) {
+        if (inChannelCount < 1 || inChannelCount > MAX_INPUT_CHANNELS || outChannelCount < 1 || outChannelCount > 2) {
+            throw new UnsupportedOperationException(String.format("remix %d -> %d channels not supported.",
+                    inChannelCount, outChannelCount));
+        }
+        int[] positions = positionsOf(inChannelCount, channelMask);
+        // a lone center channel is the mono source itself, next to front speakers it is shared at -3dB
+        float centerGain = inChannelCount == 1 ? 1 : MINUS_3DB;
+        float[][] matrix = new float[outChannelCount][inChannelCount];
+        for (int c = 0; c < inChannelCount; c++) {
+            float left = positions[c] == FRONT_CENTER ? centerGain : leftGain(positions[c]);
+            float right = positions[c] == FRONT_CENTER ? centerGain : rightGain(positions[c]);
+            if (outChannelCount == 1) {
+                matrix[0][c] = (left + right) / 2;
+            } else {
+                matrix[0][c] = left;
+                matrix[1][c] = right;
+            }
+        }
+        // mono and plain stereo sources are copied, not attenuated
+        return inChannelCount <= outChannelCount ? matrix : normalize(matrix);
+    }
+
+    private static int[] positionsOf(int channelCount, int channelMask) {
+        if (Integer.bitCount(channelMask) != channelCount) return DEFAULT_POSITIONS[channelCount];
+        // channels are interleaved in ascending mask bit order
+        int[] positions = new int[channelCount];
+        for (int c = 0; c < channelCount; c++) {
+            positions[c] = Integer.lowestOneBit(channelMask);
+            channelMask &= ~positions[c];
+        }
+        return positions;
+    }
+
+    private static float leftGain(int position) {
+        switch (position) {
+            case FRONT_LEFT:
+                return 1;
+            case FRONT_LEFT_OF_CENTER:
+            case BACK_LEFT:
+            case SIDE_LEFT:
+            case BACK_CENTER:
+                return MINUS_3DB;
+            default:
+                return 0;
+        }
+    }
+
+    private static float rightGain(int position) {
+        switch (position) {
+            case FRONT_RIGHT:
+                return 1;
+            case FRONT_RIGHT_OF_CENTER:
+            case BACK_RIGHT:
+            case SIDE_RIGHT:
+            case BACK_CENTER:
+                return MINUS_3DB;
+            default:
+                return 0;
+        }
+    }
+
+    private static float[][] normalize(float[][] matrix) {
+        for (float[] row : matrix) {
+            float sum = 0;
+            for (float coefficient : row) sum += Math.abs(coefficient);
+            if (sum <= 1) continue;
+            for (int i = 0; i < row.length; i++) row[i] /= sum;
+        }
+        return matrix;
+    }
+}
@@ -0,0 +1,201 @@
+package com.nagihong.videocompressor.audioProcessor;
+
+import android.media.AudioFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Converts decoded PCM to the 16 bit samples the remixer and the encoder work on, or to float for the resampler.
+ * <p>
+ * Every sample is converted once, where it leaves the decoder, with a kernel specialized per encoding:
+ * 24 bit packed, 32 bit and float. Samples are moved through reusable blocks with bulk get/put like
+ * {@link BlockAudioRemixer}. Holds its blocks, so use one instance per AudioProcessor.
+ */
+class PcmConverter {
+    private static final int BLOCK_SAMPLES = 4096;
+    private static final float SHORT_SCALE = 32768f;
+    // AudioFormat.ENCODING_PCM_24BIT_PACKED and ENCODING_PCM_32BIT are public since api 31 and missing from the sdk
+    // compiled against, the values are the same on older releases, whose decoders may output them already
+    private static final int ENCODING_PCM_24BIT_PACKED = 21;
+    private static final int ENCODING_PCM_32BIT = 22;
+
+    private final int encoding;
+    private final int bytesPerSample;
+    private final byte[] byteBlock;
+    private final int[] intBlock;
+    private final float[] floatBlock;
+    private final short[] shortBlock = new short[BLOCK_SAMPLES];
+
+    PcmConverter(int encoding) {
+        this.encoding = encoding;
+        bytesPerSample = bytesPerSample(encoding);
+        byteBlock = encoding == ENCODING_PCM_24BIT_PACKED ? new byte[BLOCK_SAMPLES * 3] : null;
+        intBlock = encoding == ENCODING_PCM_32BIT ? new int[BLOCK_SAMPLES] : null;
+        floatBlock = new float[BLOCK_SAMPLES];
+    }
+
+    static int bytesPerSample(int encoding) {
+        switch (encoding) {
+            case AudioFormat.ENCODING_PCM_16BIT:
+                return 2;
+            case ENCODING_PCM_24BIT_PACKED:
+                return 3;
+            case ENCODING_PCM_32BIT:
+            case AudioFormat.ENCODING_PCM_FLOAT:
+                return 4;
+            default:
+                throw new UnsupportedOperationException(String.format("pcm encoding (%d) not supported.", encoding));
+        }
+    }
+
+    int getBytesPerSample() {
+        return bytesPerSample;
+    }
+
+    /**
+     * @return samples between position and limit of in.
+     */
+    int sampleCount(ByteBuffer in) {
+        return in.remaining() / bytesPerSample;
+    }
+
+    /**
+     * convert samples of in, from position to limit, and put them into out, rounded and clamped to 16 bit
+     */
+    void toShort(final ByteBuffer in, final ShortBuffer out) {
+        final ByteBuffer source = in.duplicate().order(ByteOrder.nativeOrder());
+        int samples = Math.min(sampleCount(source), out.remaining());
+        switch (encoding) {
+            case AudioFormat.ENCODING_PCM_16BIT: {
+                final ShortBuffer shorts = source.asShortBuffer();
+                shorts.limit(samples);
+                out.put(shorts);
+                return;
+            }
+            case ENCODING_PCM_24BIT_PACKED:
+                while (samples > 0) {
+                    final int count = Math.min(samples, BLOCK_SAMPLES);
+                    source.get(byteBlock, 0, count * 3);
+                    packed24ToShort(byteBlock, shortBlock, count, source.order() == ByteOrder.LITTLE_ENDIAN);
+                    out.put(shortBlock, 0, count);
+                    samples -= count;
+                }
+                return;
+            case ENCODING_PCM_32BIT: {
+                final IntBuffer ints = source.asIntBuffer();
+                while (samples > 0) {
+                    final int count = Math.min(samples, BLOCK_SAMPLES);
+                    ints.get(intBlock, 0, count);
+                    int32ToShort(intBlock, shortBlock, count);
+                    out.put(shortBlock, 0, count);
+                    samples -= count;
+                }
+                return;
+            }
+            case AudioFormat.ENCODING_PCM_FLOAT: {
+                final FloatBuffer floats = source.asFloatBuffer();
+                while (samples > 0) {
+                    final int count = Math.min(samples, BLOCK_SAMPLES);
+                    floats.get(floatBlock, 0, count);
+                    floatToShort(floatBlock, shortBlock, count);
+                    out.put(shortBlock, 0, count);
+                    samples -= count;
+                }
+                return;
+            }
+            default:
+                throw new UnsupportedOperationException(String.format("pcm encoding (%d) not supported.", encoding));
+        }
+    }
+
+    /**
+     * convert samples of in, from position to limit, and put them into out, scaled to [-1, 1)
+     */
+    void toFloat(final ByteBuffer in, final FloatBuffer out) {
+        final ByteBuffer source = in.duplicate().order(ByteOrder.nativeOrder());
+        int samples = Math.min(sampleCount(source), out.remaining());
+        switch (encoding) {
+            case AudioFormat.ENCODING_PCM_FLOAT: {
+                final FloatBuffer floats = source.asFloatBuffer();
+                floats.limit(samples);
+                out.put(floats);
+                return;
+            }
+            case AudioFormat.ENCODING_PCM_16BIT: {
+                final ShortBuffer shorts = source.asShortBuffer();
+                while (samples > 0) {
+                    final int count = Math.min(samples, BLOCK_SAMPLES);
+                    shorts.get(shortBlock, 0, count);
+                    for (int i = 0; i < count; i++) {
+                        floatBlock[i] = shortBlock[i] / SHORT_SCALE;
+                    }
+                    out.put(floatBlock, 0, count);
+                    samples -= count;
+                }
+                return;
+            }
+            case ENCODING_PCM_24BIT_PACKED: {
+                final boolean littleEndian = source.order() == ByteOrder.LITTLE_ENDIAN;
+                while (samples > 0) {
+                    final int count = Math.min(samples, BLOCK_SAMPLES);
+                    source.get(byteBlock, 0, count * 3);
+                    for (int i = 0, j = 0; i < count; i++, j += 3) {
+                        floatBlock[i] = packed24(byteBlock, j, littleEndian) / (SHORT_SCALE * 256);
+                    }
+                    out.put(floatBlock, 0, count);
+                    samples -= count;
+                }
+                return;
+            }
+            case ENCODING_PCM_32BIT: {
+                final IntBuffer ints = source.asIntBuffer();
+                while (samples > 0) {
+                    final int count = Math.min(samples, BLOCK_SAMPLES);
+                    ints.get(intBlock, 0, count);
+                    for (int i = 0; i < count; i++) {
+                        floatBlock[i] = intBlock[i] / (SHORT_SCALE * 65536);
+                    }
+                    out.put(floatBlock, 0, count);
+                    samples -= count;
+                }
+                return;
+            }
+            default:
+                throw new UnsupportedOperationException(String.format("pcm encoding (%d) not supported.", encoding));
+        }
+    }
+
+    //========================= kernels ========================================================
+    private static int packed24(byte[] bytes, int offset, boolean littleEndian) {
+        if (littleEndian) {
+            return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | bytes[offset + 2] << 16;
+        }
+        return (bytes[offset + 2] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | bytes[offset] << 16;
+    }
+
+    private static void packed24ToShort(byte[] in, short[] out, int samples, boolean littleEndian) {
+        for (int i = 0, j = 0; i < samples; i++, j += 3) {
+            // round away the low byte, clamp the one value rounding pushes over the top
+            final int value = (packed24(in, j, littleEndian) + 0x80) >> 8;
+            out[i] = (short) (value > Short.MAX_VALUE ? Short.MAX_VALUE : value);
+        }
+    }
+
+    private static void int32ToShort(int[] in, short[] out, int samples) {
+        for (int i = 0; i < samples; i++) {
+            final long value = ((long) in[i] + 0x8000) >> 16;
+            out[i] = (short) (value > Short.MAX_VALUE ? Short.MAX_VALUE : value);
+        }
+    }
+
+    private static void floatToShort(float[] in, short[] out, int samples) {
+        for (int i = 0; i < samples; i++) {
+            final int value = Math.round(in[i] * SHORT_SCALE);
+            out[i] = (short) (value > Short.MAX_VALUE ? Short.MAX_VALUE : value < Short.MIN_VALUE ? Short.MIN_VALUE : value);
+        }
+    }
+}
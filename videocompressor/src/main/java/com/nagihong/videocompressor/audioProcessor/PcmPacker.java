@@ -0,0 +1,97 @@
+package com.nagihong.videocompressor.audioProcessor;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Packs PCM from a {@link PcmRingBuffer} into encoder input buffers.
+ * <p>
+ * Decoded chunks of any size are remixed straight into the ring, the encoder is fed exactly full input
+ * buffers, in multiples of the {@value #AAC_FRAME_SIZE} frames an AAC frame holds.
+ * Timestamps are derived from the frames packed so far, start + frames * 1e6 / sampleRate,
+ * so they never drift, however many chunks a long recording is split into.
+ * Writing is the producer side of the ring, packing the consumer side, they may run on different threads.
+ */
+class PcmPacker {
+    static final int AAC_FRAME_SIZE = 1024;
+    private static final long MICROSECS_PER_SEC = 1000000;
+
+    private final int sampleRate;
+    private final PcmRingBuffer ring;
+    private volatile long startPresentationTimeUs = -1;
+
+    PcmPacker(int channelCount, int sampleRate, int capacityFrames) {
+        this.sampleRate = sampleRate;
+        ring = new PcmRingBuffer(channelCount, capacityFrames);
+    }
+
+    /**
+     * give the ring back, neither side may use it anymore
+     */
+    void release() {
+        ring.release();
+    }
+
+    int getCapacityFrames() {
+        return ring.getCapacityFrames();
+    }
+
+    //========================= producer ========================================================
+    int freeFrames() {
+        return ring.freeFrames();
+    }
+
+    /**
+     * only the first call counts, later chunks are timed by the frame counter
+     */
+    void setStartPresentationTimeUs(long presentationTimeUs) {
+        if (startPresentationTimeUs < 0) startPresentationTimeUs = presentationTimeUs;
+    }
+
+    /**
+     * remix as many frames of in as fit into the ring, position of in is advanced by what was consumed
+     *
+     * @return frames written.
+     */
+    int write(final AudioRemixer remixer, final ShortBuffer in) {
+        return ring.write(remixer, in);
+    }
+
+    //========================= consumer ========================================================
+    int availableFrames() {
+        return ring.availableFrames();
+    }
+
+    /**
+     * @return frames to put into an encoder input buffer of capacityFrames, a multiple of
+     * {@value #AAC_FRAME_SIZE} unless the buffer is smaller than one AAC frame.
+     */
+    int getPackFrames(int capacityFrames) {
+        int frames = Math.min(capacityFrames, ring.getCapacityFrames());
+        int aligned = frames / AAC_FRAME_SIZE * AAC_FRAME_SIZE;
+        return aligned > 0 ? aligned : frames;
+    }
+
+    /**
+     * move frames from ring to out, out is cleared first
+     *
+     * @return presentation time of the first frame moved.
+     */
+    long pack(final ShortBuffer out, final int frames) {
+        final long presentationTimeUs = getPresentationTimeUs();
+        out.clear();
+        ring.read(out, frames);
+        return presentationTimeUs;
+    }
+
+    /**
+     * @return presentation time of the next frame to pack.
+     */
+    long getPresentationTimeUs() {
+        final long startUs = startPresentationTimeUs < 0 ? 0 : startPresentationTimeUs;
+        return startUs + framesToDurationUs(ring.getReadFrames(), sampleRate);
+    }
+
+    static long framesToDurationUs(final long frameCount, final int sampleRate) {
+        return frameCount * MICROSECS_PER_SEC / sampleRate;
+    }
+}
@@ -0,0 +1,120 @@
+package com.nagihong.videocompressor.audioProcessor;
+
+import com.nagihong.videocompressor.utils.ByteBufferPool;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single producer / single consumer ring of interleaved 16 bit PCM frames, held off-heap.
+ * <p>
+ * The producer (decoder side) only moves writtenFrames, the consumer (encoder side) only moves readFrames,
+ * each publishes its counter with an ordered store after touching the data, so neither ever waits on a lock.
+ * Both sides work on their own view of the direct buffer, position and limit are never shared.
+ * Methods are marked with the side allowed to call them.
+ */
+class PcmRingBuffer {
+    private final int channelCount;
+    private final int capacityFrames;
+    private ByteBuffer ring;
+    private final ShortBuffer writeView;
+    private final ShortBuffer readView;
+
+    private final AtomicLong writtenFrames = new AtomicLong();
+    private final AtomicLong readFrames = new AtomicLong();
+
+    PcmRingBuffer(int channelCount, int capacityFrames) {
+        this.channelCount = channelCount;
+        this.capacityFrames = capacityFrames;
+        ring = ByteBufferPool.getDefault().acquire(capacityFrames * channelCount * 2);
+        final ShortBuffer samples = ring.asShortBuffer();
+        writeView = samples.duplicate();
+        readView = samples.duplicate();
+    }
+
+    /**
+     * give the buffer back to {@link ByteBufferPool}, once neither side uses the ring anymore
+     */
+    void release() {
+        ByteBufferPool.getDefault().release(ring);
+        ring = null;
+    }
+
+    int getChannelCount() {
+        return channelCount;
+    }
+
+    int getCapacityFrames() {
+        return capacityFrames;
+    }
+
+    /**
+     * producer side
+     */
+    int freeFrames() {
+        return capacityFrames - (int) (writtenFrames.get() - readFrames.get());
+    }
+
+    /**
+     * producer side, remix as many frames of in as fit, position of in is advanced by what was consumed
+     *
+     * @return frames written.
+     */
+    int write(final AudioRemixer remixer, final ShortBuffer in) {
+        long written = writtenFrames.get();
+        int total = 0;
+        while (in.hasRemaining()) {
+            final int free = freeFrames();
+            if (free == 0) break;
+            final int writeIndex = (int) (written % capacityFrames);
+            final int frames = Math.min(free, capacityFrames - writeIndex);
+            writeView.clear();
+            writeView.position(writeIndex * channelCount);
+            writeView.limit((writeIndex + frames) * channelCount);
+            remixer.remix(in, writeView);
+            final int produced = writeView.position() / channelCount - writeIndex;
+            if (produced == 0) break;
+            written += produced;
+            total += produced;
+            // publish frames after they are written
+            writtenFrames.lazySet(written);
+        }
+        return total;
+    }
+
+    /**
+     * consumer side
+     */
+    int availableFrames() {
+        return (int) (writtenFrames.get() - readFrames.get());
+    }
+
+    /**
+     * consumer side, frames read so far
+     */
+    long getReadFrames() {
+        return readFrames.get();
+    }
+
+    /**
+     * consumer side, put frames into out at its position
+     */
+    void read(final ShortBuffer out, final int frames) {
+        if (frames > availableFrames()) throw new IllegalArgumentException("Not enough frames to read.");
+        long read = readFrames.get();
+        int remaining = frames;
+        while (remaining > 0) {
+            final int readIndex = (int) (read % capacityFrames);
+            final int count = Math.min(remaining, capacityFrames - readIndex);
+            readView.clear();
+            readView.position(readIndex * channelCount);
+            readView.limit((readIndex + count) * channelCount);
+            out.put(readView);
+            read += count;
+            remaining -= count;
+        }
+        // hand the space back after the frames are copied out
+        readFrames.lazySet(read);
+    }
+}
@@ -0,0 +1,195 @@
+package com.nagihong.videocompressor.dataSource;
+
+import java.io.IOException;
+
+/**
+ * Block cache in front of a {@link RandomAccessSource}.
+ * <p>
+ * Small reads, like the ones MediaExtractor issues per sample, are served from fixed size blocks kept in an LRU.
+ * A miss right behind the previously loaded blocks counts as sequential and doubles the read-ahead window,
+ * up to maxReadAheadBlocks blocks fetched with a single upstream read. A random miss resets it to one block.
+ * All buffers are allocated up front, reads do not allocate.
+ */
+public class CachedRandomAccessSource implements RandomAccessSource {
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    public static final int DEFAULT_BLOCK_COUNT = 64;
+    public static final int DEFAULT_MAX_READ_AHEAD_BLOCKS = 16;
+    private static final long SIZE_UNKNOWN = -2;
+
+    private final RandomAccessSource upstream;
+    private final int blockSize;
+    private final int maxReadAheadBlocks;
+
+    //cache slots
+    private final byte[][] blocks;
+    private final long[] blockIndices;
+    private final int[] blockLengths;
+    private final long[] lastUsed;
+    private long useCounter;
+
+    //read-ahead
+    private final byte[] readAheadBuffer;
+    private int readAheadBlocks = 1;
+    private long nextSequentialBlock = -1;
+
+    private long size = SIZE_UNKNOWN;
+
+    //statistics
+    private long hitCount;
+    private long missCount;
+    private long upstreamReadCount;
+    private long upstreamBytes;
+
+    public CachedRandomAccessSource(RandomAccessSource upstream) {
+        this(upstream, DEFAULT_BLOCK_SIZE, DEFAULT_BLOCK_COUNT, DEFAULT_MAX_READ_AHEAD_BLOCKS);
+    }
+
+    /**
+     * @param maxReadAheadBlocks capped to half of blockCount, so read-ahead never evicts the block being read
+     */
+    public CachedRandomAccessSource(RandomAccessSource upstream, int blockSize, int blockCount, int maxReadAheadBlocks) {
+        if (blockSize <= 0 || blockCount < 2 || maxReadAheadBlocks < 1) {
+            throw new IllegalArgumentException("blockSize: " + blockSize + ", blockCount: " + blockCount
+                    + ", maxReadAheadBlocks: " + maxReadAheadBlocks);
+        }
+        this.upstream = upstream;
+        this.blockSize = blockSize;
+        this.maxReadAheadBlocks = Math.min(maxReadAheadBlocks, blockCount / 2);
+        blocks = new byte[blockCount][blockSize];
+        blockIndices = new long[blockCount];
+        blockLengths = new int[blockCount];
+        lastUsed = new long[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            blockIndices[i] = -1;
+        }
+        readAheadBuffer = new byte[this.maxReadAheadBlocks * blockSize];
+    }
+
+    @Override
+    public synchronized long size() throws IOException {
+        if (size == SIZE_UNKNOWN) {
+            size = upstream.size();
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized int read(long position, byte[] buffer, int offset, int size) throws IOException {
+        long totalSize = size();
+        if (totalSize >= 0 && position >= totalSize) return -1;
+        int copied = 0;
+        while (copied < size) {
+            long current = position + copied;
+            long blockIndex = current / blockSize;
+            int slot = findSlot(blockIndex);
+            if (slot >= 0) {
+                hitCount++;
+            } else {
+                missCount++;
+                slot = load(blockIndex);
+                if (slot < 0) break;
+            }
+            lastUsed[slot] = ++useCounter;
+            int inBlock = (int) (current - blockIndex * blockSize);
+            int available = blockLengths[slot] - inBlock;
+            if (available <= 0) break;
+            int n = Math.min(available, size - copied);
+            System.arraycopy(blocks[slot], inBlock, buffer, offset + copied, n);
+            copied += n;
+            // short block means end of source
+            if (blockLengths[slot] < blockSize) break;
+        }
+        return copied == 0 && size > 0 ? -1 : copied;
+    }
+
+    @Override
+    public void close() throws IOException {
+        upstream.close();
+    }
+
+    //========================= getters ========================================================
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getUpstreamReadCount() {
+        return upstreamReadCount;
+    }
+
+    public synchronized long getUpstreamBytes() {
+        return upstreamBytes;
+    }
+
+    //========================= cache ========================================================
+    /**
+     * fetch blockIndex and as many following blocks as the read-ahead window allows in one upstream read
+     *
+     * @return slot of blockIndex, or -1 when it is past the end
+     */
+    private int load(long blockIndex) throws IOException {
+        if (blockIndex == nextSequentialBlock) {
+            readAheadBlocks = Math.min(readAheadBlocks * 2, maxReadAheadBlocks);
+        } else {
+            readAheadBlocks = 1;
+        }
+        int count = 1;
+        while (count < readAheadBlocks && findSlot(blockIndex + count) < 0) {
+            count++;
+        }
+
+        long position = blockIndex * blockSize;
+        int length = count * blockSize;
+        long totalSize = size();
+        if (totalSize >= 0) {
+            length = (int) Math.min(length, totalSize - position);
+        }
+        int loaded = readFully(position, length);
+        if (loaded <= 0) return -1;
+
+        int firstSlot = -1;
+        int loadedBlocks = 0;
+        for (int start = 0; start < loaded; start += blockSize) {
+            int slot = evictSlot();
+            int blockLength = Math.min(blockSize, loaded - start);
+            System.arraycopy(readAheadBuffer, start, blocks[slot], 0, blockLength);
+            blockIndices[slot] = blockIndex + loadedBlocks;
+            blockLengths[slot] = blockLength;
+            lastUsed[slot] = ++useCounter;
+            if (firstSlot < 0) firstSlot = slot;
+            loadedBlocks++;
+        }
+        nextSequentialBlock = blockIndex + loadedBlocks;
+        return firstSlot;
+    }
+
+    private int readFully(long position, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int n = upstream.read(position + total, readAheadBuffer, total, length - total);
+            upstreamReadCount++;
+            if (n < 0) break;
+            total += n;
+        }
+        upstreamBytes += total;
+        return total;
+    }
+
+    private int findSlot(long blockIndex) {
+        for (int i = 0; i < blockIndices.length; i++) {
+            if (blockIndices[i] == blockIndex) return i;
+        }
+        return -1;
+    }
+
+    private int evictSlot() {
+        int slot = 0;
+        for (int i = 1; i < lastUsed.length; i++) {
+            if (lastUsed[i] < lastUsed[slot]) slot = i;
+        }
+        return slot;
+    }
+}
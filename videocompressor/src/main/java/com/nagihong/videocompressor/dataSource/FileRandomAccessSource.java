@@ -0,0 +1,58 @@
+package com.nagihong.videocompressor.dataSource;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * reads a file through positional {@link FileChannel} reads, which leave the descriptor offset untouched,
+ * so the same descriptor can still be shared with {@link android.media.MediaMetadataRetriever}
+ */
+public class FileRandomAccessSource implements RandomAccessSource {
+    private final FileInputStream inputStream;
+    private final FileChannel channel;
+    private final boolean ownsDescriptor;
+
+    public FileRandomAccessSource(File file) throws FileNotFoundException {
+        inputStream = new FileInputStream(file);
+        channel = inputStream.getChannel();
+        ownsDescriptor = true;
+    }
+
+    /**
+     * descriptor is not closed by {@link #close()}, it stays owned by the caller
+     */
+    public FileRandomAccessSource(FileDescriptor fileDescriptor) {
+        inputStream = new FileInputStream(fileDescriptor);
+        channel = inputStream.getChannel();
+        ownsDescriptor = false;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int size) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer, offset, size);
+        int total = 0;
+        while (target.hasRemaining()) {
+            int n = channel.read(target, position + total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total == 0 && size > 0 ? -1 : total;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ownsDescriptor) {
+            inputStream.close();
+        }
+    }
+}
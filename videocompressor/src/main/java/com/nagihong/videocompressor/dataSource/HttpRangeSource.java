@@ -0,0 +1,136 @@
+package com.nagihong.videocompressor.dataSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Reads a remote file through HTTP range requests, one request per read.
+ * Meant to be wrapped by {@link CachedRandomAccessSource}, which turns small extractor reads into
+ * few large block requests, see {@link #cached(String)}.
+ */
+public class HttpRangeSource implements RandomAccessSource {
+    public static final int REMOTE_BLOCK_SIZE = 256 * 1024;
+    public static final int REMOTE_BLOCK_COUNT = 32;
+    public static final int REMOTE_MAX_READ_AHEAD_BLOCKS = 8;
+    private static final int CONNECT_TIMEOUT_MS = 15 * 1000;
+    private static final int READ_TIMEOUT_MS = 30 * 1000;
+    private static final long SIZE_UNKNOWN = -2;
+
+    private final URL url;
+    private volatile long size = SIZE_UNKNOWN;
+
+    public HttpRangeSource(String url) throws MalformedURLException {
+        this.url = new URL(url);
+    }
+
+    /**
+     * @return source with 8 MB of 256 KB blocks and up to 2 MB fetched per request.
+     */
+    public static CachedRandomAccessSource cached(String url) throws MalformedURLException {
+        return new CachedRandomAccessSource(new HttpRangeSource(url),
+                REMOTE_BLOCK_SIZE, REMOTE_BLOCK_COUNT, REMOTE_MAX_READ_AHEAD_BLOCKS);
+    }
+
+    @Override
+    public long size() throws IOException {
+        if (size != SIZE_UNKNOWN) return size;
+        HttpURLConnection connection = open();
+        try {
+            connection.setRequestMethod("HEAD");
+            if (connection.getResponseCode() / 100 == 2) {
+                size = parseLong(connection.getHeaderField("Content-Length"), -1);
+            }
+        } finally {
+            connection.disconnect();
+        }
+        if (size < 0) {
+            // some servers do not answer HEAD properly, ask for one byte and read total from Content-Range
+            read(0, new byte[1], 0, 1);
+        }
+        if (size == SIZE_UNKNOWN) {
+            size = -1;
+        }
+        return size;
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int size) throws IOException {
+        long knownSize = this.size;
+        if (knownSize >= 0) {
+            if (position >= knownSize) return -1;
+            size = (int) Math.min(size, knownSize - position);
+        }
+        if (size <= 0) return 0;
+
+        HttpURLConnection connection = open();
+        try {
+            connection.setRequestProperty("Range", "bytes=" + position + "-" + (position + size - 1));
+            int responseCode = connection.getResponseCode();
+            if (responseCode == 416) {
+                // requested range not satisfiable: position is past the end
+                return -1;
+            }
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                updateSizeFromContentRange(connection.getHeaderField("Content-Range"));
+            } else if (responseCode == HttpURLConnection.HTTP_OK && position == 0) {
+                this.size = parseLong(connection.getHeaderField("Content-Length"), this.size);
+            } else {
+                throw new IOException("Unexpected response " + responseCode + " for range at " + position + " of " + url);
+            }
+            return readFully(connection.getInputStream(), buffer, offset, size);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public void close() {
+        // nothing kept open between reads
+    }
+
+    private HttpURLConnection open() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        // byte offsets must refer to the stored file
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        return connection;
+    }
+
+    private static int readFully(InputStream inputStream, byte[] buffer, int offset, int size) throws IOException {
+        try {
+            int total = 0;
+            while (total < size) {
+                int n = inputStream.read(buffer, offset + total, size - total);
+                if (n < 0) break;
+                total += n;
+            }
+            return total == 0 ? -1 : total;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    // Content-Range: bytes 0-1023/146515
+    private void updateSizeFromContentRange(String contentRange) {
+        if (contentRange == null) return;
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) return;
+        long total = parseLong(contentRange.substring(slash + 1).trim(), -1);
+        if (total >= 0) {
+            size = total;
+        }
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.nagihong.videocompressor.dataSource;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.os.Build;
+
+import java.io.IOException;
+
+/**
+ * exposes a {@link RandomAccessSource} to MediaExtractor and MediaMetadataRetriever
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class RandomAccessMediaDataSource extends MediaDataSource {
+    private final RandomAccessSource source;
+    private final boolean closeSource;
+
+    public RandomAccessMediaDataSource(RandomAccessSource source) {
+        this(source, true);
+    }
+
+    /**
+     * @param closeSource false to keep source open when framework closes this data source,
+     *                    so the same source can be handed to both MediaMetadataRetriever and MediaExtractor
+     */
+    public RandomAccessMediaDataSource(RandomAccessSource source, boolean closeSource) {
+        this.source = source;
+        this.closeSource = closeSource;
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (size == 0) return 0;
+        return source.read(position, buffer, offset, size);
+    }
+
+    @Override
+    public long getSize() throws IOException {
+        return source.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closeSource) {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.nagihong.videocompressor.dataSource;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * positional read access to input bytes, pure java so it can be used without android framework
+ */
+public interface RandomAccessSource extends Closeable {
+
+    /**
+     * @return total size in bytes, or -1 if unknown.
+     */
+    long size() throws IOException;
+
+    /**
+     * Read up to size bytes at position into buffer.
+     *
+     * @return number of bytes read, or -1 if position is at or beyond the end.
+     */
+    int read(long position, byte[] buffer, int offset, int size) throws IOException;
+}
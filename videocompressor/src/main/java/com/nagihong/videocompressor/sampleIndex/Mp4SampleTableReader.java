@@ -0,0 +1,291 @@
+package com.nagihong.videocompressor.sampleIndex;
+
+import com.nagihong.videocompressor.dataSource.RandomAccessSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds a {@link SampleIndex} from stts, ctts, stss, stsz / stz2, stsc and stco / co64 of every trak in moov,
+ * reading only the box headers before moov and moov itself.
+ * Refer: ISO/IEC 14496-12, 8.6 and 8.7. Edit lists are not applied, times are those of the media timeline.
+ */
+final class Mp4SampleTableReader {
+    private static final int HEADER_SIZE = 8;
+    private static final int LARGE_HEADER_SIZE = 16;
+    // larger moov boxes are not read into memory, the extractor pass is used instead
+    private static final int MAX_MOOV_SIZE = 64 * 1024 * 1024;
+    // as many as sizes of the largest moov read hold, for tables of a constant sample size
+    private static final int MAX_SAMPLE_COUNT = MAX_MOOV_SIZE / 4;
+
+    private Mp4SampleTableReader() {
+    }
+
+    /**
+     * @return null if source is no MP4 with a complete moov, e.g. fragmented, or the moov could not be parsed
+     */
+    static SampleIndex read(RandomAccessSource source) throws IOException {
+        ByteBuffer moov = readMoov(source);
+        if (moov == null || findChild(moov, "mvex") != null) return null;
+        try {
+            return parseMoov(moov, source.size());
+        } catch (RuntimeException e) {
+            // truncated or malformed tables, BufferUnderflowException, IndexOutOfBoundsException...
+            return null;
+        }
+    }
+
+    private static ByteBuffer readMoov(RandomAccessSource source) throws IOException {
+        long fileSize = source.size();
+        byte[] header = new byte[LARGE_HEADER_SIZE];
+        long position = 0;
+        while (fileSize < 0 || position + HEADER_SIZE <= fileSize) {
+            int n = readFully(source, position, header, LARGE_HEADER_SIZE);
+            if (n < HEADER_SIZE) return null;
+            ByteBuffer buffer = ByteBuffer.wrap(header);
+            long size = buffer.getInt() & 0xFFFFFFFFL;
+            String type = readType(buffer);
+            int headerSize = HEADER_SIZE;
+            if (size == 1) {
+                if (n < LARGE_HEADER_SIZE) return null;
+                size = buffer.getLong();
+                headerSize = LARGE_HEADER_SIZE;
+            } else if (size == 0) {
+                // box runs to the end of file
+                if (fileSize < 0) return null;
+                size = fileSize - position;
+            }
+            if (size < headerSize) return null;
+            if ("moov".equals(type)) {
+                if (size > MAX_MOOV_SIZE) return null;
+                byte[] content = new byte[(int) (size - headerSize)];
+                if (readFully(source, position + headerSize, content, content.length) < content.length) return null;
+                return ByteBuffer.wrap(content);
+            }
+            position += size;
+        }
+        return null;
+    }
+
+    private static int readFully(RandomAccessSource source, long position, byte[] buffer, int size) throws IOException {
+        int total = 0;
+        while (total < size) {
+            int n = source.read(position + total, buffer, total, size - total);
+            if (n <= 0) break;
+            total += n;
+        }
+        return total;
+    }
+
+    //========================= boxes ========================================================
+    /**
+     * @return content of every child box of type, each positioned at its start
+     */
+    private static List<ByteBuffer> findChildren(ByteBuffer parent, String type) {
+        List<ByteBuffer> children = new ArrayList<>();
+        ByteBuffer buffer = parent.duplicate();
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int start = buffer.position();
+            long size = buffer.getInt() & 0xFFFFFFFFL;
+            String childType = readType(buffer);
+            if (size == 1) size = buffer.getLong();
+            else if (size == 0) size = buffer.limit() - start;
+            if (size < buffer.position() - start || start + size > buffer.limit()) break;
+            if (childType.equals(type)) {
+                ByteBuffer child = buffer.slice();
+                child.limit((int) (start + size - buffer.position()));
+                children.add(child);
+            }
+            buffer.position((int) (start + size));
+        }
+        return children;
+    }
+
+    private static ByteBuffer findChild(ByteBuffer parent, String type) {
+        List<ByteBuffer> children = findChildren(parent, type);
+        return children.isEmpty() ? null : children.get(0);
+    }
+
+    private static ByteBuffer findPath(ByteBuffer parent, String... types) {
+        ByteBuffer box = parent;
+        for (String type : types) {
+            box = findChild(box, type);
+            if (box == null) return null;
+        }
+        return box;
+    }
+
+    /**
+     * @return entry count read from box, checked against the bytes left in it
+     */
+    private static int readCount(ByteBuffer box, int entryBits) {
+        long count = box.getInt() & 0xFFFFFFFFL;
+        if ((count * entryBits + 7) / 8 > box.remaining()) {
+            throw new IllegalStateException(String.format("%d entries do not fit into %d bytes.", count, box.remaining()));
+        }
+        return (int) count;
+    }
+
+    private static String readType(ByteBuffer buffer) {
+        char[] type = new char[4];
+        for (int i = 0; i < 4; i++) type[i] = (char) (buffer.get() & 0xFF);
+        return new String(type);
+    }
+
+    //========================= sample tables ========================================================
+    /**
+     * @param fileSize -1 if unknown
+     */
+    private static SampleIndex parseMoov(ByteBuffer moov, long fileSize) {
+        List<ByteBuffer> traks = findChildren(moov, "trak");
+        SampleIndex.Track[] tracks = new SampleIndex.Track[traks.size()];
+        for (int i = 0; i < tracks.length; i++) {
+            tracks[i] = parseTrak(traks.get(i), fileSize);
+        }
+        return new SampleIndex(tracks);
+    }
+
+    private static SampleIndex.Track parseTrak(ByteBuffer trak, long fileSize) {
+        ByteBuffer mdhd = findPath(trak, "mdia", "mdhd");
+        ByteBuffer hdlr = findPath(trak, "mdia", "hdlr");
+        ByteBuffer stbl = findPath(trak, "mdia", "minf", "stbl");
+        if (mdhd == null || hdlr == null || stbl == null) throw new IllegalStateException("trak misses mdhd, hdlr or stbl.");
+
+        int version = mdhd.get() & 0xFF;
+        mdhd.position(version == 1 ? 4 + 16 : 4 + 8);
+        long timescale = mdhd.getInt() & 0xFFFFFFFFL;
+        hdlr.position(8);
+        boolean video = "vide".equals(readType(hdlr));
+
+        int[] sizes = readSizes(stbl, fileSize);
+        int count = sizes.length;
+        long[] timesUs = readTimes(stbl, count, timescale);
+        long[] offsets = readOffsets(stbl, sizes);
+        return new SampleIndex.Track(video, timesUs, sizes, offsets, readSyncSamples(stbl, count));
+    }
+
+    /**
+     * Counts of the tables are checked before arrays are allocated, a corrupt count must fail as a
+     * RuntimeException, not as an OutOfMemoryError.
+     */
+    private static int[] readSizes(ByteBuffer stbl, long fileSize) {
+        ByteBuffer stsz = findChild(stbl, "stsz");
+        if (stsz != null) {
+            stsz.position(4);
+            int constantSize = stsz.getInt();
+            if (constantSize < 0) throw new IllegalStateException("negative sample size.");
+            int[] sizes;
+            if (constantSize != 0) {
+                // no entries, the samples themselves must fit into the file
+                long count = stsz.getInt() & 0xFFFFFFFFL;
+                long maxCount = fileSize >= 0 ? Math.min(fileSize / constantSize, MAX_SAMPLE_COUNT) : MAX_SAMPLE_COUNT;
+                if (count > maxCount) throw new IllegalStateException(String.format("%d samples of %d bytes do not fit.", count, constantSize));
+                sizes = new int[(int) count];
+                Arrays.fill(sizes, constantSize);
+            } else {
+                sizes = new int[readCount(stsz, 32)];
+                for (int i = 0; i < sizes.length; i++) sizes[i] = stsz.getInt();
+            }
+            return sizes;
+        }
+        ByteBuffer stz2 = findChild(stbl, "stz2");
+        if (stz2 == null) throw new IllegalStateException("stbl has no sample sizes.");
+        stz2.position(4 + 3);
+        int fieldSize = stz2.get() & 0xFF;
+        if (fieldSize != 4 && fieldSize != 8 && fieldSize != 16) {
+            throw new IllegalStateException(String.format("stz2 field size %d is not 4, 8 or 16.", fieldSize));
+        }
+        int[] sizes = new int[readCount(stz2, fieldSize)];
+        for (int i = 0; i < sizes.length; i++) {
+            if (fieldSize == 4) {
+                int b = stz2.get(stz2.position() + i / 2) & 0xFF;
+                sizes[i] = i % 2 == 0 ? b >> 4 : b & 0xF;
+            } else {
+                sizes[i] = fieldSize == 8 ? stz2.get() & 0xFF : stz2.getShort() & 0xFFFF;
+            }
+        }
+        return sizes;
+    }
+
+    private static long[] readTimes(ByteBuffer stbl, int count, long timescale) {
+        ByteBuffer stts = findChild(stbl, "stts");
+        if (stts == null) throw new IllegalStateException("stbl has no stts.");
+        long[] times = new long[count];
+        stts.position(4);
+        int entries = stts.getInt();
+        long time = 0;
+        int sample = 0;
+        for (int e = 0; e < entries && sample < count; e++) {
+            int run = stts.getInt();
+            long delta = stts.getInt() & 0xFFFFFFFFL;
+            for (int i = 0; i < run && sample < count; i++) {
+                times[sample++] = time;
+                time += delta;
+            }
+        }
+        // composition offsets make decode times presentation times
+        ByteBuffer ctts = findChild(stbl, "ctts");
+        if (ctts != null) {
+            ctts.position(4);
+            entries = ctts.getInt();
+            sample = 0;
+            for (int e = 0; e < entries && sample < count; e++) {
+                int run = ctts.getInt();
+                // signed in version 1, and what writers put in version 0 as well
+                int offset = ctts.getInt();
+                for (int i = 0; i < run && sample < count; i++) times[sample++] += offset;
+            }
+        }
+        for (int i = 0; i < count; i++) times[i] = times[i] * 1000000 / timescale;
+        return times;
+    }
+
+    private static long[] readOffsets(ByteBuffer stbl, int[] sizes) {
+        ByteBuffer stco = findChild(stbl, "stco");
+        boolean large = stco == null;
+        if (large) stco = findChild(stbl, "co64");
+        ByteBuffer stsc = findChild(stbl, "stsc");
+        if (stco == null || stsc == null) throw new IllegalStateException("stbl has no chunk offsets.");
+        stco.position(4);
+        long[] chunkOffsets = new long[readCount(stco, large ? 64 : 32)];
+        for (int i = 0; i < chunkOffsets.length; i++) {
+            chunkOffsets[i] = large ? stco.getLong() : stco.getInt() & 0xFFFFFFFFL;
+        }
+
+        long[] offsets = new long[sizes.length];
+        stsc.position(4);
+        int entries = stsc.getInt();
+        int sample = 0;
+        for (int e = 0; e < entries; e++) {
+            int firstChunk = stsc.getInt() - 1;
+            int samplesPerChunk = stsc.getInt();
+            stsc.getInt(); // sample description index
+            // an entry covers chunks up to the next entry's first one, the last entry up to the last chunk
+            int endChunk = e + 1 < entries ? stsc.getInt(stsc.position()) - 1 : chunkOffsets.length;
+            for (int chunk = firstChunk; chunk < endChunk && sample < sizes.length; chunk++) {
+                long offset = chunkOffsets[chunk];
+                for (int i = 0; i < samplesPerChunk && sample < sizes.length; i++) {
+                    offsets[sample] = offset;
+                    offset += sizes[sample++];
+                }
+            }
+        }
+        return offsets;
+    }
+
+    private static int[] readSyncSamples(ByteBuffer stbl, int count) {
+        ByteBuffer stss = findChild(stbl, "stss");
+        // no stss means every sample is a sync sample
+        if (stss == null) return null;
+        stss.position(4);
+        int[] samples = new int[readCount(stss, 32)];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = stss.getInt() - 1;
+            if (samples[i] < 0 || samples[i] >= count) throw new IllegalStateException("sync sample out of range.");
+        }
+        return samples;
+    }
+}
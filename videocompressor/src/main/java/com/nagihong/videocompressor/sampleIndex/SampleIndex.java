@@ -0,0 +1,274 @@
+package com.nagihong.videocompressor.sampleIndex;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import com.nagihong.videocompressor.dataSource.FileRandomAccessSource;
+import com.nagihong.videocompressor.utils.ByteBufferPool;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Time, size, file offset and sync flag of every sample of every track of an input, in primitive arrays,
+ * so finding key frames for trimming, splitting or seeking does not walk the file with {@link MediaExtractor#advance()}.
+ * <p>
+ * Built from the sample tables of an MP4 / MOV moov by {@link Mp4SampleTableReader}, or by one extractor pass
+ * for other inputs, see {@link #build(File)}. Use {@link SampleIndexCache} to build it only once per file.
+ * Tracks are in file order, the order {@link MediaExtractor} lists them in.
+ */
+public class SampleIndex {
+    private static final int MAGIC = 0x53494458; // SIDX
+    private static final int VERSION = 1;
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private final Track[] tracks;
+
+    SampleIndex(Track[] tracks) {
+        this.tracks = tracks;
+    }
+
+    /**
+     * parse moov of an MP4 file, pass through it with an extractor if it is no plain MP4, e.g. fragmented or webm
+     */
+    public static SampleIndex build(File file) throws IOException {
+        SampleIndex index;
+        try (FileRandomAccessSource source = new FileRandomAccessSource(file)) {
+            index = Mp4SampleTableReader.read(source);
+        }
+        if (index != null) return index;
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(file.getPath());
+            return scan(extractor);
+        } finally {
+            extractor.release();
+        }
+    }
+
+    /**
+     * read every sample of every track once, extractor is left at its end with all tracks selected.
+     * Sample offsets are unknown this way, they are -1.
+     */
+    public static SampleIndex scan(MediaExtractor extractor) {
+        int trackCount = extractor.getTrackCount();
+        TrackBuilder[] builders = new TrackBuilder[trackCount];
+        int bufferSize = DEFAULT_BUFFER_SIZE;
+        for (int i = 0; i < trackCount; i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            builders[i] = new TrackBuilder(mime != null && mime.startsWith("video/"));
+            if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                bufferSize = Math.max(bufferSize, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+            }
+            extractor.selectTrack(i);
+        }
+        // sizes are only known by reading samples before api 28
+        ByteBuffer buffer = Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ? null : ByteBufferPool.getDefault().acquire(bufferSize);
+        try {
+            int trackIndex;
+            while ((trackIndex = extractor.getSampleTrackIndex()) >= 0) {
+                long size = buffer == null ? extractor.getSampleSize() : extractor.readSampleData(buffer, 0);
+                boolean sync = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+                builders[trackIndex].add(extractor.getSampleTime(), (int) size, -1, sync);
+                extractor.advance();
+            }
+        } finally {
+            ByteBufferPool.getDefault().release(buffer);
+        }
+        Track[] tracks = new Track[trackCount];
+        for (int i = 0; i < trackCount; i++) tracks[i] = builders[i].build();
+        return new SampleIndex(tracks);
+    }
+
+    public int getTrackCount() {
+        return tracks.length;
+    }
+
+    public Track getTrack(int index) {
+        return tracks[index];
+    }
+
+    //========================= persistence ========================================================
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(tracks.length);
+        for (Track track : tracks) {
+            out.writeBoolean(track.video);
+            int count = track.timesUs.length;
+            out.writeInt(count);
+            // deltas are small numbers, which the deflater around out packs well
+            long last = 0;
+            for (long timeUs : track.timesUs) {
+                out.writeLong(timeUs - last);
+                last = timeUs;
+            }
+            for (int size : track.sizes) out.writeInt(size);
+            last = 0;
+            for (long offset : track.offsets) {
+                out.writeLong(offset - last);
+                last = offset;
+            }
+            out.writeInt(track.syncSamples == null ? -1 : track.syncSamples.length);
+            if (track.syncSamples != null) {
+                for (int sample : track.syncSamples) out.writeInt(sample);
+            }
+        }
+    }
+
+    static SampleIndex readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a sample index of this version.");
+        }
+        Track[] tracks = new Track[in.readInt()];
+        for (int t = 0; t < tracks.length; t++) {
+            boolean video = in.readBoolean();
+            int count = in.readInt();
+            long[] timesUs = new long[count];
+            int[] sizes = new int[count];
+            long[] offsets = new long[count];
+            long last = 0;
+            for (int i = 0; i < count; i++) timesUs[i] = last += in.readLong();
+            for (int i = 0; i < count; i++) sizes[i] = in.readInt();
+            last = 0;
+            for (int i = 0; i < count; i++) offsets[i] = last += in.readLong();
+            int syncCount = in.readInt();
+            int[] syncSamples = syncCount < 0 ? null : new int[syncCount];
+            for (int i = 0; i < syncCount; i++) syncSamples[i] = in.readInt();
+            tracks[t] = new Track(video, timesUs, sizes, offsets, syncSamples);
+        }
+        return new SampleIndex(tracks);
+    }
+
+    //========================= track ========================================================
+    public static class Track {
+        private final boolean video;
+        // file order, which is decode order
+        private final long[] timesUs;
+        private final int[] sizes;
+        private final long[] offsets;
+        // ascending sample numbers, null when every sample is a sync sample, e.g. audio
+        private final int[] syncSamples;
+        // presentation times of sync samples, ascending
+        private final long[] syncTimesUs;
+
+        Track(boolean video, long[] timesUs, int[] sizes, long[] offsets, int[] syncSamples) {
+            this.video = video;
+            this.timesUs = timesUs;
+            this.sizes = sizes;
+            this.offsets = offsets;
+            this.syncSamples = syncSamples;
+            if (syncSamples == null) {
+                syncTimesUs = timesUs.clone();
+            } else {
+                syncTimesUs = new long[syncSamples.length];
+                for (int i = 0; i < syncSamples.length; i++) syncTimesUs[i] = timesUs[syncSamples[i]];
+            }
+            Arrays.sort(syncTimesUs);
+        }
+
+        public boolean isVideo() {
+            return video;
+        }
+
+        public int getSampleCount() {
+            return timesUs.length;
+        }
+
+        /**
+         * @return presentation time of the sample, samples are in decode order so times may go back with b-frames
+         */
+        public long getSampleTimeUs(int sample) {
+            return timesUs[sample];
+        }
+
+        public int getSampleSize(int sample) {
+            return sizes[sample];
+        }
+
+        /**
+         * @return file offset of the sample, -1 if the index was built by an extractor
+         */
+        public long getSampleOffset(int sample) {
+            return offsets[sample];
+        }
+
+        public boolean isSyncSample(int sample) {
+            return syncSamples == null || Arrays.binarySearch(syncSamples, sample) >= 0;
+        }
+
+        /**
+         * @return presentation times of sync samples, ascending, not to be modified
+         */
+        public long[] getSyncTimesUs() {
+            return syncTimesUs;
+        }
+
+        /**
+         * @return time of the last sync sample at or before timeUs, where decoding has to start to show timeUs,
+         * or of the first one if timeUs is before it, -1 if the track has no samples
+         */
+        public long getSyncTimeUsBefore(long timeUs) {
+            if (syncTimesUs.length == 0) return -1;
+            int i = Arrays.binarySearch(syncTimesUs, timeUs);
+            if (i < 0) i = Math.max(0, -i - 2);
+            return syncTimesUs[i];
+        }
+
+        /**
+         * @return time of the first sync sample at or after timeUs, -1 if there is none
+         */
+        public long getSyncTimeUsAfter(long timeUs) {
+            int i = Arrays.binarySearch(syncTimesUs, timeUs);
+            if (i < 0) i = -i - 1;
+            return i < syncTimesUs.length ? syncTimesUs[i] : -1;
+        }
+    }
+
+    /**
+     * grows arrays while samples are added one by one
+     */
+    static class TrackBuilder {
+        private final boolean video;
+        private long[] timesUs = new long[1024];
+        private int[] sizes = new int[1024];
+        private long[] offsets = new long[1024];
+        private int[] syncSamples = new int[64];
+        private int count;
+        private int syncCount;
+        private boolean allSync = true;
+
+        TrackBuilder(boolean video) {
+            this.video = video;
+        }
+
+        void add(long timeUs, int size, long offset, boolean sync) {
+            if (count == timesUs.length) {
+                timesUs = Arrays.copyOf(timesUs, count * 2);
+                sizes = Arrays.copyOf(sizes, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            if (sync) {
+                if (syncCount == syncSamples.length) syncSamples = Arrays.copyOf(syncSamples, syncCount * 2);
+                syncSamples[syncCount++] = count;
+            } else {
+                allSync = false;
+            }
+            timesUs[count] = timeUs;
+            sizes[count] = size;
+            offsets[count] = offset;
+            count++;
+        }
+
+        Track build() {
+            return new Track(video, Arrays.copyOf(timesUs, count), Arrays.copyOf(sizes, count), Arrays.copyOf(offsets, count),
+                    allSync ? null : Arrays.copyOf(syncSamples, syncCount));
+        }
+    }
+}
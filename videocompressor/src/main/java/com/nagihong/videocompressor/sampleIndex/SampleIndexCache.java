@@ -0,0 +1,138 @@
+package com.nagihong.videocompressor.sampleIndex;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Keeps {@link SampleIndex}es of input files in a directory, deflated, so an input is indexed only once
+ * as long as its path, size and modification time stay the same.
+ * Least recently used entries are deleted once the directory grows over its size limit.
+ */
+public class SampleIndexCache {
+    private static final String TAG = "SampleIndexCache";
+    private static final String SUFFIX = ".idx";
+
+    private final File directory;
+    private final long maxBytes;
+
+    public SampleIndexCache(File directory, long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException(String.format("cache size %d is not positive.", maxBytes));
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return index of input, read from cache, or built and put into cache
+     * @throws IOException when input could not be read
+     */
+    public SampleIndex get(File input) throws IOException {
+        String key = getKey(input);
+        File entry = new File(directory, getFileName(key));
+        SampleIndex index = load(entry, key);
+        if (index != null) return index;
+
+        index = SampleIndex.build(input);
+        try {
+            store(entry, key, index);
+            trim();
+        } catch (IOException e) {
+            // still usable without cache
+            Log.w(TAG, "Failed to cache sample index of " + input, e);
+        }
+        return index;
+    }
+
+    public synchronized void clear() {
+        File[] entries = listEntries();
+        for (File entry : entries) delete(entry);
+    }
+
+    // path alone is not enough, a file rewritten in place must be indexed again
+    private static String getKey(File input) {
+        return input.getAbsolutePath() + '\n' + input.length() + '\n' + input.lastModified();
+    }
+
+    private static String getFileName(String key) {
+        return Integer.toHexString(key.hashCode()) + SUFFIX;
+    }
+
+    private synchronized SampleIndex load(File entry, String key) {
+        if (!entry.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new FileInputStream(entry))))) {
+            // another key with the same hash has the same file name
+            if (!key.equals(in.readUTF())) return null;
+            SampleIndex index = SampleIndex.readFrom(in);
+            // mark as recently used
+            if (!entry.setLastModified(System.currentTimeMillis())) {
+                Log.w(TAG, "Failed to touch " + entry);
+            }
+            return index;
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable " + entry, e);
+            delete(entry);
+            return null;
+        }
+    }
+
+    private synchronized void store(File entry, String key, SampleIndex index) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        // written aside and renamed, so a reader never sees half an entry
+        File temp = new File(directory, entry.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new DeflaterOutputStream(new FileOutputStream(temp), new Deflater(Deflater.BEST_SPEED))))) {
+            out.writeUTF(key);
+            index.writeTo(out);
+        }
+        if (!temp.renameTo(entry)) {
+            delete(temp);
+            throw new IOException("Could not rename " + temp + " to " + entry);
+        }
+    }
+
+    private synchronized void trim() {
+        File[] entries = listEntries();
+        long total = 0;
+        for (File entry : entries) total += entry.length();
+        if (total <= maxBytes) return;
+        // oldest first
+        final long[] lastModified = new long[entries.length];
+        Integer[] order = new Integer[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            lastModified[i] = entries[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(lastModified[a], lastModified[b]));
+        for (int i = 0; i < order.length && total > maxBytes; i++) {
+            File entry = entries[order[i]];
+            total -= entry.length();
+            delete(entry);
+        }
+    }
+
+    private File[] listEntries() {
+        File[] entries = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        return entries == null ? new File[0] : entries;
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Failed to delete " + file);
+        }
+    }
+}
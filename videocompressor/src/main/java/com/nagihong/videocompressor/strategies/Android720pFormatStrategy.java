@@ -7,6 +7,7 @@ public class Android720pFormatStrategy implements MediaFormatStrategy {
     private final String Tag = Android720pFormatStrategy.class.getName();
     public static final int AUDIO_BITRATE_AS_IS = -1;
     public static final int AUDIO_CHANNELS_AS_IS = -1;
+    public static final int AUDIO_SAMPLE_RATE_AS_IS = -1;
     private static final String TAG = "720pFormatStrategy";
     private static final int LONGER_LENGTH = 1280;
     private static final int SHORTER_LENGTH = 720;
@@ -14,6 +15,7 @@ public class Android720pFormatStrategy implements MediaFormatStrategy {
     private final int mVideoBitrate;
     private final int mAudioBitrate;
     private final int mAudioChannels;
+    private final int mAudioSampleRate;
 
     public Android720pFormatStrategy() {
         this(DEFAULT_VIDEO_BITRATE);
@@ -24,9 +26,18 @@ public class Android720pFormatStrategy implements MediaFormatStrategy {
     }
 
     public Android720pFormatStrategy(int videoBitrate, int audioBitrate, int audioChannels) {
+        this(videoBitrate, audioBitrate, audioChannels, AUDIO_SAMPLE_RATE_AS_IS);
+    }
+
+    /**
+     * @param audioSampleRate output sample rate, e.g. 44100 or 32000 for smaller files,
+     *                        {@link #AUDIO_SAMPLE_RATE_AS_IS} keeps the input rate.
+     */
+    public Android720pFormatStrategy(int videoBitrate, int audioBitrate, int audioChannels, int audioSampleRate) {
         mVideoBitrate = videoBitrate;
         mAudioBitrate = audioBitrate;
         mAudioChannels = audioChannels;
+        mAudioSampleRate = audioSampleRate;
     }
 
     @Override
@@ -77,9 +88,10 @@ public class Android720pFormatStrategy implements MediaFormatStrategy {
         if (mAudioBitrate == AUDIO_BITRATE_AS_IS || mAudioChannels == AUDIO_CHANNELS_AS_IS)
             return null;
 
-        // Use original sample rate, as resampling is not supported yet.
+        final int sampleRate = mAudioSampleRate == AUDIO_SAMPLE_RATE_AS_IS
+                ? inputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE) : mAudioSampleRate;
         final MediaFormat format = MediaFormat.createAudioFormat(MediaFormatExtraConstants.MIMETYPE_AUDIO_AAC,
-                inputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE), mAudioChannels);
+                sampleRate, mAudioChannels);
         format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
         format.setInteger(MediaFormat.KEY_BIT_RATE, mAudioBitrate);
         return format;
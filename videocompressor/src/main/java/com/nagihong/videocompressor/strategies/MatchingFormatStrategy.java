@@ -0,0 +1,66 @@
+package com.nagihong.videocompressor.strategies;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+
+/**
+ * Encodes into the codec, size and audio layout of reference tracks, e.g. so a clip can be joined to others
+ * without re-encoding them. Frame rate and key frame interval come from the wrapped strategy, as do bitrates the reference does not declare.
+ */
+public class MatchingFormatStrategy implements MediaFormatStrategy {
+    private static final int DEFAULT_VIDEO_BITRATE = 8000 * 1000;
+    private static final int DEFAULT_FRAME_RATE = 30;
+    private static final int DEFAULT_I_FRAME_INTERVAL = 3;
+    private static final int DEFAULT_AUDIO_BITRATE = 128000;
+
+    private final MediaFormatStrategy strategy;
+    private final MediaFormat videoReference;
+    private final MediaFormat audioReference;
+
+    /**
+     * @param videoReference track format from MediaExtractor, null to pass video through
+     * @param audioReference track format from MediaExtractor, null to pass audio through
+     */
+    public MatchingFormatStrategy(MediaFormatStrategy strategy, MediaFormat videoReference, MediaFormat audioReference) {
+        this.strategy = strategy;
+        this.videoReference = videoReference;
+        this.audioReference = audioReference;
+    }
+
+    @Override
+    public MediaFormat createVideoOutputFormat(MediaFormat inputFormat) {
+        if (videoReference == null) return null;
+        MediaFormat preferred = strategy.createVideoOutputFormat(inputFormat);
+        MediaFormat format = MediaFormat.createVideoFormat(videoReference.getString(MediaFormat.KEY_MIME),
+                videoReference.getInteger(MediaFormat.KEY_WIDTH), videoReference.getInteger(MediaFormat.KEY_HEIGHT));
+        format.setInteger(MediaFormat.KEY_BIT_RATE, getInteger(MediaFormat.KEY_BIT_RATE, videoReference, preferred, DEFAULT_VIDEO_BITRATE));
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, getInteger(MediaFormat.KEY_FRAME_RATE, preferred, null, DEFAULT_FRAME_RATE));
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, getInteger(MediaFormat.KEY_I_FRAME_INTERVAL, preferred, null, DEFAULT_I_FRAME_INTERVAL));
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        // same profile and level make the encoder's sps more likely to equal the reference's
+        if (videoReference.containsKey(MediaFormatExtraConstants.KEY_PROFILE)) {
+            format.setInteger(MediaFormatExtraConstants.KEY_PROFILE, videoReference.getInteger(MediaFormatExtraConstants.KEY_PROFILE));
+        }
+        if (videoReference.containsKey(MediaFormatExtraConstants.KEY_LEVEL)) {
+            format.setInteger(MediaFormatExtraConstants.KEY_LEVEL, videoReference.getInteger(MediaFormatExtraConstants.KEY_LEVEL));
+        }
+        return format;
+    }
+
+    @Override
+    public MediaFormat createAudioOutputFormat(MediaFormat inputFormat) {
+        if (audioReference == null) return null;
+        MediaFormat preferred = strategy.createAudioOutputFormat(inputFormat);
+        MediaFormat format = MediaFormat.createAudioFormat(audioReference.getString(MediaFormat.KEY_MIME),
+                audioReference.getInteger(MediaFormat.KEY_SAMPLE_RATE), audioReference.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, getInteger(MediaFormat.KEY_BIT_RATE, audioReference, preferred, DEFAULT_AUDIO_BITRATE));
+        return format;
+    }
+
+    private static int getInteger(String key, MediaFormat format, MediaFormat fallback, int defaultValue) {
+        if (format != null && format.containsKey(key)) return format.getInteger(key);
+        if (fallback != null && fallback.containsKey(key)) return fallback.getInteger(key);
+        return defaultValue;
+    }
+}
@@ -0,0 +1,37 @@
+package com.nagihong.videocompressor.strategies;
+
+import android.media.MediaFormat;
+
+/**
+ * Wraps a strategy so encoded video has a key frame at the start of every segment of the given duration,
+ * which segmented output like {@link com.nagihong.videocompressor.transcoder.HlsMuxer} can only cut at.
+ */
+public class SegmentAlignedFormatStrategy implements MediaFormatStrategy {
+    private final MediaFormatStrategy strategy;
+    private final int segmentDurationSeconds;
+
+    public SegmentAlignedFormatStrategy(MediaFormatStrategy strategy, int segmentDurationSeconds) {
+        if (segmentDurationSeconds <= 0) {
+            throw new IllegalArgumentException(String.format("segment duration %d is not positive.", segmentDurationSeconds));
+        }
+        this.strategy = strategy;
+        this.segmentDurationSeconds = segmentDurationSeconds;
+    }
+
+    @Override
+    public MediaFormat createVideoOutputFormat(MediaFormat inputFormat) {
+        MediaFormat format = strategy.createVideoOutputFormat(inputFormat);
+        if (format == null) return null;
+        // a shorter interval still works if it divides the segment, anything else is replaced by the segment duration
+        int interval = format.containsKey(MediaFormat.KEY_I_FRAME_INTERVAL) ? format.getInteger(MediaFormat.KEY_I_FRAME_INTERVAL) : 0;
+        if (interval <= 0 || segmentDurationSeconds % interval != 0) {
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, segmentDurationSeconds);
+        }
+        return format;
+    }
+
+    @Override
+    public MediaFormat createAudioOutputFormat(MediaFormat inputFormat) {
+        return strategy.createAudioOutputFormat(inputFormat);
+    }
+}
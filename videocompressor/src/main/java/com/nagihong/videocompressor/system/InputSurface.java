@@ -23,6 +23,8 @@ public class InputSurface {
     private EGLDisplay mEGLDisplay = EGL14.EGL_NO_DISPLAY;
     private EGLContext mEGLContext = EGL14.EGL_NO_CONTEXT;
     private EGLSurface mEGLSurface = EGL14.EGL_NO_SURFACE;
+    private EGLConfig mEGLConfig;
+    private boolean mOwnsContext = true;
     private Surface mSurface;
     /**
      * Creates an InputSurface from a Surface.
@@ -34,6 +36,22 @@ public class InputSurface {
         mSurface = surface;
         eglSetup();
     }
+    /**
+     * Creates an InputSurface from a Surface, drawn with the EGL context of shared instead of a new one,
+     * so a texture of that context can be drawn into several encoders.
+     * Release it before shared, which owns the context.
+     */
+    public InputSurface(Surface surface, InputSurface shared) {
+        if (surface == null || shared == null) {
+            throw new NullPointerException();
+        }
+        mSurface = surface;
+        mEGLDisplay = shared.mEGLDisplay;
+        mEGLContext = shared.mEGLContext;
+        mEGLConfig = shared.mEGLConfig;
+        mOwnsContext = false;
+        createWindowSurface();
+    }
     /**
      * Prepares EGL.  We want a GLES 2.0 context and a surface that supports recording.
      */
@@ -74,11 +92,17 @@ public class InputSurface {
         if (mEGLContext == null) {
             throw new RuntimeException("null context");
         }
-        // Create a window surface, and attach it to the Surface we received.
+        mEGLConfig = configs[0];
+        createWindowSurface();
+    }
+    /**
+     * Creates a window surface, and attach it to the Surface we received.
+     */
+    private void createWindowSurface() {
         int[] surfaceAttribs = {
                 EGL14.EGL_NONE
         };
-        mEGLSurface = EGL14.eglCreateWindowSurface(mEGLDisplay, configs[0], mSurface,
+        mEGLSurface = EGL14.eglCreateWindowSurface(mEGLDisplay, mEGLConfig, mSurface,
                 surfaceAttribs, 0);
         checkEglError("eglCreateWindowSurface");
         if (mEGLSurface == null) {
@@ -86,11 +110,14 @@ public class InputSurface {
         }
     }
     /**
-     * Discard all resources held by this class, notably the EGL context.  Also releases the
+     * Discard all resources held by this class, notably the EGL context unless it is shared.  Also releases the
      * Surface that was passed to our constructor.
      */
     public void release() {
-        if (mEGLDisplay != EGL14.EGL_NO_DISPLAY) {
+        if (!mOwnsContext) {
+            // the context and display belong to the shared surface
+            EGL14.eglDestroySurface(mEGLDisplay, mEGLSurface);
+        } else if (mEGLDisplay != EGL14.EGL_NO_DISPLAY) {
             EGL14.eglDestroySurface(mEGLDisplay, mEGLSurface);
             EGL14.eglDestroyContext(mEGLDisplay, mEGLContext);
             EGL14.eglReleaseThread();
@@ -100,6 +127,7 @@ public class InputSurface {
         mEGLDisplay = EGL14.EGL_NO_DISPLAY;
         mEGLContext = EGL14.EGL_NO_CONTEXT;
         mEGLSurface = EGL14.EGL_NO_SURFACE;
+        mEGLConfig = null;
         mSurface = null;
     }
     /**
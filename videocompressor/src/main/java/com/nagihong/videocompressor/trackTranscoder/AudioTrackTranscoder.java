@@ -1,8 +1,10 @@
 package com.nagihong.videocompressor.trackTranscoder;
 
+import android.media.AudioFormat;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Build;
 
 import com.nagihong.videocompressor.MediaCodecBufferWrapper;
 import com.nagihong.videocompressor.audioProcessor.AudioProcessor;
@@ -12,8 +14,6 @@ import java.io.IOException;
 
 public class AudioTrackTranscoder implements TrackTranscoder {
 
-    private static final QueuedMuxer.SampleType SAMPLE_TYPE = QueuedMuxer.SampleType.AUDIO;
-
     private static final int DRAIN_STATE_NONE = 0;
     private static final int DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY = 1;
     private static final int DRAIN_STATE_CONSUMED = 2;
@@ -34,6 +34,7 @@ public class AudioTrackTranscoder implements TrackTranscoder {
      */
     private final MediaExtractor extractor;
     private final QueuedMuxer muxer;
+    private final int outputTrack;
     private long writtenPresentationTimeUs;
 
     private final int trackIndex;
@@ -55,13 +56,15 @@ public class AudioTrackTranscoder implements TrackTranscoder {
     private boolean encoderStarted;
 
     private AudioProcessor audioProcessor;
+    private boolean floatDecoding;
 
     public AudioTrackTranscoder(MediaExtractor extractor, int trackIndex,
-                                MediaFormat outputFormat, QueuedMuxer muxer) {
+                                MediaFormat outputFormat, QueuedMuxer muxer, int outputTrack) {
         this.extractor = extractor;
         this.trackIndex = trackIndex;
         this.outputFormat = outputFormat;
         this.muxer = muxer;
+        this.outputTrack = outputTrack;
 
         inputFormat = this.extractor.getTrackFormat(this.trackIndex);
     }
@@ -93,12 +96,23 @@ public class AudioTrackTranscoder implements TrackTranscoder {
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
+        if (floatDecoding && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            // only a request, decoders which can not output float keep 16 bit, AudioProcessor reads the actual format
+            inputFormat.setInteger(MediaFormat.KEY_PCM_ENCODING, AudioFormat.ENCODING_PCM_FLOAT);
+        }
         decoder.configure(inputFormat, null, null, 0);
         decoder.start();
         decoderStarted = true;
         decoderBuffers = new MediaCodecBufferWrapper(decoder);
     }
 
+    /**
+     * @param floatDecoding ask the decoder for float pcm on api &gt;= 24, call before {@link #setup()}.
+     */
+    public void setFloatDecoding(boolean floatDecoding) {
+        this.floatDecoding = floatDecoding;
+    }
+
     @Override
     public MediaFormat getDeterminedFormat() {
         return inputFormat;
@@ -154,6 +168,8 @@ public class AudioTrackTranscoder implements TrackTranscoder {
     }
 
     private int drainDecoder(long timeoutUs) {
+        //finish copying the previous buffer first, its pcm may not have fit into the ring
+        if (!audioProcessor.drainPendingDecoderBuffer()) return DRAIN_STATE_NONE;
         //check eos
         if (isDecoderEOS) return DRAIN_STATE_NONE;
 
@@ -193,7 +209,7 @@ public class AudioTrackTranscoder implements TrackTranscoder {
                     throw new RuntimeException("Audio output format changed twice.");
                 }
                 actualOutputFormat = encoder.getOutputFormat();
-                muxer.setOutputFormat(SAMPLE_TYPE, actualOutputFormat);
+                muxer.setOutputFormat(outputTrack, actualOutputFormat);
                 return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
             case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
                 //this would only happens below api.21
@@ -217,7 +233,7 @@ public class AudioTrackTranscoder implements TrackTranscoder {
             return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
         }
         //drain encoder the mux into output file
-        muxer.writeSampleData(SAMPLE_TYPE, encoderBuffers.getOutputBuffer(bufferIndex), bufferInfoCache);
+        muxer.writeSampleData(outputTrack, encoderBuffers.getOutputBuffer(bufferIndex), bufferInfoCache);
         writtenPresentationTimeUs = bufferInfoCache.presentationTimeUs;
         encoder.releaseOutputBuffer(bufferIndex, false);
         return DRAIN_STATE_CONSUMED;
@@ -245,5 +261,9 @@ public class AudioTrackTranscoder implements TrackTranscoder {
             encoder.release();
             encoder = null;
         }
+        if (audioProcessor != null) {
+            audioProcessor.release();
+            audioProcessor = null;
+        }
     }
 }
@@ -0,0 +1,348 @@
+package com.nagihong.videocompressor.trackTranscoder;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import com.nagihong.videocompressor.MediaCodecBufferWrapper;
+import com.nagihong.videocompressor.strategies.MediaFormatExtraConstants;
+import com.nagihong.videocompressor.transcoder.QueuedMuxer;
+import com.nagihong.videocompressor.utils.YuvConverter;
+import com.nagihong.videocompressor.utils.YuvFormatUtils;
+import com.nagihong.videocompressor.videoProcessor.FrameProcessor;
+import com.nagihong.videocompressor.videoProcessor.YuvFrame;
+import com.nagihong.videocompressor.videoProcessor.YuvScaler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Video transcoding without EGL, decoded YUV frames are read from the decoder's output buffers,
+ * run through a {@link FrameProcessor} on the CPU and written into the encoder's input buffers.
+ * <p>
+ * Slower than {@link VideoTrackTranscoder} on most devices, but it runs where GL does not and gives access to pixels.
+ * A decoded frame stays in the decoder until an encoder input buffer is free.
+ * Stride, slice height and crop of both codecs are read with {@link YuvFormatUtils},
+ * tiled decoder output is untiled by a {@link YuvConverter} first.
+ */
+public class ByteBufferVideoTrackTranscoder implements TrackTranscoder {
+    private static final int DRAIN_STATE_NONE = 0;
+    private static final int DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY = 1;
+    private static final int DRAIN_STATE_CONSUMED = 2;
+    private static final int NO_BUFFER = -1;
+
+    private final MediaExtractor extractor;
+    private final int trackIndex;
+    private final MediaFormat outputFormat;
+    private MediaFormat actualOutputFormat;
+    private final QueuedMuxer muxer;
+    private final int outputTrack;
+    private FrameProcessor frameProcessor;
+
+    private final MediaCodec.BufferInfo bufferInfoCache = new MediaCodec.BufferInfo();
+
+    private MediaCodec decoder;
+    private MediaCodec encoder;
+    private MediaCodecBufferWrapper decoderBuffers;
+    private MediaCodecBufferWrapper encoderBuffers;
+
+    // frame layouts, decoder's is known once it reports its output format
+    private final YuvFrame decodedFrame = new YuvFrame();
+    private final YuvFrame encoderFrame = new YuvFrame();
+    private boolean decodedFormatKnown;
+
+    // vendor tiled decoder output, untiled into untiledFrame before processing
+    private boolean decodedTiled;
+    private int decodedWidth;
+    private int decodedHeight;
+    private YuvConverter converter;
+    private final YuvFrame untiledFrame = new YuvFrame();
+
+    // decoded frame waiting for an encoder input buffer
+    private int pendingBufferIndex = NO_BUFFER;
+    private final MediaCodec.BufferInfo pendingBufferInfo = new MediaCodec.BufferInfo();
+
+    private boolean isExtractorEOS;
+    private boolean isDecoderEOS;
+    private boolean isEncoderEOS;
+    private boolean decoderStarted;
+    private boolean encoderStarted;
+    private long writtenPresentationTimeUs;
+
+    public ByteBufferVideoTrackTranscoder(MediaExtractor extractor, int trackIndex,
+                                          MediaFormat outputFormat, QueuedMuxer muxer, int outputTrack) {
+        this.extractor = extractor;
+        this.trackIndex = trackIndex;
+        this.outputFormat = outputFormat;
+        this.muxer = muxer;
+        this.outputTrack = outputTrack;
+    }
+
+    /**
+     * @param frameProcessor replaces the default {@link YuvScaler}, released along with this transcoder. Call before {@link #setup()}.
+     */
+    public void setFrameProcessor(FrameProcessor frameProcessor) {
+        this.frameProcessor = frameProcessor;
+    }
+
+    //========================= setup ========================================================
+    @Override
+    public void setup() {
+        if (frameProcessor == null) frameProcessor = new YuvScaler();
+        setupEncoder();
+        setupDecoder();
+    }
+
+    private void setupEncoder() {
+        try {
+            encoder = MediaCodec.createEncoderByType(outputFormat.getString(MediaFormat.KEY_MIME));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        int colorFormat = selectColorFormat(encoder.getCodecInfo(), outputFormat.getString(MediaFormat.KEY_MIME));
+        outputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+        encoder.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        // from api 21 encoders tell the stride and slice height they expect, older ones take unpadded frames
+        MediaFormat inputFormat = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? encoder.getInputFormat() : null;
+        if (inputFormat == null || !inputFormat.containsKey(MediaFormat.KEY_COLOR_FORMAT)) inputFormat = outputFormat;
+        YuvFormatUtils.setFrame(encoderFrame, null, inputFormat);
+        encoder.start();
+        encoderStarted = true;
+        encoderBuffers = new MediaCodecBufferWrapper(encoder);
+    }
+
+    private void setupDecoder() {
+        MediaFormat inputFormat = extractor.getTrackFormat(trackIndex);
+        if (inputFormat.containsKey(MediaFormatExtraConstants.KEY_ROTATION_DEGREES)) {
+            // same as VideoTrackTranscoder, rotation is left to the muxer's orientation hint
+            inputFormat.setInteger(MediaFormatExtraConstants.KEY_ROTATION_DEGREES, 0);
+        }
+        try {
+            decoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        decoder.configure(inputFormat, null, null, 0);
+        decoder.start();
+        decoderStarted = true;
+        decoderBuffers = new MediaCodecBufferWrapper(decoder);
+    }
+
+    /**
+     * @return a byte buffer color format the encoder takes, semi-planar preferred as most hardware encoders read it natively.
+     */
+    static int selectColorFormat(MediaCodecInfo codecInfo, String mime) {
+        int[] colorFormats = codecInfo.getCapabilitiesForType(mime).colorFormats;
+        int selected = -1;
+        for (int colorFormat : colorFormats) {
+            if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar) return colorFormat;
+            if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar) selected = colorFormat;
+        }
+        if (selected < 0) {
+            throw new UnsupportedOperationException(String.format("encoder %s takes no planar or semi-planar yuv input.", codecInfo.getName()));
+        }
+        return selected;
+    }
+
+    //========================= transcoding ========================================================
+    @Override
+    public boolean stepPipeline() {
+        boolean busy = false;
+
+        int status;
+        //用while主要是有时候获取失败，立马重试
+        while (drainEncoder(0) != DRAIN_STATE_NONE) busy = true;
+        do {
+            status = drainDecoder(0);
+            if (status != DRAIN_STATE_NONE) busy = true;
+            // NOTE: not repeating to keep from deadlock when encoder is full.
+        } while (status == DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY);
+        while (drainExtractor(0) != DRAIN_STATE_NONE) busy = true;
+
+        return busy;
+    }
+
+    private int drainExtractor(long timeoutUs) {
+        if (isExtractorEOS) return DRAIN_STATE_NONE;
+
+        //check trackIndex whether correct
+        int trackIndex = extractor.getSampleTrackIndex();
+        if (trackIndex >= 0 && trackIndex != this.trackIndex) {
+            return DRAIN_STATE_NONE;
+        }
+        //check trackIndex legality and bufferIndex
+        int bufferIndex = decoder.dequeueInputBuffer(timeoutUs);
+        if (bufferIndex < 0) return DRAIN_STATE_NONE;
+        if (trackIndex < 0) {
+            isExtractorEOS = true;
+            decoder.queueInputBuffer(bufferIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return DRAIN_STATE_NONE;
+        }
+
+        //drainExtractor
+        int sampleSize = extractor.readSampleData(decoderBuffers.getInputBuffer(bufferIndex), 0);
+        boolean isKeyFrame = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+        decoder.queueInputBuffer(bufferIndex, 0, sampleSize, extractor.getSampleTime(), isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+        extractor.advance();
+        return DRAIN_STATE_CONSUMED;
+    }
+
+    private int drainDecoder(long timeoutUs) {
+        //the previous frame goes first
+        if (pendingBufferIndex != NO_BUFFER) {
+            return encodePendingFrame() ? DRAIN_STATE_CONSUMED : DRAIN_STATE_NONE;
+        }
+        if (isDecoderEOS) return DRAIN_STATE_NONE;
+        int bufferIndex = decoder.dequeueOutputBuffer(bufferInfoCache, timeoutUs);
+        //check bufferIndex
+        switch (bufferIndex) {
+            case MediaCodec.INFO_TRY_AGAIN_LATER:
+                return DRAIN_STATE_NONE;
+            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                setDecoderOutputFormat(decoder.getOutputFormat());
+                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+            case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+                decoderBuffers = new MediaCodecBufferWrapper(decoder);
+                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+        }
+        if ((bufferInfoCache.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            isDecoderEOS = true;
+        }
+        pendingBufferIndex = bufferIndex;
+        pendingBufferInfo.set(bufferInfoCache.offset, bufferInfoCache.size, bufferInfoCache.presentationTimeUs, bufferInfoCache.flags);
+        encodePendingFrame();
+        return DRAIN_STATE_CONSUMED;
+    }
+
+    /**
+     * @return false when the encoder has no free input buffer, the frame is kept for the next step.
+     */
+    private boolean encodePendingFrame() {
+        int encoderBufferIndex = encoder.dequeueInputBuffer(0);
+        if (encoderBufferIndex < 0) return false;
+
+        MediaCodec.BufferInfo info = pendingBufferInfo;
+        boolean endOfStream = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        int size = 0;
+        if (info.size > 0) {
+            ByteBuffer decoded = decoderBuffers.getOutputBuffer(pendingBufferIndex);
+            decoded.limit(info.offset + info.size);
+            decoded.position(info.offset);
+            ByteBuffer encoderInput = encoderBuffers.getInputBuffer(encoderBufferIndex);
+            encoderInput.clear();
+            if (!decodedFormatKnown) setDecoderOutputFormat(decoder.getOutputFormat());
+            encoderFrame.setBuffer(encoderInput);
+            if (decodedTiled) {
+                converter.detile(decoded, decodedWidth, decodedHeight, untiledFrame);
+                frameProcessor.process(untiledFrame, encoderFrame);
+            } else {
+                frameProcessor.process(decodedFrame.setBuffer(decoded), encoderFrame);
+            }
+            size = encoderFrame.getFrameSize();
+        }
+        encoder.queueInputBuffer(encoderBufferIndex, 0, size, info.presentationTimeUs,
+                endOfStream ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+        decoder.releaseOutputBuffer(pendingBufferIndex, false);
+        pendingBufferIndex = NO_BUFFER;
+        return true;
+    }
+
+    private void setDecoderOutputFormat(MediaFormat format) {
+        decodedFormatKnown = true;
+        decodedTiled = YuvFormatUtils.isTiled(format.getInteger(MediaFormat.KEY_COLOR_FORMAT));
+        if (!decodedTiled) {
+            YuvFormatUtils.setFrame(decodedFrame, null, format);
+            return;
+        }
+        decodedWidth = format.getInteger(MediaFormat.KEY_WIDTH);
+        decodedHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+        if (converter == null) converter = new YuvConverter();
+        int stride = YuvFormatUtils.align(decodedWidth, 2);
+        int sliceHeight = YuvFormatUtils.align(decodedHeight, 2);
+        ByteBuffer untiled = ByteBuffer.allocateDirect(stride * sliceHeight * 3 / 2).order(ByteOrder.nativeOrder());
+        untiledFrame.set(untiled, YuvFrame.Layout.NV12, decodedWidth, decodedHeight, stride, sliceHeight);
+    }
+
+    private int drainEncoder(long timeoutUs) {
+        if (isEncoderEOS) return DRAIN_STATE_NONE;
+
+        int bufferIndex = encoder.dequeueOutputBuffer(bufferInfoCache, timeoutUs);
+        //check bufferIndex
+        switch (bufferIndex) {
+            case MediaCodec.INFO_TRY_AGAIN_LATER:
+                return DRAIN_STATE_NONE;
+            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                if (actualOutputFormat != null)
+                    throw new RuntimeException("Video output format changed twice.");
+                actualOutputFormat = encoder.getOutputFormat();
+                muxer.setOutputFormat(outputTrack, actualOutputFormat);
+                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+            case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+                encoderBuffers = new MediaCodecBufferWrapper(encoder);
+                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+        }
+        //check format
+        if (actualOutputFormat == null) {
+            throw new RuntimeException("Could not determine actual output format.");
+        }
+        //check eos
+        if ((bufferInfoCache.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            isEncoderEOS = true;
+            bufferInfoCache.set(0, 0, 0, bufferInfoCache.flags);
+        }
+        //check buffer contains other config data instead of media data, when meet it, do retry to get another buffer
+        if ((bufferInfoCache.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // SPS or PPS, which should be passed by MediaFormat.
+            encoder.releaseOutputBuffer(bufferIndex, false);
+            return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+        }
+
+        //drainEncoder
+        muxer.writeSampleData(outputTrack, encoderBuffers.getOutputBuffer(bufferIndex), bufferInfoCache);
+        writtenPresentationTimeUs = bufferInfoCache.presentationTimeUs;
+        encoder.releaseOutputBuffer(bufferIndex, false);
+        return DRAIN_STATE_CONSUMED;
+    }
+
+    //========================= getters and setters ========================================================
+    @Override
+    public long getWrittenPresentationTimeUs() {
+        return writtenPresentationTimeUs;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return isEncoderEOS;
+    }
+
+    @Override
+    public MediaFormat getDeterminedFormat() {
+        return actualOutputFormat;
+    }
+
+    //========================= 特殊业务 ========================================================
+    @Override
+    public void release() {
+        if (frameProcessor != null) {
+            frameProcessor.release();
+            frameProcessor = null;
+        }
+        if (converter != null) {
+            converter.release();
+            converter = null;
+        }
+        if (decoder != null) {
+            if (decoderStarted) decoder.stop();
+            decoder.release();
+            decoder = null;
+        }
+        if (encoder != null) {
+            if (encoderStarted) encoder.stop();
+            encoder.release();
+            encoder = null;
+        }
+    }
+}
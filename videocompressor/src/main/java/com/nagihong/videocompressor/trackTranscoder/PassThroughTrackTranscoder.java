@@ -6,15 +6,21 @@ import android.media.MediaExtractor;
 import android.media.MediaFormat;
 
 import com.nagihong.videocompressor.transcoder.QueuedMuxer;
+import com.nagihong.videocompressor.utils.ByteBufferPool;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
+/**
+ * copies samples of one input track to output as they are, costs only their bytes of i/o
+ */
 public class PassThroughTrackTranscoder implements TrackTranscoder {
+    // tracks other than audio and video, e.g. timed metadata, often do not declare a max sample size
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
     private final MediaExtractor mExtractor;
     private final int mTrackIndex;
     private final QueuedMuxer mMuxer;
-    private final QueuedMuxer.SampleType mSampleType;
+    private final int mOutputTrack;
     private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
     private int mBufferSize;
     private ByteBuffer mBuffer;
@@ -23,16 +29,17 @@ public class PassThroughTrackTranscoder implements TrackTranscoder {
     private long mWrittenPresentationTimeUs;
 
     public PassThroughTrackTranscoder(MediaExtractor extractor, int trackIndex,
-                                      QueuedMuxer muxer, QueuedMuxer.SampleType sampleType) {
+                                      QueuedMuxer muxer, int outputTrack) {
         mExtractor = extractor;
         mTrackIndex = trackIndex;
         mMuxer = muxer;
-        mSampleType = sampleType;
+        mOutputTrack = outputTrack;
 
         mActualOutputFormat = mExtractor.getTrackFormat(mTrackIndex);
-        mMuxer.setOutputFormat(mSampleType, mActualOutputFormat);
-        mBufferSize = mActualOutputFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
-        mBuffer = ByteBuffer.allocateDirect(mBufferSize).order(ByteOrder.nativeOrder());
+        mMuxer.setOutputFormat(mOutputTrack, mActualOutputFormat);
+        mBufferSize = mActualOutputFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                ? mActualOutputFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : DEFAULT_BUFFER_SIZE;
+        mBuffer = ByteBufferPool.getDefault().acquire(mBufferSize);
     }
 
     @Override
@@ -52,7 +59,7 @@ public class PassThroughTrackTranscoder implements TrackTranscoder {
         if (trackIndex < 0) {
             mBuffer.clear();
             mBufferInfo.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-            mMuxer.writeSampleData(mSampleType, mBuffer, mBufferInfo);
+            mMuxer.writeSampleData(mOutputTrack, mBuffer, mBufferInfo);
             mIsEOS = true;
             return true;
         }
@@ -64,7 +71,7 @@ public class PassThroughTrackTranscoder implements TrackTranscoder {
         boolean isKeyFrame = (mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
         int flags = isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
         mBufferInfo.set(0, sampleSize, mExtractor.getSampleTime(), flags);
-        mMuxer.writeSampleData(mSampleType, mBuffer, mBufferInfo);
+        mMuxer.writeSampleData(mOutputTrack, mBuffer, mBufferInfo);
         mWrittenPresentationTimeUs = mBufferInfo.presentationTimeUs;
 
         mExtractor.advance();
@@ -83,5 +90,7 @@ public class PassThroughTrackTranscoder implements TrackTranscoder {
 
     @Override
     public void release() {
+        ByteBufferPool.getDefault().release(mBuffer);
+        mBuffer = null;
     }
 }
@@ -0,0 +1,454 @@
+package com.nagihong.videocompressor.trackTranscoder;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.opengl.GLES20;
+import android.os.Build;
+
+import com.nagihong.videocompressor.MediaCodecBufferWrapper;
+import com.nagihong.videocompressor.strategies.MediaFormatExtraConstants;
+import com.nagihong.videocompressor.system.InputSurface;
+import com.nagihong.videocompressor.system.OutputSurface;
+import com.nagihong.videocompressor.transcoder.QueuedMuxer;
+import com.nagihong.videocompressor.utils.YuvConverter;
+import com.nagihong.videocompressor.utils.YuvFormatUtils;
+import com.nagihong.videocompressor.videoProcessor.FrameProcessor;
+import com.nagihong.videocompressor.videoProcessor.YuvFrame;
+import com.nagihong.videocompressor.videoProcessor.YuvScaler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes a video track once and encodes it into several renditions, e.g. a 720p upload copy and a 360p preview,
+ * each written to its own muxer track. Demuxing and decoding are paid once for all of them.
+ * <p>
+ * On the GL path the texture of one {@link OutputSurface} is drawn into the {@link InputSurface} of every encoder,
+ * all of them sharing the EGL context of the first one. On the CPU path every rendition scales the decoded buffer
+ * with its own {@link FrameProcessor}, like {@link ByteBufferVideoTrackTranscoder}.
+ * A decoded frame is released once every encoder took it, so the slowest encoder paces the decoder.
+ */
+public class RenditionVideoTrackTranscoder implements TrackTranscoder {
+    private static final int DRAIN_STATE_NONE = 0;
+    private static final int DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY = 1;
+    private static final int DRAIN_STATE_CONSUMED = 2;
+    private static final int NO_BUFFER = -1;
+
+    private final MediaExtractor extractor;
+    private final int trackIndex;
+    private final boolean cpuScaling;
+    private final List<Rendition> renditions = new ArrayList<>();
+
+    private final MediaCodec.BufferInfo bufferInfoCache = new MediaCodec.BufferInfo();
+
+    private MediaCodec decoder;
+    private MediaCodecBufferWrapper decoderBuffers;
+    private boolean decoderStarted;
+    private boolean isExtractorEOS;
+    private boolean isDecoderEOS;
+
+    // GL path
+    private OutputSurface decoderOutputSurfaceWrapper;
+
+    // CPU path, same as ByteBufferVideoTrackTranscoder
+    private final YuvFrame decodedFrame = new YuvFrame();
+    private boolean decodedFormatKnown;
+    private boolean decodedTiled;
+    private int decodedWidth;
+    private int decodedHeight;
+    private YuvConverter converter;
+    private final YuvFrame untiledFrame = new YuvFrame();
+    private int pendingBufferIndex = NO_BUFFER;
+    private final MediaCodec.BufferInfo pendingBufferInfo = new MediaCodec.BufferInfo();
+
+    /**
+     * @param cpuScaling scale decoded buffers with {@link YuvScaler} instead of drawing through GL surfaces
+     */
+    public RenditionVideoTrackTranscoder(MediaExtractor extractor, int trackIndex, boolean cpuScaling) {
+        this.extractor = extractor;
+        this.trackIndex = trackIndex;
+        this.cpuScaling = cpuScaling;
+    }
+
+    /**
+     * add an encoder of outputFormat writing to outputTrack of muxer. Call before {@link #setup()}.
+     *
+     * @return index of the rendition
+     */
+    public int addRendition(MediaFormat outputFormat, QueuedMuxer muxer, int outputTrack) {
+        if (decoder != null) throw new IllegalStateException("Renditions must be added before setup.");
+        renditions.add(new Rendition(outputFormat, muxer, outputTrack));
+        return renditions.size() - 1;
+    }
+
+    public int getRenditionCount() {
+        return renditions.size();
+    }
+
+    //========================= setup ========================================================
+    @Override
+    public void setup() {
+        if (renditions.isEmpty()) throw new IllegalStateException("No rendition added.");
+        for (Rendition rendition : renditions) {
+            setupEncoder(rendition);
+        }
+        setupDecoder();
+    }
+
+    private void setupEncoder(Rendition rendition) {
+        MediaFormat outputFormat = rendition.outputFormat;
+        try {
+            rendition.encoder = MediaCodec.createEncoderByType(outputFormat.getString(MediaFormat.KEY_MIME));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        MediaCodec encoder = rendition.encoder;
+        if (cpuScaling) {
+            int colorFormat = ByteBufferVideoTrackTranscoder.selectColorFormat(encoder.getCodecInfo(), outputFormat.getString(MediaFormat.KEY_MIME));
+            outputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+            encoder.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            MediaFormat inputFormat = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? encoder.getInputFormat() : null;
+            if (inputFormat == null || !inputFormat.containsKey(MediaFormat.KEY_COLOR_FORMAT)) inputFormat = outputFormat;
+            YuvFormatUtils.setFrame(rendition.encoderFrame, null, inputFormat);
+            rendition.frameProcessor = new YuvScaler();
+        } else {
+            encoder.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            // every surface draws with the context of the first one, which holds the decoder's texture
+            InputSurface first = renditions.get(0).inputSurface;
+            rendition.inputSurface = first == null
+                    ? new InputSurface(encoder.createInputSurface())
+                    : new InputSurface(encoder.createInputSurface(), first);
+            rendition.inputSurface.makeCurrent();
+            rendition.surfaceWidth = rendition.inputSurface.getWidth();
+            rendition.surfaceHeight = rendition.inputSurface.getHeight();
+        }
+        encoder.start();
+        rendition.encoderStarted = true;
+        rendition.encoderBuffers = new MediaCodecBufferWrapper(encoder);
+    }
+
+    private void setupDecoder() {
+        MediaFormat inputFormat = extractor.getTrackFormat(trackIndex);
+        if (inputFormat.containsKey(MediaFormatExtraConstants.KEY_ROTATION_DEGREES)) {
+            // same as VideoTrackTranscoder, rotation is left to the muxer's orientation hint
+            inputFormat.setInteger(MediaFormatExtraConstants.KEY_ROTATION_DEGREES, 0);
+        }
+        if (!cpuScaling) decoderOutputSurfaceWrapper = new OutputSurface();
+        try {
+            decoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        decoder.configure(inputFormat, cpuScaling ? null : decoderOutputSurfaceWrapper.getSurface(), null, 0);
+        decoder.start();
+        decoderStarted = true;
+        decoderBuffers = new MediaCodecBufferWrapper(decoder);
+    }
+
+    //========================= transcoding ========================================================
+    @Override
+    public boolean stepPipeline() {
+        boolean busy = false;
+
+        int status;
+        for (Rendition rendition : renditions) {
+            while (drainEncoder(rendition) != DRAIN_STATE_NONE) busy = true;
+        }
+        do {
+            status = drainDecoder();
+            if (status != DRAIN_STATE_NONE) busy = true;
+            // NOTE: not repeating to keep from deadlock when encoder is full.
+        } while (status == DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY);
+        while (drainExtractor() != DRAIN_STATE_NONE) busy = true;
+
+        return busy;
+    }
+
+    private int drainExtractor() {
+        if (isExtractorEOS) return DRAIN_STATE_NONE;
+
+        //check trackIndex whether correct
+        int trackIndex = extractor.getSampleTrackIndex();
+        if (trackIndex >= 0 && trackIndex != this.trackIndex) {
+            return DRAIN_STATE_NONE;
+        }
+        //check trackIndex legality and bufferIndex
+        int bufferIndex = decoder.dequeueInputBuffer(0);
+        if (bufferIndex < 0) return DRAIN_STATE_NONE;
+        if (trackIndex < 0) {
+            isExtractorEOS = true;
+            decoder.queueInputBuffer(bufferIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return DRAIN_STATE_NONE;
+        }
+
+        //drainExtractor
+        int sampleSize = extractor.readSampleData(decoderBuffers.getInputBuffer(bufferIndex), 0);
+        boolean isKeyFrame = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+        decoder.queueInputBuffer(bufferIndex, 0, sampleSize, extractor.getSampleTime(), isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+        extractor.advance();
+        return DRAIN_STATE_CONSUMED;
+    }
+
+    private int drainDecoder() {
+        //the previous frame goes first
+        if (pendingBufferIndex != NO_BUFFER) {
+            return encodePendingFrame() ? DRAIN_STATE_CONSUMED : DRAIN_STATE_NONE;
+        }
+        if (isDecoderEOS) return DRAIN_STATE_NONE;
+        int bufferIndex = decoder.dequeueOutputBuffer(bufferInfoCache, 0);
+        //check bufferIndex
+        switch (bufferIndex) {
+            case MediaCodec.INFO_TRY_AGAIN_LATER:
+                return DRAIN_STATE_NONE;
+            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                if (cpuScaling) setDecoderOutputFormat(decoder.getOutputFormat());
+                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+            case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+                decoderBuffers = new MediaCodecBufferWrapper(decoder);
+                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+        }
+        if ((bufferInfoCache.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            isDecoderEOS = true;
+        }
+        if (cpuScaling) {
+            pendingBufferIndex = bufferIndex;
+            pendingBufferInfo.set(bufferInfoCache.offset, bufferInfoCache.size, bufferInfoCache.presentationTimeUs, bufferInfoCache.flags);
+            if (pendingBufferInfo.size > 0) readPendingFrame();
+            encodePendingFrame();
+            return DRAIN_STATE_CONSUMED;
+        }
+
+        if (isDecoderEOS) {
+            for (Rendition rendition : renditions) rendition.encoder.signalEndOfInputStream();
+            bufferInfoCache.size = 0;
+        }
+        boolean doRender = (bufferInfoCache.size > 0);
+        // NOTE: doRender will block if buffer (of encoder) is full.
+        decoder.releaseOutputBuffer(bufferIndex, doRender);
+        if (doRender) {
+            decoderOutputSurfaceWrapper.awaitNewImage();
+            // the same texture into every encoder, each surface has its own size
+            for (Rendition rendition : renditions) {
+                rendition.inputSurface.makeCurrent();
+                GLES20.glViewport(0, 0, rendition.surfaceWidth, rendition.surfaceHeight);
+                decoderOutputSurfaceWrapper.drawImage();
+                rendition.inputSurface.setPresentationTime(bufferInfoCache.presentationTimeUs * 1000);
+                rendition.inputSurface.swapBuffers();
+            }
+        }
+        return DRAIN_STATE_CONSUMED;
+    }
+
+    /**
+     * locate the pending frame, tiled frames are untiled once for all renditions
+     */
+    private void readPendingFrame() {
+        ByteBuffer decoded = decoderBuffers.getOutputBuffer(pendingBufferIndex);
+        decoded.limit(pendingBufferInfo.offset + pendingBufferInfo.size);
+        decoded.position(pendingBufferInfo.offset);
+        if (!decodedFormatKnown) setDecoderOutputFormat(decoder.getOutputFormat());
+        if (decodedTiled) {
+            converter.detile(decoded, decodedWidth, decodedHeight, untiledFrame);
+        } else {
+            decodedFrame.setBuffer(decoded);
+        }
+    }
+
+    /**
+     * give the pending frame to every rendition which did not take it yet
+     *
+     * @return false when no encoder had a free input buffer.
+     */
+    private boolean encodePendingFrame() {
+        MediaCodec.BufferInfo info = pendingBufferInfo;
+        boolean endOfStream = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        boolean moved = false;
+        boolean allFed = true;
+        for (Rendition rendition : renditions) {
+            if (rendition.fed) continue;
+            int encoderBufferIndex = rendition.encoder.dequeueInputBuffer(0);
+            if (encoderBufferIndex < 0) {
+                allFed = false;
+                continue;
+            }
+            int size = 0;
+            if (info.size > 0) {
+                ByteBuffer encoderInput = rendition.encoderBuffers.getInputBuffer(encoderBufferIndex);
+                encoderInput.clear();
+                rendition.encoderFrame.setBuffer(encoderInput);
+                rendition.frameProcessor.process(decodedTiled ? untiledFrame : decodedFrame, rendition.encoderFrame);
+                size = rendition.encoderFrame.getFrameSize();
+            }
+            rendition.encoder.queueInputBuffer(encoderBufferIndex, 0, size, info.presentationTimeUs,
+                    endOfStream ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+            rendition.fed = true;
+            moved = true;
+        }
+        if (allFed) {
+            decoder.releaseOutputBuffer(pendingBufferIndex, false);
+            pendingBufferIndex = NO_BUFFER;
+            for (Rendition rendition : renditions) rendition.fed = false;
+        }
+        return moved;
+    }
+
+    private void setDecoderOutputFormat(MediaFormat format) {
+        decodedFormatKnown = true;
+        decodedTiled = YuvFormatUtils.isTiled(format.getInteger(MediaFormat.KEY_COLOR_FORMAT));
+        if (!decodedTiled) {
+            YuvFormatUtils.setFrame(decodedFrame, null, format);
+            return;
+        }
+        decodedWidth = format.getInteger(MediaFormat.KEY_WIDTH);
+        decodedHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+        if (converter == null) converter = new YuvConverter();
+        int stride = YuvFormatUtils.align(decodedWidth, 2);
+        int sliceHeight = YuvFormatUtils.align(decodedHeight, 2);
+        ByteBuffer untiled = ByteBuffer.allocateDirect(stride * sliceHeight * 3 / 2).order(ByteOrder.nativeOrder());
+        untiledFrame.set(untiled, YuvFrame.Layout.NV12, decodedWidth, decodedHeight, stride, sliceHeight);
+    }
+
+    private int drainEncoder(Rendition rendition) {
+        if (rendition.isEncoderEOS) return DRAIN_STATE_NONE;
+
+        MediaCodec encoder = rendition.encoder;
+        int bufferIndex = encoder.dequeueOutputBuffer(bufferInfoCache, 0);
+        //check bufferIndex
+        switch (bufferIndex) {
+            case MediaCodec.INFO_TRY_AGAIN_LATER:
+                return DRAIN_STATE_NONE;
+            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                if (rendition.actualOutputFormat != null)
+                    throw new RuntimeException("Video output format changed twice.");
+                rendition.actualOutputFormat = encoder.getOutputFormat();
+                rendition.muxer.setOutputFormat(rendition.outputTrack, rendition.actualOutputFormat);
+                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+            case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+                rendition.encoderBuffers = new MediaCodecBufferWrapper(encoder);
+                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+        }
+        //check format
+        if (rendition.actualOutputFormat == null) {
+            throw new RuntimeException("Could not determine actual output format.");
+        }
+        //check eos
+        if ((bufferInfoCache.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            rendition.isEncoderEOS = true;
+            bufferInfoCache.set(0, 0, 0, bufferInfoCache.flags);
+        }
+        //check buffer contains other config data instead of media data, when meet it, do retry to get another buffer
+        if ((bufferInfoCache.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // SPS or PPS, which should be passed by MediaFormat.
+            encoder.releaseOutputBuffer(bufferIndex, false);
+            return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+        }
+
+        //drainEncoder
+        rendition.muxer.writeSampleData(rendition.outputTrack, rendition.encoderBuffers.getOutputBuffer(bufferIndex), bufferInfoCache);
+        rendition.writtenPresentationTimeUs = bufferInfoCache.presentationTimeUs;
+        encoder.releaseOutputBuffer(bufferIndex, false);
+        return DRAIN_STATE_CONSUMED;
+    }
+
+    //========================= getters and setters ========================================================
+
+    /**
+     * @return the rendition furthest behind
+     */
+    @Override
+    public long getWrittenPresentationTimeUs() {
+        long writtenPresentationTimeUs = Long.MAX_VALUE;
+        for (Rendition rendition : renditions) {
+            if (rendition.isEncoderEOS) continue;
+            writtenPresentationTimeUs = Math.min(writtenPresentationTimeUs, rendition.writtenPresentationTimeUs);
+        }
+        return writtenPresentationTimeUs == Long.MAX_VALUE ? 0 : writtenPresentationTimeUs;
+    }
+
+    @Override
+    public boolean isFinished() {
+        for (Rendition rendition : renditions) {
+            if (!rendition.isEncoderEOS) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return format of the first rendition, see {@link #getDeterminedFormat(int)}
+     */
+    @Override
+    public MediaFormat getDeterminedFormat() {
+        return getDeterminedFormat(0);
+    }
+
+    public MediaFormat getDeterminedFormat(int rendition) {
+        return renditions.get(rendition).actualOutputFormat;
+    }
+
+    //========================= 特殊业务 ========================================================
+    @Override
+    public void release() {
+        if (decoderOutputSurfaceWrapper != null) {
+            decoderOutputSurfaceWrapper.release();
+            decoderOutputSurfaceWrapper = null;
+        }
+        // surfaces sharing the first one's context go before it
+        for (int i = renditions.size() - 1; i >= 0; i--) {
+            Rendition rendition = renditions.get(i);
+            if (rendition.inputSurface != null) {
+                rendition.inputSurface.release();
+                rendition.inputSurface = null;
+            }
+        }
+        if (converter != null) {
+            converter.release();
+            converter = null;
+        }
+        if (decoder != null) {
+            if (decoderStarted) decoder.stop();
+            decoder.release();
+            decoder = null;
+        }
+        for (Rendition rendition : renditions) {
+            if (rendition.frameProcessor != null) {
+                rendition.frameProcessor.release();
+                rendition.frameProcessor = null;
+            }
+            if (rendition.encoder != null) {
+                if (rendition.encoderStarted) rendition.encoder.stop();
+                rendition.encoder.release();
+                rendition.encoder = null;
+            }
+        }
+    }
+
+    private static class Rendition {
+        final MediaFormat outputFormat;
+        final QueuedMuxer muxer;
+        final int outputTrack;
+        MediaFormat actualOutputFormat;
+        MediaCodec encoder;
+        MediaCodecBufferWrapper encoderBuffers;
+        boolean encoderStarted;
+        boolean isEncoderEOS;
+        long writtenPresentationTimeUs;
+        //GL path
+        InputSurface inputSurface;
+        int surfaceWidth;
+        int surfaceHeight;
+        //CPU path, fed tells the pending frame was queued to this encoder
+        final YuvFrame encoderFrame = new YuvFrame();
+        FrameProcessor frameProcessor;
+        boolean fed;
+
+        Rendition(MediaFormat outputFormat, QueuedMuxer muxer, int outputTrack) {
+            this.outputFormat = outputFormat;
+            this.muxer = muxer;
+            this.outputTrack = outputTrack;
+        }
+    }
+}
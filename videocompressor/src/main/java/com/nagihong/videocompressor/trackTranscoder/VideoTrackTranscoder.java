@@ -23,6 +23,7 @@ public class VideoTrackTranscoder implements TrackTranscoder {
     private final MediaFormat outputFormat;
     private MediaFormat actualOutputFormat;
     private final QueuedMuxer muxer;
+    private final int outputTrack;
 
     private final MediaCodec.BufferInfo bufferInfoCache = new MediaCodec.BufferInfo();
 
@@ -42,11 +43,12 @@ public class VideoTrackTranscoder implements TrackTranscoder {
     private long writtenPresentationTimeUs;
 
     public VideoTrackTranscoder(MediaExtractor extractor, int trackIndex,
-                                MediaFormat outputFormat, QueuedMuxer muxer) {
+                                MediaFormat outputFormat, QueuedMuxer muxer, int outputTrack) {
         this.extractor = extractor;
         this.trackIndex = trackIndex;
         this.outputFormat = outputFormat;
         this.muxer = muxer;
+        this.outputTrack = outputTrack;
     }
 
     //========================= setup ========================================================
@@ -179,7 +181,7 @@ public class VideoTrackTranscoder implements TrackTranscoder {
                 if (actualOutputFormat != null)
                     throw new RuntimeException("Video output format changed twice.");
                 actualOutputFormat = encoder.getOutputFormat();
-                muxer.setOutputFormat(QueuedMuxer.SampleType.VIDEO, actualOutputFormat);
+                muxer.setOutputFormat(outputTrack, actualOutputFormat);
                 return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
             case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
                 encoderBuffers = new MediaCodecBufferWrapper(encoder);
@@ -202,7 +204,7 @@ public class VideoTrackTranscoder implements TrackTranscoder {
         }
 
         //drainEncoder
-        muxer.writeSampleData(QueuedMuxer.SampleType.VIDEO, encoderBuffers.getOutputBuffer(bufferIndex), bufferInfoCache);
+        muxer.writeSampleData(outputTrack, encoderBuffers.getOutputBuffer(bufferIndex), bufferInfoCache);
         writtenPresentationTimeUs = bufferInfoCache.presentationTimeUs;
         encoder.releaseOutputBuffer(bufferIndex, false);
         return DRAIN_STATE_CONSUMED;
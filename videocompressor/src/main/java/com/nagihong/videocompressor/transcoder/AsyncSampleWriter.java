@@ -0,0 +1,145 @@
+package com.nagihong.videocompressor.transcoder;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes samples to a {@link Muxer} on its own thread.
+ * <p>
+ * Callers only copy the sample into a pending {@link SampleQueue} and return, so codec buffers
+ * can be released right away. The writer thread swaps the pending queue with its own one and
+ * writes everything collected meanwhile in one batch, a storage hiccup only grows the pending queue.
+ * Callers block once pending samples reach the memory limit.
+ */
+class AsyncSampleWriter implements Runnable {
+    private static final String TAG = "AsyncSampleWriter";
+
+    private final Muxer muxer;
+    private final long memoryLimit;
+    private final Object lock = new Object();
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+    // guarded by lock
+    private SampleQueue pendingQueue;
+    private boolean finishing;
+    private RuntimeException failure;
+
+    // owned by writer thread
+    private SampleQueue writingQueue;
+
+    private Thread thread;
+
+    AsyncSampleWriter(Muxer muxer, File spillDirectory, long memoryLimit) {
+        this.muxer = muxer;
+        this.memoryLimit = memoryLimit;
+        // never spill here, callers wait instead; the limit only decides when to wait
+        pendingQueue = new SampleQueue(spillDirectory, Long.MAX_VALUE);
+        writingQueue = new SampleQueue(spillDirectory, Long.MAX_VALUE);
+    }
+
+    void start() {
+        thread = new Thread(this, TAG);
+        thread.start();
+    }
+
+    /**
+     * copy sample and return, the muxer track index is stored along with it
+     */
+    void write(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo info) {
+        synchronized (lock) {
+            while (failure == null && !pendingQueue.isEmpty() && pendingQueue.getMemoryBytes() >= memoryLimit) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for muxer writer.", e);
+                }
+            }
+            checkFailure();
+            pendingQueue.add(trackIndex, byteBuf, info);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * write all pending samples and stop writer thread
+     */
+    void finish() {
+        synchronized (lock) {
+            finishing = true;
+            lock.notifyAll();
+        }
+        join();
+        synchronized (lock) {
+            checkFailure();
+        }
+    }
+
+    /**
+     * stop writer thread without writing pending samples
+     */
+    void release() {
+        if (thread != null) {
+            thread.interrupt();
+            join();
+        }
+        synchronized (lock) {
+            pendingQueue.release();
+        }
+        writingQueue.release();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                synchronized (lock) {
+                    while (pendingQueue.isEmpty() && !finishing) {
+                        lock.wait();
+                    }
+                    if (pendingQueue.isEmpty()) return;
+                    SampleQueue swap = writingQueue;
+                    writingQueue = pendingQueue;
+                    pendingQueue = swap;
+                    lock.notifyAll();
+                }
+                while (!writingQueue.isEmpty()) {
+                    int trackIndex = writingQueue.peekTrack();
+                    ByteBuffer byteBuf = writingQueue.peek(bufferInfo);
+                    muxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+                    writingQueue.remove();
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Muxer writer interrupted.");
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Muxer writer failed.", e);
+            synchronized (lock) {
+                failure = e;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void join() {
+        boolean interrupted = false;
+        while (thread != null && thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        thread = null;
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new IllegalStateException("Could not write samples to muxer.", failure);
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.nagihong.videocompressor.transcoder;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMetadataRetriever;
+import android.util.Log;
+
+import com.nagihong.videocompressor.strategies.MatchingFormatStrategy;
+import com.nagihong.videocompressor.strategies.MediaFormatStrategy;
+import com.nagihong.videocompressor.utils.AvcCsdUtils;
+import com.nagihong.videocompressor.utils.ByteBufferPool;
+import com.nagihong.videocompressor.utils.MediaExtractorUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Joins clips into one video, e.g. several recordings of the same camera.
+ * <p>
+ * Clips whose first video and audio track have the same codec config as the first clip's (csd-0 / csd-1, size,
+ * sample rate and channels) are copied sample by sample with shifted times, at i/o speed.
+ * Only the other clips are re-encoded, into the format of the first clip, see {@link MatchingFormatStrategy}.
+ * When the encoder can not produce that exact config, e.g. the first clip came from another device, the first
+ * re-encoded clip becomes the reference and every clip not matching it is re-encoded too.
+ * <p>
+ * Output holds the first video and audio track of the first clip, oriented as the first clip.
+ */
+public class ClipConcatenator {
+    private static final String TAG = "ClipConcatenator";
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private final Context context;
+    private VideoCompressEngine.ProgressCallback progressCallback;
+    private MemoryBudget memoryBudget;
+    private ConcurrencyController concurrencyController;
+    private int reencodedCount;
+
+    public ClipConcatenator(Context context) {
+        this.context = context;
+    }
+
+    public VideoCompressEngine.ProgressCallback getProgressCallback() {
+        return progressCallback;
+    }
+
+    /**
+     * @param progressCallback progress of copying samples into output, re-encoding clips before it is not reported
+     */
+    public void setProgressCallback(VideoCompressEngine.ProgressCallback progressCallback) {
+        this.progressCallback = progressCallback;
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @param memoryBudget re-encoding a clip waits for it, see {@link VideoCompressEngine#setMemoryBudget(MemoryBudget)}
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public ConcurrencyController getConcurrencyController() {
+        return concurrencyController;
+    }
+
+    /**
+     * @param concurrencyController re-encoding a clip waits for a turn, see
+     *                              {@link VideoCompressEngine#setConcurrencyController(ConcurrencyController)}
+     */
+    public void setConcurrencyController(ConcurrencyController concurrencyController) {
+        this.concurrencyController = concurrencyController;
+    }
+
+    /**
+     * @return clips re-encoded by the last {@link #concatenate}, 0 when all of them were copied
+     */
+    public int getReencodedCount() {
+        return reencodedCount;
+    }
+
+    /**
+     * Blocks current thread.
+     *
+     * @param formatStrategy bitrates and key frame interval of re-encoded clips, their format is the first clip's
+     * @throws IOException              when a clip or output could not be opened.
+     * @throws IllegalArgumentException when a clip misses a track the first clip has.
+     * @throws InterruptedException     when cancel to concatenate.
+     */
+    public void concatenate(List<String> inputPaths, String outputPath, MediaFormatStrategy formatStrategy) throws IOException, InterruptedException {
+        if (null == inputPaths || inputPaths.isEmpty()) {
+            throw new IllegalArgumentException("No clip to concatenate.");
+        }
+        if (null == outputPath) {
+            throw new NullPointerException("Output path cannot be null.");
+        }
+        reencodedCount = 0;
+        List<Clip> clips = new ArrayList<>();
+        try {
+            for (String inputPath : inputPaths) {
+                clips.add(probe(inputPath, inputPath));
+            }
+            Clip reference = clips.get(0);
+            for (int i = 1; i < clips.size(); i++) {
+                checkTracks(reference, clips.get(i), i);
+            }
+
+            reencodeMismatched(clips, reference, formatStrategy);
+            int mismatched = findMismatched(clips, reference);
+            if (mismatched >= 0) {
+                // encoder output differs from the reference config, make every clip come from the encoder
+                reference = clips.get(mismatched);
+                Log.i(TAG, "Clip " + mismatched + " could not be encoded as clip 0, re-encoding every clip.");
+                reencodeMismatched(clips, reference, formatStrategy);
+                mismatched = findMismatched(clips, reference);
+                if (mismatched >= 0) {
+                    throw new IllegalStateException(String.format("clip %d could not be encoded with the codec config of the others.", mismatched));
+                }
+            }
+            copy(clips, reference, outputPath);
+        } finally {
+            for (Clip clip : clips) {
+                clip.deleteReencoded();
+            }
+        }
+    }
+
+    //========================= clips ========================================================
+    private static Clip probe(String sourcePath, String path) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(path);
+            MediaExtractorUtils.TrackResult trackResult = MediaExtractorUtils.getFirstVideoAndAudioTrack(extractor);
+            return new Clip(sourcePath, path, trackResult.mVideoTrackFormat, trackResult.mAudioTrackFormat);
+        } finally {
+            extractor.release();
+        }
+    }
+
+    private static void checkTracks(Clip reference, Clip clip, int index) {
+        if (reference.video != null && clip.video == null) {
+            throw new IllegalArgumentException(String.format("clip %d has no video track, clip 0 has.", index));
+        }
+        if (reference.audio != null && clip.audio == null) {
+            throw new IllegalArgumentException(String.format("clip %d has no audio track, clip 0 has.", index));
+        }
+    }
+
+    private static boolean isSameVideo(Clip reference, Clip clip) {
+        if (reference.video == null) return true;
+        return reference.video.getString(MediaFormat.KEY_MIME).equals(clip.video.getString(MediaFormat.KEY_MIME))
+                && reference.video.getInteger(MediaFormat.KEY_WIDTH) == clip.video.getInteger(MediaFormat.KEY_WIDTH)
+                && reference.video.getInteger(MediaFormat.KEY_HEIGHT) == clip.video.getInteger(MediaFormat.KEY_HEIGHT)
+                && AvcCsdUtils.hasSameCsd(reference.video, clip.video);
+    }
+
+    private static boolean isSameAudio(Clip reference, Clip clip) {
+        if (reference.audio == null) return true;
+        return reference.audio.getString(MediaFormat.KEY_MIME).equals(clip.audio.getString(MediaFormat.KEY_MIME))
+                && reference.audio.getInteger(MediaFormat.KEY_SAMPLE_RATE) == clip.audio.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+                && reference.audio.getInteger(MediaFormat.KEY_CHANNEL_COUNT) == clip.audio.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+                && AvcCsdUtils.hasSameCsd(reference.audio, clip.audio);
+    }
+
+    /**
+     * @return index of the first clip which can not be copied along with reference, -1 if none
+     */
+    private static int findMismatched(List<Clip> clips, Clip reference) {
+        for (int i = 0; i < clips.size(); i++) {
+            if (!isSameVideo(reference, clips.get(i)) || !isSameAudio(reference, clips.get(i))) return i;
+        }
+        return -1;
+    }
+
+    private void reencodeMismatched(List<Clip> clips, Clip reference, MediaFormatStrategy formatStrategy) throws IOException, InterruptedException {
+        for (int i = 0; i < clips.size(); i++) {
+            Clip clip = clips.get(i);
+            boolean sameVideo = isSameVideo(reference, clip);
+            boolean sameAudio = isSameAudio(reference, clip);
+            if (sameVideo && sameAudio) continue;
+
+            File output = File.createTempFile("concat", ".mp4", context.getCacheDir());
+            Clip reencoded = null;
+            try {
+                VideoCompressEngine engine = new VideoCompressEngine();
+                engine.setMemoryBudget(memoryBudget);
+                engine.setConcurrencyController(concurrencyController);
+                // a matching track is passed through, tracks the reference has none of are left out
+                engine.setTrackSelector(node -> {
+                    if (!node.isPrimary()) return TrackGraph.Action.DROP;
+                    if (node.isVideo()) {
+                        return reference.video == null ? TrackGraph.Action.DROP : sameVideo ? TrackGraph.Action.PASS_THROUGH : TrackGraph.Action.TRANSCODE;
+                    }
+                    return reference.audio == null ? TrackGraph.Action.DROP : sameAudio ? TrackGraph.Action.PASS_THROUGH : TrackGraph.Action.TRANSCODE;
+                });
+                engine.transcodeVideo(context, clip.sourcePath, output.getPath(),
+                        new MatchingFormatStrategy(formatStrategy, reference.video, reference.audio));
+                reencoded = probe(clip.sourcePath, output.getPath());
+            } finally {
+                if (reencoded == null && !output.delete()) {
+                    Log.w(TAG, "Failed to delete " + output);
+                }
+            }
+            clip.deleteReencoded();
+            clips.set(i, reencoded);
+            reencodedCount++;
+            Log.v(TAG, "Clip " + i + " re-encoded into " + output);
+        }
+    }
+
+    //========================= copy ========================================================
+    private void copy(List<Clip> clips, Clip reference, String outputPath) throws IOException, InterruptedException {
+        long totalDurationUs = 0;
+        for (Clip clip : clips) totalDurationUs += clip.getDurationUs();
+
+        MediaMuxerWrapper muxer = new MediaMuxerWrapper(outputPath);
+        ByteBuffer buffer = ByteBufferPool.getDefault().acquire(getBufferSize(clips));
+        try {
+            muxer.setOrientationHint(readRotation(clips.get(0).path));
+            int videoTrack = reference.video != null ? muxer.addTrack(reference.video) : -1;
+            int audioTrack = reference.audio != null ? muxer.addTrack(reference.audio) : -1;
+            muxer.start();
+
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            Timeline timeline = new Timeline();
+            for (Clip clip : clips) {
+                MediaExtractor extractor = new MediaExtractor();
+                try {
+                    extractor.setDataSource(clip.path);
+                    MediaExtractorUtils.TrackResult trackResult = MediaExtractorUtils.getFirstVideoAndAudioTrack(extractor);
+                    if (videoTrack >= 0) extractor.selectTrack(trackResult.mVideoTrackIndex);
+                    if (audioTrack >= 0) extractor.selectTrack(trackResult.mAudioTrackIndex);
+
+                    int trackIndex;
+                    while ((trackIndex = extractor.getSampleTrackIndex()) >= 0) {
+                        if (Thread.interrupted()) throw new InterruptedException();
+                        boolean video = trackIndex == trackResult.mVideoTrackIndex;
+                        int size = extractor.readSampleData(buffer, 0);
+                        long timeUs = timeline.place(video, extractor.getSampleTime());
+                        boolean isKeyFrame = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+                        bufferInfo.set(0, size, timeUs, isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+                        muxer.writeSampleData(video ? videoTrack : audioTrack, buffer, bufferInfo);
+                        extractor.advance();
+
+                        if (null != progressCallback && totalDurationUs > 0) {
+                            progressCallback.onProgress(Math.min(1.0, (double) timeUs / totalDurationUs));
+                        }
+                    }
+                    timeline.nextClip();
+                } finally {
+                    extractor.release();
+                }
+            }
+            muxer.stop();
+        } finally {
+            muxer.release();
+            ByteBufferPool.getDefault().release(buffer);
+        }
+    }
+
+    /**
+     * Output times of clips joined one after another. Times of every clip start at 0, the next clip starts where
+     * the longer track of the one before ends, its last sample plus the shortest step between its samples.
+     */
+    static class Timeline {
+        private static final int VIDEO = 0;
+        private static final int AUDIO = 1;
+
+        private long offsetUs;
+        private long startUs = -1;
+        private final long[] lastUs = {-1, -1};
+        private final long[] maxUs = {-1, -1};
+        private final long[] minDeltaUs = {Long.MAX_VALUE, Long.MAX_VALUE};
+
+        /**
+         * @param timeUs time of a sample in the current clip, samples of a track in decode order
+         * @return time of the sample in output
+         */
+        long place(boolean video, long timeUs) {
+            if (startUs < 0) startUs = timeUs;
+            timeUs = Math.max(0, timeUs - startUs);
+
+            int t = video ? VIDEO : AUDIO;
+            if (lastUs[t] >= 0 && timeUs > lastUs[t]) minDeltaUs[t] = Math.min(minDeltaUs[t], timeUs - lastUs[t]);
+            lastUs[t] = timeUs;
+            maxUs[t] = Math.max(maxUs[t], timeUs);
+            return offsetUs + timeUs;
+        }
+
+        /**
+         * the next sample placed belongs to the next clip, which starts where the current one ends
+         */
+        void nextClip() {
+            long endUs = 0;
+            for (int t = VIDEO; t <= AUDIO; t++) {
+                // steps only known once the whole track is placed, a gap before the end does not count
+                if (maxUs[t] >= 0) endUs = Math.max(endUs, maxUs[t] + (minDeltaUs[t] == Long.MAX_VALUE ? 0 : minDeltaUs[t]));
+                lastUs[t] = -1;
+                maxUs[t] = -1;
+                minDeltaUs[t] = Long.MAX_VALUE;
+            }
+            offsetUs += endUs;
+            startUs = -1;
+        }
+    }
+
+    private static int getBufferSize(List<Clip> clips) {
+        int size = 0;
+        for (Clip clip : clips) {
+            for (MediaFormat format : new MediaFormat[]{clip.video, clip.audio}) {
+                if (format != null && format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                    size = Math.max(size, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+                }
+            }
+        }
+        return size > 0 ? size : DEFAULT_BUFFER_SIZE;
+    }
+
+    private static int readRotation(String path) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(path);
+            return Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION));
+        } catch (NumberFormatException e) {
+            return 0;
+        } finally {
+            retriever.release();
+        }
+    }
+
+    private static class Clip {
+        final String sourcePath;
+        // sourcePath, or a re-encoded file in cache directory
+        final String path;
+        final MediaFormat video;
+        final MediaFormat audio;
+
+        Clip(String sourcePath, String path, MediaFormat video, MediaFormat audio) {
+            this.sourcePath = sourcePath;
+            this.path = path;
+            this.video = video;
+            this.audio = audio;
+        }
+
+        long getDurationUs() {
+            long durationUs = 0;
+            for (MediaFormat format : new MediaFormat[]{video, audio}) {
+                if (format != null && format.containsKey(MediaFormat.KEY_DURATION)) {
+                    durationUs = Math.max(durationUs, format.getLong(MediaFormat.KEY_DURATION));
+                }
+            }
+            return durationUs;
+        }
+
+        void deleteReencoded() {
+            if (!path.equals(sourcePath) && !new File(path).delete()) {
+                Log.w(TAG, "Failed to delete " + path);
+            }
+        }
+    }
+}
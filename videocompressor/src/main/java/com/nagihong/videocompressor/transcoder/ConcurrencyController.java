@@ -0,0 +1,205 @@
+package com.nagihong.videocompressor.transcoder;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Limits how many transcoding jobs run at the same time and tunes the limit by measured throughput, frames encoded
+ * per second by all jobs together, see {@link VideoCompressEngine#setConcurrencyController(ConcurrencyController)}.
+ * <p>
+ * Hill climbing with additive increase: the limit goes up by one job at a time as long as each step gains
+ * more than {@value #GAIN_THRESHOLD} of throughput. A step without that gain is taken back and held for
+ * {@value #HOLD_WINDOWS} windows before probing again, so the limit does not flip between two values.
+ * When throughput of the same limit falls by more than {@value #DROP_THRESHOLD}, e.g. the chipset throttles,
+ * the limit is halved. Windows in which fewer jobs ran than allowed with none waiting, or more were still running
+ * from a higher limit, say nothing about the limit and are skipped.
+ * <p>
+ * Time comes from a {@link Clock}, so the controller can be driven by made up throughput curves in a simulation.
+ */
+public class ConcurrencyController {
+    private static final String TAG = "ConcurrencyController";
+    public static final long DEFAULT_WINDOW_MS = 5 * 1000;
+    // decoders or encoders of one type assumed to run at once where codecs do not tell
+    private static final int DEFAULT_CODEC_INSTANCES = 2;
+    private static final double GAIN_THRESHOLD = 0.05;
+    private static final double DROP_THRESHOLD = 0.2;
+    private static final int HOLD_WINDOWS = 6;
+    // weight of the latest window in the throughput of an unchanged limit
+    private static final double SMOOTHING = 0.3;
+
+    private final int maxConcurrency;
+    private final long windowMs;
+    private final Clock clock;
+    private int concurrency = 1;
+    private int runningJobs;
+    private int waitingJobs;
+
+    // measuring
+    private long windowStartMs;
+    private long windowFrames;
+    private boolean saturated;
+    private double throughput = -1;
+
+    // climbing
+    // throughput before the last increase, or of the current limit, -1 until measured
+    private double reference = -1;
+    private boolean probing;
+    private int holdWindows;
+
+    /**
+     * @param maxConcurrency cap of the limit, e.g. {@link #getCodecInstanceLimit(String)}
+     */
+    public ConcurrencyController(int maxConcurrency) {
+        this(maxConcurrency, DEFAULT_WINDOW_MS, SystemClock::elapsedRealtime);
+    }
+
+    /**
+     * @param windowMs frames are counted for this long before the limit is changed
+     */
+    public ConcurrencyController(int maxConcurrency, long windowMs, Clock clock) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException(String.format("max concurrency %d is less than 1.", maxConcurrency));
+        }
+        if (windowMs <= 0) {
+            throw new IllegalArgumentException(String.format("window %d ms is not positive.", windowMs));
+        }
+        this.maxConcurrency = maxConcurrency;
+        this.windowMs = windowMs;
+        this.clock = clock;
+        windowStartMs = clock.nowMs();
+    }
+
+    /**
+     * @return jobs transcoding mime that decoders and encoders of the device take at once, by their advertised
+     * max instances on api &gt;= 23, {@value #DEFAULT_CODEC_INSTANCES} below
+     */
+    public static int getCodecInstanceLimit(String mime) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return DEFAULT_CODEC_INSTANCES;
+        int decoders = 0;
+        int encoders = 0;
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            for (String type : info.getSupportedTypes()) {
+                if (!type.equalsIgnoreCase(mime)) continue;
+                int instances = info.getCapabilitiesForType(type).getMaxSupportedInstances();
+                if (info.isEncoder()) encoders = Math.max(encoders, instances);
+                else decoders = Math.max(decoders, instances);
+            }
+        }
+        return Math.max(1, Math.min(decoders, encoders));
+    }
+
+    //========================= jobs ========================================================
+
+    /**
+     * Blocks until fewer jobs run than the current limit. Pair with {@link #release()}.
+     *
+     * @throws InterruptedException when cancel to wait
+     */
+    public synchronized void acquire() throws InterruptedException {
+        waitingJobs++;
+        try {
+            while (runningJobs >= concurrency) {
+                wait();
+            }
+        } finally {
+            waitingJobs--;
+        }
+        runningJobs++;
+    }
+
+    public synchronized void release() {
+        if (runningJobs == 0) throw new IllegalStateException("No job to release.");
+        runningJobs--;
+        checkSaturated();
+        notifyAll();
+    }
+
+    /**
+     * count frames encoded by a running job, the limit is changed from here once a window is over
+     */
+    public synchronized void addEncodedFrames(long frames) {
+        windowFrames += frames;
+        long now = clock.nowMs();
+        long elapsed = now - windowStartMs;
+        if (elapsed < windowMs) return;
+
+        throughput = windowFrames * 1000.0 / elapsed;
+        if (saturated) adjust(throughput);
+        windowStartMs = now;
+        windowFrames = 0;
+        saturated = true;
+        checkSaturated();
+    }
+
+    public synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public synchronized int getRunningJobs() {
+        return runningJobs;
+    }
+
+    /**
+     * @return frames per second of the last window, -1 before the first one is over
+     */
+    public synchronized double getThroughput() {
+        return throughput;
+    }
+
+    //========================= climbing ========================================================
+    /**
+     * a window measures the limit only while exactly that many jobs run, jobs over it are left from a higher limit
+     */
+    private void checkSaturated() {
+        if (runningJobs > concurrency || runningJobs < concurrency && waitingJobs == 0) saturated = false;
+    }
+
+    private void adjust(double throughput) {
+        if (holdWindows > 0) holdWindows--;
+        if (reference < 0) {
+            reference = throughput;
+        } else if (probing) {
+            probing = false;
+            if (throughput < reference * (1 + GAIN_THRESHOLD)) {
+                // one more job does not pay off, stay below it for a while
+                setConcurrency(concurrency - 1);
+                reference = -1;
+                holdWindows = HOLD_WINDOWS;
+                return;
+            }
+            reference = throughput;
+        } else if (throughput < reference * (1 - DROP_THRESHOLD)) {
+            setConcurrency(Math.max(1, concurrency / 2));
+            reference = -1;
+            holdWindows = HOLD_WINDOWS;
+            return;
+        } else {
+            reference = reference * (1 - SMOOTHING) + throughput * SMOOTHING;
+        }
+        if (holdWindows == 0 && concurrency < maxConcurrency) {
+            setConcurrency(concurrency + 1);
+            probing = true;
+        }
+    }
+
+    private void setConcurrency(int concurrency) {
+        Log.d(TAG, String.format("Concurrency %d -> %d at %.1f frames/s.", this.concurrency, concurrency, throughput));
+        this.concurrency = concurrency;
+        checkSaturated();
+        notifyAll();
+    }
+
+    /**
+     * time in milliseconds, monotonic
+     */
+    public interface Clock {
+        long nowMs();
+    }
+}
@@ -0,0 +1,369 @@
+package com.nagihong.videocompressor.transcoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.nagihong.videocompressor.utils.Mp4BoxWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes HLS with fragmented MP4 segments while transcoding: {@value #INIT_SEGMENT_NAME} once tracks are known,
+ * then a segment per {@link #getSegmentDurationUs()} cut at video sync samples, and the playlist
+ * {@value #PLAYLIST_NAME} rewritten after every segment, so playback can start once the first one is written.
+ * <p>
+ * Only H.264 and AAC tracks. Segments are as long as the distance between sync samples allows, so pair it with
+ * a key frame interval dividing the segment duration, see {@link com.nagihong.videocompressor.strategies.SegmentAlignedFormatStrategy}.
+ * Samples of a segment are held in memory until it is cut. Presentation times must not go back within a track,
+ * i.e. video without B-frames, which is what Android encoders produce.
+ */
+public class HlsMuxer implements Muxer {
+    private static final String TAG = "HlsMuxer";
+    public static final String PLAYLIST_NAME = "playlist.m3u8";
+    public static final String INIT_SEGMENT_NAME = "init.mp4";
+    private static final String SEGMENT_NAME_FORMAT = "segment%d.m4s";
+    private static final int INITIAL_TRACK_BYTES = 1 << 20;
+    private static final int INITIAL_SAMPLES = 256;
+    private static final int CUT_TOLERANCE_DIVISOR = 10;
+
+    private final File directory;
+    private final long segmentDurationUs;
+    private final List<Track> tracks = new ArrayList<>();
+    private int rotation;
+    private boolean started;
+    private boolean stopped;
+
+    // segmenting, the first video track decides where segments are cut, audio only output is cut anywhere
+    private Track leadTrack;
+    private long segmentStartUs = -1;
+    private int fragmentSequence;
+    private final List<Double> segmentDurations = new ArrayList<>();
+    private final Mp4BoxWriter boxWriter = new Mp4BoxWriter(4096);
+
+    /**
+     * @param directory where playlist and segments go, created if missing
+     */
+    public HlsMuxer(File directory, long segmentDurationUs) throws IOException {
+        if (segmentDurationUs <= 0) {
+            throw new IllegalArgumentException(String.format("segment duration %d is not positive.", segmentDurationUs));
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentDurationUs = segmentDurationUs;
+    }
+
+    public long getSegmentDurationUs() {
+        return segmentDurationUs;
+    }
+
+    //========================= Muxer ========================================================
+    @Override
+    public void setOrientationHint(int degrees) {
+        if (started) throw new IllegalStateException("Muxer already started.");
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException(String.format("unsupported rotation %d.", degrees));
+        }
+        rotation = degrees;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (started) throw new IllegalStateException("Muxer already started.");
+        Mp4Boxes.checkSupported(format);
+        return addTrack(format, Mp4Boxes.isVideo(format), Mp4Boxes.getTimescale(format));
+    }
+
+    int addTrack(MediaFormat format, boolean video, int timescale) {
+        if (started) throw new IllegalStateException("Muxer already started.");
+        Track track = new Track(format, tracks.size() + 1, video, timescale);
+        tracks.add(track);
+        if (leadTrack == null && track.video) leadTrack = track;
+        return tracks.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        if (tracks.isEmpty()) throw new IllegalStateException("No track added.");
+        if (leadTrack == null) leadTrack = tracks.get(0);
+        writeInitSegment();
+        started = true;
+    }
+
+    /**
+     * ftyp and moov with every track's header, without samples
+     */
+    void writeInitSegment() {
+        boxWriter.reset();
+        Mp4Boxes.writeFtyp(boxWriter, "iso6", "iso6", "mp41", "isom");
+        boxWriter.begin("moov");
+        Mp4Boxes.writeMvhd(boxWriter, 0, tracks.size() + 1);
+        for (Track track : tracks) {
+            Mp4Boxes.beginTrack(boxWriter, track.format, track.id, 0, 0, rotation);
+            // samples are in fragments, the tables here stay empty
+            boxWriter.begin("stts", 0, 0).putInt(0).end();
+            boxWriter.begin("stsc", 0, 0).putInt(0).end();
+            boxWriter.begin("stsz", 0, 0).putInt(0).putInt(0).end();
+            boxWriter.begin("stco", 0, 0).putInt(0).end();
+            Mp4Boxes.endTrack(boxWriter);
+        }
+        boxWriter.begin("mvex");
+        for (Track track : tracks) {
+            boxWriter.begin("trex", 0, 0).putInt(track.id).putInt(1).putInt(0).putInt(0).putInt(0).end();
+        }
+        boxWriter.end().end();
+        writeFile(INIT_SEGMENT_NAME, boxWriter.getBuffer());
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (!started || stopped) throw new IllegalStateException("Muxer not started.");
+        Track track = tracks.get(trackIndex);
+        if (bufferInfo.size <= 0) return;
+        long timeUs = bufferInfo.presentationTimeUs;
+        if (track.count > 0 && timeUs < track.lastTimeUs) {
+            throw new IllegalStateException(String.format("presentation time of track %d went back from %d to %d, b-frames are not supported.",
+                    trackIndex, track.lastTimeUs, timeUs));
+        }
+        boolean sync = !track.video || (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        if (track == leadTrack) {
+            if (segmentStartUs < 0) segmentStartUs = timeUs;
+            // key frames come at rounded frame times, a sync sample slightly early still ends the segment
+            if (sync && track.count > 0 && timeUs - segmentStartUs >= segmentDurationUs - segmentDurationUs / CUT_TOLERANCE_DIVISOR) {
+                writeSegment(timeUs, false);
+            }
+        }
+
+        ByteBuffer sample = byteBuf.duplicate();
+        sample.limit(bufferInfo.offset + bufferInfo.size);
+        sample.position(bufferInfo.offset);
+        int size;
+        if (track.video) {
+            size = Mp4Boxes.appendLengthPrefixed(sample, track.data);
+        } else {
+            size = sample.remaining();
+            track.data.putBytes(sample);
+        }
+        track.add(timeUs, size, sync);
+    }
+
+    @Override
+    public void stop() {
+        if (stopped) return;
+        stopped = true;
+        if (!started) return;
+        long endUs = leadTrack.count > 0 ? leadTrack.lastTimeUs + leadTrack.getLastDurationUs() : segmentStartUs;
+        writeSegment(endUs, true);
+        writePlaylist(true);
+    }
+
+    @Override
+    public void release() {
+        tracks.clear();
+    }
+
+    //========================= segments ========================================================
+
+    /**
+     * write samples before cutUs of every track into the next segment, all of them when last
+     */
+    private void writeSegment(long cutUs, boolean last) {
+        int[] counts = new int[tracks.size()];
+        boolean empty = true;
+        for (int i = 0; i < tracks.size(); i++) {
+            counts[i] = last ? tracks.get(i).count : tracks.get(i).countBefore(cutUs);
+            if (counts[i] > 0) empty = false;
+        }
+        if (empty) return;
+
+        boxWriter.reset();
+        boxWriter.begin("moof");
+        boxWriter.begin("mfhd", 0, 0).putInt(++fragmentSequence).end();
+        int[] dataOffsetPositions = new int[tracks.size()];
+        for (int i = 0; i < tracks.size(); i++) {
+            if (counts[i] == 0) continue;
+            Track track = tracks.get(i);
+            boxWriter.begin("traf");
+            boxWriter.begin("tfhd", 0, 0x020000).putInt(track.id).end(); // default-base-is-moof
+            boxWriter.begin("tfdt", 1, 0).putLong(Mp4Boxes.toTimescale(track.times[0], track.timescale)).end();
+            // data offset, and duration, size and flags per sample
+            boxWriter.begin("trun", 0, 0x000701).putInt(counts[i]);
+            dataOffsetPositions[i] = boxWriter.position();
+            boxWriter.putInt(0);
+            for (int s = 0; s < counts[i]; s++) {
+                boxWriter.putInt((int) track.getDuration(s))
+                        .putInt(track.sizes[s])
+                        .putInt(track.syncs[s] ? Mp4Boxes.SAMPLE_FLAGS_SYNC : Mp4Boxes.SAMPLE_FLAGS_NON_SYNC);
+            }
+            boxWriter.end().end();
+        }
+        boxWriter.end();
+
+        // samples follow the moof in an mdat, track after track
+        int moofSize = boxWriter.position();
+        long mdatSize = 8;
+        for (int i = 0; i < tracks.size(); i++) {
+            if (counts[i] == 0) continue;
+            boxWriter.setInt(dataOffsetPositions[i], (int) (moofSize + mdatSize));
+            mdatSize += tracks.get(i).getBytes(counts[i]);
+        }
+        boxWriter.putInt((int) mdatSize).putType("mdat");
+
+        ByteBuffer[] buffers = new ByteBuffer[tracks.size() + 1];
+        buffers[0] = boxWriter.getBuffer();
+        for (int i = 0; i < tracks.size(); i++) {
+            buffers[i + 1] = tracks.get(i).peekBytes(counts[i]);
+        }
+        String name = String.format(Locale.US, SEGMENT_NAME_FORMAT, segmentDurations.size());
+        writeFile(name, buffers);
+        for (int i = 0; i < tracks.size(); i++) {
+            tracks.get(i).remove(counts[i]);
+        }
+
+        segmentDurations.add(Math.max(0, cutUs - segmentStartUs) / 1000000.0);
+        segmentStartUs = cutUs;
+        writePlaylist(last);
+    }
+
+    /**
+     * rewrite the playlist through a temp file, so players never read half of it
+     */
+    private void writePlaylist(boolean ended) {
+        double longest = segmentDurationUs / 1000000.0;
+        for (double duration : segmentDurations) longest = Math.max(longest, duration);
+        StringBuilder builder = new StringBuilder()
+                .append("#EXTM3U\n")
+                .append("#EXT-X-VERSION:7\n")
+                .append("#EXT-X-TARGETDURATION:").append((int) Math.ceil(longest)).append('\n')
+                .append("#EXT-X-MEDIA-SEQUENCE:0\n")
+                .append("#EXT-X-PLAYLIST-TYPE:").append(ended ? "VOD" : "EVENT").append('\n')
+                .append("#EXT-X-INDEPENDENT-SEGMENTS\n")
+                .append("#EXT-X-MAP:URI=\"").append(INIT_SEGMENT_NAME).append("\"\n");
+        for (int i = 0; i < segmentDurations.size(); i++) {
+            builder.append(String.format(Locale.US, "#EXTINF:%.3f,\n", segmentDurations.get(i)))
+                    .append(String.format(Locale.US, SEGMENT_NAME_FORMAT, i)).append('\n');
+        }
+        if (ended) builder.append("#EXT-X-ENDLIST\n");
+        String temp = PLAYLIST_NAME + ".tmp";
+        writeFile(temp, ByteBuffer.wrap(builder.toString().getBytes()));
+        if (!new File(directory, temp).renameTo(new File(directory, PLAYLIST_NAME))) {
+            throw new IllegalStateException("Could not replace " + PLAYLIST_NAME);
+        }
+    }
+
+    private void writeFile(String name, ByteBuffer... buffers) {
+        File file = new File(directory, name);
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            FileChannel channel = output.getChannel();
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write " + file, e);
+        }
+        Log.v(TAG, "Wrote " + file);
+    }
+
+    /**
+     * samples of a track waiting for their segment
+     */
+    private static class Track {
+        final MediaFormat format;
+        final int id;
+        final boolean video;
+        final int timescale;
+        final Mp4BoxWriter data = new Mp4BoxWriter(INITIAL_TRACK_BYTES);
+        long[] times = new long[INITIAL_SAMPLES];
+        int[] sizes = new int[INITIAL_SAMPLES];
+        boolean[] syncs = new boolean[INITIAL_SAMPLES];
+        int count;
+        long lastTimeUs;
+        // duration of the last sample written out, for a last sample with no next one
+        long lastDuration;
+
+        Track(MediaFormat format, int id, boolean video, int timescale) {
+            this.format = format;
+            this.id = id;
+            this.video = video;
+            this.timescale = timescale;
+        }
+
+        void add(long timeUs, int size, boolean sync) {
+            if (count == times.length) {
+                int capacity = count * 2;
+                long[] grownTimes = new long[capacity];
+                int[] grownSizes = new int[capacity];
+                boolean[] grownSyncs = new boolean[capacity];
+                System.arraycopy(times, 0, grownTimes, 0, count);
+                System.arraycopy(sizes, 0, grownSizes, 0, count);
+                System.arraycopy(syncs, 0, grownSyncs, 0, count);
+                times = grownTimes;
+                sizes = grownSizes;
+                syncs = grownSyncs;
+            }
+            times[count] = timeUs;
+            sizes[count] = size;
+            syncs[count] = sync;
+            count++;
+            lastTimeUs = timeUs;
+        }
+
+        int countBefore(long timeUs) {
+            int n = 0;
+            while (n < count && times[n] < timeUs) n++;
+            return n;
+        }
+
+        /**
+         * @return duration of sample s in timescale, from the start of the next one
+         */
+        long getDuration(int s) {
+            if (s + 1 < count) {
+                lastDuration = Mp4Boxes.toTimescale(times[s + 1], timescale) - Mp4Boxes.toTimescale(times[s], timescale);
+            }
+            return lastDuration;
+        }
+
+        long getLastDurationUs() {
+            return lastDuration * 1000000 / timescale;
+        }
+
+        long getBytes(int samples) {
+            long bytes = 0;
+            for (int s = 0; s < samples; s++) bytes += sizes[s];
+            return bytes;
+        }
+
+        ByteBuffer peekBytes(int samples) {
+            ByteBuffer bytes = data.getBuffer();
+            bytes.limit((int) getBytes(samples));
+            return bytes;
+        }
+
+        /**
+         * drop the first samples, the rest moves to the front
+         */
+        void remove(int samples) {
+            if (samples == 0) return;
+            ByteBuffer rest = data.getBuffer();
+            rest.position((int) getBytes(samples));
+            byte[] restBytes = new byte[rest.remaining()];
+            rest.get(restBytes);
+            data.reset();
+            data.putBytes(restBytes);
+            count -= samples;
+            System.arraycopy(times, samples, times, 0, count);
+            System.arraycopy(sizes, samples, sizes, 0, count);
+            System.arraycopy(syncs, samples, syncs, 0, count);
+        }
+    }
+}
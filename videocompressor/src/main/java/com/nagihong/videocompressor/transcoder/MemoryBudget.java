@@ -0,0 +1,220 @@
+package com.nagihong.videocompressor.transcoder;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.media.MediaFormat;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.nagihong.videocompressor.utils.ByteBufferPool;
+
+/**
+ * Admits transcoding jobs running at the same time against one memory budget, so codec buffers, GL surfaces and
+ * direct buffers of all of them stay within what the device can give, see
+ * {@link VideoCompressEngine#setMemoryBudget(MemoryBudget)}. A job blocks in {@link #acquire(long)} until its
+ * estimated footprint fits beside the running ones, so as many jobs run as fit instead of a fixed number.
+ * A job larger than the whole budget runs alone.
+ * <p>
+ * Estimates are rough upper bounds from frame sizes and usual codec buffer counts, native memory of codecs
+ * is not visible to the app. Registered with {@link #register(Context)}, memory pressure from the system
+ * trims {@link ByteBufferPool#getDefault()} and pauses admission for a while, running jobs go on.
+ */
+public class MemoryBudget implements ComponentCallbacks2 {
+    private static final String TAG = "MemoryBudget";
+
+    // share of device ram for transcoding, the rest is the app's and other processes'
+    private static final int RAM_DIVISOR = 8;
+    private static final int LOW_RAM_DIVISOR = 16;
+    private static final long SHORT_PAUSE_MS = 5 * 1000;
+    private static final long LONG_PAUSE_MS = 30 * 1000;
+
+    // frames held by a hardware decoder, its output surface queue included
+    private static final int DECODER_FRAMES = 8;
+    // input surface queue and reference frames of an encoder
+    private static final int ENCODER_FRAMES = 4;
+    // rgba buffers of a window surface rendered by gl
+    private static final int SURFACE_FRAMES = 3;
+    private static final int CODEC_INPUT_BUFFERS = 4;
+    private static final int DEFAULT_SAMPLE_SIZE = 1024 * 1024;
+    // codecs, pcm conversion and ring buffer of an audio track
+    private static final long AUDIO_TRANSCODE_BYTES = 2 * 1024 * 1024;
+
+    private final long budgetBytes;
+    private final ConcurrencyController.Clock clock;
+    private long usedBytes;
+    private int runningJobs;
+    private long pausedUntilMs;
+
+    /**
+     * @param budgetBytes estimated bytes all running jobs may take together
+     */
+    public MemoryBudget(long budgetBytes) {
+        this(budgetBytes, SystemClock::elapsedRealtime);
+    }
+
+    /**
+     * @param clock times pauses of admission
+     */
+    public MemoryBudget(long budgetBytes, ConcurrencyController.Clock clock) {
+        if (budgetBytes <= 0) {
+            throw new IllegalArgumentException(String.format("memory budget %d is not positive.", budgetBytes));
+        }
+        this.budgetBytes = budgetBytes;
+        this.clock = clock;
+    }
+
+    /**
+     * @return budget of a share of device ram, smaller on low ram devices
+     */
+    public static MemoryBudget create(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memoryInfo);
+        int divisor = activityManager.isLowRamDevice() ? LOW_RAM_DIVISOR : RAM_DIVISOR;
+        return new MemoryBudget(memoryInfo.totalMem / divisor);
+    }
+
+    //========================= admission ========================================================
+
+    /**
+     * Blocks until bytes fit beside running jobs and admission is not paused, then counts them as used.
+     * Pair with {@link #release(long)} of the same bytes.
+     *
+     * @throws InterruptedException when cancel to wait
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        if (bytes < 0) throw new IllegalArgumentException(String.format("bytes %d is negative.", bytes));
+        while (true) {
+            long pauseMs = pausedUntilMs - clock.nowMs();
+            if (pauseMs > 0) {
+                wait(pauseMs);
+            } else if (runningJobs > 0 && usedBytes + bytes > budgetBytes) {
+                wait();
+            } else {
+                break;
+            }
+        }
+        usedBytes += bytes;
+        runningJobs++;
+    }
+
+    public synchronized void release(long bytes) {
+        if (runningJobs == 0) throw new IllegalStateException("No job to release.");
+        usedBytes -= bytes;
+        runningJobs--;
+        notifyAll();
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int getRunningJobs() {
+        return runningJobs;
+    }
+
+    public synchronized boolean isPaused() {
+        return pausedUntilMs > clock.nowMs();
+    }
+
+    //========================= memory pressure ========================================================
+
+    /**
+     * listen to memory pressure of the app, until {@link #unregister(Context)}
+     */
+    public void register(Context context) {
+        context.getApplicationContext().registerComponentCallbacks(this);
+    }
+
+    public void unregister(Context context) {
+        context.getApplicationContext().unregisterComponentCallbacks(this);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level == TRIM_MEMORY_UI_HIDDEN) return;
+        ByteBufferPool.getDefault().trim();
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            pause(LONG_PAUSE_MS);
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW) {
+            pause(SHORT_PAUSE_MS);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // nothing to do
+    }
+
+    /**
+     * admit no job for pauseMs from now, or longer when paused already
+     */
+    public synchronized void pause(long pauseMs) {
+        long until = clock.nowMs() + pauseMs;
+        if (until <= pausedUntilMs) return;
+        Log.i(TAG, "Pausing admission for " + pauseMs + " ms, " + runningJobs + " jobs running.");
+        pausedUntilMs = until;
+        notifyAll();
+    }
+
+    //========================= estimates ========================================================
+
+    /**
+     * @return decoder input buffers and decoded frames of a video track
+     */
+    public static long estimateDecoderBytes(MediaFormat inputFormat) {
+        return estimateDecoderBytes(inputFormat.getInteger(MediaFormat.KEY_WIDTH), inputFormat.getInteger(MediaFormat.KEY_HEIGHT),
+                getSampleSize(inputFormat));
+    }
+
+    static long estimateDecoderBytes(int width, int height, long sampleSize) {
+        return CODEC_INPUT_BUFFERS * sampleSize + DECODER_FRAMES * getFrameBytes(width, height);
+    }
+
+    /**
+     * @param gl frames are drawn through gl into the encoder's input surface, instead of copied in memory
+     * @return encoder frames, output buffers and, with gl, the surface between decoder and encoder
+     */
+    public static long estimateEncoderBytes(MediaFormat outputFormat, boolean gl) {
+        return estimateEncoderBytes(outputFormat.getInteger(MediaFormat.KEY_WIDTH), outputFormat.getInteger(MediaFormat.KEY_HEIGHT), gl);
+    }
+
+    static long estimateEncoderBytes(int width, int height, boolean gl) {
+        long frameBytes = getFrameBytes(width, height);
+        long pixels = (long) width * height;
+        // output buffers are sized for a frame by most encoders
+        long bytes = ENCODER_FRAMES * frameBytes + CODEC_INPUT_BUFFERS * frameBytes;
+        return gl ? bytes + SURFACE_FRAMES * pixels * 4 : bytes + frameBytes;
+    }
+
+    public static long estimateAudioTranscodeBytes() {
+        return AUDIO_TRANSCODE_BYTES;
+    }
+
+    /**
+     * @return sample buffer of a track copied without decoding
+     */
+    public static long estimatePassThroughBytes(MediaFormat inputFormat) {
+        return getSampleSize(inputFormat);
+    }
+
+    private static long getSampleSize(MediaFormat format) {
+        return format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE) ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : DEFAULT_SAMPLE_SIZE;
+    }
+
+    // yuv 4:2:0
+    private static long getFrameBytes(int width, int height) {
+        return (long) width * height * 3 / 2;
+    }
+}
@@ -0,0 +1,245 @@
+package com.nagihong.videocompressor.transcoder;
+
+import android.media.MediaFormat;
+
+import com.nagihong.videocompressor.strategies.MediaFormatExtraConstants;
+import com.nagihong.videocompressor.utils.Mp4BoxWriter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Header boxes of MP4 tracks written by our own muxers, only H.264 video and AAC audio.
+ * Refer: ISO/IEC 14496-12 (boxes), 14496-15 (avcC) and 14496-1 (esds).
+ */
+final class Mp4Boxes {
+    static final int VIDEO_TIMESCALE = 90000;
+    static final int MOVIE_TIMESCALE = 1000;
+    // sample flags of trun / trex, sample_depends_on and sample_is_non_sync_sample
+    static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private static final int NAL_TYPE_SPS = 7;
+    private static final int NAL_TYPE_PPS = 8;
+    private static final int LANGUAGE_UNDETERMINED = 0x55C4;
+    private static final int FIXED_ONE = 0x10000;
+
+    private Mp4Boxes() {
+    }
+
+    /**
+     * @throws UnsupportedOperationException for tracks other than H.264 and AAC
+     */
+    static void checkSupported(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (!MediaFormatExtraConstants.MIMETYPE_VIDEO_AVC.equals(mime) && !MediaFormatExtraConstants.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            throw new UnsupportedOperationException(String.format("%s can not be muxed, only h.264 and aac are.", mime));
+        }
+    }
+
+    static boolean isVideo(MediaFormat format) {
+        return MediaFormatExtraConstants.MIMETYPE_VIDEO_AVC.equals(format.getString(MediaFormat.KEY_MIME));
+    }
+
+    static int getTimescale(MediaFormat format) {
+        return isVideo(format) ? VIDEO_TIMESCALE : format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+    }
+
+    static long toTimescale(long timeUs, int timescale) {
+        return timeUs * timescale / 1000000;
+    }
+
+    static void writeFtyp(Mp4BoxWriter writer, String majorBrand, String... compatibleBrands) {
+        writer.begin("ftyp").putType(majorBrand).putInt(0);
+        for (String brand : compatibleBrands) writer.putType(brand);
+        writer.end();
+    }
+
+    static void writeMvhd(Mp4BoxWriter writer, long durationMs, int nextTrackId) {
+        writer.begin("mvhd", 0, 0)
+                .putInt(0).putInt(0) // creation, modification time
+                .putInt(MOVIE_TIMESCALE).putInt((int) durationMs)
+                .putInt(FIXED_ONE).putShort(0x0100) // rate, volume
+                .putZeros(10);
+        writeMatrix(writer, 0);
+        writer.putZeros(24).putInt(nextTrackId).end();
+    }
+
+    /**
+     * tkhd, and mdia up to an empty stbl with only stsd in it, mdia / minf / stbl are left open for the sample tables
+     */
+    static void beginTrack(Mp4BoxWriter writer, MediaFormat format, int trackId, long durationMs, long mediaDuration, int rotation) {
+        boolean video = isVideo(format);
+        writer.begin("trak");
+        writer.begin("tkhd", 0, 0x7) // enabled, in movie, in preview
+                .putInt(0).putInt(0).putInt(trackId).putInt(0).putInt((int) durationMs)
+                .putZeros(8).putShort(0).putShort(0) // layer, alternate group
+                .putShort(video ? 0 : 0x0100).putShort(0);
+        writeMatrix(writer, video ? rotation : 0);
+        writer.putInt(video ? format.getInteger(MediaFormat.KEY_WIDTH) << 16 : 0)
+                .putInt(video ? format.getInteger(MediaFormat.KEY_HEIGHT) << 16 : 0)
+                .end();
+
+        writer.begin("mdia");
+        writer.begin("mdhd", 0, 0).putInt(0).putInt(0).putInt(getTimescale(format)).putInt((int) mediaDuration)
+                .putShort(LANGUAGE_UNDETERMINED).putShort(0).end();
+        writer.begin("hdlr", 0, 0).putInt(0).putType(video ? "vide" : "soun").putZeros(12)
+                .putBytes((video ? "VideoHandle\0" : "SoundHandle\0").getBytes()).end();
+        writer.begin("minf");
+        if (video) {
+            writer.begin("vmhd", 0, 1).putZeros(8).end();
+        } else {
+            writer.begin("smhd", 0, 0).putZeros(4).end();
+        }
+        writer.begin("dinf").begin("dref", 0, 0).putInt(1).begin("url ", 0, 1).end().end().end();
+        writer.begin("stbl");
+        writer.begin("stsd", 0, 0).putInt(1);
+        if (video) {
+            writeAvc1(writer, format);
+        } else {
+            writeMp4a(writer, format);
+        }
+        writer.end();
+    }
+
+    /**
+     * close stbl, minf, mdia and trak opened by {@link #beginTrack}
+     */
+    static void endTrack(Mp4BoxWriter writer) {
+        writer.end().end().end().end();
+    }
+
+    /**
+     * same as {@link #endTrack(Mp4BoxWriter)}, for sample tables of tableBytes written after the writer's content
+     */
+    static void endTrack(Mp4BoxWriter writer, int tableBytes) {
+        writer.end(tableBytes).end(tableBytes).end(tableBytes).end(tableBytes);
+    }
+
+    private static void writeMatrix(Mp4BoxWriter writer, int rotation) {
+        int a = FIXED_ONE, b = 0, c = 0, d = FIXED_ONE;
+        switch (rotation) {
+            case 90:
+                a = 0; b = FIXED_ONE; c = -FIXED_ONE; d = 0;
+                break;
+            case 180:
+                a = -FIXED_ONE; d = -FIXED_ONE;
+                break;
+            case 270:
+                a = 0; b = -FIXED_ONE; c = FIXED_ONE; d = 0;
+                break;
+        }
+        writer.putInt(a).putInt(b).putInt(0).putInt(c).putInt(d).putInt(0).putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    private static void writeAvc1(Mp4BoxWriter writer, MediaFormat format) {
+        List<ByteBuffer> spsList = new ArrayList<>();
+        List<ByteBuffer> ppsList = new ArrayList<>();
+        for (String key : new String[]{MediaFormatExtraConstants.KEY_AVC_SPS, MediaFormatExtraConstants.KEY_AVC_PPS}) {
+            if (!format.containsKey(key)) continue;
+            for (ByteBuffer nal : splitNalUnits(format.getByteBuffer(key))) {
+                int type = nal.get(nal.position()) & 0x1F;
+                if (type == NAL_TYPE_SPS) spsList.add(nal);
+                if (type == NAL_TYPE_PPS) ppsList.add(nal);
+            }
+        }
+        if (spsList.isEmpty() || ppsList.isEmpty()) {
+            throw new IllegalArgumentException("h.264 format has no sps or pps in csd.");
+        }
+        ByteBuffer sps = spsList.get(0);
+        writer.begin("avc1").putZeros(6).putShort(1) // data reference index
+                .putZeros(16)
+                .putShort(format.getInteger(MediaFormat.KEY_WIDTH)).putShort(format.getInteger(MediaFormat.KEY_HEIGHT))
+                .putInt(0x00480000).putInt(0x00480000).putInt(0) // 72 dpi
+                .putShort(1).putZeros(32).putShort(0x0018).putShort(-1);
+        writer.begin("avcC").putByte(1)
+                .putByte(sps.get(sps.position() + 1)).putByte(sps.get(sps.position() + 2)).putByte(sps.get(sps.position() + 3))
+                .putByte(0xFF) // 4 byte nal lengths
+                .putByte(0xE0 | spsList.size());
+        for (ByteBuffer nal : spsList) writer.putShort(nal.remaining()).putBytes(nal);
+        writer.putByte(ppsList.size());
+        for (ByteBuffer nal : ppsList) writer.putShort(nal.remaining()).putBytes(nal);
+        writer.end().end();
+    }
+
+    private static void writeMp4a(Mp4BoxWriter writer, MediaFormat format) {
+        ByteBuffer config = format.getByteBuffer("csd-0");
+        if (config == null) throw new IllegalArgumentException("aac format has no csd-0.");
+        int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int bitrate = format.containsKey(MediaFormat.KEY_BIT_RATE) ? format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+        int configSize = config.remaining();
+        writer.begin("mp4a").putZeros(6).putShort(1)
+                .putZeros(8).putShort(format.getInteger(MediaFormat.KEY_CHANNEL_COUNT)).putShort(16)
+                .putZeros(4).putInt(sampleRate << 16);
+        // descriptor sizes are all below 128, so each fits in one byte
+        writer.begin("esds", 0, 0)
+                .putByte(0x03).putByte(3 + 2 + 15 + configSize + 3).putShort(0).putByte(0) // ES_Descriptor
+                .putByte(0x04).putByte(13 + 2 + configSize) // DecoderConfigDescriptor
+                .putByte(0x40).putByte(0x15).putByte(0).putShort(0) // aac, audio stream, buffer size
+                .putInt(bitrate).putInt(bitrate)
+                .putByte(0x05).putByte(configSize).putBytes(config) // DecoderSpecificInfo
+                .putByte(0x06).putByte(1).putByte(0x02) // SLConfigDescriptor
+                .end();
+        writer.end();
+    }
+
+    /**
+     * @return nal units of an annex b buffer, without start codes
+     */
+    static List<ByteBuffer> splitNalUnits(ByteBuffer annexB) {
+        List<ByteBuffer> nalUnits = new ArrayList<>();
+        ByteBuffer buffer = annexB.duplicate();
+        int end = buffer.limit();
+        int start = -1;
+        int i = buffer.position();
+        while (i + 2 < end) {
+            if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+                if (start >= 0) nalUnits.add(slice(buffer, start, trimZeros(buffer, start, i)));
+                i += 3;
+                start = i;
+            } else {
+                i++;
+            }
+        }
+        if (start >= 0 && start < end) nalUnits.add(slice(buffer, start, end));
+        return nalUnits;
+    }
+
+    /**
+     * append an annex b access unit to out as 4 byte length prefixed nal units, what MP4 stores.
+     * A sample not starting with a start code is taken as already length prefixed.
+     *
+     * @return bytes appended
+     */
+    static int appendLengthPrefixed(ByteBuffer sample, Mp4BoxWriter out) {
+        int start = out.position();
+        if (!startsWithStartCode(sample)) {
+            out.putBytes(sample);
+        } else {
+            for (ByteBuffer nal : splitNalUnits(sample)) {
+                out.putInt(nal.remaining()).putBytes(nal);
+            }
+        }
+        return out.position() - start;
+    }
+
+    private static boolean startsWithStartCode(ByteBuffer buffer) {
+        int p = buffer.position();
+        if (buffer.remaining() < 4 || buffer.get(p) != 0 || buffer.get(p + 1) != 0) return false;
+        return buffer.get(p + 2) == 1 || (buffer.get(p + 2) == 0 && buffer.get(p + 3) == 1);
+    }
+
+    // zeros before a start code belong to a 4 byte start code or are trailing_zero_8bits
+    private static int trimZeros(ByteBuffer buffer, int start, int end) {
+        while (end > start && buffer.get(end - 1) == 0) end--;
+        return end;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int start, int end) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(end);
+        slice.position(start);
+        return slice.slice();
+    }
+}
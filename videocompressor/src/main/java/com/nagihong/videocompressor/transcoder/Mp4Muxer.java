@@ -0,0 +1,338 @@
+package com.nagihong.videocompressor.transcoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.nagihong.videocompressor.utils.Mp4BoxWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes an MP4 file with samples streamed into one mdat and moov appended at {@link #stop()}, like MediaMuxer,
+ * but with sample tables in {@link RunLengthTable}s, which spill older runs to temp files,
+ * so memory stays the same for a recording of minutes or of many hours. Tables are streamed into moov from there.
+ * <p>
+ * Only H.264 and AAC tracks. Presentation times must not go back within a track, i.e. video without B-frames,
+ * and every track starts at 0 in output. Media durations are 32 bits, over 13 hours of 90 kHz video do not fit.
+ */
+public class Mp4Muxer implements Muxer {
+    private static final int TABLE_FLUSH_BYTES = 64 * 1024;
+    private static final long MAX_32BIT_OFFSET = 0xFFFFFFFFL;
+
+    private final File spillDirectory;
+    private final FileOutputStream output;
+    private final FileChannel channel;
+    private final List<Track> tracks = new ArrayList<>();
+    private final Mp4BoxWriter boxWriter = new Mp4BoxWriter(TABLE_FLUSH_BYTES + 4096);
+    private int rotation;
+    private boolean started;
+    private boolean stopped;
+    private long position;
+    private long mdatStart;
+    // a chunk is a run of samples of one track, a new one starts whenever another track writes
+    private Track chunkTrack;
+
+    /**
+     * @param spillDirectory where sample tables spill to, e.g. the cache directory
+     */
+    public Mp4Muxer(String outputPath, File spillDirectory) throws IOException {
+        this.spillDirectory = spillDirectory;
+        output = new FileOutputStream(outputPath);
+        channel = output.getChannel();
+    }
+
+    //========================= Muxer ========================================================
+    @Override
+    public void setOrientationHint(int degrees) {
+        if (started) throw new IllegalStateException("Muxer already started.");
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException(String.format("unsupported rotation %d.", degrees));
+        }
+        rotation = degrees;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (started) throw new IllegalStateException("Muxer already started.");
+        Mp4Boxes.checkSupported(format);
+        tracks.add(new Track(format, tracks.size() + 1, spillDirectory));
+        return tracks.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        if (tracks.isEmpty()) throw new IllegalStateException("No track added.");
+        boxWriter.reset();
+        Mp4Boxes.writeFtyp(boxWriter, "isom", "isom", "iso2", "avc1", "mp41");
+        mdatStart = boxWriter.position();
+        // 64 bit size, filled in at stop
+        boxWriter.putInt(1).putType("mdat").putLong(0);
+        writeBoxWriter();
+        started = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (!started || stopped) throw new IllegalStateException("Muxer not started.");
+        Track track = tracks.get(trackIndex);
+        // sps / pps and audio specific config are in the formats already
+        if (bufferInfo.size <= 0 || (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) return;
+        long timeUs = bufferInfo.presentationTimeUs;
+        if (track.count > 0 && timeUs < track.lastTimeUs) {
+            throw new IllegalStateException(String.format("presentation time of track %d went back from %d to %d, b-frames are not supported.",
+                    trackIndex, track.lastTimeUs, timeUs));
+        }
+        if (track != chunkTrack) {
+            track.startChunk(position);
+            chunkTrack = track;
+        }
+
+        ByteBuffer sample = byteBuf.duplicate();
+        sample.limit(bufferInfo.offset + bufferInfo.size);
+        sample.position(bufferInfo.offset);
+        int size;
+        if (track.video) {
+            boxWriter.reset();
+            size = Mp4Boxes.appendLengthPrefixed(sample, boxWriter);
+            writeBoxWriter();
+        } else {
+            size = sample.remaining();
+            write(sample);
+        }
+        boolean sync = !track.video || (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        track.add(timeUs, size, sync);
+    }
+
+    @Override
+    public void stop() {
+        if (stopped) return;
+        stopped = true;
+        if (!started) return;
+        try {
+            long mdatEnd = position;
+            ByteBuffer mdatSize = ByteBuffer.allocate(8);
+            mdatSize.putLong(0, mdatEnd - mdatStart);
+            while (mdatSize.hasRemaining()) channel.write(mdatSize, mdatStart + 8 + mdatSize.position());
+            writeMoov(mdatEnd > MAX_32BIT_OFFSET);
+            channel.force(false);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not finish mp4 file.", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        for (Track track : tracks) {
+            track.release();
+        }
+        tracks.clear();
+        try {
+            output.close();
+        } catch (IOException e) {
+            // nothing more to write
+        }
+    }
+
+    //========================= moov ========================================================
+    private void writeMoov(boolean largeOffsets) throws IOException {
+        long durationMs = 0;
+        for (Track track : tracks) {
+            track.finish();
+            durationMs = Math.max(durationMs, track.getDurationMs());
+        }
+        long moovStart = position;
+        boxWriter.reset();
+        boxWriter.putInt(0).putType("moov");
+        Mp4Boxes.writeMvhd(boxWriter, durationMs, tracks.size() + 1);
+        writeBoxWriter();
+        for (Track track : tracks) {
+            boxWriter.reset();
+            Mp4Boxes.beginTrack(boxWriter, track.format, track.id, track.getDurationMs(), track.duration, rotation);
+            Mp4Boxes.endTrack(boxWriter, track.getTableBytes(largeOffsets));
+            writeBoxWriter();
+            writeTables(track, largeOffsets);
+        }
+        ByteBuffer moovSize = ByteBuffer.allocate(4);
+        moovSize.putInt(0, (int) (position - moovStart));
+        while (moovSize.hasRemaining()) channel.write(moovSize, moovStart + moovSize.position());
+    }
+
+    /**
+     * stream stts, stss, stsz, stsc and stco / co64 through the box writer, sizes as {@link Track#getTableBytes(boolean)}
+     */
+    private void writeTables(Track track, boolean largeOffsets) throws IOException {
+        boxWriter.reset();
+        boxWriter.putInt((int) (16 + 8 * track.durations.getRunCount())).putType("stts").putInt(0)
+                .putInt((int) track.durations.getRunCount());
+        track.durations.forEachRun((count, duration) -> {
+            boxWriter.putInt(count).putInt((int) duration);
+            flushTable();
+        });
+
+        if (track.syncCount < track.count) {
+            boxWriter.putInt((int) (16 + 4 * track.syncCount)).putType("stss").putInt(0).putInt((int) track.syncCount);
+            final int[] sample = {1};
+            track.syncs.forEachRun((count, sync) -> {
+                for (int i = 0; i < count && sync != 0; i++) {
+                    boxWriter.putInt(sample[0] + i);
+                    flushTable();
+                }
+                sample[0] += count;
+            });
+        }
+
+        long constantSize = track.sizes.getConstant(0);
+        boxWriter.putInt((int) (20 + (constantSize > 0 ? 0 : 4 * track.count))).putType("stsz").putInt(0)
+                .putInt((int) constantSize).putInt((int) track.count);
+        if (constantSize == 0) {
+            track.sizes.forEachRun((count, size) -> {
+                for (int i = 0; i < count; i++) {
+                    boxWriter.putInt((int) size);
+                    flushTable();
+                }
+            });
+        }
+
+        boxWriter.putInt((int) (16 + 12 * track.chunkSamples.getRunCount())).putType("stsc").putInt(0)
+                .putInt((int) track.chunkSamples.getRunCount());
+        final int[] firstChunk = {1};
+        track.chunkSamples.forEachRun((count, samples) -> {
+            boxWriter.putInt(firstChunk[0]).putInt((int) samples).putInt(1);
+            firstChunk[0] += count;
+            flushTable();
+        });
+
+        long chunks = track.chunkOffsets.getCount();
+        boxWriter.putInt((int) (16 + (largeOffsets ? 8 : 4) * chunks)).putType(largeOffsets ? "co64" : "stco").putInt(0)
+                .putInt((int) chunks);
+        track.chunkOffsets.forEachRun((count, offset) -> {
+            for (int i = 0; i < count; i++) {
+                if (largeOffsets) boxWriter.putLong(offset);
+                else boxWriter.putInt((int) offset);
+                flushTable();
+            }
+        });
+        writeBoxWriter();
+    }
+
+    private void flushTable() throws IOException {
+        if (boxWriter.position() >= TABLE_FLUSH_BYTES) {
+            writeBoxWriter();
+            boxWriter.reset();
+        }
+    }
+
+    //========================= output ========================================================
+    private void writeBoxWriter() {
+        write(boxWriter.getBuffer());
+    }
+
+    private void write(ByteBuffer buffer) {
+        try {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write mp4 file.", e);
+        }
+    }
+
+    /**
+     * sample tables of a track, every column run length encoded
+     */
+    private static class Track {
+        final MediaFormat format;
+        final int id;
+        final boolean video;
+        final int timescale;
+        final RunLengthTable durations;
+        final RunLengthTable sizes;
+        // 1 for sync samples, 0 for others
+        final RunLengthTable syncs;
+        final RunLengthTable chunkOffsets;
+        final RunLengthTable chunkSamples;
+        long count;
+        long syncCount;
+        long lastTimeUs;
+        long lastTime;
+        // in timescale
+        long duration;
+        int currentChunkSamples;
+
+        Track(MediaFormat format, int id, File spillDirectory) {
+            this.format = format;
+            this.id = id;
+            video = Mp4Boxes.isVideo(format);
+            timescale = Mp4Boxes.getTimescale(format);
+            durations = new RunLengthTable(spillDirectory, RunLengthTable.DEFAULT_CAPACITY);
+            sizes = new RunLengthTable(spillDirectory, RunLengthTable.DEFAULT_CAPACITY);
+            syncs = new RunLengthTable(spillDirectory, RunLengthTable.DEFAULT_CAPACITY);
+            chunkOffsets = new RunLengthTable(spillDirectory, RunLengthTable.DEFAULT_CAPACITY);
+            chunkSamples = new RunLengthTable(spillDirectory, RunLengthTable.DEFAULT_CAPACITY);
+        }
+
+        void startChunk(long offset) {
+            endChunk();
+            chunkOffsets.add(offset);
+        }
+
+        void add(long timeUs, int size, boolean sync) {
+            // from rounded times, so durations do not drift
+            long time = Mp4Boxes.toTimescale(timeUs, timescale);
+            if (count > 0) addDuration(time - lastTime);
+            lastTime = time;
+            lastTimeUs = timeUs;
+            sizes.add(size);
+            syncs.add(sync ? 1 : 0);
+            if (sync) syncCount++;
+            count++;
+            currentChunkSamples++;
+        }
+
+        /**
+         * the last sample lasts as long as the one before it
+         */
+        void finish() {
+            if (count > 0) addDuration(durations.getLastValue(0));
+            endChunk();
+        }
+
+        long getDurationMs() {
+            return duration * 1000 / timescale;
+        }
+
+        int getTableBytes(boolean largeOffsets) {
+            long bytes = 16 + 8 * durations.getRunCount()
+                    + (syncCount < count ? 16 + 4 * syncCount : 0)
+                    + 20 + (sizes.getConstant(0) > 0 ? 0 : 4 * count)
+                    + 16 + 12 * chunkSamples.getRunCount()
+                    + 16 + (largeOffsets ? 8 : 4) * chunkOffsets.getCount();
+            if (bytes > Integer.MAX_VALUE) throw new IllegalStateException("Sample tables do not fit in a box.");
+            return (int) bytes;
+        }
+
+        void release() {
+            durations.release();
+            sizes.release();
+            syncs.release();
+            chunkOffsets.release();
+            chunkSamples.release();
+        }
+
+        private void addDuration(long sampleDuration) {
+            durations.add(sampleDuration);
+            duration += sampleDuration;
+        }
+
+        private void endChunk() {
+            if (currentChunkSamples > 0) chunkSamples.add(currentChunkSamples);
+            currentChunkSamples = 0;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.nagihong.videocompressor.transcoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Container writer fed by {@link QueuedMuxer}, the part of {@link android.media.MediaMuxer} the pipeline uses,
+ * so outputs other than a single MP4 file, e.g. {@link HlsMuxer}, plug in below the queueing and interleaving.
+ * Same call order as MediaMuxer: tracks are added before {@link #start()}, samples written after it.
+ */
+public interface Muxer {
+
+    /**
+     * @param degrees 0, 90, 180 or 270, call before {@link #start()}
+     */
+    void setOrientationHint(int degrees);
+
+    /**
+     * @return index of the track for {@link #writeSampleData(int, ByteBuffer, MediaCodec.BufferInfo)}
+     */
+    int addTrack(MediaFormat format);
+
+    void start();
+
+    void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo);
+
+    /**
+     * finish the output, nothing is written after it
+     */
+    void stop();
+
+    void release();
+}
@@ -2,16 +2,26 @@ package com.nagihong.videocompressor.transcoder;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.util.Log;
 
+import java.io.File;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * not working until all output track formats are determined
+ * not working until output formats of all tracks added by {@link #addTrack()} are determined,
+ * samples written before that are kept in a {@link SampleQueue}.
+ * Any number of tracks is supported, they are added to the muxer in the order they were added here
+ * <p>
+ * when interleaving is enabled, samples are held in a small window per track and written
+ * in chunks of {@link #setInterleaveChunkDurationUs(long)} ordered by decode time,
+ * so audio and video of the same moment end up close to each other in the file
+ * <p>
+ * when async writing is enabled, samples are copied and written to the muxer by {@link AsyncSampleWriter}
+ * on its own thread, so codec loops never wait for storage
+ * <p>
+ * a track may be mirrored to a track of another QueuedMuxer, so one encoded track goes to several outputs
  */
 /*
     MediaMuxer使用方法
@@ -34,112 +44,312 @@ import java.util.List;
  */
 public class QueuedMuxer {
     private static final String Tag = QueuedMuxer.class.getSimpleName();
-    private static final int BUFFER_SIZE = 64 * 1024;
-    private final MediaMuxer mMuxer;
+    private final Muxer mMuxer;
     private final Listener mListener;
-    private MediaFormat mVideoFormat;
-    private MediaFormat mAudioFormat;
-    private int mVideoTrackIndex;
-    private int mAudioTrackIndex;
-    private ByteBuffer mByteBuffer;
-    private final List<SampleInfo> mSampleInfoList;
+    private final List<Track> mTracks = new ArrayList<>();
+    private SampleQueue mSampleQueue;
+    private File mSpillDirectory;
+    private long mBufferMemoryLimit = SampleQueue.DEFAULT_MEMORY_LIMIT;
     private boolean mStarted;
+    private boolean mAsyncWriting;
+    private AsyncSampleWriter mAsyncWriter;
 
-    public QueuedMuxer(MediaMuxer muxer, Listener listener) {
+    //interleaving
+    private static final int INTERLEAVE_WINDOW_CHUNKS = 4;
+    private long mInterleaveChunkDurationUs;
+    private final MediaCodec.BufferInfo mInterleaveBufferInfo = new MediaCodec.BufferInfo();
+    private int mChunkTrack = -1;
+    private long mChunkEndUs;
+
+    public QueuedMuxer(Muxer muxer, Listener listener) {
         mMuxer = muxer;
         mListener = listener;
-        mSampleInfoList = new ArrayList<>();
     }
 
     /**
-     * determine track format
-     * then {@link #writeSampleData(SampleType, ByteBuffer, MediaCodec.BufferInfo)} will work
+     * directory for the temp file used when samples written before start exceed {@link #setBufferMemoryLimit(long)}
+     */
+    public void setSpillDirectory(File spillDirectory) {
+        mSpillDirectory = spillDirectory;
+    }
+
+    /**
+     * max bytes of direct memory used to keep samples written before start, and shared by the windows of all tracks
+     * when interleaving
      */
-    public void setOutputFormat(SampleType sampleType, MediaFormat format) {
-        switch (sampleType) {
-            case VIDEO:
-                mVideoFormat = format;
-                break;
-            case AUDIO:
-                mAudioFormat = format;
-                break;
-            default:
-                throw new AssertionError();
+    public void setBufferMemoryLimit(long bufferMemoryLimit) {
+        mBufferMemoryLimit = bufferMemoryLimit;
+    }
+
+    public long getBufferMemoryLimit() {
+        return mBufferMemoryLimit;
+    }
+
+    /**
+     * write samples to muxer on a dedicated thread, must be set before output format is determined
+     */
+    public void setAsyncWriting(boolean asyncWriting) {
+        mAsyncWriting = asyncWriting;
+    }
+
+    /**
+     * write samples in chunks of given duration ordered by decode time, 0 to write them as they come, the default.
+     * At most {@value #INTERLEAVE_WINDOW_CHUNKS} chunks per track are held back, each sample is copied once more.
+     */
+    public void setInterleaveChunkDurationUs(long interleaveChunkDurationUs) {
+        mInterleaveChunkDurationUs = interleaveChunkDurationUs;
+    }
+
+    /**
+     * reserve an output track, the muxer waits for its format before starting.
+     * Tracks which are never added, e.g. dropped ones, are not waited for.
+     *
+     * @return track id for {@link #setOutputFormat(int, MediaFormat)} and {@link #writeSampleData(int, ByteBuffer, MediaCodec.BufferInfo)}.
+     */
+    public int addTrack() {
+        if (mStarted) throw new IllegalStateException("Muxer already started.");
+        mTracks.add(new Track());
+        return mTracks.size() - 1;
+    }
+
+    public int getTrackCount() {
+        return mTracks.size();
+    }
+
+    /**
+     * @return samples given to {@link #writeSampleData(int, ByteBuffer, MediaCodec.BufferInfo)} for track, codec config excluded
+     */
+    public long getWrittenSampleCount(int track) {
+        return getTrack(track).writtenSamples;
+    }
+
+    /**
+     * write format and samples of track to targetTrack of target as well, e.g. audio shared by several renditions.
+     * targetTrack must not be written by anyone else.
+     */
+    public void mirrorTrack(int track, QueuedMuxer target, int targetTrack) {
+        Track source = getTrack(track);
+        target.getTrack(targetTrack);
+        if (source.format != null) {
+            throw new IllegalStateException(String.format("track (%d) already has a format, mirror it before writing.", track));
         }
+        source.mirror = target;
+        source.mirrorTrack = targetTrack;
+    }
+
+    /**
+     * determine track format
+     * then {@link #writeSampleData(int, ByteBuffer, MediaCodec.BufferInfo)} will work
+     */
+    public void setOutputFormat(int track, MediaFormat format) {
+        Track target = getTrack(track);
+        target.format = format;
         onSetOutputFormat();
+        if (target.mirror != null) target.mirror.setOutputFormat(target.mirrorTrack, format);
     }
 
     private void onSetOutputFormat() {
-        if (mVideoFormat == null || mAudioFormat == null) return;
+        if (mStarted) return;
+        for (Track track : mTracks) {
+            if (track.format == null) return;
+        }
         mListener.onDetermineOutputFormat();
 
-        mVideoTrackIndex = mMuxer.addTrack(mVideoFormat);
-        Log.v(Tag, "Added track #" + mVideoTrackIndex + " with " + mVideoFormat.getString(MediaFormat.KEY_MIME) + " to muxer");
-        mAudioTrackIndex = mMuxer.addTrack(mAudioFormat);
-        Log.v(Tag, "Added track #" + mAudioTrackIndex + " with " + mAudioFormat.getString(MediaFormat.KEY_MIME) + " to muxer");
+        for (Track track : mTracks) {
+            track.muxerTrackIndex = mMuxer.addTrack(track.format);
+            Log.v(Tag, "Added track #" + track.muxerTrackIndex + " with " + track.format.getString(MediaFormat.KEY_MIME) + " to muxer");
+        }
         mMuxer.start();
         mStarted = true;
-
-        if (mByteBuffer == null) {
-            mByteBuffer = ByteBuffer.allocate(0);
+        if (mAsyncWriting) {
+            mAsyncWriter = new AsyncSampleWriter(mMuxer, mSpillDirectory, mBufferMemoryLimit);
+            mAsyncWriter.start();
         }
-        mByteBuffer.flip();
-        Log.v(Tag, "Output format determined, writing " + mSampleInfoList.size() +
-                " samples / " + mByteBuffer.limit() + " bytes to muxer.");
+
+        if (mSampleQueue == null) return;
+        Log.v(Tag, "Output format determined, writing " + mSampleQueue.size() + " samples / "
+                + mSampleQueue.getMemoryBytes() + " bytes in memory / "
+                + mSampleQueue.getSpilledBytes() + " bytes in file to muxer.");
         MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-        int offset = 0;
-        for (SampleInfo sampleInfo : mSampleInfoList) {
-            sampleInfo.writeToBufferInfo(bufferInfo, offset);
-            mMuxer.writeSampleData(getTrackIndexForSampleType(sampleInfo.mSampleType), mByteBuffer, bufferInfo);
-            offset += sampleInfo.mSize;
+        while (!mSampleQueue.isEmpty()) {
+            int track = mSampleQueue.peekTrack();
+            ByteBuffer byteBuf = mSampleQueue.peek(bufferInfo);
+            writeStartedSampleData(track, byteBuf, bufferInfo);
+            mSampleQueue.remove();
         }
-        mSampleInfoList.clear();
-        mByteBuffer = null;
+        mSampleQueue.release();
+        mSampleQueue = null;
     }
 
-    public void writeSampleData(SampleType sampleType, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+    public void writeSampleData(int track, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        Track target = getTrack(track);
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) target.writtenSamples++;
+        int position = byteBuf.position();
+        int limit = byteBuf.limit();
         if (mStarted) {
-            mMuxer.writeSampleData(getTrackIndexForSampleType(sampleType), byteBuf, bufferInfo);
+            writeStartedSampleData(track, byteBuf, bufferInfo);
+        } else {
+            if (mSampleQueue == null) {
+                mSampleQueue = new SampleQueue(mSpillDirectory, mBufferMemoryLimit);
+            }
+            mSampleQueue.add(track, byteBuf, bufferInfo);
+        }
+        if (target.mirror != null) {
+            // the same bytes again, as they were given
+            byteBuf.limit(limit);
+            byteBuf.position(position);
+            target.mirror.writeSampleData(target.mirrorTrack, byteBuf, bufferInfo);
+        }
+    }
+
+    /**
+     * write out samples held back for interleaving or async writing, call it before stopping the muxer
+     */
+    public void flush() {
+        if (!mStarted) return;
+        drainInterleaved(true);
+        if (mAsyncWriter != null) {
+            mAsyncWriter.finish();
+            mAsyncWriter.release();
+            mAsyncWriter = null;
+        }
+    }
+
+    /**
+     * drop samples still waiting for start and delete their temp files
+     */
+    public void release() {
+        if (mAsyncWriter != null) {
+            mAsyncWriter.release();
+            mAsyncWriter = null;
+        }
+        if (mSampleQueue != null) {
+            mSampleQueue.release();
+            mSampleQueue = null;
+        }
+        for (Track track : mTracks) {
+            if (track.interleaveQueue != null) {
+                track.interleaveQueue.release();
+                track.interleaveQueue = null;
+            }
+        }
+    }
+
+    private void writeStartedSampleData(int trackId, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        Track track = mTracks.get(trackId);
+        if (mInterleaveChunkDurationUs <= 0) {
+            writeToMuxer(track.muxerTrackIndex, byteBuf, bufferInfo);
             return;
         }
-        byteBuf.limit(bufferInfo.offset + bufferInfo.size);
-        byteBuf.position(bufferInfo.offset);
-        if (mByteBuffer == null) {
-            mByteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
+        if (track.interleaveQueue == null) {
+            // tracks are known once started, each gets its share of the limit before spilling
+            track.interleaveQueue = new SampleQueue(mSpillDirectory, mBufferMemoryLimit / mTracks.size());
         }
-        mByteBuffer.put(byteBuf);
-        mSampleInfoList.add(new SampleInfo(sampleType, bufferInfo.size, bufferInfo));
+        // an empty end of stream sample goes to the muxer as well, after the samples of its track
+        track.interleaveQueue.add(trackId, byteBuf, bufferInfo);
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            track.ended = true;
+        } else {
+            track.queuedPresentationTimeUs = bufferInfo.presentationTimeUs;
+        }
+        drainInterleaved(false);
     }
 
-    private int getTrackIndexForSampleType(SampleType sampleType) {
-        switch (sampleType) {
-            case VIDEO:
-                return mVideoTrackIndex;
-            case AUDIO:
-                return mAudioTrackIndex;
-            default:
-                throw new AssertionError();
+    private void writeToMuxer(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (mAsyncWriter != null) {
+            mAsyncWriter.write(trackIndex, byteBuf, bufferInfo);
+        } else {
+            mMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
         }
     }
 
-    public enum SampleType {VIDEO, AUDIO}
+    //========================= interleaving ========================================================
+    private void drainInterleaved(boolean flush) {
+        int track;
+        while ((track = nextInterleavedTrack(flush)) >= 0) {
+            SampleQueue queue = mTracks.get(track).interleaveQueue;
+            ByteBuffer byteBuf = queue.peek(mInterleaveBufferInfo);
+            writeToMuxer(mTracks.get(track).muxerTrackIndex, byteBuf, mInterleaveBufferInfo);
+            queue.remove();
+        }
+    }
 
-    private static class SampleInfo {
-        private final SampleType mSampleType;
-        private final int mSize;
-        private final long mPresentationTimeUs;
-        private final int mFlags;
+    /**
+     * keep writing current chunk while its track has samples inside the chunk,
+     * otherwise start a new chunk from the track with the earliest sample.
+     * Only start a new chunk when every track still running has samples queued,
+     * unless a track holds more than its window.
+     *
+     * @return track to write next sample of, or -1 to wait for more samples
+     */
+    private int nextInterleavedTrack(boolean flush) {
+        if (mChunkTrack >= 0 && !isInterleaveQueueEmpty(mChunkTrack) && peekDecodeTimeUs(mChunkTrack) < mChunkEndUs) {
+            return mChunkTrack;
+        }
+        boolean force = flush || isInterleaveWindowFull();
+        int earliestTrack = -1;
+        long earliestUs = Long.MAX_VALUE;
+        for (int track = 0; track < mTracks.size(); track++) {
+            if (isInterleaveQueueEmpty(track)) {
+                if (!mTracks.get(track).ended && !force) return -1;
+                continue;
+            }
+            long decodeTimeUs = peekDecodeTimeUs(track);
+            if (earliestTrack < 0 || decodeTimeUs < earliestUs) {
+                earliestUs = decodeTimeUs;
+                earliestTrack = track;
+            }
+        }
+        if (earliestTrack >= 0 && earliestUs != Long.MAX_VALUE) {
+            mChunkTrack = earliestTrack;
+            mChunkEndUs = earliestUs + mInterleaveChunkDurationUs;
+        }
+        return earliestTrack;
+    }
 
-        private SampleInfo(SampleType sampleType, int size, MediaCodec.BufferInfo bufferInfo) {
-            mSampleType = sampleType;
-            mSize = size;
-            mPresentationTimeUs = bufferInfo.presentationTimeUs;
-            mFlags = bufferInfo.flags;
+    /**
+     * @return whether a track holds more than its window, or all of them together more than the memory limit
+     */
+    private boolean isInterleaveWindowFull() {
+        long windowUs = mInterleaveChunkDurationUs * INTERLEAVE_WINDOW_CHUNKS;
+        long bytes = 0;
+        for (int track = 0; track < mTracks.size(); track++) {
+            if (isInterleaveQueueEmpty(track)) continue;
+            SampleQueue queue = mTracks.get(track).interleaveQueue;
+            long decodeTimeUs = peekDecodeTimeUs(track);
+            if (decodeTimeUs != Long.MAX_VALUE && mTracks.get(track).queuedPresentationTimeUs - decodeTimeUs > windowUs) return true;
+            bytes += queue.getMemoryBytes() + queue.getSpilledBytes();
         }
+        return bytes > mBufferMemoryLimit;
+    }
+
+    private long peekDecodeTimeUs(int track) {
+        return mTracks.get(track).interleaveQueue.peekDecodeTimeUs(track);
+    }
 
-        private void writeToBufferInfo(MediaCodec.BufferInfo bufferInfo, int offset) {
-            bufferInfo.set(offset, mSize, mPresentationTimeUs, mFlags);
+    private boolean isInterleaveQueueEmpty(int track) {
+        SampleQueue queue = mTracks.get(track).interleaveQueue;
+        return queue == null || queue.isEmpty();
+    }
+
+    private Track getTrack(int track) {
+        if (track < 0 || track >= mTracks.size()) {
+            throw new IllegalArgumentException(String.format("track (%d) was not added.", track));
         }
+        return mTracks.get(track);
+    }
+
+    private static class Track {
+        MediaFormat format;
+        int muxerTrackIndex = -1;
+        //interleaving
+        SampleQueue interleaveQueue;
+        long queuedPresentationTimeUs;
+        boolean ended;
+        long writtenSamples;
+        //mirroring
+        QueuedMuxer mirror;
+        int mirrorTrack;
     }
 
     public interface Listener {
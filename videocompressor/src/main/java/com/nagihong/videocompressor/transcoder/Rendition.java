@@ -0,0 +1,64 @@
+package com.nagihong.videocompressor.transcoder;
+
+import com.nagihong.videocompressor.strategies.MediaFormatStrategy;
+import com.nagihong.videocompressor.strategies.SegmentAlignedFormatStrategy;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * One output of {@link VideoCompressEngine#transcodeRenditions}, e.g. a 720p upload copy or a 360p preview.
+ * Video is encoded with the video format of its own strategy, audio and other tracks are taken from the first rendition.
+ */
+public class Rendition {
+    private final String outputPath;
+    private final MediaFormatStrategy formatStrategy;
+    private final int hlsSegmentDurationSeconds;
+
+    public Rendition(String outputPath, MediaFormatStrategy formatStrategy) {
+        this(outputPath, formatStrategy, 0);
+    }
+
+    /**
+     * @param hlsSegmentDurationSeconds 0 for an MP4 file at outputPath, otherwise outputPath is a directory
+     *                                  {@link HlsMuxer} writes segments of this duration to, with key frames aligned to them
+     */
+    public Rendition(String outputPath, MediaFormatStrategy formatStrategy, int hlsSegmentDurationSeconds) {
+        if (null == outputPath) {
+            throw new NullPointerException("Output path cannot be null.");
+        }
+        if (null == formatStrategy) {
+            throw new NullPointerException("Format strategy cannot be null.");
+        }
+        if (hlsSegmentDurationSeconds < 0) {
+            throw new IllegalArgumentException(String.format("segment duration %d is negative.", hlsSegmentDurationSeconds));
+        }
+        this.outputPath = outputPath;
+        this.formatStrategy = hlsSegmentDurationSeconds > 0
+                ? new SegmentAlignedFormatStrategy(formatStrategy, hlsSegmentDurationSeconds) : formatStrategy;
+        this.hlsSegmentDurationSeconds = hlsSegmentDurationSeconds;
+    }
+
+    public String getOutputPath() {
+        return outputPath;
+    }
+
+    public MediaFormatStrategy getFormatStrategy() {
+        return formatStrategy;
+    }
+
+    public boolean isHls() {
+        return hlsSegmentDurationSeconds > 0;
+    }
+
+    public int getHlsSegmentDurationSeconds() {
+        return hlsSegmentDurationSeconds;
+    }
+
+    Muxer createMuxer() throws IOException {
+        if (isHls()) {
+            return new HlsMuxer(new File(outputPath), hlsSegmentDurationSeconds * 1000000L);
+        }
+        return new MediaMuxerWrapper(outputPath);
+    }
+}
@@ -0,0 +1,143 @@
+package com.nagihong.videocompressor.transcoder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Append only column of a sample table, e.g. sample durations or sizes, kept as runs of equal values.
+ * <p>
+ * The latest runs are held in primitive arrays of fixed capacity, older ones are appended to a temp file,
+ * so memory stays the same however many samples a recording has. A constant column, e.g. audio durations,
+ * is a single run and never spills. Runs are read back in order by {@link #forEachRun(RunVisitor)}.
+ */
+class RunLengthTable {
+    static final int DEFAULT_CAPACITY = 1024;
+    // a spilled run is a count and a value
+    private static final int SPILLED_RUN_BYTES = 4 + 8;
+
+    private final File spillDirectory;
+    private final int[] counts;
+    private final long[] values;
+    private int runs;
+    private long totalCount;
+    private long totalRuns;
+
+    private File spillFile;
+    private DataOutputStream spillOutput;
+
+    /**
+     * @param capacity runs held in memory, at least 2 as the last run stays in memory when spilling
+     */
+    RunLengthTable(File spillDirectory, int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException(String.format("capacity %d is less than 2.", capacity));
+        }
+        this.spillDirectory = spillDirectory;
+        counts = new int[capacity];
+        values = new long[capacity];
+    }
+
+    void add(long value) {
+        add(value, 1);
+    }
+
+    void add(long value, int count) {
+        if (count <= 0) return;
+        totalCount += count;
+        int last = runs - 1;
+        if (last >= 0 && values[last] == value && counts[last] <= Integer.MAX_VALUE - count) {
+            counts[last] += count;
+            return;
+        }
+        if (runs == counts.length) spill();
+        counts[runs] = count;
+        values[runs] = value;
+        runs++;
+        totalRuns++;
+    }
+
+    /**
+     * @return number of values added
+     */
+    long getCount() {
+        return totalCount;
+    }
+
+    long getRunCount() {
+        return totalRuns;
+    }
+
+    /**
+     * @return the only value when all are the same, fallback otherwise or when empty
+     */
+    long getConstant(long fallback) {
+        return totalRuns == 1 ? values[0] : fallback;
+    }
+
+    long getLastValue(long fallback) {
+        return runs > 0 ? values[runs - 1] : fallback;
+    }
+
+    void forEachRun(RunVisitor visitor) throws IOException {
+        if (spillOutput != null) {
+            spillOutput.flush();
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)))) {
+                long spilledRuns = totalRuns - runs;
+                for (long i = 0; i < spilledRuns; i++) {
+                    int count = input.readInt();
+                    visitor.visit(count, input.readLong());
+                }
+            }
+        }
+        for (int i = 0; i < runs; i++) {
+            visitor.visit(counts[i], values[i]);
+        }
+    }
+
+    void release() {
+        if (spillOutput != null) {
+            try {
+                spillOutput.close();
+            } catch (IOException e) {
+                // nothing left to write
+            }
+            spillOutput = null;
+        }
+        if (spillFile != null) {
+            //noinspection ResultOfMethodCallIgnored
+            spillFile.delete();
+            spillFile = null;
+        }
+    }
+
+    /**
+     * move all runs but the last one, which may still grow, to the spill file
+     */
+    private void spill() {
+        try {
+            if (spillOutput == null) {
+                spillFile = File.createTempFile("sampletable", ".runs", spillDirectory);
+                spillOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile), SPILLED_RUN_BYTES * 256));
+            }
+            for (int i = 0; i < runs - 1; i++) {
+                spillOutput.writeInt(counts[i]);
+                spillOutput.writeLong(values[i]);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not spill sample table to " + spillDirectory, e);
+        }
+        counts[0] = counts[runs - 1];
+        values[0] = values[runs - 1];
+        runs = 1;
+    }
+
+    interface RunVisitor {
+        void visit(int count, long value) throws IOException;
+    }
+}
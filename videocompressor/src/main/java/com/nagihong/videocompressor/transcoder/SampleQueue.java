@@ -0,0 +1,417 @@
+package com.nagihong.videocompressor.transcoder;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import com.nagihong.videocompressor.utils.ByteBufferPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * FIFO of encoded samples.
+ * <p>
+ * Sample data is copied into direct segments from {@link ByteBufferPool}, a sample never spans two segments,
+ * so every sample can be handed to the muxer as (segment, offset, size) without another copy.
+ * Sample metadata lives in primitive ring arrays instead of one object per sample.
+ * Once the segments reach the memory limit, further samples are appended to a temp file
+ * and read back when they reach the head of the queue.
+ */
+class SampleQueue {
+    private static final String TAG = "SampleQueue";
+    static final int SEGMENT_SIZE = 256 * 1024;
+    static final long DEFAULT_MEMORY_LIMIT = 8 * 1024 * 1024;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int SPILLED = -1;
+
+    private final File spillDirectory;
+    private final long memoryLimit;
+
+    //sample metadata ring
+    private int[] tracks = new int[INITIAL_CAPACITY];
+    private int[] sizes = new int[INITIAL_CAPACITY];
+    private int[] flags = new int[INITIAL_CAPACITY];
+    private long[] presentationTimesUs = new long[INITIAL_CAPACITY];
+    private int[] segmentIds = new int[INITIAL_CAPACITY];
+    private long[] positions = new long[INITIAL_CAPACITY];
+    private int head;
+    private int count;
+    //sequence numbers of the next sample added and of the head, for decode time minimums
+    private long addedSamples;
+    private long removedSamples;
+    private final List<DecodeTimeMinimum> decodeTimeMinimums = new ArrayList<>();
+
+    //segments in use, segmentIds are counted from firstSegmentId
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    private int firstSegmentId;
+    private int tailOffset;
+    private long memoryBytes;
+
+    //spill file
+    private RandomAccessFile spillFile;
+    private File spillPath;
+    private FileChannel spillChannel;
+    private long spillWritePosition;
+    private long spilledBytes;
+    private ByteBuffer readBuffer;
+
+    SampleQueue(File spillDirectory, long memoryLimit) {
+        this.spillDirectory = spillDirectory;
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * copy bufferInfo.size bytes from byteBuf at bufferInfo.offset
+     */
+    void add(int track, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        ensureCapacity();
+        int size = bufferInfo.size;
+        int index = (head + count) % tracks.length;
+        tracks[index] = track;
+        sizes[index] = size;
+        flags[index] = bufferInfo.flags;
+        presentationTimesUs[index] = bufferInfo.presentationTimeUs;
+        if (!isEmptyEndOfStream(index)) {
+            getDecodeTimeMinimum(track).add(addedSamples, bufferInfo.presentationTimeUs);
+        }
+        addedSamples++;
+
+        byteBuf.limit(bufferInfo.offset + size);
+        byteBuf.position(bufferInfo.offset);
+        if (!storeInMemory(index, byteBuf) && !storeInFile(index, byteBuf)) {
+            // never lose a sample, exceed the memory limit instead
+            forceStoreInMemory(index, byteBuf);
+        }
+        count++;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    int peekTrack() {
+        return tracks[head];
+    }
+
+    long peekPresentationTimeUs() {
+        return presentationTimesUs[head];
+    }
+
+    /**
+     * Codecs give no decode time, but samples of a track come in decode order, so the smallest presentation time
+     * from the head on is the earliest the head can be decoded at. Empty end of stream samples have no time.
+     *
+     * @return decode time of the head sample estimated from queued samples of its track,
+     * {@link Long#MAX_VALUE} when only empty end of stream samples are queued
+     */
+    long peekDecodeTimeUs(int track) {
+        return track < decodeTimeMinimums.size() ? decodeTimeMinimums.get(track).get() : Long.MAX_VALUE;
+    }
+
+    private boolean isEmptyEndOfStream(int index) {
+        return sizes[index] == 0 && (flags[index] & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+    }
+
+    int peekFlags() {
+        return flags[head];
+    }
+
+    int peekSize() {
+        return sizes[head];
+    }
+
+    /**
+     * @return buffer holding the head sample, bufferInfo is filled with its offset, size, time and flags.
+     * The buffer is only valid until {@link #remove()}.
+     */
+    ByteBuffer peek(MediaCodec.BufferInfo bufferInfo) {
+        if (count == 0) throw new IllegalStateException("SampleQueue is empty.");
+        int size = sizes[head];
+        ByteBuffer buffer;
+        int offset;
+        if (segmentIds[head] == SPILLED) {
+            buffer = readSpilled(positions[head], size);
+            offset = 0;
+        } else {
+            buffer = segments.get(segmentIds[head] - firstSegmentId);
+            offset = (int) positions[head];
+        }
+        bufferInfo.offset = offset;
+        bufferInfo.size = size;
+        bufferInfo.presentationTimeUs = presentationTimesUs[head];
+        bufferInfo.flags = flags[head];
+        return buffer;
+    }
+
+    void remove() {
+        if (count == 0) throw new IllegalStateException("SampleQueue is empty.");
+        int segmentId = segmentIds[head];
+        if (segmentId == SPILLED) {
+            spilledBytes -= sizes[head];
+        }
+        if (tracks[head] < decodeTimeMinimums.size()) {
+            decodeTimeMinimums.get(tracks[head]).remove(removedSamples);
+        }
+        removedSamples++;
+        head = (head + 1) % tracks.length;
+        count--;
+
+        //recycle segments which no sample refers to anymore
+        if (segmentId != SPILLED && count > 0) {
+            int nextSegmentId = nextInMemorySegmentId();
+            while (firstSegmentId < nextSegmentId) {
+                recycleSegment(segments.remove(0));
+                firstSegmentId++;
+            }
+        } else if (count == 0) {
+            while (!segments.isEmpty()) {
+                recycleSegment(segments.remove(0));
+                firstSegmentId++;
+            }
+            tailOffset = 0;
+            spillWritePosition = 0;
+        }
+    }
+
+    /**
+     * return segments and delete spill file
+     */
+    void release() {
+        head = 0;
+        count = 0;
+        removedSamples = addedSamples;
+        decodeTimeMinimums.clear();
+        for (ByteBuffer segment : segments) {
+            ByteBufferPool.getDefault().release(segment);
+        }
+        segments.clear();
+        memoryBytes = 0;
+        tailOffset = 0;
+        ByteBufferPool.getDefault().release(readBuffer);
+        readBuffer = null;
+        closeSpillFile();
+    }
+
+    //========================= storage ========================================================
+    private boolean storeInMemory(int index, ByteBuffer byteBuf) {
+        int size = byteBuf.remaining();
+        ByteBuffer tail = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (tail == null || tail.capacity() - tailOffset < size) {
+            int capacity = segmentCapacityFor(size);
+            if (memoryBytes + capacity > memoryLimit && !segments.isEmpty()) return false;
+            tail = obtainSegment(capacity);
+            segments.add(tail);
+            tailOffset = 0;
+        }
+        writeToTail(index, tail, byteBuf);
+        return true;
+    }
+
+    private void forceStoreInMemory(int index, ByteBuffer byteBuf) {
+        ByteBuffer tail = obtainSegment(segmentCapacityFor(byteBuf.remaining()));
+        segments.add(tail);
+        tailOffset = 0;
+        writeToTail(index, tail, byteBuf);
+    }
+
+    private void writeToTail(int index, ByteBuffer tail, ByteBuffer byteBuf) {
+        segmentIds[index] = firstSegmentId + segments.size() - 1;
+        positions[index] = tailOffset;
+        tail.clear();
+        tail.position(tailOffset);
+        int size = byteBuf.remaining();
+        tail.put(byteBuf);
+        tailOffset += size;
+    }
+
+    private boolean storeInFile(int index, ByteBuffer byteBuf) {
+        try {
+            if (spillChannel == null) {
+                if (spillDirectory == null) return false;
+                spillPath = File.createTempFile("samples", ".tmp", spillDirectory);
+                spillFile = new RandomAccessFile(spillPath, "rw");
+                spillChannel = spillFile.getChannel();
+                Log.d(TAG, "Spill samples to " + spillPath);
+            }
+            int size = byteBuf.remaining();
+            long position = spillWritePosition;
+            while (byteBuf.hasRemaining()) {
+                spillWritePosition += spillChannel.write(byteBuf, spillWritePosition);
+            }
+            segmentIds[index] = SPILLED;
+            positions[index] = position;
+            spilledBytes += size;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to spill samples, keep them in memory.", e);
+            closeSpillFile();
+            return false;
+        }
+    }
+
+    private ByteBuffer readSpilled(long position, int size) {
+        if (readBuffer == null || readBuffer.capacity() < size) {
+            ByteBufferPool.getDefault().release(readBuffer);
+            readBuffer = ByteBufferPool.getDefault().acquire(segmentCapacityFor(size));
+        }
+        readBuffer.clear();
+        readBuffer.limit(size);
+        try {
+            while (readBuffer.hasRemaining()) {
+                if (spillChannel.read(readBuffer, position + readBuffer.position()) < 0) {
+                    throw new IOException("Unexpected end of spill file.");
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read spilled sample.", e);
+        }
+        readBuffer.flip();
+        return readBuffer;
+    }
+
+    private void closeSpillFile() {
+        if (spillFile != null) {
+            try {
+                spillFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (spillPath != null && !spillPath.delete()) {
+            Log.w(TAG, "Could not delete " + spillPath);
+        }
+        spillFile = null;
+        spillPath = null;
+        spillChannel = null;
+        spillWritePosition = 0;
+        spilledBytes = 0;
+    }
+
+    //========================= segments ========================================================
+    private static int segmentCapacityFor(int size) {
+        if (size <= SEGMENT_SIZE) return SEGMENT_SIZE;
+        return (size + SEGMENT_SIZE - 1) / SEGMENT_SIZE * SEGMENT_SIZE;
+    }
+
+    private ByteBuffer obtainSegment(int capacity) {
+        ByteBuffer segment = ByteBufferPool.getDefault().acquire(capacity);
+        memoryBytes += segment.capacity();
+        return segment;
+    }
+
+    private void recycleSegment(ByteBuffer segment) {
+        memoryBytes -= segment.capacity();
+        ByteBufferPool.getDefault().release(segment);
+    }
+
+    /**
+     * @return id of the oldest segment still referred to, or id past the tail when none is.
+     */
+    private int nextInMemorySegmentId() {
+        for (int i = 0; i < count; i++) {
+            int segmentId = segmentIds[(head + i) % tracks.length];
+            if (segmentId != SPILLED) return segmentId;
+        }
+        return firstSegmentId + segments.size();
+    }
+
+    //========================= decode times ========================================================
+    private DecodeTimeMinimum getDecodeTimeMinimum(int track) {
+        while (decodeTimeMinimums.size() <= track) {
+            decodeTimeMinimums.add(new DecodeTimeMinimum());
+        }
+        return decodeTimeMinimums.get(track);
+    }
+
+    /**
+     * Smallest presentation time of the queued samples of a track, kept as samples are added and removed
+     * instead of scanning the queue: a deque of samples whose times increase, each one smaller than every
+     * sample after it, the first one is the minimum. A sample followed by one not larger is never the minimum
+     * again, so it is dropped when that one is added.
+     */
+    private static class DecodeTimeMinimum {
+        private long[] sequences = new long[INITIAL_CAPACITY];
+        private long[] timesUs = new long[INITIAL_CAPACITY];
+        private int first;
+        private int size;
+
+        void add(long sequence, long timeUs) {
+            while (size > 0 && timesUs[(first + size - 1) % timesUs.length] >= timeUs) size--;
+            if (size == sequences.length) {
+                int capacity = size * 2;
+                long[] grownSequences = new long[capacity];
+                long[] grownTimesUs = new long[capacity];
+                for (int i = 0; i < size; i++) {
+                    grownSequences[i] = sequences[(first + i) % size];
+                    grownTimesUs[i] = timesUs[(first + i) % size];
+                }
+                sequences = grownSequences;
+                timesUs = grownTimesUs;
+                first = 0;
+            }
+            int index = (first + size) % sequences.length;
+            sequences[index] = sequence;
+            timesUs[index] = timeUs;
+            size++;
+        }
+
+        /**
+         * @param sequence of the sample removed from the head of the queue
+         */
+        void remove(long sequence) {
+            if (size > 0 && sequences[first] == sequence) {
+                first = (first + 1) % sequences.length;
+                size--;
+            }
+        }
+
+        long get() {
+            return size == 0 ? Long.MAX_VALUE : timesUs[first];
+        }
+    }
+
+    private void ensureCapacity() {
+        if (count < tracks.length) return;
+        int capacity = tracks.length * 2;
+        tracks = grow(tracks, capacity);
+        sizes = grow(sizes, capacity);
+        flags = grow(flags, capacity);
+        presentationTimesUs = grow(presentationTimesUs, capacity);
+        segmentIds = grow(segmentIds, capacity);
+        positions = grow(positions, capacity);
+        head = 0;
+    }
+
+    // unwrap ring into a larger array, head moves to 0
+    private int[] grow(int[] array, int capacity) {
+        int[] grown = Arrays.copyOf(array, capacity);
+        System.arraycopy(array, head, grown, 0, array.length - head);
+        System.arraycopy(array, 0, grown, array.length - head, head);
+        return grown;
+    }
+
+    private long[] grow(long[] array, int capacity) {
+        long[] grown = Arrays.copyOf(array, capacity);
+        System.arraycopy(array, head, grown, 0, array.length - head);
+        System.arraycopy(array, 0, grown, array.length - head, head);
+        return grown;
+    }
+}
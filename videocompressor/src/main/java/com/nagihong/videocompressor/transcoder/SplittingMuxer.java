@@ -0,0 +1,259 @@
+package com.nagihong.videocompressor.transcoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes MP4 files of at most about {@link #getMaxPartBytes()} each, every part a complete file with its own moov.
+ * Encoders keep running across parts, nothing is encoded twice.
+ * <p>
+ * A new part starts at a video sync sample once the current one plus another GOP as large as the largest so far
+ * would go over the limit, so parts only go over it when a GOP is larger than any before it.
+ * Other tracks keep writing samples before the cut into the previous part, which is finished once all of them passed it.
+ * A sample before the start of the part it would go into is dropped, it comes after its own part was finished,
+ * e.g. by the next cut when its track had not passed the previous one, and times in a part can not go below its start.
+ * Times of every part start at 0. Parts are named by {@link #getPartPath(String, int)}.
+ */
+public class SplittingMuxer implements Muxer {
+    private static final String TAG = "SplittingMuxer";
+    // moov grows by about this much per sample (stsz, stts, stss, stco / stsc), plus a fixed part
+    private static final int MOOV_BYTES_PER_SAMPLE = 16;
+    private static final int MOOV_BYTES = 64 * 1024;
+
+    private final String outputPath;
+    private final long maxPartBytes;
+    private final PartOpener partOpener;
+    private final List<MediaFormat> formats = new ArrayList<>();
+    private final List<String> partPaths = new ArrayList<>();
+    private int rotation;
+    private int leadTrack = -1;
+    private boolean leadVideo;
+
+    private Part current;
+    private Part previous;
+    private long cutUs;
+    private long gopBytes;
+    private long largestGopBytes;
+    private int droppedSamples;
+    private final MediaCodec.BufferInfo rebasedInfo = new MediaCodec.BufferInfo();
+
+    /**
+     * @param outputPath   e.g. /x/video.mp4, parts are /x/video_1.mp4, /x/video_2.mp4 ...
+     * @param maxPartBytes size parts are kept below
+     */
+    public SplittingMuxer(String outputPath, long maxPartBytes) {
+        this(outputPath, maxPartBytes, MediaMuxerWrapper::new);
+    }
+
+    /**
+     * @param partOpener opens the muxer of a part
+     */
+    SplittingMuxer(String outputPath, long maxPartBytes, PartOpener partOpener) {
+        if (maxPartBytes <= MOOV_BYTES) {
+            throw new IllegalArgumentException(String.format("part size %d is too small.", maxPartBytes));
+        }
+        this.outputPath = outputPath;
+        this.maxPartBytes = maxPartBytes;
+        this.partOpener = partOpener;
+    }
+
+    public long getMaxPartBytes() {
+        return maxPartBytes;
+    }
+
+    /**
+     * @return paths of the parts written so far, in order
+     */
+    public List<String> getPartPaths() {
+        return Collections.unmodifiableList(partPaths);
+    }
+
+    /**
+     * @param part starting from 1
+     */
+    public static String getPartPath(String outputPath, int part) {
+        int dot = outputPath.lastIndexOf('.');
+        int slash = outputPath.lastIndexOf('/');
+        if (dot <= slash + 1) return outputPath + "_" + part;
+        return outputPath.substring(0, dot) + "_" + part + outputPath.substring(dot);
+    }
+
+    //========================= Muxer ========================================================
+    @Override
+    public void setOrientationHint(int degrees) {
+        rotation = degrees;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        return addTrack(format, mime != null && mime.startsWith("video/"));
+    }
+
+    int addTrack(MediaFormat format, boolean video) {
+        if (current != null) throw new IllegalStateException("Muxer already started.");
+        formats.add(format);
+        if (leadTrack < 0 && video) leadTrack = formats.size() - 1;
+        return formats.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        if (formats.isEmpty()) throw new IllegalStateException("No track added.");
+        leadVideo = leadTrack >= 0;
+        // without video any sample is a place to cut
+        if (leadTrack < 0) leadTrack = 0;
+        current = openPart(0);
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (current == null) throw new IllegalStateException("Muxer not started.");
+        long timeUs = bufferInfo.presentationTimeUs;
+        if (trackIndex == leadTrack) {
+            if (!leadVideo || (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                largestGopBytes = Math.max(largestGopBytes, gopBytes);
+                if (current.samples > 0 && current.getEstimatedBytes() + largestGopBytes > maxPartBytes) {
+                    rollOver(timeUs);
+                }
+                gopBytes = 0;
+            }
+            gopBytes += bufferInfo.size;
+        }
+        Part part = current;
+        if (trackIndex != leadTrack && previous != null) {
+            if (timeUs < cutUs) {
+                part = previous;
+            } else {
+                previous.passed[trackIndex] = true;
+                finishPreviousIfPassed();
+            }
+        }
+        // its part is finished already, times of a part can not go below its start,
+        // only the first part keeps negative times, e.g. of audio priming, at 0
+        if (timeUs < part.startUs && part.startUs > 0) {
+            droppedSamples++;
+            return;
+        }
+        part.write(trackIndex, byteBuf, bufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        if (droppedSamples > 0) Log.w(TAG, "Dropped " + droppedSamples + " samples before the start of their part.");
+        if (previous != null) {
+            previous.stop();
+            previous = null;
+        }
+        if (current != null) {
+            current.stop();
+        }
+    }
+
+    @Override
+    public void release() {
+        if (previous != null) {
+            previous.release();
+            previous = null;
+        }
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+    }
+
+    //========================= parts ========================================================
+    private void rollOver(long timeUs) {
+        // a track which never got past the cut before the next one, e.g. one that ended, holds nothing more for it
+        if (previous != null) previous.stop();
+        previous = current;
+        previous.passed[leadTrack] = true;
+        cutUs = timeUs;
+        current = openPart(timeUs);
+        Log.v(TAG, "Part " + partPaths.size() + " starts at " + timeUs + "us");
+        finishPreviousIfPassed();
+    }
+
+    private void finishPreviousIfPassed() {
+        for (boolean passed : previous.passed) {
+            if (!passed) return;
+        }
+        previous.stop();
+        previous = null;
+    }
+
+    private Part openPart(long startUs) {
+        String path = getPartPath(outputPath, partPaths.size() + 1);
+        Muxer muxer;
+        try {
+            muxer = partOpener.open(path);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open " + path, e);
+        }
+        partPaths.add(path);
+        muxer.setOrientationHint(rotation);
+        int[] trackIndexes = new int[formats.size()];
+        for (int i = 0; i < trackIndexes.length; i++) {
+            trackIndexes[i] = muxer.addTrack(formats.get(i));
+        }
+        muxer.start();
+        return new Part(muxer, trackIndexes, startUs);
+    }
+
+    interface PartOpener {
+        Muxer open(String path) throws IOException;
+    }
+
+    private class Part {
+        final Muxer muxer;
+        final int[] trackIndexes;
+        final long startUs;
+        final boolean[] passed;
+        long bytes;
+        int samples;
+        boolean stopped;
+        boolean released;
+
+        Part(Muxer muxer, int[] trackIndexes, long startUs) {
+            this.muxer = muxer;
+            this.trackIndexes = trackIndexes;
+            this.startUs = startUs;
+            passed = new boolean[trackIndexes.length];
+        }
+
+        void write(int track, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+            // every part starts at 0
+            rebasedInfo.offset = bufferInfo.offset;
+            rebasedInfo.size = bufferInfo.size;
+            rebasedInfo.presentationTimeUs = Math.max(0, bufferInfo.presentationTimeUs - startUs);
+            rebasedInfo.flags = bufferInfo.flags;
+            muxer.writeSampleData(trackIndexes[track], byteBuf, rebasedInfo);
+            bytes += bufferInfo.size;
+            samples++;
+        }
+
+        long getEstimatedBytes() {
+            return bytes + MOOV_BYTES + (long) samples * MOOV_BYTES_PER_SAMPLE;
+        }
+
+        void stop() {
+            if (stopped) return;
+            stopped = true;
+            muxer.stop();
+            release();
+        }
+
+        void release() {
+            if (released) return;
+            released = true;
+            muxer.release();
+        }
+    }
+}
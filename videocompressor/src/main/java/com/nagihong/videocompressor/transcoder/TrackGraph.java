@@ -0,0 +1,196 @@
+package com.nagihong.videocompressor.transcoder;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import com.nagihong.videocompressor.strategies.MediaFormatStrategy;
+import com.nagihong.videocompressor.trackTranscoder.TrackTranscoder;
+import com.nagihong.videocompressor.utils.MediaExtractorUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Maps every input track to a node which transcodes, passes through or drops it.
+ * <p>
+ * The first video and the first audio track are the primary ones, transcoded when the strategy gives an output format,
+ * passed through otherwise. Other tracks, e.g. a second audio language or timed metadata, are passed through
+ * where MediaMuxer can hold them, so keeping them costs only their bytes of i/o.
+ * A {@link TrackSelector} may override the action of any node.
+ */
+public class TrackGraph {
+    private static final String MIME_PREFIX_VIDEO = "video/";
+    private static final String MIME_PREFIX_AUDIO = "audio/";
+    private static final String MIME_PREFIX_METADATA = "application/";
+
+    private final List<Node> nodes;
+
+    private TrackGraph(List<Node> nodes) {
+        this.nodes = Collections.unmodifiableList(nodes);
+    }
+
+    /**
+     * @param selector may be null to use default actions only
+     * @throws IllegalArgumentException if selector asks to transcode a track which is neither video nor audio
+     */
+    public static TrackGraph create(MediaExtractor extractor, VideoCompressEngine.TrackMode trackMode,
+                                    TrackSelector selector, MediaFormatStrategy formatStrategy) {
+        MediaExtractorUtils.TrackResult trackResult = MediaExtractorUtils.getFirstVideoAndAudioTrack(extractor);
+        List<Node> nodes = new ArrayList<>();
+        int trackCount = extractor.getTrackCount();
+        for (int i = 0; i < trackCount; i++) {
+            boolean primary = i == trackResult.mVideoTrackIndex || i == trackResult.mAudioTrackIndex;
+            MediaFormat format = extractor.getTrackFormat(i);
+            nodes.add(new Node(i, format, format.getString(MediaFormat.KEY_MIME), primary));
+        }
+        return create(nodes, trackMode, selector, formatStrategy, Build.VERSION.SDK_INT);
+    }
+
+    /**
+     * decide the action of nodes read from input
+     */
+    static TrackGraph create(List<Node> nodes, VideoCompressEngine.TrackMode trackMode,
+                             TrackSelector selector, MediaFormatStrategy formatStrategy, int sdkInt) {
+        for (Node node : nodes) {
+            node.action = getDefaultAction(node, trackMode, sdkInt);
+            if (selector != null) {
+                Action selected = selector.select(node);
+                if (selected != null) node.action = selected;
+            }
+            if (node.action == Action.TRANSCODE) {
+                if (!node.isVideo() && !node.isAudio()) {
+                    throw new IllegalArgumentException(String.format("track %d (%s) can not be transcoded, pass it through or drop it.",
+                            node.inputTrack, node.mime));
+                }
+                node.outputFormat = node.isVideo()
+                        ? formatStrategy.createVideoOutputFormat(node.inputFormat)
+                        : formatStrategy.createAudioOutputFormat(node.inputFormat);
+                // strategy asks to keep the input format
+                if (node.outputFormat == null) node.action = Action.PASS_THROUGH;
+            }
+        }
+        return new TrackGraph(nodes);
+    }
+
+    private static Action getDefaultAction(Node node, VideoCompressEngine.TrackMode trackMode, int sdkInt) {
+        switch (trackMode) {
+            case DROP_AUDIO:
+                if (node.isAudio()) return Action.DROP;
+                break;
+            case AUDIO_ONLY:
+                if (!node.isAudio()) return Action.DROP;
+                break;
+        }
+        if (node.primary) return Action.TRANSCODE;
+        return canMuxExtraTrack(node.mime, sdkInt) ? Action.PASS_THROUGH : Action.DROP;
+    }
+
+    private static boolean canMuxExtraTrack(String mime, int sdkInt) {
+        // MediaMuxer takes more than one audio and video track, and metadata tracks, only from api 26
+        if (sdkInt < Build.VERSION_CODES.O) return false;
+        return mime.startsWith(MIME_PREFIX_VIDEO) || mime.startsWith(MIME_PREFIX_AUDIO) || mime.startsWith(MIME_PREFIX_METADATA);
+    }
+
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return nodes which are written to output, in input track order.
+     */
+    public List<Node> getOutputNodes() {
+        List<Node> outputNodes = new ArrayList<>();
+        for (Node node : nodes) {
+            if (node.action != Action.DROP) outputNodes.add(node);
+        }
+        return outputNodes;
+    }
+
+    /**
+     * @return whether output would hold exactly the input tracks unchanged, so input can be copied as is.
+     */
+    public boolean isCopyable() {
+        for (Node node : nodes) {
+            if (node.action != Action.PASS_THROUGH) return false;
+        }
+        return true;
+    }
+
+    public enum Action {TRANSCODE, PASS_THROUGH, DROP}
+
+    public interface TrackSelector {
+        /**
+         * @return action for the input track of node, or null to keep {@link Node#getAction()}.
+         * Only video and audio tracks can be transcoded.
+         */
+        Action select(Node node);
+    }
+
+    public static class Node {
+        private final int inputTrack;
+        private final MediaFormat inputFormat;
+        private final String mime;
+        private final boolean primary;
+        private Action action;
+        private MediaFormat outputFormat;
+        private TrackTranscoder transcoder;
+
+        Node(int inputTrack, MediaFormat inputFormat, String mime, boolean primary) {
+            this.inputTrack = inputTrack;
+            this.inputFormat = inputFormat;
+            this.mime = mime;
+            this.primary = primary;
+        }
+
+        public int getInputTrack() {
+            return inputTrack;
+        }
+
+        public MediaFormat getInputFormat() {
+            return inputFormat;
+        }
+
+        public String getMime() {
+            return mime;
+        }
+
+        /**
+         * @return whether this is the first video or the first audio track of input.
+         */
+        public boolean isPrimary() {
+            return primary;
+        }
+
+        public boolean isVideo() {
+            return mime.startsWith(MIME_PREFIX_VIDEO);
+        }
+
+        public boolean isAudio() {
+            return mime.startsWith(MIME_PREFIX_AUDIO);
+        }
+
+        /**
+         * @return default action while selecting, final action afterwards.
+         */
+        public Action getAction() {
+            return action;
+        }
+
+        /**
+         * @return format asked of the encoder, only set for {@link Action#TRANSCODE}.
+         */
+        public MediaFormat getOutputFormat() {
+            return outputFormat;
+        }
+
+        TrackTranscoder getTranscoder() {
+            return transcoder;
+        }
+
+        void setTranscoder(TrackTranscoder transcoder) {
+            this.transcoder = transcoder;
+        }
+    }
+}
@@ -1,21 +1,26 @@
 package com.nagihong.videocompressor.transcoder;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaMetadataRetriever;
-import android.media.MediaMuxer;
 import android.net.Uri;
 import android.os.Build;
 import android.util.Log;
 
+import com.nagihong.videocompressor.dataSource.CachedRandomAccessSource;
+import com.nagihong.videocompressor.dataSource.FileRandomAccessSource;
+import com.nagihong.videocompressor.dataSource.RandomAccessMediaDataSource;
+import com.nagihong.videocompressor.dataSource.RandomAccessSource;
 import com.nagihong.videocompressor.strategies.MediaFormatStrategy;
 import com.nagihong.videocompressor.trackTranscoder.AudioTrackTranscoder;
+import com.nagihong.videocompressor.trackTranscoder.ByteBufferVideoTrackTranscoder;
 import com.nagihong.videocompressor.trackTranscoder.PassThroughTrackTranscoder;
+import com.nagihong.videocompressor.trackTranscoder.RenditionVideoTrackTranscoder;
 import com.nagihong.videocompressor.trackTranscoder.TrackTranscoder;
 import com.nagihong.videocompressor.trackTranscoder.VideoTrackTranscoder;
-import com.nagihong.videocompressor.utils.FileUtils;
-import com.nagihong.videocompressor.utils.MediaExtractorUtils;
+import com.nagihong.videocompressor.utils.FileIOUtils;
 
 import java.io.File;
 import java.io.FileDescriptor;
@@ -23,6 +28,9 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 // TODO: treat encrypted data
 public class VideoCompressEngine {
@@ -33,17 +41,42 @@ public class VideoCompressEngine {
     private static final long PROGRESS_INTERVAL_STEPS = 10;
     private volatile double progress;
     private long durationUS;
+    // from metadata, -1 when unknown
+    private int rotation = -1;
 
     //parameters
     private FileDescriptor inputFileDescriptor;
+    private RandomAccessSource inputSource;
     private String inputPath;
     private String outputPath;
+    private File cacheDirectory;
 
     private static final long SLEEP_TO_WAIT_TRACK_TRANSCODERS = 10;
-    private TrackTranscoder videoTrackTranscoder;
-    private TrackTranscoder audioTrackTranscoder;
+    private long interleaveChunkDurationUs;
+    private boolean asyncMuxing;
+    private long muxerBufferMemoryLimit = SampleQueue.DEFAULT_MEMORY_LIMIT;
+    private boolean cachedInput = true;
+    private boolean audioFloatDecoding;
+    private boolean cpuVideoScaling;
+    private long maxPartBytes;
+    private boolean streamingMp4Muxer;
+    private MemoryBudget memoryBudget;
+    // estimated footprint of the running transcoding acquired from memoryBudget, -1 when none
+    private long admittedBytes = -1;
+    private ConcurrencyController concurrencyController;
+    private boolean concurrencyAcquired;
+    // frames of transcoded video tracks, per rendition then output track, counted for concurrencyController
+    private final List<int[]> encodedVideoTracks = new ArrayList<>();
+    private long reportedEncodedFrames;
+    private final List<String> outputPaths = new ArrayList<>();
+    private TrackMode trackMode = TrackMode.ALL;
+    private TrackGraph.TrackSelector trackSelector;
+    private TrackGraph trackGraph;
+    private final List<TrackTranscoder> trackTranscoders = new ArrayList<>();
     private MediaExtractor extractor;
-    private MediaMuxer muxer;
+    // one muxer per rendition, the first one gets audio and other tracks, mirrored to the others
+    private final List<Muxer> muxers = new ArrayList<>();
+    private final List<QueuedMuxer> queuedMuxers = new ArrayList<>();
     private ProgressCallback progressCallback;
 
     /**
@@ -69,21 +102,142 @@ public class VideoCompressEngine {
      */
     public void transcodeVideo(Context context, String inputPath, String outputPath, MediaFormatStrategy formatStrategy) throws IOException, InterruptedException {
         setup(context, inputPath, outputPath);
-        //start transcoding
+        openExtractor();
+        transcode(Collections.singletonList(new Rendition(outputPath, formatStrategy)));
+    }
+
+    /**
+     * Transcode input into several renditions at once, e.g. a 720p upload copy and a 360p preview.
+     * Input is demuxed and decoded once, every rendition has its own video encoder and output file.
+     * Audio and other tracks are transcoded or passed through once, as the first rendition's strategy says,
+     * and written to every output. Blocks current thread.
+     *
+     * @param renditions every strategy must return a video output format, unless input has no video
+     * @throws IOException                  when input or output file could not be opened.
+     * @throws InvalidOutputFormatException when output format is not supported.
+     * @throws InterruptedException         when cancel to transcode.
+     */
+    public void transcodeRenditions(Context context, String inputPath, List<Rendition> renditions) throws IOException, InterruptedException {
+        if (null == renditions || renditions.isEmpty()) {
+            throw new IllegalArgumentException("No rendition to transcode.");
+        }
+        setup(context, inputPath, renditions.get(0).getOutputPath());
+        openExtractor();
+        transcode(renditions);
+    }
+
+    /**
+     * Transcode input into HLS, fragmented MP4 segments and a playlist written to outputDirectory as they are encoded,
+     * see {@link HlsMuxer}. Only the first video and audio track are kept, they must be H.264 and AAC.
+     * Blocks current thread.
+     *
+     * @param segmentDurationSeconds target segment duration, the key frame interval is aligned to it
+     */
+    public void transcodeHls(Context context, String inputPath, String outputDirectory, int segmentDurationSeconds,
+                             MediaFormatStrategy formatStrategy) throws IOException, InterruptedException {
+        if (segmentDurationSeconds <= 0) {
+            throw new IllegalArgumentException(String.format("segment duration %d is not positive.", segmentDurationSeconds));
+        }
+        transcodeRenditions(context, inputPath, Collections.singletonList(new Rendition(outputDirectory, formatStrategy, segmentDurationSeconds)));
+    }
+
+    private void openExtractor() throws IOException {
+        extractor = new MediaExtractor(); // NOTE: use single extractor to keep from running out audio track fast.
+        if (cachedInput && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // large sequential reads instead of one syscall per sample, released along with extractor
+            inputSource = new CachedRandomAccessSource(new FileRandomAccessSource(inputFileDescriptor));
+            extractor.setDataSource(new RandomAccessMediaDataSource(inputSource));
+        } else {
+            extractor.setDataSource(inputFileDescriptor);
+        }
+    }
+
+    /**
+     * Same as {@link #transcodeVideo(Context, String, String, MediaFormatStrategy)}, but read input from a source,
+     * e.g. {@link com.nagihong.videocompressor.dataSource.HttpRangeSource#cached(String)}, so only demuxed bytes are fetched.
+     * Input source is not closed.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    public void transcodeVideo(Context context, RandomAccessSource inputSource, String outputPath, MediaFormatStrategy formatStrategy) throws IOException, InterruptedException {
+        if (null == inputSource) {
+            throw new NullPointerException("Input source cannot be null.");
+        }
+        if (null == outputPath) {
+            throw new NullPointerException("Output path cannot be null.");
+        }
+        this.inputSource = inputSource;
+        // left from a previous call on a path, they would be read for metadata or copied instead of the source
+        this.inputFileDescriptor = null;
+        this.inputPath = null;
+        this.outputPath = outputPath;
+        this.cacheDirectory = context.getCacheDir();
         extractor = new MediaExtractor(); // NOTE: use single extractor to keep from running out audio track fast.
-        extractor.setDataSource(inputFileDescriptor);
-        muxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-        readMetaData();
-        if (setupTrackTranscoders(formatStrategy)) {
+        extractor.setDataSource(new RandomAccessMediaDataSource(inputSource, false));
+        transcode(Collections.singletonList(new Rendition(outputPath, formatStrategy)));
+    }
+
+    private void transcode(List<Rendition> renditions) throws IOException, InterruptedException {
+        outputPaths.clear();
+        reportedEncodedFrames = 0;
+        try {
+            readMetaData();
+            createTrackGraph(renditions);
+            if (renditions.size() == 1 && !isHls(renditions) && maxPartBytes <= 0 && trackGraph.isCopyable()) {
+                //our project want the output file when no need to transcode, no muxer is created on it
+                copyInput();
+                outputPaths.add(outputPath);
+                return;
+            }
+            admit(renditions);
+            for (Rendition rendition : renditions) {
+                Muxer muxer = createMuxer(rendition);
+                muxers.add(muxer);
+                if (rotation >= 0) muxer.setOrientationHint(rotation);
+            }
+            setupTrackTranscoders(renditions);
             runPipelines();
+            for (QueuedMuxer queuedMuxer : queuedMuxers) {
+                queuedMuxer.flush();
+            }
+            for (int i = 0; i < muxers.size(); i++) {
+                Muxer muxer = muxers.get(i);
+                muxer.stop();
+                if (muxer instanceof SplittingMuxer) {
+                    outputPaths.addAll(((SplittingMuxer) muxer).getPartPaths());
+                } else {
+                    outputPaths.add(renditions.get(i).getOutputPath());
+                }
+            }
+        } finally {
+            // failed or cancelled as well, codecs, writer thread, temp files and pooled buffers must not leak
+            try {
+                release();
+            } finally {
+                // freed only now that codecs and buffers are, and other jobs must not wait for a failed release either
+                if (admittedBytes >= 0) {
+                    memoryBudget.release(admittedBytes);
+                    admittedBytes = -1;
+                }
+                if (concurrencyAcquired) {
+                    concurrencyController.release();
+                    concurrencyAcquired = false;
+                }
+                encodedVideoTracks.clear();
+            }
         }
-        muxer.stop();
-        release();
+    }
+
+    private Muxer createMuxer(Rendition rendition) throws IOException {
+        if (rendition.isHls()) return rendition.createMuxer();
+        if (maxPartBytes > 0) return new SplittingMuxer(rendition.getOutputPath(), maxPartBytes);
+        if (streamingMp4Muxer) return new Mp4Muxer(rendition.getOutputPath(), cacheDirectory);
+        return rendition.createMuxer();
     }
 
     private void setup(Context context, String inputPath, String outputPath) {
         this.inputPath = inputPath;
         this.outputPath = outputPath;
+        this.cacheDirectory = context.getCacheDir();
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
             Uri uri = Uri.parse(new File(inputPath).toURI().toString());
@@ -116,13 +270,17 @@ public class VideoCompressEngine {
 
     private void readMetaData() throws IOException {
         MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
-        mediaMetadataRetriever.setDataSource(inputFileDescriptor);
+        if (null != inputFileDescriptor) {
+            mediaMetadataRetriever.setDataSource(inputFileDescriptor);
+        } else {
+            mediaMetadataRetriever.setDataSource(new RandomAccessMediaDataSource(inputSource, false));
+        }
 
         String rotationString = mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION);
         try {
-            muxer.setOrientationHint(Integer.parseInt(rotationString));
+            rotation = Integer.parseInt(rotationString);
         } catch (NumberFormatException e) {
-            // skip
+            rotation = -1;
         }
 
         try {
@@ -135,42 +293,177 @@ public class VideoCompressEngine {
     }
 
     /**
-     * @return whether keep going compressing
+     * every input track is transcoded, passed through or dropped, a dropped track gets no codec and no muxer track
      */
-    private boolean setupTrackTranscoders(MediaFormatStrategy formatStrategy) {
-        QueuedMuxer queuedMuxer = new QueuedMuxer(muxer, () -> {
-            MediaFormatValidator.validateVideoOutputFormat(videoTrackTranscoder.getDeterminedFormat());
-            MediaFormatValidator.validateAudioOutputFormat(audioTrackTranscoder.getDeterminedFormat());
-        });
-
-        //read
-        MediaExtractorUtils.TrackResult trackResult = MediaExtractorUtils.getFirstVideoAndAudioTrack(extractor);
-        MediaFormat videoOutputFormat = formatStrategy.createVideoOutputFormat(trackResult.mVideoTrackFormat);
-        MediaFormat audioOutputFormat = formatStrategy.createAudioOutputFormat(trackResult.mAudioTrackFormat);
-        if (videoOutputFormat == null && audioOutputFormat == null) {
-            //our project want the output file when no need to transcode
-            FileUtils.copyFile(inputPath, outputPath);
-            return false;
+    private void createTrackGraph(List<Rendition> renditions) {
+        TrackGraph.TrackSelector selector = trackSelector;
+        if (isHls(renditions)) {
+            // segments hold the primary h.264 and aac tracks only
+            selector = node -> !node.isPrimary() ? TrackGraph.Action.DROP : trackSelector == null ? null : trackSelector.select(node);
+        }
+        trackGraph = TrackGraph.create(extractor, trackMode, selector, renditions.get(0).getFormatStrategy());
+        if (trackGraph.getOutputNodes().isEmpty()) {
+            throw new IllegalArgumentException(String.format("input has no track to output in mode %s.", trackMode));
         }
+    }
 
-        //deal output format
-        if (videoOutputFormat == null) {
-            videoTrackTranscoder = new PassThroughTrackTranscoder(extractor, trackResult.mVideoTrackIndex, queuedMuxer, QueuedMuxer.SampleType.VIDEO);
-        } else {
-            videoTrackTranscoder = new VideoTrackTranscoder(extractor, trackResult.mVideoTrackIndex, videoOutputFormat, queuedMuxer);
+    private static boolean isHls(List<Rendition> renditions) {
+        for (Rendition rendition : renditions) {
+            if (rendition.isHls()) return true;
         }
-        videoTrackTranscoder.setup();
-        if (audioOutputFormat == null) {
-            audioTrackTranscoder = new PassThroughTrackTranscoder(extractor, trackResult.mAudioTrackIndex, queuedMuxer, QueuedMuxer.SampleType.AUDIO);
+        return false;
+    }
+
+    /**
+     * @throws IOException          when input could not be copied.
+     * @throws InterruptedException when cancel to copy.
+     */
+    private void copyInput() throws IOException, InterruptedException {
+        FileIOUtils.CopyListener copyListener = (copiedBytes, totalBytes) -> {
+            if (null != progressCallback) {
+                progressCallback.onProgress(totalBytes > 0 ? (double) copiedBytes / totalBytes : PROGRESS_UNKNOWN);
+            }
+            return !Thread.currentThread().isInterrupted();
+        };
+        boolean copied;
+        if (null != inputPath) {
+            // replaces an existing output, as muxers do
+            copied = FileIOUtils.copyFileByChannel(new File(inputPath), new File(outputPath), null, copyListener);
         } else {
-            audioTrackTranscoder = new AudioTrackTranscoder(extractor, trackResult.mAudioTrackIndex, audioOutputFormat, queuedMuxer);
+            copied = FileIOUtils.writeFileFromSource(new File(outputPath), inputSource, copyListener);
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException("Copying input was cancelled.");
         }
-        audioTrackTranscoder.setup();
+        if (!copied) {
+            throw new IOException("Could not copy input to " + outputPath);
+        }
+    }
 
-        //select source track
-        extractor.selectTrack(trackResult.mVideoTrackIndex);
-        extractor.selectTrack(trackResult.mAudioTrackIndex);
-        return true;
+    /**
+     * wait for a turn and for memory of codecs and buffers before creating any of them or opening output files,
+     * released in {@link #transcode(List)} after {@link #release()}
+     */
+    private void admit(List<Rendition> renditions) throws InterruptedException {
+        if (null != concurrencyController) {
+            concurrencyController.acquire();
+            concurrencyAcquired = true;
+        }
+        if (null != memoryBudget) {
+            long bytes = estimateMemoryBytes(renditions, trackGraph.getOutputNodes());
+            Log.d(TAG, "Estimated memory (bytes): " + bytes);
+            memoryBudget.acquire(bytes);
+            admittedBytes = bytes;
+        }
+    }
+
+    private void setupTrackTranscoders(List<Rendition> renditions) {
+        for (int i = 0; i < renditions.size(); i++) {
+            final int rendition = i;
+            QueuedMuxer queuedMuxer = new QueuedMuxer(muxers.get(i), () -> {
+                for (TrackGraph.Node node : trackGraph.getOutputNodes()) {
+                    if (!node.isPrimary()) continue;
+                    if (node.getTranscoder() instanceof RenditionVideoTrackTranscoder) {
+                        MediaFormatValidator.validateVideoOutputFormat(((RenditionVideoTrackTranscoder) node.getTranscoder()).getDeterminedFormat(rendition));
+                    } else if (node.isVideo()) {
+                        MediaFormatValidator.validateVideoOutputFormat(node.getTranscoder().getDeterminedFormat());
+                    } else {
+                        MediaFormatValidator.validateAudioOutputFormat(node.getTranscoder().getDeterminedFormat());
+                    }
+                }
+            });
+            queuedMuxer.setSpillDirectory(cacheDirectory);
+            queuedMuxer.setInterleaveChunkDurationUs(interleaveChunkDurationUs);
+            queuedMuxer.setAsyncWriting(asyncMuxing);
+            queuedMuxer.setBufferMemoryLimit(muxerBufferMemoryLimit);
+            queuedMuxers.add(queuedMuxer);
+        }
+        QueuedMuxer queuedMuxer = queuedMuxers.get(0);
+        List<TrackGraph.Node> outputNodes = trackGraph.getOutputNodes();
+
+        //reserve every output track first, so muxer does not start before all of them have a format
+        int[][] renditionTracks = new int[renditions.size()][outputNodes.size()];
+        for (int r = 0; r < renditions.size(); r++) {
+            for (int i = 0; i < outputNodes.size(); i++) {
+                renditionTracks[r][i] = queuedMuxers.get(r).addTrack();
+            }
+        }
+        int[] outputTracks = renditionTracks[0];
+
+        //deal output format
+        for (int i = 0; i < outputTracks.length; i++) {
+            TrackGraph.Node node = outputNodes.get(i);
+            TrackTranscoder transcoder;
+            boolean perRendition = renditions.size() > 1 && node.isVideo() && node.getAction() == TrackGraph.Action.TRANSCODE;
+            if (!perRendition) {
+                //written once, into every output
+                //mirror before the transcoder is created, pass-through sets its format right away
+                for (int r = 1; r < renditions.size(); r++) {
+                    queuedMuxer.mirrorTrack(outputTracks[i], queuedMuxers.get(r), renditionTracks[r][i]);
+                }
+            }
+            if (perRendition) {
+                //one decoder, an encoder per rendition
+                RenditionVideoTrackTranscoder renditionTranscoder = new RenditionVideoTrackTranscoder(extractor, node.getInputTrack(), cpuVideoScaling);
+                for (int r = 0; r < renditions.size(); r++) {
+                    MediaFormat outputFormat = r == 0 ? node.getOutputFormat()
+                            : renditions.get(r).getFormatStrategy().createVideoOutputFormat(node.getInputFormat());
+                    if (outputFormat == null) {
+                        throw new IllegalArgumentException(String.format("rendition %d has no video output format, every rendition must transcode video.", r));
+                    }
+                    renditionTranscoder.addRendition(outputFormat, queuedMuxers.get(r), renditionTracks[r][i]);
+                }
+                transcoder = renditionTranscoder;
+            } else if (node.getAction() == TrackGraph.Action.PASS_THROUGH) {
+                transcoder = new PassThroughTrackTranscoder(extractor, node.getInputTrack(), queuedMuxer, outputTracks[i]);
+            } else if (node.isVideo() && cpuVideoScaling) {
+                transcoder = new ByteBufferVideoTrackTranscoder(extractor, node.getInputTrack(), node.getOutputFormat(), queuedMuxer, outputTracks[i]);
+            } else if (node.isVideo()) {
+                transcoder = new VideoTrackTranscoder(extractor, node.getInputTrack(), node.getOutputFormat(), queuedMuxer, outputTracks[i]);
+            } else {
+                AudioTrackTranscoder audioTranscoder = new AudioTrackTranscoder(extractor, node.getInputTrack(), node.getOutputFormat(), queuedMuxer, outputTracks[i]);
+                audioTranscoder.setFloatDecoding(audioFloatDecoding);
+                transcoder = audioTranscoder;
+            }
+            if (node.isVideo() && node.getAction() == TrackGraph.Action.TRANSCODE) {
+                int renditionCount = perRendition ? renditions.size() : 1;
+                for (int r = 0; r < renditionCount; r++) {
+                    encodedVideoTracks.add(new int[]{r, renditionTracks[r][i]});
+                }
+            }
+            node.setTranscoder(transcoder);
+            trackTranscoders.add(transcoder);
+            transcoder.setup();
+        }
+
+        //select source track, the extractor skips samples of unselected tracks
+        for (TrackGraph.Node node : outputNodes) {
+            extractor.selectTrack(node.getInputTrack());
+        }
+    }
+
+    /**
+     * @return rough footprint of codecs, surfaces and buffers of the output tracks, see {@link MemoryBudget}
+     */
+    private long estimateMemoryBytes(List<Rendition> renditions, List<TrackGraph.Node> outputNodes) {
+        long bytes = 0;
+        for (TrackGraph.Node node : outputNodes) {
+            if (node.getAction() == TrackGraph.Action.PASS_THROUGH) {
+                bytes += MemoryBudget.estimatePassThroughBytes(node.getInputFormat());
+            } else if (node.isVideo()) {
+                bytes += MemoryBudget.estimateDecoderBytes(node.getInputFormat());
+                bytes += MemoryBudget.estimateEncoderBytes(node.getOutputFormat(), !cpuVideoScaling);
+                for (int r = 1; r < renditions.size(); r++) {
+                    MediaFormat outputFormat = renditions.get(r).getFormatStrategy().createVideoOutputFormat(node.getInputFormat());
+                    if (outputFormat != null) bytes += MemoryBudget.estimateEncoderBytes(outputFormat, !cpuVideoScaling);
+                }
+            } else {
+                bytes += MemoryBudget.estimateAudioTranscodeBytes();
+            }
+        }
+        // samples queued before muxers start, and on the writer thread
+        bytes += renditions.size() * muxerBufferMemoryLimit * (asyncMuxing ? 2 : 1);
+        return bytes;
     }
 
     private void runPipelines() throws InterruptedException {
@@ -180,11 +473,14 @@ public class VideoCompressEngine {
             loopCount++;
 
             calculateProgress(loopCount);
+            reportEncodedFrames(loopCount);
             //sleep to retry again
             if (!stepped) {
                 Thread.sleep(SLEEP_TO_WAIT_TRACK_TRANSCODERS);
             }
         }
+        // frames since the last report
+        reportEncodedFrames(0);
     }
 
     //========================= getters and setters ========================================================
@@ -196,13 +492,168 @@ public class VideoCompressEngine {
         this.progressCallback = progressCallback;
     }
 
+    public long getInterleaveChunkDurationUs() {
+        return interleaveChunkDurationUs;
+    }
+
+    /**
+     * @param interleaveChunkDurationUs duration of audio or video written to output in one run, e.g. 500 ms,
+     *                                  0 to write samples as encoded, the default. Held back samples are copied once more.
+     */
+    public void setInterleaveChunkDurationUs(long interleaveChunkDurationUs) {
+        this.interleaveChunkDurationUs = interleaveChunkDurationUs;
+    }
+
+    public boolean isAsyncMuxing() {
+        return asyncMuxing;
+    }
+
+    /**
+     * @param asyncMuxing write output file on a dedicated thread, so storage latency does not stall codecs.
+     */
+    public void setAsyncMuxing(boolean asyncMuxing) {
+        this.asyncMuxing = asyncMuxing;
+    }
+
+    public long getMuxerBufferMemoryLimit() {
+        return muxerBufferMemoryLimit;
+    }
+
+    /**
+     * @param muxerBufferMemoryLimit direct memory per output for samples held back before its muxer starts,
+     *                               for interleaving or async writing, more spills to a temp file in the cache directory.
+     */
+    public void setMuxerBufferMemoryLimit(long muxerBufferMemoryLimit) {
+        this.muxerBufferMemoryLimit = muxerBufferMemoryLimit;
+    }
+
+    public boolean isCachedInput() {
+        return cachedInput;
+    }
+
+    /**
+     * @param cachedInput read input through a block cache with read-ahead, only used on api &gt;= 23.
+     */
+    public void setCachedInput(boolean cachedInput) {
+        this.cachedInput = cachedInput;
+    }
+
+    public boolean isAudioFloatDecoding() {
+        return audioFloatDecoding;
+    }
+
+    /**
+     * @param audioFloatDecoding ask the audio decoder for float pcm on api &gt;= 24, faster on some devices' DSPs.
+     */
+    public void setAudioFloatDecoding(boolean audioFloatDecoding) {
+        this.audioFloatDecoding = audioFloatDecoding;
+    }
+
+    public boolean isCpuVideoScaling() {
+        return cpuVideoScaling;
+    }
+
+    /**
+     * @param cpuVideoScaling scale decoded frames in memory with {@link com.nagihong.videocompressor.videoProcessor.YuvScaler}
+     *                        instead of through GL surfaces, for devices where EGL is broken.
+     */
+    public void setCpuVideoScaling(boolean cpuVideoScaling) {
+        this.cpuVideoScaling = cpuVideoScaling;
+    }
+
+    public long getMaxPartBytes() {
+        return maxPartBytes;
+    }
+
+    /**
+     * @param maxPartBytes split mp4 output into files of about this size, cut at key frames, see {@link SplittingMuxer}.
+     *                     0 for a single file. Parts are listed by {@link #getOutputPaths()}.
+     */
+    public void setMaxPartBytes(long maxPartBytes) {
+        this.maxPartBytes = maxPartBytes;
+    }
+
+    public boolean isStreamingMp4Muxer() {
+        return streamingMp4Muxer;
+    }
+
+    /**
+     * @param streamingMp4Muxer write mp4 output with {@link Mp4Muxer} instead of MediaMuxer, its sample tables take
+     *                          the same memory however long input is, e.g. for hours of dashcam recording.
+     *                          Only h.264 and aac tracks without b-frames.
+     */
+    public void setStreamingMp4Muxer(boolean streamingMp4Muxer) {
+        this.streamingMp4Muxer = streamingMp4Muxer;
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @param memoryBudget shared by engines running at the same time, each waits before creating codecs until its
+     *                     estimated footprint fits. null to start right away.
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public ConcurrencyController getConcurrencyController() {
+        return concurrencyController;
+    }
+
+    /**
+     * @param concurrencyController shared by engines running at the same time, each waits for a turn before creating
+     *                              codecs and reports its encoded frames to it. null to start right away.
+     */
+    public void setConcurrencyController(ConcurrencyController concurrencyController) {
+        this.concurrencyController = concurrencyController;
+    }
+
+    /**
+     * @return files or hls directories written by the last transcoding, in order
+     */
+    public List<String> getOutputPaths() {
+        return Collections.unmodifiableList(outputPaths);
+    }
+
+    public TrackMode getTrackMode() {
+        return trackMode;
+    }
+
+    /**
+     * @param trackMode which input tracks go to output, dropped tracks are never decoded.
+     */
+    public void setTrackMode(TrackMode trackMode) {
+        this.trackMode = trackMode;
+    }
+
+    public TrackGraph.TrackSelector getTrackSelector() {
+        return trackSelector;
+    }
+
+    /**
+     * @param trackSelector overrides whether each input track is transcoded, passed through or dropped, applied after trackMode.
+     */
+    public void setTrackSelector(TrackGraph.TrackSelector trackSelector) {
+        this.trackSelector = trackSelector;
+    }
+
     private boolean isFinished() {
-        return videoTrackTranscoder.isFinished() && audioTrackTranscoder.isFinished();
+        for (TrackTranscoder transcoder : trackTranscoders) {
+            if (!transcoder.isFinished()) return false;
+        }
+        return true;
     }
 
     //========================= 其他业务 ========================================================
     private boolean stepPipeline() {
-        return videoTrackTranscoder.stepPipeline() || audioTrackTranscoder.stepPipeline();
+        boolean stepped = false;
+        // every track is stepped, a passed through track must take its samples off the shared extractor for others to go on
+        for (TrackTranscoder transcoder : trackTranscoders) {
+            stepped |= transcoder.stepPipeline();
+        }
+        return stepped;
     }
 
     private void calculateProgress(long loopCount) {
@@ -210,41 +661,70 @@ public class VideoCompressEngine {
             if (durationUS <= 0) {
                 this.progress = PROGRESS_UNKNOWN;
             } else {
-                double videoProgress = videoTrackTranscoder.isFinished() ? 1.0 : Math.min(1.0, (double) videoTrackTranscoder.getWrittenPresentationTimeUs() / durationUS);
-                double audioProgress = audioTrackTranscoder.isFinished() ? 1.0 : Math.min(1.0, (double) audioTrackTranscoder.getWrittenPresentationTimeUs() / durationUS);
-                this.progress = (videoProgress + audioProgress) / 2.0;
+                double sum = 0;
+                for (TrackTranscoder transcoder : trackTranscoders) {
+                    sum += transcoder.isFinished() ? 1.0 : Math.min(1.0, (double) transcoder.getWrittenPresentationTimeUs() / durationUS);
+                }
+                this.progress = sum / trackTranscoders.size();
             }
             progressCallback.onProgress(progress);
         }
     }
 
+    private void reportEncodedFrames(long loopCount) {
+        if (null == concurrencyController || encodedVideoTracks.isEmpty() || loopCount % PROGRESS_INTERVAL_STEPS != 0) return;
+        long frames = 0;
+        for (int[] track : encodedVideoTracks) {
+            frames += queuedMuxers.get(track[0]).getWrittenSampleCount(track[1]);
+        }
+        concurrencyController.addEncodedFrames(frames - reportedEncodedFrames);
+        reportedEncodedFrames = frames;
+    }
+
     private void release() {
         try {
-            if (videoTrackTranscoder != null) {
-                videoTrackTranscoder.release();
-                videoTrackTranscoder = null;
-            }
-            if (audioTrackTranscoder != null) {
-                audioTrackTranscoder.release();
-                audioTrackTranscoder = null;
+            for (TrackTranscoder transcoder : trackTranscoders) {
+                transcoder.release();
             }
+            trackTranscoders.clear();
+            trackGraph = null;
             if (extractor != null) {
                 extractor.release();
                 extractor = null;
             }
+            inputSource = null;
+            for (QueuedMuxer queuedMuxer : queuedMuxers) {
+                queuedMuxer.release();
+            }
+            queuedMuxers.clear();
         } catch (RuntimeException e) {
             // Too fatal to make alive the app, because it may leak native resources.
             //noinspection ThrowFromFinallyBlock
             throw new Error("Could not shutdown extractor, codecs and muxer pipeline.", e);
         }
-        try {
-            if (muxer != null) {
+        for (Muxer muxer : muxers) {
+            try {
                 muxer.release();
-                muxer = null;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to release muxer.", e);
             }
-        } catch (RuntimeException e) {
-            Log.e(TAG, "Failed to release muxer.", e);
         }
+        muxers.clear();
+    }
+
+    public enum TrackMode {
+        /**
+         * every track found in input, input may miss video or audio
+         */
+        ALL,
+        /**
+         * audio tracks are dropped without being read
+         */
+        DROP_AUDIO,
+        /**
+         * audio tracks only, passed through at i/o speed unless the strategy asks for an audio format
+         */
+        AUDIO_ONLY
     }
 
     public interface ProgressCallback {
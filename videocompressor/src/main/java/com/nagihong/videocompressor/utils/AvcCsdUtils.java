@@ -26,7 +26,14 @@ public class AvcCsdUtils {
      * @return ByteBuffer contains SPS without NAL header.
      */
     public static ByteBuffer getSpsBuffer(MediaFormat format) {
-        ByteBuffer sourceBuffer = format.getByteBuffer(MediaFormatExtraConstants.KEY_AVC_SPS).asReadOnlyBuffer(); // might be direct buffer
+        return getSpsBuffer(format.getByteBuffer(MediaFormatExtraConstants.KEY_AVC_SPS));
+    }
+
+    /**
+     * @param csd csd-0 of an h.264 track, start code and sps
+     */
+    static ByteBuffer getSpsBuffer(ByteBuffer csd) {
+        ByteBuffer sourceBuffer = csd.asReadOnlyBuffer(); // might be direct buffer
         ByteBuffer prefixedSpsBuffer = ByteBuffer.allocate(sourceBuffer.limit()).order(sourceBuffer.order());
         prefixedSpsBuffer.put(sourceBuffer);
         prefixedSpsBuffer.flip();
@@ -41,6 +48,29 @@ public class AvcCsdUtils {
         return prefixedSpsBuffer.slice();
     }
 
+    /**
+     * @return whether both formats carry the same codec config, csd-0 and csd-1 (sps and pps of h.264) byte for byte,
+     * so samples of one can be decoded with the config of the other.
+     */
+    public static boolean hasSameCsd(MediaFormat format, MediaFormat other) {
+        return isSameBuffer(format, other, MediaFormatExtraConstants.KEY_AVC_SPS)
+                && isSameBuffer(format, other, MediaFormatExtraConstants.KEY_AVC_PPS);
+    }
+
+    private static boolean isSameBuffer(MediaFormat format, MediaFormat other, String key) {
+        return isSameBuffer(format.containsKey(key) ? format.getByteBuffer(key) : null,
+                other.containsKey(key) ? other.getByteBuffer(key) : null);
+    }
+
+    /**
+     * @param buffer null when the format has none
+     */
+    static boolean isSameBuffer(ByteBuffer buffer, ByteBuffer other) {
+        if (buffer == null || other == null) return buffer == other;
+        // equals compares remaining bytes only, positions are kept
+        return buffer.equals(other);
+    }
+
     //与其说是skip，不如说是过滤startCode不满足条件的buffer
     private static void skipStartCode(ByteBuffer prefixedSpsBuffer) {
         byte[] prefix3 = new byte[3];
@@ -0,0 +1,188 @@
+package com.nagihong.videocompressor.utils;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Thread safe pool of direct buffers, in power of two size classes from {@value #MIN_CLASS_BYTES} bytes
+ * to {@value #MAX_CLASS_BYTES} bytes, so jobs run one after another reuse native memory instead of allocating
+ * it again and waiting for GC to free it. Larger buffers are allocated as asked and never pooled.
+ * <p>
+ * Every {@link #acquire(int)} must be paired with a {@link #release(ByteBuffer)} once nothing refers to the buffer
+ * anymore, views like {@link ByteBuffer#asShortBuffer()} included. Turn on {@link #setLeakTracking(boolean)}
+ * in debug builds to catch buffers released twice and to log where leaked ones were acquired, for the default pool
+ * through {@link com.nagihong.videocompressor.VideoCompressor#setBufferLeakTracking(boolean)}.
+ */
+public class ByteBufferPool {
+    private static final String TAG = "ByteBufferPool";
+    static final int MIN_CLASS_BYTES = 4 * 1024;
+    static final int MAX_CLASS_BYTES = 8 * 1024 * 1024;
+    private static final int MIN_CLASS_SHIFT = 12;
+    private static final int CLASS_COUNT = 24 - MIN_CLASS_SHIFT;
+    public static final long DEFAULT_MAX_POOLED_BYTES = 32 * 1024 * 1024;
+
+    private static final ByteBufferPool DEFAULT = new ByteBufferPool(DEFAULT_MAX_POOLED_BYTES);
+
+    private final long maxPooledBytes;
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<ByteBuffer>[] freeBuffers = new ArrayDeque[CLASS_COUNT];
+    private long pooledBytes;
+    private Map<ByteBuffer, Throwable> outstanding;
+
+    // stats
+    private long acquired;
+    private long reused;
+    private long allocated;
+    private long allocatedBytes;
+    private long released;
+    private long dropped;
+    private long outstandingBytes;
+
+    /**
+     * @param maxPooledBytes free buffers kept for reuse at most, buffers released beyond it are left to GC
+     */
+    public ByteBufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            freeBuffers[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * @return pool shared by transcoders, muxers and audio processing
+     */
+    public static ByteBufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return cleared direct buffer in native byte order, of at least capacity bytes
+     */
+    public synchronized ByteBuffer acquire(int capacity) {
+        if (capacity < 0) throw new IllegalArgumentException(String.format("capacity %d is negative.", capacity));
+        acquired++;
+        int sizeClass = getSizeClass(capacity);
+        ByteBuffer buffer = sizeClass < 0 ? null : freeBuffers[sizeClass].poll();
+        if (buffer != null) {
+            reused++;
+            pooledBytes -= buffer.capacity();
+        } else {
+            int allocation = sizeClass < 0 ? capacity : MIN_CLASS_BYTES << sizeClass;
+            buffer = ByteBuffer.allocateDirect(allocation);
+            allocated++;
+            allocatedBytes += allocation;
+        }
+        buffer.clear();
+        buffer.order(ByteOrder.nativeOrder());
+        outstandingBytes += buffer.capacity();
+        if (outstanding != null) {
+            outstanding.put(buffer, new Throwable("Acquired " + buffer.capacity() + " bytes"));
+        }
+        return buffer;
+    }
+
+    /**
+     * give back a buffer from {@link #acquire(int)}, null is ignored
+     *
+     * @throws IllegalStateException with leak tracking on, when buffer was released already or is not from this pool
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null) return;
+        if (outstanding != null && outstanding.remove(buffer) == null) {
+            throw new IllegalStateException("Buffer released twice or not acquired from this pool.");
+        }
+        released++;
+        outstandingBytes -= buffer.capacity();
+        int sizeClass = getSizeClass(buffer.capacity());
+        if (sizeClass < 0 || MIN_CLASS_BYTES << sizeClass != buffer.capacity()
+                || pooledBytes + buffer.capacity() > maxPooledBytes) {
+            dropped++;
+            return;
+        }
+        freeBuffers[sizeClass].add(buffer);
+        pooledBytes += buffer.capacity();
+    }
+
+    /**
+     * drop every free buffer, e.g. when the system runs low on memory, buffers in use are not affected
+     */
+    public synchronized void trim() {
+        for (ArrayDeque<ByteBuffer> buffers : freeBuffers) {
+            dropped += buffers.size();
+            buffers.clear();
+        }
+        pooledBytes = 0;
+    }
+
+    /**
+     * @param leakTracking remember a stack trace per buffer in use and check releases, costs a Throwable per acquire.
+     *                     Buffers acquired before it is turned on are not tracked.
+     */
+    public synchronized void setLeakTracking(boolean leakTracking) {
+        outstanding = leakTracking ? new IdentityHashMap<>() : null;
+    }
+
+    /**
+     * @return number of tracked buffers not released yet, 0 without leak tracking
+     */
+    public synchronized int logLeaks() {
+        if (outstanding == null) return 0;
+        for (Throwable acquiredAt : outstanding.values()) {
+            Log.w(TAG, "Buffer not released.", acquiredAt);
+        }
+        return outstanding.size();
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(acquired, reused, allocated, allocatedBytes, released, dropped, outstandingBytes, pooledBytes);
+    }
+
+    /**
+     * @return index of the smallest class holding capacity, -1 if it is larger than all
+     */
+    private static int getSizeClass(int capacity) {
+        if (capacity > MAX_CLASS_BYTES) return -1;
+        if (capacity <= MIN_CLASS_BYTES) return 0;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_CLASS_SHIFT;
+    }
+
+    /**
+     * counters since the pool was created
+     */
+    public static class Stats {
+        public final long acquired;
+        // acquires served from a free buffer
+        public final long reused;
+        public final long allocated;
+        public final long allocatedBytes;
+        public final long released;
+        // released buffers not kept for reuse
+        public final long dropped;
+        public final long outstandingBytes;
+        public final long pooledBytes;
+
+        Stats(long acquired, long reused, long allocated, long allocatedBytes, long released, long dropped,
+              long outstandingBytes, long pooledBytes) {
+            this.acquired = acquired;
+            this.reused = reused;
+            this.allocated = allocated;
+            this.allocatedBytes = allocatedBytes;
+            this.released = released;
+            this.dropped = dropped;
+            this.outstandingBytes = outstandingBytes;
+            this.pooledBytes = pooledBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "acquired %d (reused %d, allocated %d of %d bytes), released %d (dropped %d), in use %d bytes, pooled %d bytes",
+                    acquired, reused, allocated, allocatedBytes, released, dropped, outstandingBytes, pooledBytes);
+        }
+    }
+}
@@ -1,11 +1,18 @@
 package com.nagihong.videocompressor.utils;
 
+import com.nagihong.videocompressor.dataSource.RandomAccessSource;
+
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Checksum;
 
 /**
  * Created by channagihong on 8/9/17
@@ -14,6 +21,17 @@ import java.io.OutputStream;
 public class FileIOUtils {
 
     private static int bufferSize = 8192;
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+    private static final int SOURCE_BUFFER_SIZE = 1024 * 1024;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    public interface CopyListener {
+        /**
+         * @return false to cancel copying
+         */
+        boolean onProgress(long copiedBytes, long totalBytes);
+    }
 
     private static boolean createOrExistsFile(final File file) {
         if (file == null)
@@ -63,4 +81,161 @@ public class FileIOUtils {
         }
     }
 
+    /**
+     * copy by {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+     * which lets the kernel move the bytes without passing them through java heap.
+     * data goes to a temp file next to dest first, dest only appears once it is complete and synced.
+     *
+     * @param checksum updated with the copied bytes in the same pass, chunks of src are then mapped and written
+     *                 instead of transferred, so src is read once, may be null
+     * @param listener notified after every chunk and able to cancel, may be null
+     * @return false when failed or canceled, dest is untouched in that case
+     */
+    public static boolean copyFileByChannel(final File src, final File dest, final Checksum checksum, final CopyListener listener) {
+        if (src == null || dest == null || !src.isFile())
+            return false;
+        if (!FileUtils.createOrExistsDir(dest.getParentFile()))
+            return false;
+        File tempFile = null;
+        FileInputStream is = null;
+        FileOutputStream os = null;
+        boolean completed = false;
+        try {
+            tempFile = createTempFile(dest);
+            is = new FileInputStream(src);
+            os = new FileOutputStream(tempFile, false);
+            FileChannel inChannel = is.getChannel();
+            FileChannel outChannel = os.getChannel();
+            long total = inChannel.size();
+            byte[] checksumBuffer = null == checksum ? null : new byte[CHECKSUM_BUFFER_SIZE];
+            long position = 0;
+            while (position < total) {
+                long count = Math.min(TRANSFER_CHUNK_SIZE, total - position);
+                if (null != checksum) {
+                    copyChecksummed(inChannel.map(FileChannel.MapMode.READ_ONLY, position, count), outChannel, checksum, checksumBuffer);
+                } else {
+                    long transferred = 0;
+                    while (transferred < count) {
+                        long n = inChannel.transferTo(position + transferred, count - transferred, outChannel);
+                        if (n <= 0) {
+                            throw new IOException("Could not transfer bytes at " + (position + transferred));
+                        }
+                        transferred += n;
+                    }
+                }
+                position += count;
+                if (null != listener && !listener.onProgress(position, total)) {
+                    return false;
+                }
+            }
+            outChannel.force(false);
+            completed = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (null != is) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (null != os) {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    completed = false;
+                }
+            }
+            if (!completed && null != tempFile) {
+                tempFile.delete();
+            }
+        }
+        if (!tempFile.renameTo(dest)) {
+            tempFile.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * checksum and write chunk a slice at a time, so each slice is read from the mapping once and still in cache
+     */
+    private static void copyChecksummed(final MappedByteBuffer chunk, final FileChannel outChannel,
+                                        final Checksum checksum, final byte[] buffer) throws IOException {
+        while (chunk.hasRemaining()) {
+            int length = Math.min(buffer.length, chunk.remaining());
+            ByteBuffer slice = chunk.duplicate();
+            slice.limit(slice.position() + length);
+            chunk.get(buffer, 0, length);
+            checksum.update(buffer, 0, length);
+            while (slice.hasRemaining()) {
+                outChannel.write(slice);
+            }
+        }
+    }
+
+    /**
+     * unique per call, so copies to the same dest do not write into each other's temp file
+     */
+    private static File createTempFile(final File dest) throws IOException {
+        // prefix must have 3 characters at least
+        String prefix = dest.getName().length() >= 3 ? dest.getName() : dest.getName() + "___";
+        return File.createTempFile(prefix, TEMP_SUFFIX, dest.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * copy whole source into a temp file next to dest, then rename it to dest
+     *
+     * @param listener notified after every read and able to cancel, may be null
+     * @return false when failed or canceled, dest is untouched in that case
+     */
+    public static boolean writeFileFromSource(final File dest, final RandomAccessSource source, final CopyListener listener) {
+        if (dest == null || source == null)
+            return false;
+        if (!FileUtils.createOrExistsDir(dest.getParentFile()))
+            return false;
+        File tempFile = null;
+        FileOutputStream os = null;
+        boolean completed = false;
+        try {
+            tempFile = createTempFile(dest);
+            os = new FileOutputStream(tempFile, false);
+            long total = source.size();
+            byte[] data = new byte[SOURCE_BUFFER_SIZE];
+            long position = 0;
+            int len;
+            while ((len = source.read(position, data, 0, data.length)) > 0) {
+                os.write(data, 0, len);
+                position += len;
+                if (null != listener && !listener.onProgress(position, total)) {
+                    return false;
+                }
+            }
+            os.getFD().sync();
+            completed = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (null != os) {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    completed = false;
+                }
+            }
+            if (!completed && null != tempFile) {
+                tempFile.delete();
+            }
+        }
+        if (!tempFile.renameTo(dest)) {
+            tempFile.delete();
+            return false;
+        }
+        return true;
+    }
 }
@@ -1,8 +1,7 @@
 package com.nagihong.videocompressor.utils;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.util.zip.Checksum;
 
 /**
  * Created by channagihong on 7/11/17
@@ -30,6 +29,14 @@ public class FileUtils {
     }
 
     public static boolean copyFile(final String srcFilePath, final String destFilePath) {
+        return copyFile(srcFilePath, destFilePath, null, null);
+    }
+
+    /**
+     * @see FileIOUtils#copyFileByChannel(File, File, Checksum, FileIOUtils.CopyListener)
+     */
+    public static boolean copyFile(final String srcFilePath, final String destFilePath,
+                                   final Checksum checksum, final FileIOUtils.CopyListener listener) {
         File srcFile = getFileByPath(srcFilePath);
         File destFile = getFileByPath(destFilePath);
         if (srcFile == null || destFile == null)
@@ -43,11 +50,6 @@ public class FileUtils {
         // 目标目录不存在返回false
         if (!createOrExistsDir(destFile.getParentFile()))
             return false;
-        try {
-            return FileIOUtils.writeFileFromIS(destFile, new FileInputStream(srcFile));
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            return false;
-        }
+        return FileIOUtils.copyFileByChannel(srcFile, destFile, checksum, listener);
     }
 }
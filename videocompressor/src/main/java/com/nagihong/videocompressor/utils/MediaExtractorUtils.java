@@ -21,6 +21,14 @@ public class MediaExtractorUtils {
         public String mAudioTrackMime;
         public MediaFormat mAudioTrackFormat;
 
+        public boolean hasVideoTrack() {
+            return mVideoTrackIndex >= 0;
+        }
+
+        public boolean hasAudioTrack() {
+            return mAudioTrackIndex >= 0;
+        }
+
         public void log() {
             Log.d(TrackResult.class.getName(), String.format("videoTrackIndex: %d, videoTrackMime: %s, videoTrackFormat: %b",
                     mVideoTrackIndex, mVideoTrackMime, null != mVideoTrackFormat));
@@ -29,6 +37,10 @@ public class MediaExtractorUtils {
         }
     }
 
+    /**
+     * @return first video and first audio track, index is -1 and format null for a missing one.
+     * @throws IllegalArgumentException when there is neither.
+     */
     public static TrackResult getFirstVideoAndAudioTrack(MediaExtractor extractor) {
         TrackResult trackResult = new TrackResult();
         trackResult.mVideoTrackIndex = -1;
@@ -48,8 +60,8 @@ public class MediaExtractorUtils {
             }
             if (trackResult.mVideoTrackIndex >= 0 && trackResult.mAudioTrackIndex >= 0) break;
         }
-        if (trackResult.mVideoTrackIndex < 0 || trackResult.mAudioTrackIndex < 0) {
-            throw new IllegalArgumentException("extractor does not contain video and/or audio tracks.");
+        if (trackResult.mVideoTrackIndex < 0 && trackResult.mAudioTrackIndex < 0) {
+            throw new IllegalArgumentException("extractor does not contain video or audio tracks.");
         }
         return trackResult;
     }
@@ -0,0 +1,140 @@
+package com.nagihong.videocompressor.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Builds ISO BMFF (MP4) boxes in memory, big endian, growing as needed.
+ * Boxes nest with {@link #begin(String)} / {@link #end()}, sizes are filled in when a box ends.
+ */
+public class Mp4BoxWriter {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int MAX_DEPTH = 16;
+
+    private ByteBuffer buffer;
+    private final int[] starts = new int[MAX_DEPTH];
+    private int depth;
+
+    public Mp4BoxWriter(int initialCapacity) {
+        buffer = ByteBuffer.allocate(initialCapacity).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    public Mp4BoxWriter begin(String type) {
+        if (depth == MAX_DEPTH) throw new IllegalStateException("Boxes nested too deep.");
+        starts[depth++] = buffer.position();
+        putInt(0);
+        return putType(type);
+    }
+
+    /**
+     * begin a full box, which has a version and 24 bits of flags after its type
+     */
+    public Mp4BoxWriter begin(String type, int version, int flags) {
+        begin(type);
+        return putInt((version << 24) | (flags & 0xFFFFFF));
+    }
+
+    public Mp4BoxWriter end() {
+        return end(0);
+    }
+
+    /**
+     * end a box whose last followingBytes are not in this writer, but written right after its content elsewhere,
+     * e.g. sample tables streamed from disk
+     */
+    public Mp4BoxWriter end(int followingBytes) {
+        if (depth == 0) throw new IllegalStateException("No box to end.");
+        int start = starts[--depth];
+        buffer.putInt(start, buffer.position() - start + followingBytes);
+        return this;
+    }
+
+    public Mp4BoxWriter putByte(int value) {
+        ensure(1);
+        buffer.put((byte) value);
+        return this;
+    }
+
+    public Mp4BoxWriter putShort(int value) {
+        ensure(2);
+        buffer.putShort((short) value);
+        return this;
+    }
+
+    public Mp4BoxWriter putInt(int value) {
+        ensure(4);
+        buffer.putInt(value);
+        return this;
+    }
+
+    public Mp4BoxWriter putLong(long value) {
+        ensure(8);
+        buffer.putLong(value);
+        return this;
+    }
+
+    public Mp4BoxWriter putType(String type) {
+        if (type.length() != 4) throw new IllegalArgumentException(String.format("box type '%s' is not 4 characters.", type));
+        return putBytes(type.getBytes(ASCII));
+    }
+
+    public Mp4BoxWriter putZeros(int count) {
+        ensure(count);
+        for (int i = 0; i < count; i++) buffer.put((byte) 0);
+        return this;
+    }
+
+    public Mp4BoxWriter putBytes(byte[] bytes) {
+        ensure(bytes.length);
+        buffer.put(bytes);
+        return this;
+    }
+
+    /**
+     * put remaining bytes of source, position of source is kept
+     */
+    public Mp4BoxWriter putBytes(ByteBuffer source) {
+        ensure(source.remaining());
+        buffer.put(source.duplicate());
+        return this;
+    }
+
+    /**
+     * overwrite an int written before, e.g. an offset known only later
+     */
+    public Mp4BoxWriter setInt(int position, int value) {
+        buffer.putInt(position, value);
+        return this;
+    }
+
+    public int position() {
+        return buffer.position();
+    }
+
+    /**
+     * @return written bytes from 0 to position, shares content with this writer
+     */
+    public ByteBuffer getBuffer() {
+        ByteBuffer written = buffer.duplicate();
+        written.flip();
+        return written;
+    }
+
+    /**
+     * drop everything written, capacity is kept
+     */
+    public void reset() {
+        if (depth != 0) throw new IllegalStateException("Box not ended.");
+        buffer.clear();
+    }
+
+    private void ensure(int bytes) {
+        if (buffer.remaining() >= bytes) return;
+        int capacity = Math.max(buffer.capacity() * 2, buffer.position() + bytes);
+        ByteBuffer grown = ByteBuffer.allocate(capacity).order(ByteOrder.BIG_ENDIAN);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
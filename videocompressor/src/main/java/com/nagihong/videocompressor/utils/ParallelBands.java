@@ -0,0 +1,151 @@
+package com.nagihong.videocompressor.utils;
+
+/**
+ * Splits rows of a frame into bands and runs them on a fixed set of worker threads, the caller runs the first band.
+ * <p>
+ * Workers are started once and wait on a lock between runs, a run allocates nothing,
+ * so it can be used once per plane of every frame. Not thread safe, one caller at a time.
+ */
+public class ParallelBands {
+    private static final String TAG = "ParallelBands";
+    private static final int MAX_DEFAULT_BANDS = 4;
+
+    public interface Task {
+        /**
+         * @param band  index of band, in [0, {@link #getBandCount()}), e.g. to pick per band scratch memory
+         * @param start first row
+         * @param end   row after last row
+         */
+        void run(int band, int start, int end);
+    }
+
+    private final int bandCount;
+    private final Thread[] workers;
+    private final Object lock = new Object();
+
+    // guarded by lock
+    private Task task;
+    private int rows;
+    private int activeBands;
+    private int pendingBands;
+    private int generation;
+    private boolean released;
+    private RuntimeException failure;
+
+    public ParallelBands(int bandCount) {
+        if (bandCount < 1) throw new IllegalArgumentException("bandCount must be positive.");
+        this.bandCount = bandCount;
+        workers = new Thread[bandCount - 1];
+        for (int i = 0; i < workers.length; i++) {
+            final int band = i + 1;
+            workers[i] = new Thread(() -> work(band), TAG + "-" + band);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * @return one band per core, at most {@value #MAX_DEFAULT_BANDS}.
+     */
+    public static int defaultBandCount() {
+        return Math.max(1, Math.min(MAX_DEFAULT_BANDS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public int getBandCount() {
+        return bandCount;
+    }
+
+    /**
+     * run task over rows [0, rows), returns when every band is done
+     *
+     * @param minRowsPerBand fewer bands are used when bands would get less rows, small frames are not worth a thread hop
+     */
+    public void run(int rows, int minRowsPerBand, Task task) {
+        int bands = Math.min(bandCount, Math.max(1, rows / Math.max(1, minRowsPerBand)));
+        if (bands <= 1) {
+            task.run(0, 0, rows);
+            return;
+        }
+        synchronized (lock) {
+            if (released) throw new IllegalStateException("ParallelBands already released.");
+            this.task = task;
+            this.rows = rows;
+            activeBands = bands;
+            pendingBands = bands - 1;
+            failure = null;
+            generation++;
+            lock.notifyAll();
+        }
+        RuntimeException callerFailure = null;
+        try {
+            task.run(0, 0, bandEnd(0, rows, bands));
+        } catch (RuntimeException e) {
+            callerFailure = e;
+        }
+        boolean interrupted = false;
+        RuntimeException workerFailure;
+        synchronized (lock) {
+            // workers use the caller's buffers, never return before they are done
+            while (pendingBands > 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            this.task = null;
+            workerFailure = failure;
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (callerFailure != null) throw callerFailure;
+        if (workerFailure != null) throw workerFailure;
+    }
+
+    /**
+     * stop worker threads
+     */
+    public void release() {
+        synchronized (lock) {
+            released = true;
+            lock.notifyAll();
+        }
+    }
+
+    private void work(int band) {
+        int seenGeneration = 0;
+        while (true) {
+            Task task;
+            int rows;
+            int bands;
+            synchronized (lock) {
+                while (generation == seenGeneration && !released) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        // only release() ends a worker
+                    }
+                }
+                if (released) return;
+                seenGeneration = generation;
+                if (band >= activeBands) continue;
+                task = this.task;
+                rows = this.rows;
+                bands = activeBands;
+            }
+            RuntimeException bandFailure = null;
+            try {
+                task.run(band, bandEnd(band - 1, rows, bands), bandEnd(band, rows, bands));
+            } catch (RuntimeException e) {
+                bandFailure = e;
+            }
+            synchronized (lock) {
+                if (bandFailure != null && failure == null) failure = bandFailure;
+                if (--pendingBands == 0) lock.notifyAll();
+            }
+        }
+    }
+
+    private static int bandEnd(int band, int rows, int bands) {
+        return (int) ((long) rows * (band + 1) / bands);
+    }
+}
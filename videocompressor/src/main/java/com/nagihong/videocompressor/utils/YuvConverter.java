@@ -0,0 +1,263 @@
+package com.nagihong.videocompressor.utils;
+
+import com.nagihong.videocompressor.videoProcessor.YuvFrame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts YUV 4:2:0 frames between I420, NV12 and NV21 and between strides, slice heights and crops.
+ * <p>
+ * Luma rows are copied with {@link System#arraycopy}, chroma rows are interleaved, de-interleaved or swapped in
+ * one pass that writes both U and V. Frames are staged through reused arrays, rows run in bands on
+ * {@link ParallelBands}, nothing is allocated per frame. Frames of the same layout are copied in one go.
+ * Holds its arrays and threads, so keep one instance per video track.
+ */
+public class YuvConverter {
+    // the qcom 64x32 tile layout, tiles are stored in pairs of rows in a Z pattern, planes aligned to 4 tiles
+    private static final int TILE_WIDTH = 64;
+    private static final int TILE_HEIGHT = 32;
+    private static final int TILE_SIZE = TILE_WIDTH * TILE_HEIGHT;
+    private static final int TILE_GROUP_SIZE = 4 * TILE_SIZE;
+    private static final int MIN_ROWS_PER_BAND = 64;
+
+    private final ParallelBands bands;
+    private byte[] inBytes = new byte[0];
+    private byte[] outBytes = new byte[0];
+    private final YuvFrame untiledFrame = new YuvFrame();
+
+    // frames being converted, read by bands
+    private YuvFrame input;
+    private YuvFrame output;
+    private int tiledWidth;
+    private int tiledHeight;
+    private final ParallelBands.Task lumaRows = this::convertLumaRows;
+    private final ParallelBands.Task chromaRows = this::convertChromaRows;
+    private final ParallelBands.Task tileRows = this::detileRows;
+
+    public YuvConverter() {
+        this(ParallelBands.defaultBandCount());
+    }
+
+    /**
+     * @param threads threads converting a frame, including the calling one
+     */
+    public YuvConverter(int threads) {
+        bands = new ParallelBands(threads);
+    }
+
+    /**
+     * convert visible pixels of input into output, both must have the same visible size
+     */
+    public void convert(YuvFrame input, YuvFrame output) {
+        checkSize(input, output);
+        if (isSameLayout(input, output)) {
+            copyFrame(input, output);
+            return;
+        }
+        inBytes = readFrame(input, inBytes);
+        convertStaged(input, output);
+    }
+
+    /**
+     * convert a frame of {@link YuvFormatUtils#COLOR_QCOM_FormatYUV420PackedSemiPlanar64x32Tile2m8ka}
+     * from position of tiled into output
+     *
+     * @param width  decoded width, output must have the same visible size
+     * @param height decoded height
+     */
+    public void detile(ByteBuffer tiled, int width, int height, YuvFrame output) {
+        int stride = YuvFormatUtils.align(width, 2);
+        int sliceHeight = YuvFormatUtils.align(height, 2);
+        untiledFrame.set(null, YuvFrame.Layout.NV12, width, height, stride, sliceHeight);
+        checkSize(untiledFrame, output);
+
+        int tiledSize = getTiledFrameSize(width, height);
+        if (inBytes.length < tiledSize) inBytes = new byte[tiledSize];
+        int position = tiled.position();
+        tiled.get(inBytes, 0, Math.min(tiledSize, tiled.remaining()));
+        tiled.position(position);
+
+        // untile into outBytes, then convert from there as from any staged frame
+        int untiledSize = untiledFrame.getFrameSize();
+        if (outBytes.length < untiledSize) outBytes = new byte[untiledSize];
+        tiledWidth = width;
+        tiledHeight = height;
+        bands.run((height - 1) / TILE_HEIGHT + 1, 1, tileRows);
+        byte[] swap = inBytes;
+        inBytes = outBytes;
+        outBytes = swap;
+        convertStaged(untiledFrame, output);
+    }
+
+    public void release() {
+        bands.release();
+    }
+
+    //========================= staging ========================================================
+    private void convertStaged(YuvFrame input, YuvFrame output) {
+        if (outBytes.length < output.getFrameSize()) outBytes = new byte[output.getFrameSize()];
+        this.input = input;
+        this.output = output;
+        bands.run(output.getPlaneHeight(YuvFrame.PLANE_Y), MIN_ROWS_PER_BAND, lumaRows);
+        bands.run(output.getPlaneHeight(YuvFrame.PLANE_U), MIN_ROWS_PER_BAND, chromaRows);
+        this.input = null;
+        this.output = null;
+        writeFrame(output, outBytes);
+    }
+
+    private static void checkSize(YuvFrame input, YuvFrame output) {
+        if (input.getWidth() != output.getWidth() || input.getHeight() != output.getHeight()) {
+            throw new IllegalArgumentException(String.format("can not convert %dx%d to %dx%d, scale it instead.",
+                    input.getWidth(), input.getHeight(), output.getWidth(), output.getHeight()));
+        }
+    }
+
+    private static boolean isSameLayout(YuvFrame input, YuvFrame output) {
+        return input.getLayout() == output.getLayout()
+                && input.getRowStride() == output.getRowStride() && input.getSliceHeight() == output.getSliceHeight()
+                && input.getCropLeft() == output.getCropLeft() && input.getCropTop() == output.getCropTop();
+    }
+
+    /**
+     * same geometry, so the bytes between first and last visible pixel are copied as they are
+     */
+    private static void copyFrame(YuvFrame input, YuvFrame output) {
+        ByteBuffer in = input.getBuffer();
+        ByteBuffer out = output.getBuffer();
+        int inPosition = in.position();
+        int inLimit = in.limit();
+        int outPosition = out.position();
+        int start = input.getPlaneOffset(YuvFrame.PLANE_Y);
+        in.position(inPosition + start);
+        in.limit(inPosition + input.getFrameSize());
+        out.position(outPosition + start);
+        out.put(in);
+        in.limit(inLimit);
+        in.position(inPosition);
+        out.position(outPosition);
+    }
+
+    private static byte[] readFrame(YuvFrame frame, byte[] bytes) {
+        int size = frame.getFrameSize();
+        if (bytes.length < size) bytes = new byte[size];
+        ByteBuffer buffer = frame.getBuffer();
+        int position = buffer.position();
+        buffer.get(bytes, 0, size);
+        buffer.position(position);
+        return bytes;
+    }
+
+    private static void writeFrame(YuvFrame frame, byte[] bytes) {
+        ByteBuffer buffer = frame.getBuffer();
+        int position = buffer.position();
+        buffer.put(bytes, 0, frame.getFrameSize());
+        buffer.position(position);
+    }
+
+    //========================= kernels ========================================================
+    private void convertLumaRows(int band, int start, int end) {
+        final int width = output.getWidth();
+        int i = input.getPlaneOffset(YuvFrame.PLANE_Y) + start * input.getPlaneRowStride(YuvFrame.PLANE_Y);
+        int o = output.getPlaneOffset(YuvFrame.PLANE_Y) + start * output.getPlaneRowStride(YuvFrame.PLANE_Y);
+        for (int y = start; y < end; y++) {
+            System.arraycopy(inBytes, i, outBytes, o, width);
+            i += input.getPlaneRowStride(YuvFrame.PLANE_Y);
+            o += output.getPlaneRowStride(YuvFrame.PLANE_Y);
+        }
+    }
+
+    private void convertChromaRows(int band, int start, int end) {
+        final byte[] in = inBytes;
+        final byte[] out = outBytes;
+        final int width = output.getPlaneWidth(YuvFrame.PLANE_U);
+        final int inRowStride = input.getPlaneRowStride(YuvFrame.PLANE_U);
+        final int outRowStride = output.getPlaneRowStride(YuvFrame.PLANE_U);
+        final int inPixelStride = input.getPlanePixelStride(YuvFrame.PLANE_U);
+        final int outPixelStride = output.getPlanePixelStride(YuvFrame.PLANE_U);
+        final int inU = input.getPlaneOffset(YuvFrame.PLANE_U);
+        final int inV = input.getPlaneOffset(YuvFrame.PLANE_V);
+        final int outU = output.getPlaneOffset(YuvFrame.PLANE_U);
+        final int outV = output.getPlaneOffset(YuvFrame.PLANE_V);
+        for (int y = start; y < end; y++) {
+            int iu = inU + y * inRowStride;
+            int iv = inV + y * inRowStride;
+            int ou = outU + y * outRowStride;
+            int ov = outV + y * outRowStride;
+            if (inPixelStride == 1 && outPixelStride == 1) {
+                // I420 to I420 with another stride
+                System.arraycopy(in, iu, out, ou, width);
+                System.arraycopy(in, iv, out, ov, width);
+            } else if (inPixelStride == 2 && outPixelStride == 2 && (iu < iv) == (ou < ov)) {
+                // NV12 to NV12, or NV21 to NV21, with another stride
+                System.arraycopy(in, Math.min(iu, iv), out, Math.min(ou, ov), width * 2);
+            } else {
+                for (int x = 0; x < width; x++, iu += inPixelStride, iv += inPixelStride, ou += outPixelStride, ov += outPixelStride) {
+                    out[ou] = in[iu];
+                    out[ov] = in[iv];
+                }
+            }
+        }
+    }
+
+    /**
+     * untile rows of tiles [start, end) into an NV12 frame of stride width, adapted from VLC's qcom_convert
+     */
+    private void detileRows(int band, int start, int end) {
+        final byte[] in = inBytes;
+        final byte[] out = outBytes;
+        final int width = tiledWidth;
+        final int pitch = untiledFrame.getRowStride();
+        final int chromaStart = untiledFrame.getRowStride() * untiledFrame.getSliceHeight();
+        final int tilesWide = (width - 1) / TILE_WIDTH + 1;
+        final int tilesWideAligned = (tilesWide + 1) & ~1;
+        final int tilesHighLuma = (tiledHeight - 1) / TILE_HEIGHT + 1;
+        final int tilesHighChroma = (tiledHeight / 2 - 1) / TILE_HEIGHT + 1;
+        final int lumaSize = getTiledLumaSize(width, tiledHeight);
+
+        for (int ty = start; ty < end; ty++) {
+            int tileHeight = Math.min(TILE_HEIGHT, tiledHeight - ty * TILE_HEIGHT);
+            for (int tx = 0; tx < tilesWide; tx++) {
+                int tileWidth = Math.min(TILE_WIDTH, width - tx * TILE_WIDTH);
+                int lumaIn = tilePosition(tx, ty, tilesWideAligned, tilesHighLuma) * TILE_SIZE;
+                int chromaIn = lumaSize + tilePosition(tx, ty / 2, tilesWideAligned, tilesHighChroma) * TILE_SIZE
+                        + ((ty & 1) != 0 ? TILE_SIZE / 2 : 0);
+                int lumaOut = ty * TILE_HEIGHT * pitch + tx * TILE_WIDTH;
+                int chromaOut = chromaStart + ty * TILE_HEIGHT / 2 * pitch + tx * TILE_WIDTH;
+                // two luma rows to one chroma row
+                for (int rows = tileHeight / 2; rows > 0; rows--) {
+                    System.arraycopy(in, lumaIn, out, lumaOut, tileWidth);
+                    lumaIn += TILE_WIDTH;
+                    lumaOut += pitch;
+                    System.arraycopy(in, lumaIn, out, lumaOut, tileWidth);
+                    lumaIn += TILE_WIDTH;
+                    lumaOut += pitch;
+                    System.arraycopy(in, chromaIn, out, chromaOut, tileWidth);
+                    chromaIn += TILE_WIDTH;
+                    chromaOut += pitch;
+                }
+            }
+        }
+    }
+
+    private static int tilePosition(int x, int y, int tilesWide, int tilesHigh) {
+        int position = x + (y & ~1) * tilesWide;
+        if ((y & 1) != 0) {
+            position += (x & ~3) + 2;
+        } else if ((tilesHigh & 1) == 0 || y != tilesHigh - 1) {
+            position += (x + 2) & ~3;
+        }
+        return position;
+    }
+
+    private static int getTiledLumaSize(int width, int height) {
+        int tilesWideAligned = (((width - 1) / TILE_WIDTH + 1) + 1) & ~1;
+        int size = tilesWideAligned * ((height - 1) / TILE_HEIGHT + 1) * TILE_SIZE;
+        return YuvFormatUtils.align(size, TILE_GROUP_SIZE);
+    }
+
+    static int getTiledFrameSize(int width, int height) {
+        int tilesWideAligned = (((width - 1) / TILE_WIDTH + 1) + 1) & ~1;
+        int chromaSize = tilesWideAligned * ((height / 2 - 1) / TILE_HEIGHT + 1) * TILE_SIZE;
+        return getTiledLumaSize(width, height) + YuvFormatUtils.align(chromaSize, TILE_GROUP_SIZE);
+    }
+}
@@ -0,0 +1,129 @@
+package com.nagihong.videocompressor.utils;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+
+import com.nagihong.videocompressor.videoProcessor.YuvFrame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the layout of raw YUV codec buffers from a MediaFormat.
+ * <p>
+ * Codecs disagree on color formats, on stride / slice height padding and on cropping,
+ * and not all of them report every key, missing keys fall back to the unpadded size.
+ */
+public class YuvFormatUtils {
+    // vendor color formats, not in MediaCodecInfo.CodecCapabilities
+    public static final int COLOR_QCOM_FormatYUV420PackedSemiPlanar64x32Tile2m8ka = 0x7FA30C03;
+    public static final int COLOR_QCOM_FormatYUV420PackedSemiPlanar32m = 0x7FA30C04;
+
+    // crop of decoded frames, inclusive, reported by most decoders long before they became public keys
+    private static final String KEY_CROP_LEFT = "crop-left";
+    private static final String KEY_CROP_TOP = "crop-top";
+    private static final String KEY_CROP_RIGHT = "crop-right";
+    private static final String KEY_CROP_BOTTOM = "crop-bottom";
+
+    // Venus (32m) buffers align rows to 128 and planes to 32 rows when the decoder does not say
+    private static final int QCOM_32M_STRIDE_ALIGNMENT = 128;
+    private static final int QCOM_32M_SLICE_ALIGNMENT = 32;
+
+    private YuvFormatUtils() {
+    }
+
+    /**
+     * @throws UnsupportedOperationException for color formats which are not planar or semi-planar 4:2:0.
+     */
+    public static YuvFrame.Layout getLayout(int colorFormat) {
+        switch (colorFormat) {
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar:
+                return YuvFrame.Layout.I420;
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedSemiPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_TI_FormatYUV420PackedSemiPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar:
+            case COLOR_QCOM_FormatYUV420PackedSemiPlanar32m:
+                return YuvFrame.Layout.NV12;
+            default:
+                throw new UnsupportedOperationException(String.format("color format 0x%x not supported.", colorFormat));
+        }
+    }
+
+    /**
+     * @return whether buffers are in 64x32 tiles, see {@link YuvConverter#detile(ByteBuffer, int, int, YuvFrame)}.
+     */
+    public static boolean isTiled(int colorFormat) {
+        return colorFormat == COLOR_QCOM_FormatYUV420PackedSemiPlanar64x32Tile2m8ka;
+    }
+
+    public static boolean isSupported(int colorFormat) {
+        if (isTiled(colorFormat)) return true;
+        try {
+            getLayout(colorFormat);
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    public static int align(int value, int alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+
+    /**
+     * set layout of frame to the buffers of a codec with format, stride, slice height and crop included.
+     * Do it once per format change, then only {@link YuvFrame#setBuffer(ByteBuffer)} per buffer.
+     *
+     * @param buffer may be null
+     */
+    public static YuvFrame setFrame(YuvFrame frame, ByteBuffer buffer, MediaFormat format) {
+        int cropLeft = 0;
+        int cropTop = 0;
+        int cropRight = -1;
+        int cropBottom = -1;
+        if (format.containsKey(KEY_CROP_RIGHT) && format.containsKey(KEY_CROP_BOTTOM)) {
+            cropLeft = getInteger(format, KEY_CROP_LEFT, 0);
+            cropTop = getInteger(format, KEY_CROP_TOP, 0);
+            cropRight = format.getInteger(KEY_CROP_RIGHT);
+            cropBottom = format.getInteger(KEY_CROP_BOTTOM);
+        }
+        return setFrame(frame, buffer, format.getInteger(MediaFormat.KEY_COLOR_FORMAT),
+                format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT),
+                getInteger(format, MediaFormat.KEY_STRIDE, 0), getInteger(format, MediaFormat.KEY_SLICE_HEIGHT, 0),
+                cropLeft, cropTop, cropRight, cropBottom);
+    }
+
+    /**
+     * same as {@link #setFrame(YuvFrame, ByteBuffer, MediaFormat)}, from values of the format's keys
+     *
+     * @param stride     0 when not reported, as sliceHeight
+     * @param cropRight  inclusive, -1 when no crop is reported, as cropBottom
+     */
+    static YuvFrame setFrame(YuvFrame frame, ByteBuffer buffer, int colorFormat, int width, int height,
+                             int stride, int sliceHeight, int cropLeft, int cropTop, int cropRight, int cropBottom) {
+        if (colorFormat == COLOR_QCOM_FormatYUV420PackedSemiPlanar32m) {
+            if (stride <= 0) stride = align(width, QCOM_32M_STRIDE_ALIGNMENT);
+            if (sliceHeight <= 0) sliceHeight = align(height, QCOM_32M_SLICE_ALIGNMENT);
+        }
+        // some decoders report 0, or a size smaller than the frame, when rows are not padded
+        stride = Math.max(stride, width);
+        sliceHeight = Math.max(sliceHeight, height);
+
+        if (cropRight >= 0 && cropBottom >= 0) {
+            // crop is only honored from even coordinates, an odd edge keeps one more column / row
+            cropLeft &= ~1;
+            cropTop &= ~1;
+            width = Math.min(cropRight + 1, width) - cropLeft;
+            height = Math.min(cropBottom + 1, height) - cropTop;
+        } else {
+            cropLeft = 0;
+            cropTop = 0;
+        }
+        return frame.set(buffer, getLayout(colorFormat), width, height, stride, sliceHeight, cropLeft, cropTop);
+    }
+
+    private static int getInteger(MediaFormat format, String key, int defaultValue) {
+        return format.containsKey(key) ? format.getInteger(key) : defaultValue;
+    }
+}
@@ -0,0 +1,17 @@
+package com.nagihong.videocompressor.videoProcessor;
+
+/**
+ * Works on decoded frames in memory, between the decoder's output buffer and the encoder's input buffer.
+ * <p>
+ * Called on the transcoding thread once per frame, input and output sizes and layouts are given by the frames
+ * and only change when the codecs change their formats.
+ */
+public interface FrameProcessor {
+
+    /**
+     * read input and fill every pixel of output, buffer positions are left as they are
+     */
+    void process(YuvFrame input, YuvFrame output);
+
+    void release();
+}
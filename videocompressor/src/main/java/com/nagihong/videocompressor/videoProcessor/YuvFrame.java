@@ -0,0 +1,188 @@
+package com.nagihong.videocompressor.videoProcessor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where the planes of a YUV 4:2:0 frame are inside a buffer, like {@link android.media.Image.Plane}:
+ * every plane has an offset, a row stride and a pixel stride, so planar and semi-planar layouts are read alike.
+ * <p>
+ * Frames are reused, {@link #set(ByteBuffer, Layout, int, int, int, int)} only computes offsets.
+ * The frame starts at position of the buffer. A crop moves plane offsets to the first visible pixel,
+ * width and height are always the visible size.
+ */
+public class YuvFrame {
+    public static final int PLANE_Y = 0;
+    public static final int PLANE_U = 1;
+    public static final int PLANE_V = 2;
+    public static final int PLANE_COUNT = 3;
+
+    public enum Layout {
+        /**
+         * Y plane, then U plane, then V plane, COLOR_FormatYUV420Planar
+         */
+        I420,
+        /**
+         * Y plane, then interleaved U V, COLOR_FormatYUV420SemiPlanar
+         */
+        NV12,
+        /**
+         * Y plane, then interleaved V U
+         */
+        NV21
+    }
+
+    private ByteBuffer buffer;
+    private Layout layout;
+    private int width;
+    private int height;
+    private int rowStride;
+    private int sliceHeight;
+    private int cropLeft;
+    private int cropTop;
+    private final int[] offsets = new int[PLANE_COUNT];
+    private final int[] rowStrides = new int[PLANE_COUNT];
+    private final int[] pixelStrides = new int[PLANE_COUNT];
+    private int frameSize;
+
+    /**
+     * @param rowStride   bytes from one luma row to the next, at least width
+     * @param sliceHeight luma rows before the chroma planes start, at least height
+     */
+    public YuvFrame set(ByteBuffer buffer, Layout layout, int width, int height, int rowStride, int sliceHeight) {
+        return set(buffer, layout, width, height, rowStride, sliceHeight, 0, 0);
+    }
+
+    /**
+     * @param width    visible width, pixels right of cropLeft + width are padding
+     * @param height   visible height, rows below cropTop + height are padding
+     * @param cropLeft first visible column, even
+     * @param cropTop  first visible row, even
+     */
+    public YuvFrame set(ByteBuffer buffer, Layout layout, int width, int height, int rowStride, int sliceHeight,
+                        int cropLeft, int cropTop) {
+        if (width <= 0 || height <= 0 || cropLeft < 0 || cropTop < 0 || (cropLeft & 1) != 0 || (cropTop & 1) != 0
+                || rowStride < cropLeft + width || sliceHeight < cropTop + height) {
+            throw new IllegalArgumentException(String.format("invalid frame %dx%d at (%d, %d), stride %d, slice height %d.",
+                    width, height, cropLeft, cropTop, rowStride, sliceHeight));
+        }
+        this.buffer = buffer;
+        this.layout = layout;
+        this.width = width;
+        this.height = height;
+        this.rowStride = rowStride;
+        this.sliceHeight = sliceHeight;
+        this.cropLeft = cropLeft;
+        this.cropTop = cropTop;
+
+        int chromaOffset = rowStride * sliceHeight;
+        int chromaHeight = (height + 1) / 2;
+        offsets[PLANE_Y] = cropTop * rowStride + cropLeft;
+        rowStrides[PLANE_Y] = rowStride;
+        pixelStrides[PLANE_Y] = 1;
+        switch (layout) {
+            case I420: {
+                int chromaRowStride = (rowStride + 1) / 2;
+                int chromaCrop = cropTop / 2 * chromaRowStride + cropLeft / 2;
+                offsets[PLANE_U] = chromaOffset + chromaCrop;
+                offsets[PLANE_V] = chromaOffset + chromaRowStride * ((sliceHeight + 1) / 2) + chromaCrop;
+                rowStrides[PLANE_U] = rowStrides[PLANE_V] = chromaRowStride;
+                pixelStrides[PLANE_U] = pixelStrides[PLANE_V] = 1;
+                frameSize = offsets[PLANE_V] + chromaRowStride * (chromaHeight - 1) + (width + 1) / 2;
+                break;
+            }
+            case NV12:
+            case NV21: {
+                if (rowStride < cropLeft + (width + 1) / 2 * 2) {
+                    throw new IllegalArgumentException(String.format("stride %d too small for interleaved chroma of width %d.", rowStride, width));
+                }
+                int chromaStart = chromaOffset + cropTop / 2 * rowStride + cropLeft;
+                offsets[PLANE_U] = chromaStart + (layout == Layout.NV12 ? 0 : 1);
+                offsets[PLANE_V] = chromaStart + (layout == Layout.NV12 ? 1 : 0);
+                rowStrides[PLANE_U] = rowStrides[PLANE_V] = rowStride;
+                pixelStrides[PLANE_U] = pixelStrides[PLANE_V] = 2;
+                frameSize = chromaStart + rowStride * (chromaHeight - 1) + (width + 1) / 2 * 2;
+                break;
+            }
+            default:
+                throw new AssertionError();
+        }
+        return this;
+    }
+
+    /**
+     * keep the layout and point the frame at another buffer, e.g. the next codec buffer of the same format
+     */
+    public YuvFrame setBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+        return this;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public Layout getLayout() {
+        return layout;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getRowStride() {
+        return rowStride;
+    }
+
+    public int getSliceHeight() {
+        return sliceHeight;
+    }
+
+    public int getCropLeft() {
+        return cropLeft;
+    }
+
+    public int getCropTop() {
+        return cropTop;
+    }
+
+    /**
+     * @return bytes from start of frame to end of its last pixel, padding after the last row is not counted.
+     */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    public int getPlaneWidth(int plane) {
+        return plane == PLANE_Y ? width : (width + 1) / 2;
+    }
+
+    public int getPlaneHeight(int plane) {
+        return plane == PLANE_Y ? height : (height + 1) / 2;
+    }
+
+    /**
+     * @return offset of first pixel of plane from start of frame.
+     */
+    public int getPlaneOffset(int plane) {
+        return offsets[plane];
+    }
+
+    public int getPlaneRowStride(int plane) {
+        return rowStrides[plane];
+    }
+
+    public int getPlanePixelStride(int plane) {
+        return pixelStrides[plane];
+    }
+
+    /**
+     * @return bytes a frame of this layout needs without padding.
+     */
+    public static int frameSize(int width, int height) {
+        return width * height + (width + 1) / 2 * ((height + 1) / 2) * 2;
+    }
+}
@@ -0,0 +1,242 @@
+package com.nagihong.videocompressor.videoProcessor;
+
+import com.nagihong.videocompressor.utils.ParallelBands;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Scales YUV 4:2:0 frames on the CPU, any input layout to any output layout.
+ * <p>
+ * Each plane is filtered separably, first vertically into a row of 32 bit accumulators, then horizontally.
+ * Downscaling uses an area (box) filter, every source pixel counts by how much of it a destination pixel covers,
+ * so there is no aliasing at any ratio. Upscaling uses bilinear interpolation. Tap indices and fixed point weights
+ * are computed once per size, rows are split into bands run by {@link ParallelBands}.
+ * Frames are staged through reused arrays, nothing is allocated per frame.
+ */
+public class YuvScaler implements FrameProcessor {
+    private static final int WEIGHT_BITS = 14;
+    private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+    // vertical sums keep this many fraction bits, so horizontal sums fit into an int
+    private static final int ACCUMULATOR_SHIFT = WEIGHT_BITS - 6;
+    private static final int OUTPUT_SHIFT = WEIGHT_BITS + 6;
+    private static final int MIN_ROWS_PER_BAND = 64;
+
+    private final ParallelBands bands;
+    private final Filter[] horizontalFilters = new Filter[YuvFrame.PLANE_COUNT];
+    private final Filter[] verticalFilters = new Filter[YuvFrame.PLANE_COUNT];
+    private int[][] accumulators;
+    private byte[] inBytes = new byte[0];
+    private byte[] outBytes = new byte[0];
+
+    // plane being scaled, read by bands
+    private YuvFrame input;
+    private YuvFrame output;
+    private int plane;
+    private final ParallelBands.Task scaleRows = this::scaleRows;
+    private final ParallelBands.Task copyRows = this::copyRows;
+
+    public YuvScaler() {
+        this(ParallelBands.defaultBandCount());
+    }
+
+    /**
+     * @param threads threads scaling a frame, including the calling one
+     */
+    public YuvScaler(int threads) {
+        bands = new ParallelBands(threads);
+        accumulators = new int[threads][0];
+    }
+
+    @Override
+    public void process(YuvFrame input, YuvFrame output) {
+        configure(input, output);
+        inBytes = readFrame(input, inBytes);
+        this.input = input;
+        this.output = output;
+        for (plane = 0; plane < YuvFrame.PLANE_COUNT; plane++) {
+            boolean sameSize = input.getPlaneWidth(plane) == output.getPlaneWidth(plane)
+                    && input.getPlaneHeight(plane) == output.getPlaneHeight(plane);
+            bands.run(output.getPlaneHeight(plane), MIN_ROWS_PER_BAND, sameSize ? copyRows : scaleRows);
+        }
+        this.input = null;
+        this.output = null;
+        writeFrame(output, outBytes);
+    }
+
+    @Override
+    public void release() {
+        bands.release();
+    }
+
+    //========================= setup ========================================================
+    private void configure(YuvFrame input, YuvFrame output) {
+        if (outBytes.length < output.getFrameSize()) outBytes = new byte[output.getFrameSize()];
+        for (int plane = 0; plane < YuvFrame.PLANE_COUNT; plane++) {
+            horizontalFilters[plane] = Filter.get(horizontalFilters[plane], input.getPlaneWidth(plane), output.getPlaneWidth(plane));
+            verticalFilters[plane] = Filter.get(verticalFilters[plane], input.getPlaneHeight(plane), output.getPlaneHeight(plane));
+        }
+        int width = input.getPlaneWidth(YuvFrame.PLANE_Y);
+        if (accumulators[0].length < width) {
+            for (int i = 0; i < accumulators.length; i++) accumulators[i] = new int[width];
+        }
+    }
+
+    private static byte[] readFrame(YuvFrame frame, byte[] bytes) {
+        int size = frame.getFrameSize();
+        if (bytes.length < size) bytes = new byte[size];
+        ByteBuffer buffer = frame.getBuffer();
+        int position = buffer.position();
+        buffer.get(bytes, 0, size);
+        buffer.position(position);
+        return bytes;
+    }
+
+    private static void writeFrame(YuvFrame frame, byte[] bytes) {
+        ByteBuffer buffer = frame.getBuffer();
+        int position = buffer.position();
+        buffer.put(bytes, 0, frame.getFrameSize());
+        buffer.position(position);
+    }
+
+    //========================= kernels ========================================================
+    private void scaleRows(int band, int start, int end) {
+        final byte[] in = inBytes;
+        final byte[] out = outBytes;
+        final int[] accumulator = accumulators[band];
+        final Filter horizontal = horizontalFilters[plane];
+        final Filter vertical = verticalFilters[plane];
+        final int inWidth = input.getPlaneWidth(plane);
+        final int inOffset = input.getPlaneOffset(plane);
+        final int inRowStride = input.getPlaneRowStride(plane);
+        final int inPixelStride = input.getPlanePixelStride(plane);
+        final int outWidth = output.getPlaneWidth(plane);
+        final int outRowStride = output.getPlaneRowStride(plane);
+        final int outPixelStride = output.getPlanePixelStride(plane);
+        final int verticalTaps = vertical.taps;
+        final int horizontalTaps = horizontal.taps;
+        final int[] horizontalIndices = horizontal.indices;
+        final int[] horizontalWeights = horizontal.weights;
+
+        for (int y = start; y < end; y++) {
+            // vertical pass over every input column of the rows this output row covers
+            for (int x = 0; x < inWidth; x++) accumulator[x] = 0;
+            for (int t = y * verticalTaps, last = t + verticalTaps; t < last; t++) {
+                final int weight = vertical.weights[t];
+                if (weight == 0) continue;
+                for (int x = 0, i = inOffset + vertical.indices[t] * inRowStride; x < inWidth; x++, i += inPixelStride) {
+                    accumulator[x] += weight * (in[i] & 0xff);
+                }
+            }
+            for (int x = 0; x < inWidth; x++) {
+                accumulator[x] = (accumulator[x] + (1 << (ACCUMULATOR_SHIFT - 1))) >> ACCUMULATOR_SHIFT;
+            }
+            // horizontal pass
+            for (int x = 0, t = 0, o = output.getPlaneOffset(plane) + y * outRowStride; x < outWidth; x++, o += outPixelStride) {
+                int sum = 1 << (OUTPUT_SHIFT - 1);
+                for (int last = t + horizontalTaps; t < last; t++) {
+                    sum += horizontalWeights[t] * accumulator[horizontalIndices[t]];
+                }
+                int value = sum >> OUTPUT_SHIFT;
+                out[o] = (byte) (value > 255 ? 255 : value < 0 ? 0 : value);
+            }
+        }
+    }
+
+    private void copyRows(int band, int start, int end) {
+        final byte[] in = inBytes;
+        final byte[] out = outBytes;
+        final int width = output.getPlaneWidth(plane);
+        final int inPixelStride = input.getPlanePixelStride(plane);
+        final int outPixelStride = output.getPlanePixelStride(plane);
+        for (int y = start; y < end; y++) {
+            int i = input.getPlaneOffset(plane) + y * input.getPlaneRowStride(plane);
+            int o = output.getPlaneOffset(plane) + y * output.getPlaneRowStride(plane);
+            if (inPixelStride == 1 && outPixelStride == 1) {
+                System.arraycopy(in, i, out, o, width);
+                continue;
+            }
+            for (int x = 0; x < width; x++, i += inPixelStride, o += outPixelStride) {
+                out[o] = in[i];
+            }
+        }
+    }
+
+    //========================= filter ========================================================
+
+    /**
+     * taps of one axis, output pixel d reads input pixels indices[d * taps + t] with weights[d * taps + t]
+     */
+    static final class Filter {
+        final int inLength;
+        final int outLength;
+        final int taps;
+        final int[] indices;
+        final int[] weights;
+
+        private Filter(int inLength, int outLength, int taps) {
+            this.inLength = inLength;
+            this.outLength = outLength;
+            this.taps = taps;
+            indices = new int[outLength * taps];
+            weights = new int[outLength * taps];
+        }
+
+        static Filter get(Filter cached, int inLength, int outLength) {
+            if (cached != null && cached.inLength == inLength && cached.outLength == outLength) return cached;
+            return inLength > outLength ? area(inLength, outLength) : bilinear(inLength, outLength);
+        }
+
+        private static Filter area(int inLength, int outLength) {
+            double ratio = (double) inLength / outLength;
+            Filter filter = new Filter(inLength, outLength, (int) Math.ceil(ratio) + 1);
+            double[] coverage = new double[filter.taps];
+            for (int d = 0; d < outLength; d++) {
+                double begin = d * ratio;
+                double end = Math.min(inLength, (d + 1) * ratio);
+                int first = (int) begin;
+                for (int t = 0; t < filter.taps; t++) {
+                    int s = first + t;
+                    coverage[t] = s < inLength ? Math.max(0, Math.min(end, s + 1) - Math.max(begin, s)) / ratio : 0;
+                    filter.indices[d * filter.taps + t] = Math.min(s, inLength - 1);
+                }
+                filter.setWeights(d, coverage);
+            }
+            return filter;
+        }
+
+        private static Filter bilinear(int inLength, int outLength) {
+            double ratio = (double) inLength / outLength;
+            Filter filter = new Filter(inLength, outLength, 2);
+            double[] coverage = new double[2];
+            for (int d = 0; d < outLength; d++) {
+                // pixel centers are aligned, edges repeat the outermost pixel
+                double position = Math.max(0, (d + 0.5) * ratio - 0.5);
+                int first = Math.min((int) position, inLength - 1);
+                double fraction = Math.min(1, position - first);
+                coverage[0] = 1 - fraction;
+                coverage[1] = fraction;
+                filter.indices[d * 2] = first;
+                filter.indices[d * 2 + 1] = Math.min(first + 1, inLength - 1);
+                filter.setWeights(d, coverage);
+            }
+            return filter;
+        }
+
+        /**
+         * round weights to fixed point, the rounding error goes to the largest one so they sum up to exactly one
+         */
+        private void setWeights(int d, double[] coverage) {
+            double total = 0;
+            for (int t = 0; t < taps; t++) total += coverage[t];
+            int sum = 0;
+            int largest = 0;
+            for (int t = 0; t < taps; t++) {
+                int weight = (int) Math.round(coverage[t] / total * WEIGHT_ONE);
+                weights[d * taps + t] = weight;
+                sum += weight;
+                if (weight > weights[d * taps + largest]) largest = t;
+            }
+            weights[d * taps + largest] += WEIGHT_ONE - sum;
+        }
+    }
+}
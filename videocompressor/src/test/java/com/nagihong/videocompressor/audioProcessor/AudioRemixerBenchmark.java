@@ -0,0 +1,83 @@
+package com.nagihong.videocompressor.audioProcessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stereo to mono downmix of a decoder buffer sized chunk, the block remixer against the per sample one it replaced.
+ * Run by main(), results are per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AudioRemixerBenchmark {
+    private static final int FRAMES = 4096;
+
+    private final AudioRemixer downMix = new AudioRemixer.DownMix();
+    private ShortBuffer in;
+    private ShortBuffer out;
+    private ByteBuffer inBytes;
+    private ByteBuffer outBytes;
+
+    @Setup
+    public void setUp() {
+        short[] pcm = AudioRemixerTest.randomPcm(FRAMES * 2, 1);
+        in = ShortBuffer.wrap(pcm);
+        out = ShortBuffer.allocate(FRAMES);
+        // codec buffers are direct and native ordered
+        inBytes = ByteBuffer.allocateDirect(FRAMES * 4).order(ByteOrder.nativeOrder());
+        inBytes.asShortBuffer().put(pcm);
+        outBytes = ByteBuffer.allocateDirect(FRAMES * 2).order(ByteOrder.nativeOrder());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public ShortBuffer perSample() {
+        in.clear();
+        out.clear();
+        AudioRemixerTest.referenceDownMix(in, out);
+        return out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public ShortBuffer blocks() {
+        in.clear();
+        out.clear();
+        downMix.remix(in, out);
+        return out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public ByteBuffer directBlocks() {
+        inBytes.clear();
+        outBytes.clear();
+        downMix.remix(inBytes, outBytes);
+        return outBytes;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(AudioRemixerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
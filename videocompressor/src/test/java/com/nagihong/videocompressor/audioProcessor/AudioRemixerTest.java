@@ -0,0 +1,306 @@
+package com.nagihong.videocompressor.audioProcessor;
+
+import android.media.AudioFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class AudioRemixerTest {
+    private static final int SIGNED_SHORT_LIMIT = 32768;
+    private static final int UNSIGNED_SHORT_MAX = 65535;
+    private static final float MATRIX_DELTA = 1e-4f;
+
+    @Test
+    public void downMix_bitExactOnGrid() {
+        // every 37th value of both channels, the extremes and the middle included
+        int steps = 65536 / 37 + 1;
+        short[] values = new short[steps + 4];
+        for (int i = 0; i < steps; i++) {
+            values[i] = (short) (Short.MIN_VALUE + i * 37);
+        }
+        values[steps] = Short.MAX_VALUE;
+        values[steps + 1] = 0;
+        values[steps + 2] = -1;
+        values[steps + 3] = 1;
+
+        short[] in = new short[values.length * 2];
+        for (short left : values) {
+            for (int i = 0; i < values.length; i++) {
+                in[2 * i] = left;
+                in[2 * i + 1] = values[i];
+            }
+            assertDownMixBitExact(in);
+        }
+    }
+
+    @Test
+    public void downMix_bitExactOnRandomPcm() {
+        assertDownMixBitExact(randomPcm(1 << 20, 1));
+    }
+
+    @Test
+    public void downMix_byteBuffersMatchShortBuffers() {
+        short[] in = randomPcm(5000, 2);
+        short[] expected = new short[2500];
+        referenceDownMix(ShortBuffer.wrap(in), ShortBuffer.wrap(expected));
+
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+            for (boolean direct : new boolean[]{false, true}) {
+                ByteBuffer inBytes = toBytes(in, order, direct);
+                ByteBuffer outBytes = allocate(expected.length * 2, order, direct);
+                new AudioRemixer.DownMix().remix(inBytes, outBytes);
+
+                assertEquals(inBytes.limit(), inBytes.position());
+                assertEquals(outBytes.limit(), outBytes.position());
+                assertArrayEquals(expected, toShorts(outBytes));
+            }
+        }
+    }
+
+    @Test
+    public void downMix_limitedByOutput() {
+        short[] in = randomPcm(3000, 3);
+        short[] expected = new short[1000];
+        referenceDownMix(ShortBuffer.wrap(in), ShortBuffer.wrap(expected));
+
+        ShortBuffer inBuffer = ShortBuffer.wrap(in);
+        ShortBuffer outBuffer = ShortBuffer.allocate(1000);
+        new AudioRemixer.DownMix().remix(inBuffer, outBuffer);
+
+        assertEquals(2000, inBuffer.position());
+        assertArrayEquals(expected, outBuffer.array());
+    }
+
+    @Test
+    public void downMix_leavesHalfFrame() {
+        ByteBuffer in = toBytes(new short[]{1, 2, 3}, ByteOrder.nativeOrder(), false);
+        // one byte short of the second frame
+        in.limit(5);
+        ByteBuffer out = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder());
+
+        new AudioRemixer.DownMix().remix(in, out);
+
+        assertEquals(4, in.position());
+        assertEquals(2, out.position());
+    }
+
+    @Test
+    public void upMix_duplicatesSamples() {
+        short[] in = randomPcm(3000, 4);
+        ByteBuffer inBytes = toBytes(in, ByteOrder.LITTLE_ENDIAN, true);
+        ByteBuffer outBytes = allocate(in.length * 4, ByteOrder.LITTLE_ENDIAN, true);
+
+        new AudioRemixer.UpMix().remix(inBytes, outBytes);
+
+        short[] out = toShorts(outBytes);
+        for (int i = 0; i < in.length; i++) {
+            assertEquals(in[i], out[2 * i]);
+            assertEquals(in[i], out[2 * i + 1]);
+        }
+        assertEquals(inBytes.limit(), inBytes.position());
+    }
+
+    @Test
+    public void passThrough_copies() {
+        short[] in = randomPcm(3000, 5);
+        ByteBuffer inBytes = toBytes(in, ByteOrder.BIG_ENDIAN, false);
+        ByteBuffer outBytes = allocate(2000, ByteOrder.BIG_ENDIAN, false);
+
+        new AudioRemixer.PassThrough().remix(inBytes, outBytes);
+
+        short[] expected = new short[1000];
+        System.arraycopy(in, 0, expected, 0, 1000);
+        assertArrayEquals(expected, toShorts(outBytes));
+        assertEquals(2000, inBytes.position());
+    }
+
+    @Test
+    public void matrix_bs775Gains() {
+        float m = 0.7071f;
+        float[][] surround51 = MatrixAudioRemixer.createMatrix(6, 2, 0);
+        // center and back at -3dB, LFE dropped, each row scaled by 1 / (1 + 2 * -3dB)
+        float s = 1 + 2 * m;
+        assertArrayEquals(new float[]{1 / s, 0, m / s, 0, m / s, 0}, surround51[0], MATRIX_DELTA);
+        assertArrayEquals(new float[]{0, 1 / s, m / s, 0, 0, m / s}, surround51[1], MATRIX_DELTA);
+        assertMatrixEquals(MatrixAudioRemixer.SURROUND_5_1_TO_STEREO, surround51);
+
+        float[][] surround71 = MatrixAudioRemixer.createMatrix(8, 2, 0);
+        s = 1 + 3 * m;
+        assertArrayEquals(new float[]{1 / s, 0, m / s, 0, m / s, 0, m / s, 0}, surround71[0], MATRIX_DELTA);
+        assertArrayEquals(new float[]{0, 1 / s, m / s, 0, 0, m / s, 0, m / s}, surround71[1], MATRIX_DELTA);
+        assertMatrixEquals(MatrixAudioRemixer.SURROUND_7_1_TO_STEREO, surround71);
+
+        // 6.1, the back center goes to both sides
+        float[][] surround61 = MatrixAudioRemixer.createMatrix(7, 2, 0);
+        assertArrayEquals(new float[]{1 / s, 0, m / s, 0, m / s, m / s, 0}, surround61[0], MATRIX_DELTA);
+        assertArrayEquals(new float[]{0, 1 / s, m / s, 0, m / s, 0, m / s}, surround61[1], MATRIX_DELTA);
+    }
+
+    @Test
+    public void matrix_monoAndStereoCopied() {
+        assertMatrixEquals(new float[][]{{1}, {1}}, MatrixAudioRemixer.createMatrix(1, 2, 0));
+        assertMatrixEquals(new float[][]{{1, 0}, {0, 1}}, MatrixAudioRemixer.createMatrix(2, 2, 0));
+        assertMatrixEquals(new float[][]{{1}}, MatrixAudioRemixer.createMatrix(1, 1, 0));
+        assertMatrixEquals(MatrixAudioRemixer.STEREO_TO_MONO, MatrixAudioRemixer.createMatrix(2, 1, 0));
+    }
+
+    @Test
+    public void matrix_toMonoAveragesSides() {
+        float m = 0.7071f;
+        // FL FR FC LFE BL BR of both sides halved, then scaled by their sum
+        float[] expected = {0.5f, 0.5f, m, 0, m / 2, m / 2};
+        float s = 1 + 2 * m;
+        for (int i = 0; i < expected.length; i++) expected[i] /= s;
+        assertArrayEquals(expected, MatrixAudioRemixer.createMatrix(6, 1, 0)[0], MATRIX_DELTA);
+    }
+
+    @Test
+    public void matrix_channelMaskOrdersInput() {
+        // 5.1 with side instead of back surrounds, and the default layout, map alike
+        int side51 = AudioFormat.CHANNEL_OUT_FRONT_LEFT | AudioFormat.CHANNEL_OUT_FRONT_RIGHT | AudioFormat.CHANNEL_OUT_FRONT_CENTER
+                | AudioFormat.CHANNEL_OUT_LOW_FREQUENCY | AudioFormat.CHANNEL_OUT_SIDE_LEFT | AudioFormat.CHANNEL_OUT_SIDE_RIGHT;
+        int back51 = AudioFormat.CHANNEL_OUT_FRONT_LEFT | AudioFormat.CHANNEL_OUT_FRONT_RIGHT | AudioFormat.CHANNEL_OUT_FRONT_CENTER
+                | AudioFormat.CHANNEL_OUT_LOW_FREQUENCY | AudioFormat.CHANNEL_OUT_BACK_LEFT | AudioFormat.CHANNEL_OUT_BACK_RIGHT;
+        assertMatrixEquals(MatrixAudioRemixer.SURROUND_5_1_TO_STEREO, MatrixAudioRemixer.createMatrix(6, 2, side51));
+        assertMatrixEquals(MatrixAudioRemixer.SURROUND_5_1_TO_STEREO, MatrixAudioRemixer.createMatrix(6, 2, back51));
+        int surround71 = back51 | AudioFormat.CHANNEL_OUT_SIDE_LEFT | AudioFormat.CHANNEL_OUT_SIDE_RIGHT;
+        assertMatrixEquals(MatrixAudioRemixer.SURROUND_7_1_TO_STEREO, MatrixAudioRemixer.createMatrix(8, 2, surround71));
+
+        // four channels are FL FR BL BR by default, the mask makes the last two center and back center
+        float m = 0.7071f;
+        assertArrayEquals(new float[]{1 / (1 + m), 0, m / (1 + m), 0},
+                MatrixAudioRemixer.createMatrix(4, 2, 0)[0], MATRIX_DELTA);
+        int centers = AudioFormat.CHANNEL_OUT_FRONT_LEFT | AudioFormat.CHANNEL_OUT_FRONT_RIGHT
+                | AudioFormat.CHANNEL_OUT_FRONT_CENTER | AudioFormat.CHANNEL_OUT_BACK_CENTER;
+        float s = 1 + 2 * m;
+        assertArrayEquals(new float[]{1 / s, 0, m / s, m / s}, MatrixAudioRemixer.createMatrix(4, 2, centers)[0], MATRIX_DELTA);
+        assertArrayEquals(new float[]{0, 1 / s, m / s, m / s}, MatrixAudioRemixer.createMatrix(4, 2, centers)[1], MATRIX_DELTA);
+
+        // a mask not matching the channel count is ignored
+        assertMatrixEquals(MatrixAudioRemixer.SURROUND_5_1_TO_STEREO, MatrixAudioRemixer.createMatrix(6, 2, surround71));
+    }
+
+    @Test
+    public void matrix_remixesKnownFrames() {
+        // FL FR FC LFE BL BR
+        short[] in = {
+                10000, 0, 0, 0, 0, 0,
+                0, 0, 10000, 0, 0, 0,
+                0, 0, 0, Short.MAX_VALUE, 0, 0,
+                0, 0, 0, 0, 0, -10000,
+                // full scale in every channel stays in range
+                Short.MAX_VALUE, Short.MAX_VALUE, Short.MAX_VALUE, Short.MAX_VALUE, Short.MAX_VALUE, Short.MAX_VALUE,
+                Short.MIN_VALUE, Short.MIN_VALUE, Short.MIN_VALUE, Short.MIN_VALUE, Short.MIN_VALUE, Short.MIN_VALUE,
+        };
+        short[] stereo = new short[in.length / 3];
+        MatrixAudioRemixer.create(6, 2, 0).remix(ShortBuffer.wrap(in), ShortBuffer.wrap(stereo));
+        assertArrayEquals(new short[]{
+                4142, 0,
+                2929, 2929,
+                0, 0,
+                0, -2929,
+                Short.MAX_VALUE, Short.MAX_VALUE,
+                Short.MIN_VALUE, Short.MIN_VALUE,
+        }, stereo);
+
+        short[] mono = new short[in.length / 6];
+        MatrixAudioRemixer.create(6, 1, 0).remix(ShortBuffer.wrap(in), ShortBuffer.wrap(mono));
+        assertArrayEquals(new short[]{2071, 2929, 0, -1464, Short.MAX_VALUE, Short.MIN_VALUE}, mono);
+    }
+
+    @Test
+    public void matrix_remixesAcrossBlocks() {
+        short[] in = randomPcm(8 * (BlockAudioRemixer.BLOCK_FRAMES * 2 + 100), 6);
+        float[][] matrix = MatrixAudioRemixer.createMatrix(8, 2, 0);
+        short[] out = new short[in.length / 4];
+        MatrixAudioRemixer.create(8, 2, 0).remix(ShortBuffer.wrap(in), ShortBuffer.wrap(out));
+
+        for (int f = 0; f < out.length / 2; f++) {
+            for (int o = 0; o < 2; o++) {
+                float sum = 0;
+                for (int c = 0; c < 8; c++) sum += matrix[o][c] * in[8 * f + c];
+                assertEquals("frame " + f, Math.round(sum), out[2 * f + o]);
+            }
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void matrix_rejectsTooManyChannels() {
+        MatrixAudioRemixer.createMatrix(MatrixAudioRemixer.MAX_INPUT_CHANNELS + 1, 2, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void matrix_rejectsRaggedRows() {
+        new MatrixAudioRemixer(new float[][]{{1, 0}, {1}});
+    }
+
+    //========================= helpers ========================================================
+
+    private static void assertMatrixEquals(float[][] expected, float[][] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int o = 0; o < expected.length; o++) {
+            assertArrayEquals("row " + o, expected[o], actual[o], MATRIX_DELTA);
+        }
+    }
+
+    /**
+     * the downmix as it was before it worked in blocks, one buffer call per sample and a branch per frame
+     */
+    static void referenceDownMix(final ShortBuffer inSBuff, final ShortBuffer outSBuff) {
+        final int samplesToBeProcessed = Math.min(inSBuff.remaining() / 2, outSBuff.remaining());
+        for (int i = 0; i < samplesToBeProcessed; ++i) {
+            final int a = inSBuff.get() + SIGNED_SHORT_LIMIT;
+            final int b = inSBuff.get() + SIGNED_SHORT_LIMIT;
+            int m;
+            if ((a < SIGNED_SHORT_LIMIT) || (b < SIGNED_SHORT_LIMIT)) {
+                m = a * b / SIGNED_SHORT_LIMIT;
+            } else {
+                m = 2 * (a + b) - (a * b) / SIGNED_SHORT_LIMIT - UNSIGNED_SHORT_MAX;
+            }
+            if (m == UNSIGNED_SHORT_MAX + 1) m = UNSIGNED_SHORT_MAX;
+            outSBuff.put((short) (m - SIGNED_SHORT_LIMIT));
+        }
+    }
+
+    static short[] randomPcm(int samples, long seed) {
+        Random random = new Random(seed);
+        short[] pcm = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            pcm[i] = (short) random.nextInt();
+        }
+        return pcm;
+    }
+
+    private static void assertDownMixBitExact(short[] in) {
+        short[] expected = new short[in.length / 2];
+        referenceDownMix(ShortBuffer.wrap(in), ShortBuffer.wrap(expected));
+        short[] actual = new short[in.length / 2];
+        new AudioRemixer.DownMix().remix(ShortBuffer.wrap(in), ShortBuffer.wrap(actual));
+        assertArrayEquals(expected, actual);
+    }
+
+    private static ByteBuffer allocate(int bytes, ByteOrder order, boolean direct) {
+        return (direct ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes)).order(order);
+    }
+
+    private static ByteBuffer toBytes(short[] samples, ByteOrder order, boolean direct) {
+        ByteBuffer bytes = allocate(samples.length * 2, order, direct);
+        bytes.asShortBuffer().put(samples);
+        return bytes;
+    }
+
+    private static short[] toShorts(ByteBuffer bytes) {
+        ByteBuffer written = bytes.duplicate().order(bytes.order());
+        written.flip();
+        short[] samples = new short[written.remaining() / 2];
+        written.asShortBuffer().get(samples);
+        return samples;
+    }
+}
@@ -0,0 +1,79 @@
+package com.nagihong.videocompressor.audioProcessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stereo resampling of a decoder buffer sized chunk, for the rate pairs met most. Run by main(), results are per
+ * input frame, a second of 48 kHz audio takes 48000 times as long.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AudioResamplerBenchmark {
+    private static final int FRAMES = 4096;
+    private static final int CHANNELS = 2;
+
+    // input and output rate
+    @Param({"44100:48000", "48000:44100", "48000:16000"})
+    public String rates;
+
+    private AudioResampler resampler;
+    private ShortBuffer in;
+    private FloatBuffer floatIn;
+    private ShortBuffer out;
+
+    @Setup
+    public void setUp() {
+        String[] pair = rates.split(":");
+        resampler = new AudioResampler(Integer.parseInt(pair[0]), Integer.parseInt(pair[1]), CHANNELS);
+        short[] pcm = AudioRemixerTest.randomPcm(FRAMES * CHANNELS, 1);
+        in = ShortBuffer.wrap(pcm);
+        float[] floats = new float[pcm.length];
+        for (int i = 0; i < pcm.length; i++) {
+            floats[i] = pcm[i] / 32768f;
+        }
+        floatIn = FloatBuffer.wrap(floats);
+        out = ShortBuffer.allocate(resampler.getMaxOutputFrames(FRAMES) * CHANNELS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int shorts() {
+        in.clear();
+        out.clear();
+        return resampler.resample(in, out);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int floats() {
+        floatIn.clear();
+        out.clear();
+        return resampler.resample(floatIn, out);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(AudioResamplerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,248 @@
+package com.nagihong.videocompressor.audioProcessor;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AudioResamplerTest {
+    private static final int[][] RATES = {
+            {44100, 48000}, {48000, 44100}, {22050, 44100}, {48000, 16000}, {8000, 48000}, {32000, 44100}};
+    private static final double AMPLITUDE = 16000;
+
+    @Test
+    public void passBand_matchesIdealResampledSine() {
+        // upsampling, output is compared with the sine sampled at the output rate, which leaves no room
+        // for gain, delay, images or noise
+        int[][] rates = {{44100, 48000}, {22050, 44100}, {16000, 48000}, {8000, 48000}};
+        for (int[] rate : rates) {
+            for (double ratio : new double[]{0.01, 0.05, 0.1, 0.2, 0.3}) {
+                double frequency = ratio * rate[0];
+                short[] output = resampleAll(rate[0], rate[1], 1, sine(frequency, rate[0], rate[0]));
+                double errorDb = errorDb(output, frequency, rate[1]);
+                assertTrue(String.format("%d -> %d at %.0f Hz off by %.1f dB", rate[0], rate[1], frequency, errorDb),
+                        errorDb < -80);
+            }
+        }
+    }
+
+    @Test
+    public void passBand_gainOfDownsampling() {
+        int[][] rates = {{48000, 44100}, {48000, 16000}, {44100, 22050}};
+        for (int[] rate : rates) {
+            for (double ratio : new double[]{0.01, 0.05, 0.1, 0.2}) {
+                double frequency = ratio * rate[1];
+                short[] output = resampleAll(rate[0], rate[1], 1, sine(frequency, rate[0], rate[0]));
+                double gainDb = gainDb(output, frequency, rate[1]);
+                assertTrue(String.format("%d -> %d at %.0f Hz gain %.3f dB", rate[0], rate[1], frequency, gainDb),
+                        Math.abs(gainDb) < 0.05);
+            }
+        }
+    }
+
+    @Test
+    public void stopBand_attenuatesAliases() {
+        // would fold back to 4800, 4000, 1600 and 4000 Hz
+        for (double frequency : new double[]{11200, 12000, 14400, 20000}) {
+            short[] output = resampleAll(48000, 16000, 1, sine(frequency, 48000, 48000));
+            double levelDb = levelDb(output);
+            assertTrue(String.format("%.0f Hz at %.1f dB", frequency, levelDb), levelDb < -60);
+        }
+        for (double frequency : new double[]{16000, 20000}) {
+            short[] output = resampleAll(44100, 22050, 1, sine(frequency, 44100, 44100));
+            double levelDb = levelDb(output);
+            assertTrue(String.format("%.0f Hz at %.1f dB", frequency, levelDb), levelDb < -60);
+        }
+    }
+
+    @Test
+    public void latency_compensated() {
+        for (int[] rate : RATES) {
+            short[] input = new short[rate[0] / 10];
+            int impulseFrame = input.length / 2 + 3;
+            input[impulseFrame] = 16384;
+            short[] output = resampleAll(rate[0], rate[1], 1, input);
+
+            // centroid of the linear phase response is where the impulse lands
+            double weighted = 0;
+            double sum = 0;
+            for (int i = 0; i < output.length; i++) {
+                weighted += (double) i * output[i];
+                sum += output[i];
+            }
+            double expected = (double) impulseFrame * rate[1] / rate[0];
+            assertEquals(String.format("%d -> %d", rate[0], rate[1]), expected, weighted / sum, 0.02);
+        }
+    }
+
+    @Test
+    public void drain_outputLengthOfCompleteStream() {
+        Random random = new Random(1);
+        for (int[] rate : RATES) {
+            for (int frames : new int[]{0, 1, 2, 15, 16, 17, 31, 32, 33, 1000, 1023, 1024, 1025, rate[0] + 7}) {
+                AudioResampler resampler = new AudioResampler(rate[0], rate[1], 2);
+                short[] output = resampleInChunks(resampler, new short[frames * 2], 2, random);
+                long expected = ((long) frames * rate[1] + rate[0] - 1) / rate[0];
+                assertEquals(String.format("%d -> %d of %d frames", rate[0], rate[1], frames), expected, output.length / 2);
+                assertEquals(expected, resampler.getOutputFrameCount());
+                assertTrue(output.length / 2 <= resampler.getMaxOutputFrames(frames));
+                // drained already
+                assertEquals(0, resampler.drain(ShortBuffer.allocate(100)));
+            }
+        }
+    }
+
+    @Test
+    public void chunks_sameAsWholeBuffer() {
+        Random random = new Random(2);
+        for (int[] rate : RATES) {
+            short[] input = AudioRemixerTest.randomPcm(2 * 5000, rate[0]);
+            short[] whole = resampleAll(rate[0], rate[1], 2, input);
+            short[] chunked = resampleInChunks(new AudioResampler(rate[0], rate[1], 2), input, 2, random);
+            assertArrayEquals(whole, chunked);
+        }
+    }
+
+    @Test
+    public void channels_independent() {
+        short[] left = sine(1000, 44100, 4410);
+        short[] right = AudioRemixerTest.randomPcm(4410, 3);
+        short[] stereo = new short[left.length * 2];
+        for (int i = 0; i < left.length; i++) {
+            stereo[2 * i] = left[i];
+            stereo[2 * i + 1] = right[i];
+        }
+
+        short[] output = resampleAll(44100, 48000, 2, stereo);
+        short[] leftOutput = resampleAll(44100, 48000, 1, left);
+        short[] rightOutput = resampleAll(44100, 48000, 1, right);
+
+        for (int i = 0; i < leftOutput.length; i++) {
+            assertEquals(leftOutput[i], output[2 * i]);
+            assertEquals(rightOutput[i], output[2 * i + 1]);
+        }
+    }
+
+    @Test
+    public void floatInput_sameAsShortInput() {
+        short[] input = AudioRemixerTest.randomPcm(3000, 4);
+        float[] floats = new float[input.length];
+        for (int i = 0; i < input.length; i++) {
+            floats[i] = input[i] / 32768f;
+        }
+
+        AudioResampler resampler = new AudioResampler(48000, 44100, 1);
+        ShortBuffer out = ShortBuffer.allocate(resampler.getMaxOutputFrames(input.length));
+        resampler.resample(FloatBuffer.wrap(floats), out);
+        resampler.drain(out);
+
+        assertArrayEquals(resampleAll(48000, 44100, 1, input), toArray(out));
+    }
+
+    @Test
+    public void reset_startsOver() {
+        short[] input = AudioRemixerTest.randomPcm(3000, 5);
+        AudioResampler resampler = new AudioResampler(44100, 48000, 1);
+        resampleInChunks(resampler, AudioRemixerTest.randomPcm(777, 6), 1, new Random(7));
+
+        resampler.reset();
+
+        assertEquals(0, resampler.getOutputFrameCount());
+        assertArrayEquals(resampleAll(44100, 48000, 1, input), resampleInChunks(resampler, input, 1, new Random(8)));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void unsupportedRatio() {
+        new AudioResampler(192000, 4000, 1);
+    }
+
+    //========================= helpers ========================================================
+
+    static short[] sine(double frequency, int sampleRate, int frames) {
+        short[] samples = new short[frames];
+        for (int i = 0; i < frames; i++) {
+            samples[i] = (short) Math.round(AMPLITUDE * Math.sin(2 * Math.PI * frequency * i / sampleRate));
+        }
+        return samples;
+    }
+
+    private static short[] resampleAll(int inputRate, int outputRate, int channels, short[] input) {
+        AudioResampler resampler = new AudioResampler(inputRate, outputRate, channels);
+        ShortBuffer out = ShortBuffer.allocate(resampler.getMaxOutputFrames(input.length / channels) * channels);
+        ShortBuffer in = ShortBuffer.wrap(input);
+        resampler.resample(in, out);
+        assertEquals(0, in.remaining());
+        resampler.drain(out);
+        return toArray(out);
+    }
+
+    /**
+     * feeds input of random sizes into output buffers of random sizes, like codec buffers come and go
+     */
+    private static short[] resampleInChunks(AudioResampler resampler, short[] input, int channels, Random random) {
+        ShortBuffer result = ShortBuffer.allocate(resampler.getMaxOutputFrames(input.length / channels) * channels);
+        ShortBuffer in = ShortBuffer.wrap(input);
+        while (in.hasRemaining()) {
+            in.limit(Math.min(input.length, in.position() + channels * (1 + random.nextInt(3000))));
+            while (in.hasRemaining()) {
+                ShortBuffer out = ShortBuffer.allocate(channels * (1 + random.nextInt(500)));
+                resampler.resample(in, out);
+                result.put(toArray(out));
+            }
+            in.limit(input.length);
+        }
+        while (true) {
+            ShortBuffer out = ShortBuffer.allocate(channels * (1 + random.nextInt(50)));
+            int frames = resampler.drain(out);
+            result.put(toArray(out));
+            if (frames * channels < out.capacity()) break;
+        }
+        return toArray(result);
+    }
+
+    private static short[] toArray(ShortBuffer buffer) {
+        buffer.flip();
+        short[] samples = new short[buffer.remaining()];
+        buffer.get(samples);
+        return samples;
+    }
+
+    // steady state, away from the fade in and out of the filter at both ends
+    private static double errorDb(short[] output, double frequency, int sampleRate) {
+        double error = 0;
+        int from = output.length / 4;
+        int to = output.length * 3 / 4;
+        for (int i = from; i < to; i++) {
+            double difference = output[i] - AMPLITUDE * Math.sin(2 * Math.PI * frequency * i / sampleRate);
+            error += difference * difference;
+        }
+        return 20 * Math.log10(Math.sqrt(2 * error / (to - from)) / AMPLITUDE);
+    }
+
+    private static double gainDb(short[] output, double frequency, int sampleRate) {
+        double sin = 0;
+        double cos = 0;
+        int from = output.length / 4;
+        int to = output.length * 3 / 4;
+        for (int i = from; i < to; i++) {
+            sin += output[i] * Math.sin(2 * Math.PI * frequency * i / sampleRate);
+            cos += output[i] * Math.cos(2 * Math.PI * frequency * i / sampleRate);
+        }
+        return 20 * Math.log10(2 * Math.hypot(sin, cos) / (to - from) / AMPLITUDE);
+    }
+
+    private static double levelDb(short[] output) {
+        double energy = 0;
+        int from = output.length / 4;
+        int to = output.length * 3 / 4;
+        for (int i = from; i < to; i++) {
+            energy += (double) output[i] * output[i];
+        }
+        return 20 * Math.log10(Math.sqrt(2 * energy / (to - from)) / AMPLITUDE);
+    }
+}
@@ -0,0 +1,184 @@
+package com.nagihong.videocompressor.audioProcessor;
+
+import android.media.AudioFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PcmConverterTest {
+    // AudioFormat.ENCODING_PCM_24BIT_PACKED and ENCODING_PCM_32BIT, api 31
+    private static final int PCM_24BIT_PACKED = 21;
+    private static final int PCM_32BIT = 22;
+    private static final int[] ENCODINGS = {AudioFormat.ENCODING_PCM_16BIT, PCM_24BIT_PACKED, PCM_32BIT, AudioFormat.ENCODING_PCM_FLOAT};
+
+    // more than one block
+    private static final int SAMPLES = 10000;
+
+    @Test
+    public void toShort_roundTripOfEveryEncoding() {
+        short[] samples = samples();
+        for (int encoding : ENCODINGS) {
+            for (boolean direct : new boolean[]{false, true}) {
+                ByteBuffer encoded = encode(samples, encoding, direct);
+                ShortBuffer out = ShortBuffer.allocate(SAMPLES);
+
+                new PcmConverter(encoding).toShort(encoded, out);
+
+                assertEquals(SAMPLES, out.position());
+                assertArrayEquals("encoding " + encoding, samples, out.array());
+                // position of in is left alone
+                assertEquals(0, encoded.position());
+            }
+        }
+    }
+
+    @Test
+    public void toFloat_roundTripOfEveryEncoding() {
+        short[] samples = samples();
+        float[] expected = new float[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            expected[i] = samples[i] / 32768f;
+        }
+        for (int encoding : ENCODINGS) {
+            for (boolean direct : new boolean[]{false, true}) {
+                FloatBuffer out = FloatBuffer.allocate(SAMPLES);
+
+                new PcmConverter(encoding).toFloat(encode(samples, encoding, direct), out);
+
+                assertEquals(SAMPLES, out.position());
+                assertArrayEquals("encoding " + encoding, expected, out.array(), 0);
+            }
+        }
+    }
+
+    @Test
+    public void toShort_roundsAndClamps() {
+        // halves round up, the largest values must not wrap to negative
+        assertEquals(1, toShort(PCM_24BIT_PACKED, 0x80));
+        assertEquals(0, toShort(PCM_24BIT_PACKED, 0x7f));
+        assertEquals(-1, toShort(PCM_24BIT_PACKED, -0x81));
+        assertEquals(Short.MAX_VALUE, toShort(PCM_24BIT_PACKED, 0x7fffff));
+        assertEquals(Short.MIN_VALUE, toShort(PCM_24BIT_PACKED, -0x800000));
+
+        assertEquals(1, toShort(PCM_32BIT, 0x8000));
+        assertEquals(0, toShort(PCM_32BIT, 0x7fff));
+        assertEquals(Short.MAX_VALUE, toShort(PCM_32BIT, Integer.MAX_VALUE));
+        assertEquals(Short.MIN_VALUE, toShort(PCM_32BIT, Integer.MIN_VALUE));
+
+        assertEquals(Short.MAX_VALUE, toShort(AudioFormat.ENCODING_PCM_FLOAT, Float.floatToIntBits(1f)));
+        assertEquals(Short.MAX_VALUE, toShort(AudioFormat.ENCODING_PCM_FLOAT, Float.floatToIntBits(1.5f)));
+        assertEquals(Short.MIN_VALUE, toShort(AudioFormat.ENCODING_PCM_FLOAT, Float.floatToIntBits(-1.5f)));
+        assertEquals(-16384, toShort(AudioFormat.ENCODING_PCM_FLOAT, Float.floatToIntBits(-0.5f)));
+    }
+
+    @Test
+    public void toFloat_fullScale() {
+        assertEquals(-1f, toFloat(PCM_24BIT_PACKED, -0x800000), 0);
+        assertEquals(0x7fffff / 8388608f, toFloat(PCM_24BIT_PACKED, 0x7fffff), 0);
+        assertEquals(-1f, toFloat(PCM_32BIT, Integer.MIN_VALUE), 0);
+        assertEquals(0.25f, toFloat(PCM_32BIT, 0x20000000), 0);
+    }
+
+    @Test
+    public void limitedByOutput() {
+        short[] samples = samples();
+        for (int encoding : ENCODINGS) {
+            ShortBuffer out = ShortBuffer.allocate(SAMPLES);
+            out.position(SAMPLES - 100);
+
+            new PcmConverter(encoding).toShort(encode(samples, encoding, true), out);
+
+            assertEquals(SAMPLES, out.position());
+            assertEquals(samples[99], out.get(SAMPLES - 1));
+        }
+    }
+
+    @Test
+    public void sampleCount_ofEncoding() {
+        ByteBuffer bytes = ByteBuffer.allocate(120);
+        assertEquals(60, new PcmConverter(AudioFormat.ENCODING_PCM_16BIT).sampleCount(bytes));
+        assertEquals(40, new PcmConverter(PCM_24BIT_PACKED).sampleCount(bytes));
+        assertEquals(30, new PcmConverter(PCM_32BIT).sampleCount(bytes));
+        assertEquals(30, new PcmConverter(AudioFormat.ENCODING_PCM_FLOAT).sampleCount(bytes));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void unsupportedEncoding() {
+        new PcmConverter(AudioFormat.ENCODING_PCM_8BIT);
+    }
+
+    //========================= helpers ========================================================
+
+    // every 16 bit value once at least, extremes included
+    private static short[] samples() {
+        short[] samples = new short[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            samples[i] = (short) (Short.MIN_VALUE + (long) i * 65535 / (SAMPLES - 1));
+        }
+        return samples;
+    }
+
+    /**
+     * samples in encoding, in native order like decoders output them
+     */
+    private static ByteBuffer encode(short[] samples, int encoding, boolean direct) {
+        int bytes = samples.length * PcmConverter.bytesPerSample(encoding);
+        ByteBuffer buffer = (direct ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes)).order(ByteOrder.nativeOrder());
+        for (short sample : samples) {
+            switch (encoding) {
+                case AudioFormat.ENCODING_PCM_16BIT:
+                    buffer.putShort(sample);
+                    break;
+                case PCM_24BIT_PACKED:
+                    put24(buffer, sample << 8);
+                    break;
+                case PCM_32BIT:
+                    buffer.putInt(sample << 16);
+                    break;
+                default:
+                    buffer.putFloat(sample / 32768f);
+                    break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void put24(ByteBuffer buffer, int value) {
+        if (buffer.order() == ByteOrder.LITTLE_ENDIAN) {
+            buffer.put((byte) value).put((byte) (value >> 8)).put((byte) (value >> 16));
+        } else {
+            buffer.put((byte) (value >> 16)).put((byte) (value >> 8)).put((byte) value);
+        }
+    }
+
+    /**
+     * @param raw 24 bit, 32 bit or float bits of one sample
+     */
+    private static ByteBuffer single(int encoding, int raw) {
+        ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder());
+        if (encoding == PCM_24BIT_PACKED) put24(buffer, raw);
+        else buffer.putInt(raw);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static short toShort(int encoding, int raw) {
+        ShortBuffer out = ShortBuffer.allocate(1);
+        new PcmConverter(encoding).toShort(single(encoding, raw), out);
+        return out.get(0);
+    }
+
+    private static float toFloat(int encoding, int raw) {
+        FloatBuffer out = FloatBuffer.allocate(1);
+        new PcmConverter(encoding).toFloat(single(encoding, raw), out);
+        return out.get(0);
+    }
+}
@@ -0,0 +1,137 @@
+package com.nagihong.videocompressor.audioProcessor;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PcmPackerTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final long START_US = 123456;
+    // an encoder input buffer of 4 AAC frames and some bytes more
+    private static final int ENCODER_BUFFER_FRAMES = 4 * PcmPacker.AAC_FRAME_SIZE + 300;
+
+    @Test
+    public void packFrames_alignedToAacFrames() {
+        PcmPacker packer = new PcmPacker(2, SAMPLE_RATE, 8192);
+        assertEquals(4096, packer.getPackFrames(4096));
+        assertEquals(4096, packer.getPackFrames(ENCODER_BUFFER_FRAMES));
+        assertEquals(1024, packer.getPackFrames(2047));
+        // smaller than one AAC frame, the whole buffer
+        assertEquals(1000, packer.getPackFrames(1000));
+        // no more than the ring holds
+        assertEquals(8192, packer.getPackFrames(20000));
+        packer.release();
+
+        PcmPacker small = new PcmPacker(2, SAMPLE_RATE, 3000);
+        assertEquals(2048, small.getPackFrames(ENCODER_BUFFER_FRAMES));
+        small.release();
+    }
+
+    @Test
+    public void presentationTime_firstStartCounts() {
+        PcmPacker packer = new PcmPacker(2, SAMPLE_RATE, 8192);
+        assertEquals(0, packer.getPresentationTimeUs());
+        packer.setStartPresentationTimeUs(START_US);
+        packer.setStartPresentationTimeUs(START_US + 5000);
+        assertEquals(START_US, packer.getPresentationTimeUs());
+
+        packer.write(new AudioRemixer.PassThrough(), frames(0, 2048));
+        ShortBuffer out = ShortBuffer.allocate(2048 * 2);
+        assertEquals(START_US, packer.pack(out, 1024));
+        assertFrames(out, 0, 1024);
+        // 1024 / 44100 s
+        assertEquals(START_US + 23219, packer.pack(out, 1024));
+        assertFrames(out, 1024, 1024);
+        assertEquals(START_US + 46439, packer.getPresentationTimeUs());
+        packer.release();
+    }
+
+    /**
+     * ten minutes of decoded chunks of random sizes packed into encoder buffers: every buffer but the last holds whole
+     * AAC frames, and its time is computed from the frame count, not summed up from rounded buffer durations
+     */
+    @Test
+    public void pack_alignedWithoutDrift() {
+        PcmPacker packer = new PcmPacker(2, SAMPLE_RATE, 2 * ENCODER_BUFFER_FRAMES);
+        packer.setStartPresentationTimeUs(START_US);
+        AudioRemixer passThrough = new AudioRemixer.PassThrough();
+        ShortBuffer out = ShortBuffer.allocate(ENCODER_BUFFER_FRAMES * 2);
+        int packFrames = packer.getPackFrames(ENCODER_BUFFER_FRAMES);
+        long totalFrames = 600L * SAMPLE_RATE;
+        Random random = new Random(3);
+
+        long written = 0;
+        long packed = 0;
+        long previousUs = -1;
+        while (packed < totalFrames) {
+            if (written < totalFrames) {
+                ShortBuffer in = frames(written, (int) Math.min(1 + random.nextInt(3000), totalFrames - written));
+                while (in.hasRemaining()) {
+                    written += packer.write(passThrough, in);
+                    while (packer.availableFrames() >= packFrames) {
+                        previousUs = assertPack(packer, out, packFrames, packed, previousUs);
+                        packed += packFrames;
+                    }
+                }
+            } else {
+                // end of input, the rest goes into a shorter buffer
+                int rest = packer.availableFrames();
+                assertTrue(rest < packFrames);
+                assertPack(packer, out, rest, packed, previousUs);
+                packed += rest;
+            }
+        }
+        assertEquals(0, packer.availableFrames());
+        assertEquals(START_US + 600L * 1000000, packer.getPresentationTimeUs());
+        packer.release();
+    }
+
+    @Test
+    public void framesToDuration_exactForLongInput() {
+        assertEquals(1000000, PcmPacker.framesToDurationUs(SAMPLE_RATE, SAMPLE_RATE));
+        // a day at 48 khz
+        assertEquals(86400L * 1000000, PcmPacker.framesToDurationUs(86400L * 48000, 48000));
+        assertEquals(22675, PcmPacker.framesToDurationUs(1000, SAMPLE_RATE));
+    }
+
+    //========================= helpers ========================================================
+
+    /**
+     * @return presentation time of the packed frames
+     */
+    private static long assertPack(PcmPacker packer, ShortBuffer out, int frames, long packedBefore, long previousUs) {
+        long presentationTimeUs = packer.pack(out, frames);
+        assertEquals("time after " + packedBefore + " frames",
+                START_US + packedBefore * 1000000 / SAMPLE_RATE, presentationTimeUs);
+        if (previousUs >= 0) {
+            // 4096 frames last 92879.8 us, steps never stray from it
+            long stepUs = presentationTimeUs - previousUs;
+            assertTrue("step " + stepUs, stepUs == 92879 || stepUs == 92880);
+        }
+        assertFrames(out, packedBefore, frames);
+        return presentationTimeUs;
+    }
+
+    private static ShortBuffer frames(long first, int count) {
+        ShortBuffer frames = ShortBuffer.allocate(count * 2);
+        for (long i = first; i < first + count; i++) {
+            frames.put((short) i).put((short) (i * 7));
+        }
+        frames.flip();
+        return frames;
+    }
+
+    private static void assertFrames(ShortBuffer out, long first, int count) {
+        assertEquals(count * 2, out.position());
+        for (int i = 0; i < count; i++) {
+            long frame = first + i;
+            if (out.get(2 * i) != (short) frame || out.get(2 * i + 1) != (short) (frame * 7)) {
+                throw new AssertionError(String.format("frame %d is %d, %d", frame, out.get(2 * i), out.get(2 * i + 1)));
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.nagihong.videocompressor.audioProcessor;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class PcmRingBufferTest {
+    // not a power of two, so indices wrap at odd places
+    private static final int CAPACITY_FRAMES = 1000;
+    private static final long STRESS_FRAMES = 20 * 1000 * 1000;
+
+    @Test
+    public void writeAndRead_wrapAround() {
+        PcmRingBuffer ring = new PcmRingBuffer(2, CAPACITY_FRAMES);
+        AudioRemixer passThrough = new AudioRemixer.PassThrough();
+
+        assertEquals(700, ring.write(passThrough, frames(0, 700)));
+        ShortBuffer out = ShortBuffer.allocate(600 * 2);
+        ring.read(out, 600);
+        assertFrames(out, 0, 600);
+
+        // 300 frames at the end, 600 at the start
+        ShortBuffer in = frames(700, 1000);
+        assertEquals(900, ring.write(passThrough, in));
+        assertEquals(100, in.remaining() / 2);
+        assertEquals(0, ring.freeFrames());
+        assertEquals(CAPACITY_FRAMES, ring.availableFrames());
+
+        out = ShortBuffer.allocate(CAPACITY_FRAMES * 2);
+        ring.read(out, CAPACITY_FRAMES);
+        assertFrames(out, 600, CAPACITY_FRAMES);
+        assertEquals(1600, ring.getReadFrames());
+        ring.release();
+    }
+
+    @Test
+    public void write_remixes() {
+        PcmRingBuffer ring = new PcmRingBuffer(1, CAPACITY_FRAMES);
+        ShortBuffer stereo = ShortBuffer.allocate(2 * 1500);
+        for (int i = 0; i < 1500; i++) {
+            stereo.put((short) i).put((short) i);
+        }
+        stereo.flip();
+
+        assertEquals(CAPACITY_FRAMES, ring.write(new AudioRemixer.DownMix(), stereo));
+        assertEquals(500 * 2, stereo.remaining());
+        ring.release();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void read_moreThanAvailable() {
+        PcmRingBuffer ring = new PcmRingBuffer(2, CAPACITY_FRAMES);
+        ring.write(new AudioRemixer.PassThrough(), frames(0, 10));
+        ring.read(ShortBuffer.allocate(100), 11);
+    }
+
+    /**
+     * decoder and encoder side on their own threads, with chunks of random sizes, every frame must arrive once and in order
+     */
+    @Test
+    public void producerAndConsumer_noFrameLostOrReordered() throws InterruptedException {
+        final PcmRingBuffer ring = new PcmRingBuffer(2, CAPACITY_FRAMES);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                AudioRemixer passThrough = new AudioRemixer.PassThrough();
+                Random random = new Random(1);
+                long next = 0;
+                while (next < STRESS_FRAMES && null == failure.get()) {
+                    int count = (int) Math.min(1 + random.nextInt(3 * CAPACITY_FRAMES / 2), STRESS_FRAMES - next);
+                    ShortBuffer in = frames(next, count);
+                    while (in.hasRemaining() && null == failure.get()) {
+                        if (ring.write(passThrough, in) == 0) Thread.yield();
+                    }
+                    next += count;
+                }
+            }
+        });
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Random random = new Random(2);
+                    ShortBuffer out = ShortBuffer.allocate(CAPACITY_FRAMES * 2);
+                    long next = 0;
+                    while (next < STRESS_FRAMES) {
+                        int available = ring.availableFrames();
+                        if (available == 0) {
+                            Thread.yield();
+                            continue;
+                        }
+                        int count = 1 + random.nextInt(available);
+                        out.clear();
+                        ring.read(out, count);
+                        assertFrames(out, next, count);
+                        next += count;
+                    }
+                    assertEquals(STRESS_FRAMES, ring.getReadFrames());
+                    assertEquals(0, ring.availableFrames());
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        producer.start();
+        consumer.start();
+        producer.join(60 * 1000);
+        consumer.join(60 * 1000);
+
+        assertFalse("Stress test did not finish.", producer.isAlive() || consumer.isAlive());
+        assertNull(failure.get());
+        ring.release();
+    }
+
+    //========================= helpers ========================================================
+
+    /**
+     * stereo frames of two counters, running in different steps so swapped channels are noticed
+     */
+    private static ShortBuffer frames(long first, int count) {
+        ShortBuffer frames = ShortBuffer.allocate(count * 2);
+        for (long i = first; i < first + count; i++) {
+            frames.put((short) i).put((short) (i * 7));
+        }
+        frames.flip();
+        return frames;
+    }
+
+    private static void assertFrames(ShortBuffer out, long first, int count) {
+        assertEquals(count * 2, out.position());
+        for (int i = 0; i < count; i++) {
+            long frame = first + i;
+            if (out.get(2 * i) != (short) frame || out.get(2 * i + 1) != (short) (frame * 7)) {
+                throw new AssertionError(String.format("frame %d is %d, %d", frame, out.get(2 * i), out.get(2 * i + 1)));
+            }
+        }
+    }
+}
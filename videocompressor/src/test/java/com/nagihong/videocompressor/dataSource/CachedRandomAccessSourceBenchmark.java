@@ -0,0 +1,103 @@
+package com.nagihong.videocompressor.dataSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads of the sizes MediaExtractor issues, small ones while parsing boxes and sample sized ones, from a file
+ * directly against through the block cache. Run by main(), results are per pass over the file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CachedRandomAccessSourceBenchmark {
+    private static final int FILE_SIZE = 32 * 1024 * 1024;
+    private static final int MIN_READ = 8;
+
+    // box headers and sample table entries, or audio and video samples
+    @Param({"64", "131072"})
+    public int maxRead;
+
+    private File file;
+    private int[] readSizes;
+    private byte[] buffer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("CachedRandomAccessSourceBenchmark", ".mp4");
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(CachedRandomAccessSourceTest.bytes(FILE_SIZE));
+        } finally {
+            os.close();
+        }
+        Random random = new Random(1);
+        readSizes = new int[FILE_SIZE / MIN_READ];
+        for (int i = 0; i < readSizes.length; i++) {
+            readSizes[i] = MIN_READ + random.nextInt(maxRead - MIN_READ);
+        }
+        buffer = new byte[maxRead];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public long direct() throws IOException {
+        RandomAccessSource source = new FileRandomAccessSource(file);
+        try {
+            return readAll(source);
+        } finally {
+            source.close();
+        }
+    }
+
+    @Benchmark
+    public long cached() throws IOException {
+        RandomAccessSource source = new CachedRandomAccessSource(new FileRandomAccessSource(file));
+        try {
+            return readAll(source);
+        } finally {
+            source.close();
+        }
+    }
+
+    private long readAll(RandomAccessSource source) throws IOException {
+        long position = 0;
+        for (int i = 0; position < FILE_SIZE; i++) {
+            int n = source.read(position, buffer, 0, readSizes[i]);
+            if (n < 0) break;
+            position += n;
+        }
+        return position;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CachedRandomAccessSourceBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,204 @@
+package com.nagihong.videocompressor.dataSource;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CachedRandomAccessSourceTest {
+    private static final int BLOCK_SIZE = 16;
+
+    @Test
+    public void read_acrossBlockBoundary() throws IOException {
+        ByteArraySource upstream = new ByteArraySource(bytes(100), true);
+        CachedRandomAccessSource source = new CachedRandomAccessSource(upstream, BLOCK_SIZE, 8, 1);
+
+        byte[] buffer = new byte[40];
+        assertEquals(40, source.read(10, buffer, 0, 40));
+
+        assertArrayEquals(slice(bytes(100), 10, 40), buffer);
+        // blocks 0 to 3
+        assertEquals(4, source.getMissCount());
+    }
+
+    @Test
+    public void read_atOffsetInBuffer() throws IOException {
+        CachedRandomAccessSource source = new CachedRandomAccessSource(new ByteArraySource(bytes(100), true), BLOCK_SIZE, 8, 4);
+
+        byte[] buffer = new byte[30];
+        assertEquals(20, source.read(5, buffer, 10, 20));
+
+        assertArrayEquals(slice(bytes(100), 5, 20), slice(buffer, 10, 20));
+        assertEquals(0, buffer[9]);
+    }
+
+    @Test
+    public void read_endOfSource() throws IOException {
+        CachedRandomAccessSource source = new CachedRandomAccessSource(new ByteArraySource(bytes(100), true), BLOCK_SIZE, 8, 4);
+
+        byte[] buffer = new byte[40];
+        // last block is short, read stops there
+        assertEquals(10, source.read(90, buffer, 0, 40));
+        assertArrayEquals(slice(bytes(100), 90, 10), slice(buffer, 0, 10));
+        assertEquals(-1, source.read(100, buffer, 0, 40));
+        assertEquals(-1, source.read(1000, buffer, 0, 40));
+        assertEquals(0, source.read(50, buffer, 0, 0));
+    }
+
+    @Test
+    public void read_endOfSourceOfUnknownSize() throws IOException {
+        ByteArraySource upstream = new ByteArraySource(bytes(100), false);
+        CachedRandomAccessSource source = new CachedRandomAccessSource(upstream, BLOCK_SIZE, 8, 4);
+
+        byte[] buffer = new byte[40];
+        assertEquals(-1, source.size());
+        assertEquals(10, source.read(90, buffer, 0, 40));
+        assertArrayEquals(slice(bytes(100), 90, 10), slice(buffer, 0, 10));
+        assertEquals(-1, source.read(100, buffer, 0, 40));
+        assertEquals(-1, source.read(160, buffer, 0, 40));
+    }
+
+    @Test
+    public void readAhead_doublesOnSequentialMisses() throws IOException {
+        ByteArraySource upstream = new ByteArraySource(bytes(BLOCK_SIZE * 64), true);
+        CachedRandomAccessSource source = new CachedRandomAccessSource(upstream, BLOCK_SIZE, 16, 8);
+
+        byte[] buffer = new byte[BLOCK_SIZE];
+        for (long position = 0; position < BLOCK_SIZE * 23; position += BLOCK_SIZE) {
+            assertEquals(BLOCK_SIZE, source.read(position, buffer, 0, BLOCK_SIZE));
+            assertArrayEquals(slice(bytes(BLOCK_SIZE * 64), (int) position, BLOCK_SIZE), buffer);
+        }
+
+        // 1 block, then 2, 4 and 8 at most
+        assertEquals(blocks(1, 2, 4, 8, 8), upstream.readLengths);
+        assertEquals(5, source.getMissCount());
+        assertEquals(18, source.getHitCount());
+    }
+
+    @Test
+    public void readAhead_resetsOnRandomMiss() throws IOException {
+        ByteArraySource upstream = new ByteArraySource(bytes(BLOCK_SIZE * 64), true);
+        CachedRandomAccessSource source = new CachedRandomAccessSource(upstream, BLOCK_SIZE, 16, 8);
+
+        byte[] buffer = new byte[BLOCK_SIZE];
+        source.read(0, buffer, 0, BLOCK_SIZE);
+        source.read(BLOCK_SIZE, buffer, 0, BLOCK_SIZE);
+        source.read(BLOCK_SIZE * 40, buffer, 0, BLOCK_SIZE);
+        source.read(BLOCK_SIZE * 41, buffer, 0, BLOCK_SIZE);
+
+        assertEquals(blocks(1, 2, 1, 2), upstream.readLengths);
+        assertEquals(BLOCK_SIZE * 40, (long) upstream.readPositions.get(2));
+    }
+
+    @Test
+    public void readAhead_cappedToHalfOfBlocks() throws IOException {
+        ByteArraySource upstream = new ByteArraySource(bytes(BLOCK_SIZE * 64), true);
+        CachedRandomAccessSource source = new CachedRandomAccessSource(upstream, BLOCK_SIZE, 4, 16);
+
+        byte[] buffer = new byte[BLOCK_SIZE];
+        for (long position = 0; position < BLOCK_SIZE * 9; position += BLOCK_SIZE) {
+            source.read(position, buffer, 0, BLOCK_SIZE);
+        }
+
+        assertEquals(blocks(1, 2, 2, 2, 2), upstream.readLengths);
+    }
+
+    @Test
+    public void eviction_leastRecentlyUsed() throws IOException {
+        ByteArraySource upstream = new ByteArraySource(bytes(BLOCK_SIZE * 8), true);
+        CachedRandomAccessSource source = new CachedRandomAccessSource(upstream, BLOCK_SIZE, 4, 1);
+
+        byte[] buffer = new byte[1];
+        for (int block = 0; block < 4; block++) {
+            source.read(block * BLOCK_SIZE, buffer, 0, 1);
+        }
+        // block 1 is the least recently used now
+        source.read(0, buffer, 0, 1);
+        source.read(4 * BLOCK_SIZE, buffer, 0, 1);
+        assertEquals(5, source.getMissCount());
+
+        source.read(0, buffer, 0, 1);
+        source.read(2 * BLOCK_SIZE, buffer, 0, 1);
+        source.read(3 * BLOCK_SIZE, buffer, 0, 1);
+        source.read(4 * BLOCK_SIZE, buffer, 0, 1);
+        assertEquals(5, source.getMissCount());
+
+        source.read(BLOCK_SIZE + 3, buffer, 0, 1);
+        assertEquals(6, source.getMissCount());
+        assertEquals(bytes(BLOCK_SIZE * 8)[BLOCK_SIZE + 3], buffer[0]);
+    }
+
+    @Test
+    public void size_askedOnce() throws IOException {
+        ByteArraySource upstream = new ByteArraySource(bytes(100), true);
+        CachedRandomAccessSource source = new CachedRandomAccessSource(upstream, BLOCK_SIZE, 8, 4);
+
+        source.size();
+        source.read(0, new byte[10], 0, 10);
+        source.size();
+
+        assertEquals(1, upstream.sizeCount);
+    }
+
+    //========================= helpers ========================================================
+
+    static byte[] bytes(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + (i >> 8));
+        }
+        return data;
+    }
+
+    private static byte[] slice(byte[] data, int offset, int length) {
+        byte[] slice = new byte[length];
+        System.arraycopy(data, offset, slice, 0, length);
+        return slice;
+    }
+
+    private static List<Integer> blocks(int... counts) {
+        List<Integer> lengths = new ArrayList<>();
+        for (int count : counts) lengths.add(count * BLOCK_SIZE);
+        return lengths;
+    }
+
+    /**
+     * in memory source that records upstream reads
+     */
+    static class ByteArraySource implements RandomAccessSource {
+        private final byte[] data;
+        private final boolean sizeKnown;
+        final List<Long> readPositions = new ArrayList<>();
+        final List<Integer> readLengths = new ArrayList<>();
+        int sizeCount;
+
+        ByteArraySource(byte[] data, boolean sizeKnown) {
+            this.data = data;
+            this.sizeKnown = sizeKnown;
+        }
+
+        @Override
+        public long size() {
+            sizeCount++;
+            return sizeKnown ? data.length : -1;
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int offset, int size) {
+            readPositions.add(position);
+            readLengths.add(size);
+            if (position >= data.length) return -1;
+            int n = (int) Math.min(size, data.length - position);
+            System.arraycopy(data, (int) position, buffer, offset, n);
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.nagihong.videocompressor.dataSource;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class HttpRangeSourceTest {
+    private static final int SIZE = 100 * 1000;
+    private static final byte[] DATA = CachedRandomAccessSourceTest.bytes(SIZE);
+
+    private HttpServer server;
+    private FileHandler handler;
+    private String url;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        handler = new FileHandler();
+        server.createContext("/video.mp4", handler);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/video.mp4";
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void size_fromHead() throws IOException {
+        HttpRangeSource source = new HttpRangeSource(url);
+
+        assertEquals(SIZE, source.size());
+        assertEquals(SIZE, source.size());
+
+        assertEquals(Collections.singletonList("HEAD"), handler.requests);
+    }
+
+    @Test
+    public void size_fromContentRangeWhenHeadFails() throws IOException {
+        handler.headAllowed = false;
+        HttpRangeSource source = new HttpRangeSource(url);
+
+        assertEquals(SIZE, source.size());
+
+        assertEquals(list("HEAD", "GET bytes=0-0"), handler.requests);
+    }
+
+    @Test
+    public void size_fromContentRangeWhenHeadHasNoLength() throws IOException {
+        handler.headLength = false;
+        HttpRangeSource source = new HttpRangeSource(url);
+
+        assertEquals(SIZE, source.size());
+
+        assertEquals(list("HEAD", "GET bytes=0-0"), handler.requests);
+    }
+
+    @Test
+    public void read_range() throws IOException {
+        HttpRangeSource source = new HttpRangeSource(url);
+
+        byte[] buffer = new byte[1010];
+        assertEquals(1000, source.read(5000, buffer, 10, 1000));
+
+        assertArrayEquals(slice(DATA, 5000, 1000), slice(buffer, 10, 1000));
+        assertEquals(list("GET bytes=5000-5999"), handler.requests);
+        // Content-Range of the read tells the size, no HEAD needed
+        assertEquals(SIZE, source.size());
+        assertEquals(1, handler.requests.size());
+    }
+
+    @Test
+    public void read_clampedToSize() throws IOException {
+        HttpRangeSource source = new HttpRangeSource(url);
+        source.size();
+
+        byte[] buffer = new byte[1000];
+        assertEquals(100, source.read(SIZE - 100, buffer, 0, 1000));
+        assertArrayEquals(slice(DATA, SIZE - 100, 100), slice(buffer, 0, 100));
+        assertEquals(-1, source.read(SIZE, buffer, 0, 1000));
+
+        assertEquals(list("HEAD", "GET bytes=99900-99999"), handler.requests);
+    }
+
+    @Test
+    public void read_pastEndOfUnknownSize() throws IOException {
+        HttpRangeSource source = new HttpRangeSource(url);
+
+        assertEquals(-1, source.read(SIZE + 10, new byte[10], 0, 10));
+    }
+
+    @Test
+    public void read_serverWithoutRanges() throws IOException {
+        handler.rangeSupported = false;
+        HttpRangeSource source = new HttpRangeSource(url);
+
+        // whole file answered, the start of it is still right
+        byte[] buffer = new byte[100];
+        assertEquals(100, source.read(0, buffer, 0, 100));
+        assertArrayEquals(slice(DATA, 0, 100), buffer);
+        assertEquals(SIZE, source.size());
+        try {
+            source.read(100, buffer, 0, 100);
+            fail("Bytes of a wrong position were read.");
+        } catch (IOException expected) {
+            // ok
+        }
+    }
+
+    @Test
+    public void cached_fetchesBlocks() throws IOException {
+        CachedRandomAccessSource source = new CachedRandomAccessSource(new HttpRangeSource(url), 16 * 1024, 8, 4);
+
+        byte[] buffer = new byte[8];
+        for (long position = 0; position < 20 * 1000; position += 8) {
+            assertEquals(8, source.read(position, buffer, 0, 8));
+        }
+
+        // size, then blocks 0 and 1 of the read-ahead
+        assertEquals(list("HEAD", "GET bytes=0-16383", "GET bytes=16384-49151"), handler.requests);
+    }
+
+    //========================= helpers ========================================================
+
+    private static byte[] slice(byte[] data, int offset, int length) {
+        byte[] slice = new byte[length];
+        System.arraycopy(data, offset, slice, 0, length);
+        return slice;
+    }
+
+    private static List<String> list(String... values) {
+        List<String> list = new ArrayList<>();
+        Collections.addAll(list, values);
+        return list;
+    }
+
+    /**
+     * serves DATA, with switches for the ways servers fall short
+     */
+    private static class FileHandler implements HttpHandler {
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        volatile boolean headAllowed = true;
+        volatile boolean headLength = true;
+        volatile boolean rangeSupported = true;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                requests.add(exchange.getRequestMethod() + (null == range ? "" : " " + range));
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    if (!headAllowed) {
+                        exchange.sendResponseHeaders(405, -1);
+                    } else {
+                        if (headLength) exchange.getResponseHeaders().set("Content-Length", String.valueOf(SIZE));
+                        exchange.sendResponseHeaders(200, -1);
+                    }
+                } else if (null == range || !rangeSupported) {
+                    send(exchange, 200, 0, SIZE);
+                } else {
+                    String[] bounds = range.substring("bytes=".length()).split("-");
+                    int start = Integer.parseInt(bounds[0]);
+                    int end = Math.min(Integer.parseInt(bounds[1]), SIZE - 1);
+                    if (start >= SIZE) {
+                        exchange.getResponseHeaders().set("Content-Range", "bytes */" + SIZE);
+                        exchange.sendResponseHeaders(416, -1);
+                    } else {
+                        exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + SIZE);
+                        send(exchange, 206, start, end + 1 - start);
+                    }
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private static void send(HttpExchange exchange, int code, int offset, int length) throws IOException {
+            exchange.sendResponseHeaders(code, length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(DATA, offset, length);
+            os.close();
+        }
+    }
+}
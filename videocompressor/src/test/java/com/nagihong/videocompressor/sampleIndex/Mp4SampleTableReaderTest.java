@@ -0,0 +1,305 @@
+package com.nagihong.videocompressor.sampleIndex;
+
+import com.nagihong.videocompressor.dataSource.RandomAccessSource;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class Mp4SampleTableReaderTest {
+
+    @Test
+    public void timesWithCompositionOffsets() throws IOException {
+        // I P B in decode order, shown as I B P
+        byte[] stbl = stbl(
+                stts(3, 3000),
+                fullBox("ctts", ints(3, 1, 3000, 1, 6000, 1, 0)),
+                stsz(0, 10, 10, 10),
+                stsc(1),
+                stco(100));
+        SampleIndex.Track track = readTrack(trak(true, 90000, stbl));
+
+        assertTrue(track.isVideo());
+        assertEquals(3, track.getSampleCount());
+        assertEquals(33333, track.getSampleTimeUs(0));
+        assertEquals(100000, track.getSampleTimeUs(1));
+        assertEquals(66666, track.getSampleTimeUs(2));
+    }
+
+    @Test
+    public void timesOfSeveralSttsEntries() throws IOException {
+        byte[] stbl = stbl(
+                fullBox("stts", ints(2, 2, 1024, 2, 512)),
+                stsz(0, 1, 1, 1, 1),
+                stsc(1),
+                stco(100));
+        SampleIndex.Track track = readTrack(trak(false, 44100, stbl));
+
+        assertFalse(track.isVideo());
+        assertEquals(0, track.getSampleTimeUs(0));
+        assertEquals(1024L * 1000000 / 44100, track.getSampleTimeUs(1));
+        assertEquals(2048L * 1000000 / 44100, track.getSampleTimeUs(2));
+        assertEquals(2560L * 1000000 / 44100, track.getSampleTimeUs(3));
+    }
+
+    @Test
+    public void offsetsFromChunks() throws IOException {
+        // chunk 1 and 2 hold two samples, chunk 3 one
+        byte[] stbl = stbl(
+                stts(5, 1000),
+                stsz(0, 10, 20, 30, 40, 50),
+                fullBox("stsc", ints(2, 1, 2, 1, 3, 1, 1)),
+                stco(100, 200, 300));
+        SampleIndex.Track track = readTrack(trak(true, 1000, stbl));
+
+        long[] expected = {100, 110, 200, 230, 300};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("sample " + i, expected[i], track.getSampleOffset(i));
+            assertEquals((i + 1) * 10, track.getSampleSize(i));
+        }
+    }
+
+    @Test
+    public void largeOffsetsFromCo64() throws IOException {
+        long base = 0x100000000L;
+        byte[] stbl = stbl(
+                stts(3, 1000),
+                stsz(0, 10, 20, 30),
+                stsc(2),
+                fullBox("co64", concat(ints(2), longs(base, base + 1000))));
+        SampleIndex.Track track = readTrack(trak(true, 1000, stbl));
+
+        assertEquals(base, track.getSampleOffset(0));
+        assertEquals(base + 10, track.getSampleOffset(1));
+        assertEquals(base + 1000, track.getSampleOffset(2));
+    }
+
+    @Test
+    public void constantSampleSize() throws IOException {
+        byte[] stbl = stbl(stts(4, 1000), stsz(100, 4), stsc(4), stco(100));
+        SampleIndex.Track track = readTrack(trak(false, 1000, stbl));
+
+        assertEquals(4, track.getSampleCount());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(100, track.getSampleSize(i));
+            assertEquals(100 + 100 * i, track.getSampleOffset(i));
+        }
+    }
+
+    @Test
+    public void compactSizesOfFourBits() throws IOException {
+        byte[] stz2 = fullBox("stz2", concat(new byte[]{0, 0, 0, 4}, ints(5), new byte[]{0x12, 0x34, 0x5F}));
+        SampleIndex.Track track = readTrack(trak(false, 1000, stbl(stts(5, 1000), stz2, stsc(5), stco(100))));
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i + 1, track.getSampleSize(i));
+        }
+        assertEquals(100 + 1 + 2 + 3 + 4, track.getSampleOffset(4));
+    }
+
+    @Test
+    public void compactSizesOfSixteenBits() throws IOException {
+        byte[] stz2 = fullBox("stz2", concat(new byte[]{0, 0, 0, 16}, ints(2), new byte[]{0x01, 0x00, (byte) 0xFF, (byte) 0xFF}));
+        SampleIndex.Track track = readTrack(trak(false, 1000, stbl(stts(2, 1000), stz2, stsc(1), stco(100))));
+
+        assertEquals(256, track.getSampleSize(0));
+        assertEquals(65535, track.getSampleSize(1));
+    }
+
+    @Test
+    public void missingStssMeansEverySampleIsSync() throws IOException {
+        SampleIndex.Track track = readTrack(trak(false, 1000, stbl(stts(3, 1000), stsz(0, 1, 1, 1), stsc(1), stco(100))));
+
+        for (int i = 0; i < 3; i++) assertTrue(track.isSyncSample(i));
+        assertEquals(3, track.getSyncTimesUs().length);
+    }
+
+    @Test
+    public void syncSamplesFromStss() throws IOException {
+        byte[] stbl = stbl(stts(4, 1000), stsz(0, 1, 1, 1, 1), stsc(1), stco(100), fullBox("stss", ints(2, 1, 3)));
+        SampleIndex.Track track = readTrack(trak(true, 1000, stbl));
+
+        assertTrue(track.isSyncSample(0));
+        assertFalse(track.isSyncSample(1));
+        assertTrue(track.isSyncSample(2));
+        assertFalse(track.isSyncSample(3));
+        assertArrayEquals(new long[]{0, 2000000}, track.getSyncTimesUs());
+        assertEquals(0, track.getSyncTimeUsBefore(1500000));
+        assertEquals(2000000, track.getSyncTimeUsAfter(1500000));
+        assertEquals(-1, track.getSyncTimeUsAfter(2500000));
+    }
+
+    @Test
+    public void tracksInFileOrder() throws IOException {
+        byte[] audio = trak(false, 1000, stbl(stts(1, 1000), stsz(0, 1), stsc(1), stco(100)));
+        byte[] video = trak(true, 1000, stbl(stts(2, 1000), stsz(0, 1, 1), stsc(1), stco(200)));
+        SampleIndex index = read(mp4(box("moov", audio, video), 1000));
+
+        assertEquals(2, index.getTrackCount());
+        assertFalse(index.getTrack(0).isVideo());
+        assertTrue(index.getTrack(1).isVideo());
+    }
+
+    @Test
+    public void fragmentedIsNotRead() throws IOException {
+        byte[] trak = trak(true, 1000, stbl(stts(1, 1000), stsz(0, 1), stsc(1), stco(100)));
+        assertNull(read(mp4(box("moov", trak, box("mvex")), 1000)));
+    }
+
+    @Test
+    public void noMoovIsNotRead() throws IOException {
+        assertNull(read(concat(box("ftyp", ascii("isom")), box("mdat", new byte[100]))));
+        assertNull(read(new byte[]{1, 2, 3}));
+    }
+
+    @Test
+    public void corruptCountsAreNotAllocated() throws IOException {
+        byte[][] corrupt = {
+                // samples of a constant size larger than the file
+                stbl(stts(1, 1000), fullBox("stsz", ints(100, 0x7FFFFFFF)), stsc(1), stco(100)),
+                stbl(stts(1, 1000), fullBox("stsz", ints(1, 0xFFFFFFFF)), stsc(1), stco(100)),
+                stbl(stts(1, 1000), fullBox("stsz", ints(0, 0x7FFFFFFF, 1)), stsc(1), stco(100)),
+                stbl(stts(1, 1000), fullBox("stz2", concat(new byte[]{0, 0, 0, 4}, ints(0x7FFFFFFF), new byte[1])), stsc(1), stco(100)),
+                stbl(stts(1, 1000), fullBox("stz2", concat(new byte[]{0, 0, 0, 7}, ints(1), new byte[1])), stsc(1), stco(100)),
+                stbl(stts(1, 1000), stsz(0, 1), stsc(1), fullBox("stco", ints(0x7FFFFFFF, 100))),
+                stbl(stts(1, 1000), stsz(0, 1), stsc(1), fullBox("co64", ints(0x7FFFFFFF, 0, 100))),
+                stbl(stts(1, 1000), stsz(0, 1), stsc(1), stco(100), fullBox("stss", ints(0x7FFFFFFF, 1))),
+                stbl(stts(1, 1000), stsz(0, 1), stsc(1), stco(100), fullBox("stss", ints(1, 2))),
+        };
+        for (int i = 0; i < corrupt.length; i++) {
+            assertNull("table " + i, read(mp4(box("moov", trak(true, 1000, corrupt[i])), 1000)));
+        }
+    }
+
+    @Test
+    public void constantSizeBoundByUnknownFileSize() throws IOException {
+        byte[] stbl = stbl(stts(1, 1000), fullBox("stsz", ints(1, 0x7FFFFFFF)), stsc(1), stco(100));
+        byte[] data = mp4(box("moov", trak(true, 1000, stbl)), 1000);
+        assertNull(Mp4SampleTableReader.read(new ByteArraySource(data, false)));
+    }
+
+    //========================= helpers ========================================================
+    private static SampleIndex.Track readTrack(byte[] trak) throws IOException {
+        SampleIndex index = read(mp4(box("moov", trak), 1000));
+        assertNotNull(index);
+        assertEquals(1, index.getTrackCount());
+        return index.getTrack(0);
+    }
+
+    private static SampleIndex read(byte[] data) throws IOException {
+        return Mp4SampleTableReader.read(new ByteArraySource(data, true));
+    }
+
+    /**
+     * ftyp, moov, then an mdat of mdatSize bytes
+     */
+    static byte[] mp4(byte[] moov, int mdatSize) {
+        return concat(box("ftyp", ascii("isom"), ints(0x200), ascii("isom")), moov, box("mdat", new byte[mdatSize]));
+    }
+
+    static byte[] trak(boolean video, int timescale, byte[] stbl) {
+        byte[] mdhd = fullBox("mdhd", ints(0, 0, timescale, 0, 0));
+        byte[] hdlr = fullBox("hdlr", ints(0), ascii(video ? "vide" : "soun"), ints(0, 0, 0), new byte[1]);
+        return box("trak", box("tkhd"), box("mdia", mdhd, hdlr, box("minf", stbl)));
+    }
+
+    static byte[] stbl(byte[]... children) {
+        return box("stbl", children);
+    }
+
+    static byte[] stts(int count, int delta) {
+        return fullBox("stts", ints(1, count, delta));
+    }
+
+    /**
+     * @param sizes sample count when constantSize is not 0
+     */
+    static byte[] stsz(int constantSize, int... sizes) {
+        if (constantSize != 0) return fullBox("stsz", ints(constantSize, sizes[0]));
+        return fullBox("stsz", ints(0, sizes.length), ints(sizes));
+    }
+
+    static byte[] stsc(int samplesPerChunk) {
+        return fullBox("stsc", ints(1, 1, samplesPerChunk, 1));
+    }
+
+    static byte[] stco(int... offsets) {
+        return fullBox("stco", ints(offsets.length), ints(offsets));
+    }
+
+    static byte[] box(String type, byte[]... children) {
+        byte[] content = concat(children);
+        return concat(ints(8 + content.length), ascii(type), content);
+    }
+
+    /**
+     * version 0 and no flags
+     */
+    static byte[] fullBox(String type, byte[]... children) {
+        return box(type, concat(ints(0), concat(children)));
+    }
+
+    static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static byte[] ints(int... values) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (int value : values) out.writeInt(value);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static byte[] longs(long... values) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (long value : values) out.writeLong(value);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] part : parts) bytes.write(part, 0, part.length);
+        return bytes.toByteArray();
+    }
+
+    private static class ByteArraySource implements RandomAccessSource {
+        private final byte[] data;
+        private final boolean sizeKnown;
+
+        ByteArraySource(byte[] data, boolean sizeKnown) {
+            this.data = data;
+            this.sizeKnown = sizeKnown;
+        }
+
+        @Override
+        public long size() {
+            return sizeKnown ? data.length : -1;
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int offset, int size) {
+            if (position >= data.length) return -1;
+            int n = (int) Math.min(size, data.length - position);
+            System.arraycopy(data, (int) position, buffer, offset, n);
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.nagihong.videocompressor.sampleIndex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.nagihong.videocompressor.sampleIndex.Mp4SampleTableReaderTest.box;
+import static com.nagihong.videocompressor.sampleIndex.Mp4SampleTableReaderTest.fullBox;
+import static com.nagihong.videocompressor.sampleIndex.Mp4SampleTableReaderTest.ints;
+import static com.nagihong.videocompressor.sampleIndex.Mp4SampleTableReaderTest.mp4;
+import static com.nagihong.videocompressor.sampleIndex.Mp4SampleTableReaderTest.stbl;
+import static com.nagihong.videocompressor.sampleIndex.Mp4SampleTableReaderTest.stco;
+import static com.nagihong.videocompressor.sampleIndex.Mp4SampleTableReaderTest.stsc;
+import static com.nagihong.videocompressor.sampleIndex.Mp4SampleTableReaderTest.stsz;
+import static com.nagihong.videocompressor.sampleIndex.Mp4SampleTableReaderTest.stts;
+import static com.nagihong.videocompressor.sampleIndex.Mp4SampleTableReaderTest.trak;
+import static org.junit.Assert.*;
+
+public class SampleIndexCacheTest {
+    private static final int SAMPLES = 300;
+
+    private File dir;
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("SampleIndexCacheTest", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        cacheDir = new File(dir, "cache");
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void storesIndexOnFirstGet() throws IOException {
+        File input = writeInput("a.mp4");
+        SampleIndexCache cache = new SampleIndexCache(cacheDir, 1024 * 1024);
+
+        SampleIndex index = cache.get(input);
+        assertSampleIndex(index);
+        assertEquals(1, entries().size());
+    }
+
+    @Test
+    public void reloadsStoredIndex() throws IOException {
+        File input = writeInput("a.mp4");
+        SampleIndexCache cache = new SampleIndexCache(cacheDir, 1024 * 1024);
+        cache.get(input);
+
+        // same path, size and time, but no moov anymore, so only the cache knows its samples
+        long lastModified = input.lastModified();
+        write(input, new byte[(int) input.length()]);
+        assertTrue(input.setLastModified(lastModified));
+
+        assertSampleIndex(new SampleIndexCache(cacheDir, 1024 * 1024).get(input));
+    }
+
+    @Test
+    public void rebuildsChangedInput() throws IOException {
+        File input = writeInput("a.mp4");
+        SampleIndexCache cache = new SampleIndexCache(cacheDir, 1024 * 1024);
+        cache.get(input);
+
+        write(input, mp4(box("moov", trak(true, 1000, stbl(stts(2, 1000), stsz(0, 1, 1), stsc(2), stco(100)))), 100));
+        SampleIndex index = cache.get(input);
+        assertEquals(2, index.getTrack(0).getSampleCount());
+        assertEquals(2, entries().size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        File a = writeInput("a.mp4");
+        File b = writeInput("b.mp4");
+        File c = writeInput("c.mp4");
+        SampleIndexCache probe = new SampleIndexCache(cacheDir, Long.MAX_VALUE);
+        probe.get(a);
+        long entryBytes = entries().iterator().next().length();
+        probe.clear();
+        assertTrue(entries().isEmpty());
+
+        // room for two entries
+        SampleIndexCache cache = new SampleIndexCache(cacheDir, entryBytes * 5 / 2);
+        long now = System.currentTimeMillis();
+        cache.get(a);
+        File entryA = newEntry(Collections.<File>emptySet());
+        cache.get(b);
+        File entryB = newEntry(Collections.singleton(entryA));
+        assertTrue(entryA.setLastModified(now - 20000));
+        assertTrue(entryB.setLastModified(now - 30000));
+
+        cache.get(c);
+        assertFalse("b is least recently used", entryB.exists());
+        assertTrue(entryA.exists());
+        File entryC = newEntry(Collections.singleton(entryA));
+        assertTrue(entryC.setLastModified(now - 10000));
+
+        // a reload counts as a use, c is least recently used now
+        assertSampleIndex(cache.get(a));
+        assertTrue(entryA.lastModified() > now - 10000);
+        cache.get(b);
+        assertFalse(entryC.exists());
+        assertTrue(entryA.exists());
+        assertTrue(entryB.exists());
+    }
+
+    @Test
+    public void dropsUnreadableEntry() throws IOException {
+        File input = writeInput("a.mp4");
+        SampleIndexCache cache = new SampleIndexCache(cacheDir, 1024 * 1024);
+        cache.get(input);
+        File entry = entries().iterator().next();
+        write(entry, new byte[]{1, 2, 3});
+
+        assertSampleIndex(cache.get(input));
+        assertTrue(entry.length() > 3);
+    }
+
+    @Test
+    public void persistedIndexIsEqual() throws IOException {
+        File input = writeInput("a.mp4");
+        SampleIndex built = SampleIndex.build(input);
+        SampleIndexCache cache = new SampleIndexCache(cacheDir, 1024 * 1024);
+        cache.get(input);
+        SampleIndex loaded = cache.get(input);
+
+        SampleIndex.Track expected = built.getTrack(0);
+        SampleIndex.Track actual = loaded.getTrack(0);
+        assertEquals(expected.isVideo(), actual.isVideo());
+        assertEquals(expected.getSampleCount(), actual.getSampleCount());
+        for (int i = 0; i < expected.getSampleCount(); i++) {
+            assertEquals(expected.getSampleTimeUs(i), actual.getSampleTimeUs(i));
+            assertEquals(expected.getSampleSize(i), actual.getSampleSize(i));
+            assertEquals(expected.getSampleOffset(i), actual.getSampleOffset(i));
+            assertEquals(expected.isSyncSample(i), actual.isSyncSample(i));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSizeNotPositive() {
+        new SampleIndexCache(cacheDir, 0);
+    }
+
+    //========================= helpers ========================================================
+    /**
+     * one video track of SAMPLES samples, a key frame every 30
+     */
+    private File writeInput(String name) throws IOException {
+        int[] sizes = new int[SAMPLES];
+        int[] sync = new int[SAMPLES / 30 + 1];
+        sync[0] = sync.length - 1;
+        for (int i = 0; i < SAMPLES; i++) sizes[i] = 100 + i;
+        for (int i = 1; i < sync.length; i++) sync[i] = (i - 1) * 30 + 1;
+        byte[] stbl = stbl(stts(SAMPLES, 3000), stsz(0, sizes), stsc(10), stco(offsets(SAMPLES / 10)), fullBox("stss", ints(sync)));
+        File file = new File(dir, name);
+        write(file, mp4(box("moov", trak(true, 90000, stbl)), 100));
+        return file;
+    }
+
+    private static int[] offsets(int chunks) {
+        int[] offsets = new int[chunks];
+        for (int i = 0; i < chunks; i++) offsets[i] = 1000 + i * 10000;
+        return offsets;
+    }
+
+    private static void assertSampleIndex(SampleIndex index) {
+        assertEquals(1, index.getTrackCount());
+        SampleIndex.Track track = index.getTrack(0);
+        assertTrue(track.isVideo());
+        assertEquals(SAMPLES, track.getSampleCount());
+        assertEquals(100 + 42, track.getSampleSize(42));
+        assertEquals(11000 + 110 + 111, track.getSampleOffset(12));
+        assertEquals(299L * 3000 * 1000000 / 90000, track.getSampleTimeUs(299));
+        assertTrue(track.isSyncSample(30));
+        assertFalse(track.isSyncSample(31));
+    }
+
+    private Set<File> entries() {
+        File[] files = cacheDir.listFiles((d, name) -> name.endsWith(".idx"));
+        return files == null ? new HashSet<File>() : new HashSet<>(Arrays.asList(files));
+    }
+
+    private File newEntry(Set<File> known) {
+        Set<File> entries = entries();
+        entries.removeAll(known);
+        assertEquals(1, entries.size());
+        return entries.iterator().next();
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) delete(child);
+        }
+        file.delete();
+    }
+}
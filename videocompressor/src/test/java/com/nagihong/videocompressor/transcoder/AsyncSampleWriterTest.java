@@ -0,0 +1,229 @@
+package com.nagihong.videocompressor.transcoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class AsyncSampleWriterTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    private final FakeMuxer muxer = new FakeMuxer();
+    private AsyncSampleWriter writer;
+
+    @After
+    public void tearDown() {
+        muxer.unblock();
+        if (writer != null) writer.release();
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void writesSamplesInOrder() {
+        writer = new AsyncSampleWriter(muxer, null, SampleQueue.DEFAULT_MEMORY_LIMIT);
+        writer.start();
+        for (int i = 0; i < 1000; i++) write(i % 2, i);
+        writer.finish();
+
+        assertWritten(1000);
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void collectsSamplesWhileMuxerIsBusy() throws InterruptedException {
+        muxer.blockAt(0);
+        writer = new AsyncSampleWriter(muxer, null, SampleQueue.DEFAULT_MEMORY_LIMIT);
+        writer.start();
+        write(0, 0);
+        assertTrue(muxer.blocked.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // the writer thread holds the swapped queue, these go to the other one without waiting
+        for (int i = 1; i < 100; i++) write(1, i);
+        assertEquals(1, muxer.count());
+        muxer.unblock();
+        writer.finish();
+
+        assertWritten(100);
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void waitsAtMemoryLimit() throws InterruptedException {
+        muxer.blockAt(0);
+        writer = new AsyncSampleWriter(muxer, null, SampleQueue.SEGMENT_SIZE);
+        writer.start();
+        write(0, 0);
+        assertTrue(muxer.blocked.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // one segment pending reaches the limit, the next sample waits for the writer thread
+        Thread producer = new Thread(() -> {
+            write(0, 1);
+            write(0, 2);
+        });
+        producer.start();
+        while (producer.getState() != Thread.State.WAITING) Thread.sleep(1);
+        assertEquals(1, muxer.count());
+
+        muxer.unblock();
+        producer.join();
+        writer.finish();
+        assertWritten(3);
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void muxerFailureReachesFinish() {
+        RuntimeException error = new IllegalArgumentException("bad sample");
+        muxer.failure = error;
+        writer = new AsyncSampleWriter(muxer, null, SampleQueue.DEFAULT_MEMORY_LIMIT);
+        writer.start();
+        write(0, 0);
+        try {
+            writer.finish();
+            fail();
+        } catch (IllegalStateException e) {
+            assertSame(error, e.getCause());
+        }
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void muxerFailureWakesWaitingProducer() throws InterruptedException {
+        RuntimeException error = new IllegalArgumentException("bad sample");
+        muxer.blockAt(0);
+        muxer.failure = error;
+        writer = new AsyncSampleWriter(muxer, null, SampleQueue.SEGMENT_SIZE);
+        writer.start();
+        write(0, 0);
+        assertTrue(muxer.blocked.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread producer = new Thread(() -> {
+            try {
+                write(0, 1);
+                write(0, 2);
+            } catch (IllegalStateException e) {
+                thrown.set(e.getCause());
+            }
+        });
+        producer.start();
+        while (producer.getState() != Thread.State.WAITING) Thread.sleep(1);
+        muxer.unblock();
+        producer.join();
+
+        assertSame(error, thrown.get());
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void interruptedWriteKeepsInterruptStatus() throws InterruptedException {
+        muxer.blockAt(0);
+        writer = new AsyncSampleWriter(muxer, null, SampleQueue.SEGMENT_SIZE);
+        writer.start();
+        write(0, 0);
+        assertTrue(muxer.blocked.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        write(0, 1);
+
+        Thread.currentThread().interrupt();
+        try {
+            write(0, 2);
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof InterruptedException);
+        }
+        assertTrue(Thread.interrupted());
+    }
+
+    //========================= helpers ========================================================
+    private void write(int track, int sample) {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(0, sample);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.size = 4;
+        info.presentationTimeUs = sample * 1000L;
+        writer.write(track, buffer, info);
+    }
+
+    /**
+     * samples 0 until count written once each, in order, with their bytes
+     */
+    private void assertWritten(int count) {
+        List<long[]> samples = muxer.samples();
+        assertEquals(count, samples.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, samples.get(i)[1]);
+            assertEquals(i * 1000L, samples.get(i)[2]);
+        }
+    }
+
+    private static class FakeMuxer implements Muxer {
+        // track, first int of the sample, time
+        private final List<long[]> samples = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch blocked = new CountDownLatch(1);
+        private final CountDownLatch unblocked = new CountDownLatch(1);
+        private int blockAt = -1;
+        // thrown after the blocking sample, or right away without one
+        RuntimeException failure;
+
+        void blockAt(int sample) {
+            blockAt = sample;
+        }
+
+        void unblock() {
+            unblocked.countDown();
+        }
+
+        int count() {
+            return samples.size();
+        }
+
+        List<long[]> samples() {
+            synchronized (samples) {
+                return new ArrayList<>(samples);
+            }
+        }
+
+        @Override
+        public void setOrientationHint(int degrees) {
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+            // queued copies may come in native order
+            int sample = byteBuf.duplicate().order(ByteOrder.BIG_ENDIAN).getInt(bufferInfo.offset);
+            samples.add(new long[]{trackIndex, sample, bufferInfo.presentationTimeUs});
+            if (sample == blockAt) {
+                blocked.countDown();
+                try {
+                    unblocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failure != null) throw failure;
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
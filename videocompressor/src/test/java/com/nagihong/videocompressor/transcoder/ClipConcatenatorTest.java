@@ -0,0 +1,78 @@
+package com.nagihong.videocompressor.transcoder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ClipConcatenatorTest {
+    private static final long FRAME_US = 33333;
+    // 1024 frames at 44100 hz
+    private static final long AUDIO_FRAME_US = 23219;
+
+    @Test
+    public void clipStartsAtZero() {
+        ClipConcatenator.Timeline timeline = new ClipConcatenator.Timeline();
+        assertEquals(0, timeline.place(true, 5000000));
+        assertEquals(FRAME_US, timeline.place(true, 5000000 + FRAME_US));
+        // before the first sample of the clip
+        assertEquals(0, timeline.place(false, 4990000));
+        assertEquals(10000, timeline.place(false, 5010000));
+    }
+
+    @Test
+    public void nextClipStartsAfterLastVideoFrame() {
+        ClipConcatenator.Timeline timeline = new ClipConcatenator.Timeline();
+        for (int i = 0; i < 30; i++) {
+            assertEquals(i * FRAME_US, timeline.place(true, i * FRAME_US));
+        }
+        timeline.nextClip();
+
+        // the last frame lasts as long as the shortest step before it
+        assertEquals(30 * FRAME_US, timeline.place(true, 1000));
+        assertEquals(31 * FRAME_US, timeline.place(true, 1000 + FRAME_US));
+    }
+
+    @Test
+    public void nextClipStartsAfterLongerTrack() {
+        ClipConcatenator.Timeline timeline = new ClipConcatenator.Timeline();
+        // 10 video frames, audio a bit longer
+        for (int i = 0; i < 10; i++) timeline.place(true, i * FRAME_US);
+        for (int i = 0; i < 16; i++) timeline.place(false, i * AUDIO_FRAME_US);
+        long firstEndUs = 16 * AUDIO_FRAME_US;
+        assertTrue(firstEndUs > 10 * FRAME_US);
+        timeline.nextClip();
+
+        // audio a bit shorter
+        for (int i = 0; i < 10; i++) assertEquals(firstEndUs + i * FRAME_US, timeline.place(true, i * FRAME_US));
+        for (int i = 0; i < 14; i++) assertEquals(firstEndUs + i * AUDIO_FRAME_US, timeline.place(false, i * AUDIO_FRAME_US));
+        long secondEndUs = 10 * FRAME_US;
+        assertTrue(secondEndUs > 14 * AUDIO_FRAME_US);
+        timeline.nextClip();
+
+        assertEquals(firstEndUs + secondEndUs, timeline.place(false, 0));
+        assertEquals(firstEndUs + secondEndUs, timeline.place(true, 0));
+    }
+
+    @Test
+    public void gapsDoNotLengthenLastSample() {
+        ClipConcatenator.Timeline timeline = new ClipConcatenator.Timeline();
+        timeline.place(true, 0);
+        // a dropped frame
+        timeline.place(true, 3 * FRAME_US);
+        timeline.place(true, 4 * FRAME_US);
+        timeline.nextClip();
+
+        assertEquals(5 * FRAME_US, timeline.place(true, 0));
+    }
+
+    @Test
+    public void singleSampleClipTakesNoTime() {
+        ClipConcatenator.Timeline timeline = new ClipConcatenator.Timeline();
+        timeline.place(true, 7000);
+        timeline.nextClip();
+        timeline.nextClip();
+
+        assertEquals(0, timeline.place(true, 1000));
+        assertEquals(FRAME_US, timeline.place(true, 1000 + FRAME_US));
+    }
+}
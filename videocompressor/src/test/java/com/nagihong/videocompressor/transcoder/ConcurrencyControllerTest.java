@@ -0,0 +1,151 @@
+package com.nagihong.videocompressor.transcoder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * drives the controller with made up throughput curves on a fake clock, one simulated job per slot
+ */
+public class ConcurrencyControllerTest {
+    private static final long WINDOW_MS = 1000;
+    private static final int TICKS_PER_WINDOW = 10;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMaxConcurrencyBelowOne() {
+        new ConcurrencyController(0, WINDOW_MS, () -> 0);
+    }
+
+    @Test
+    public void climbsWhileThroughputScales() throws InterruptedException {
+        Simulation simulation = new Simulation(4, jobs -> 30 * jobs);
+        int[] concurrency = simulation.run(40);
+
+        assertEquals(4, concurrency[concurrency.length - 1]);
+        for (int i = 1; i < concurrency.length; i++) {
+            assertTrue("never backs off while every job adds frames", concurrency[i] >= concurrency[i - 1]);
+        }
+    }
+
+    @Test
+    public void settlesAtKnee() throws InterruptedException {
+        // 3 jobs saturate the device, more only contend
+        Simulation simulation = new Simulation(8, jobs -> jobs <= 3 ? 30 * jobs : 90 - 5 * (jobs - 3));
+        int[] concurrency = simulation.run(200);
+
+        int atKnee = 0;
+        for (int i = 20; i < concurrency.length; i++) {
+            assertTrue("probes at most one job over the knee", concurrency[i] <= 4);
+            if (concurrency[i] == 3) atKnee++;
+        }
+        assertTrue("mostly at the knee, was " + atKnee, atKnee > (concurrency.length - 20) * 2 / 3);
+        assertEquals("climbs up to one job over the knee", 4, max(concurrency, 0, 20));
+    }
+
+    @Test
+    public void staysSerialWithoutGain() throws InterruptedException {
+        // e.g. a single hardware encoder shared by all jobs
+        Simulation simulation = new Simulation(4, jobs -> 60);
+        int[] concurrency = simulation.run(100);
+
+        int serial = 0;
+        for (int c : concurrency) {
+            assertTrue("probes one job at most", c <= 2);
+            if (c == 1) serial++;
+        }
+        assertTrue("mostly serial, was " + serial, serial > concurrency.length * 2 / 3);
+    }
+
+    @Test
+    public void halvesWhenThrottled() throws InterruptedException {
+        final boolean[] throttled = {false};
+        Simulation simulation = new Simulation(4, jobs -> (throttled[0] ? 12 : 30) * jobs);
+        int[] before = simulation.run(30);
+        assertEquals(4, before[before.length - 1]);
+
+        throttled[0] = true;
+        int[] after = simulation.run(3);
+        assertEquals(2, after[after.length - 1]);
+    }
+
+    @Test
+    public void climbsAgainAfterThrottling() throws InterruptedException {
+        final boolean[] throttled = {false};
+        Simulation simulation = new Simulation(4, jobs -> (throttled[0] ? 12 : 30) * jobs);
+        simulation.run(30);
+        throttled[0] = true;
+        simulation.run(3);
+        throttled[0] = false;
+        int[] recovered = simulation.run(40);
+
+        assertEquals(4, recovered[recovered.length - 1]);
+    }
+
+    @Test
+    public void skipsWindowsWithoutEnoughJobs() throws InterruptedException {
+        Simulation simulation = new Simulation(4, jobs -> 30 * jobs);
+        simulation.availableJobs = 1;
+        int[] concurrency = simulation.run(40);
+
+        // one probe, which can never be measured with a single job
+        assertEquals(2, concurrency[concurrency.length - 1]);
+        assertTrue(simulation.controller.getThroughput() > 0);
+    }
+
+    //========================= helpers ========================================================
+    private static int max(int[] values, int from, int to) {
+        int max = Integer.MIN_VALUE;
+        for (int i = from; i < to; i++) {
+            max = Math.max(max, values[i]);
+        }
+        return max;
+    }
+
+    private interface Curve {
+        /**
+         * @return frames per second of all jobs together
+         */
+        double framesPerSecond(int jobs);
+    }
+
+    /**
+     * starts a job whenever the limit allows and there is one, and ends jobs over a lowered limit
+     */
+    private static class Simulation {
+        private final long[] nowMs = {0};
+        private final Curve curve;
+        final ConcurrencyController controller;
+        int availableJobs = Integer.MAX_VALUE;
+        private double frames;
+
+        Simulation(int maxConcurrency, Curve curve) {
+            this.curve = curve;
+            controller = new ConcurrencyController(maxConcurrency, WINDOW_MS, () -> nowMs[0]);
+        }
+
+        /**
+         * @return limit at the end of each window
+         */
+        int[] run(int windows) throws InterruptedException {
+            int[] concurrency = new int[windows];
+            long tickMs = WINDOW_MS / TICKS_PER_WINDOW;
+            for (int w = 0; w < windows; w++) {
+                for (int t = 0; t < TICKS_PER_WINDOW; t++) {
+                    while (controller.getRunningJobs() > controller.getConcurrency()) {
+                        controller.release();
+                    }
+                    while (controller.getRunningJobs() < Math.min(controller.getConcurrency(), availableJobs)) {
+                        controller.acquire();
+                    }
+                    nowMs[0] += tickMs;
+                    frames += curve.framesPerSecond(controller.getRunningJobs()) * tickMs / 1000;
+                    long whole = (long) frames;
+                    frames -= whole;
+                    controller.addEncodedFrames(whole);
+                }
+                concurrency[w] = controller.getConcurrency();
+            }
+            return concurrency;
+        }
+    }
+}
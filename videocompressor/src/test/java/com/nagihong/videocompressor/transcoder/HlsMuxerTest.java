@@ -0,0 +1,272 @@
+package com.nagihong.videocompressor.transcoder;
+
+import android.media.MediaCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class HlsMuxerTest {
+    private static final long SEGMENT_US = 2000000;
+    // 25 fps, 3600 in the video timescale
+    private static final long FRAME_US = 40000;
+    // 960 samples at 48 khz
+    private static final long AUDIO_FRAME_US = 20000;
+    private static final int AUDIO_TIMESCALE = 48000;
+    private static final int SAMPLE_BYTES = 20;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("HlsMuxerTest", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (null != files) {
+            for (File file : files) file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void playlist() throws IOException {
+        HlsMuxer muxer = newMuxer();
+        muxer.addTrack(null, true, Mp4Boxes.VIDEO_TIMESCALE);
+        muxer.start();
+        // sync samples at 0, 1.84s (early, but close enough to the segment duration) and 4.84s
+        for (int i = 0; i < 46; i++) writeVideo(muxer, i, i == 0);
+        assertFalse(new File(dir, HlsMuxer.PLAYLIST_NAME).exists());
+        for (int i = 46; i < 121; i++) writeVideo(muxer, i, i == 46);
+        assertEquals("#EXTM3U\n"
+                + "#EXT-X-VERSION:7\n"
+                + "#EXT-X-TARGETDURATION:2\n"
+                + "#EXT-X-MEDIA-SEQUENCE:0\n"
+                + "#EXT-X-PLAYLIST-TYPE:EVENT\n"
+                + "#EXT-X-INDEPENDENT-SEGMENTS\n"
+                + "#EXT-X-MAP:URI=\"init.mp4\"\n"
+                + "#EXTINF:1.840,\n"
+                + "segment0.m4s\n", readPlaylist());
+
+        for (int i = 121; i < 130; i++) writeVideo(muxer, i, i == 121);
+        muxer.stop();
+        muxer.release();
+
+        // a segment longer than the duration asked for raises the target duration
+        assertEquals("#EXTM3U\n"
+                + "#EXT-X-VERSION:7\n"
+                + "#EXT-X-TARGETDURATION:3\n"
+                + "#EXT-X-MEDIA-SEQUENCE:0\n"
+                + "#EXT-X-PLAYLIST-TYPE:VOD\n"
+                + "#EXT-X-INDEPENDENT-SEGMENTS\n"
+                + "#EXT-X-MAP:URI=\"init.mp4\"\n"
+                + "#EXTINF:1.840,\n"
+                + "segment0.m4s\n"
+                + "#EXTINF:3.000,\n"
+                + "segment1.m4s\n"
+                + "#EXTINF:0.360,\n"
+                + "segment2.m4s\n"
+                + "#EXT-X-ENDLIST\n", readPlaylist());
+        assertFalse(new File(dir, HlsMuxer.PLAYLIST_NAME + ".tmp").exists());
+    }
+
+    @Test
+    public void videoSegmentBoxes() throws IOException {
+        HlsMuxer muxer = newMuxer();
+        muxer.addTrack(null, true, Mp4Boxes.VIDEO_TIMESCALE);
+        muxer.start();
+        for (int i = 0; i < 75; i++) writeVideo(muxer, i, i % 50 == 0);
+        muxer.stop();
+
+        ByteBuffer first = readFile("segment0.m4s");
+        assertFragment(first, 1);
+        ByteBuffer traf = child(child(first, "moof"), "traf");
+        assertEquals(1, fullBox(traf, "tfhd", 0x020000).getInt());
+        assertTfdt(traf, 0);
+        // annex b start codes of 3 bytes became 4 byte lengths
+        assertTrun(traf, 50, 0, 3600, SAMPLE_BYTES + 1, first.getInt(0) + 8);
+        assertEquals(50 * (SAMPLE_BYTES + 1), child(first, "mdat").remaining());
+        ByteBuffer mdat = child(first, "mdat");
+        assertEquals(SAMPLE_BYTES - 3, mdat.getInt(0));
+        assertEquals(0x65, mdat.get(4));
+
+        ByteBuffer second = readFile("segment1.m4s");
+        assertFragment(second, 2);
+        traf = child(child(second, "moof"), "traf");
+        assertTfdt(traf, 50 * 3600);
+        // the last frame lasts as long as the one before
+        assertTrun(traf, 25, 0, 3600, SAMPLE_BYTES + 1, second.getInt(0) + 8);
+        assertFalse(new File(dir, "segment2.m4s").exists());
+    }
+
+    @Test
+    public void audioFollowsVideoCuts() throws IOException {
+        HlsMuxer muxer = newMuxer();
+        muxer.addTrack(null, true, Mp4Boxes.VIDEO_TIMESCALE);
+        muxer.addTrack(null, false, AUDIO_TIMESCALE);
+        muxer.start();
+        int audio = 0;
+        for (int i = 0; i < 75; i++) {
+            writeVideo(muxer, i, i % 50 == 0);
+            // audio is two frames ahead of video
+            for (; audio * AUDIO_FRAME_US < (i + 2) * FRAME_US; audio++) {
+                write(muxer, 1, audio * AUDIO_FRAME_US, new byte[SAMPLE_BYTES], 0);
+            }
+        }
+        muxer.stop();
+
+        ByteBuffer first = readFile("segment0.m4s");
+        ByteBuffer moof = child(first, "moof");
+        ByteBuffer videoTraf = child(moof, "traf");
+        ByteBuffer audioTraf = nextTraf(moof, videoTraf);
+        assertEquals(2, fullBox(audioTraf, "tfhd", 0x020000).getInt());
+        assertTfdt(audioTraf, 0);
+        int mdatStart = first.getInt(0) + 8;
+        assertTrun(videoTraf, 50, 0, 3600, SAMPLE_BYTES + 1, mdatStart);
+        // audio before the cut at 2s, after the video samples in mdat
+        assertTrun(audioTraf, 100, -1, 960, SAMPLE_BYTES, mdatStart + 50 * (SAMPLE_BYTES + 1));
+        assertEquals(50 * (SAMPLE_BYTES + 1) + 100 * SAMPLE_BYTES, child(first, "mdat").remaining());
+
+        ByteBuffer second = readFile("segment1.m4s");
+        audioTraf = nextTraf(child(second, "moof"), child(child(second, "moof"), "traf"));
+        assertTfdt(audioTraf, 100 * 960);
+        assertTrun(audioTraf, 52, -1, 960, SAMPLE_BYTES, second.getInt(0) + 8 + 25 * (SAMPLE_BYTES + 1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsTimeGoingBack() throws IOException {
+        HlsMuxer muxer = newMuxer();
+        muxer.addTrack(null, true, Mp4Boxes.VIDEO_TIMESCALE);
+        muxer.start();
+        writeVideo(muxer, 0, true);
+        writeVideo(muxer, 2, false);
+        writeVideo(muxer, 1, false);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsSampleBeforeStart() throws IOException {
+        HlsMuxer muxer = newMuxer();
+        muxer.addTrack(null, true, Mp4Boxes.VIDEO_TIMESCALE);
+        writeVideo(muxer, 0, true);
+    }
+
+    //========================= helpers ========================================================
+
+    /**
+     * tracks are added without a real format, so the init segment is left out
+     */
+    private HlsMuxer newMuxer() throws IOException {
+        return new HlsMuxer(dir, SEGMENT_US) {
+            @Override
+            void writeInitSegment() {
+            }
+        };
+    }
+
+    private static void writeVideo(HlsMuxer muxer, int frame, boolean sync) {
+        byte[] sample = new byte[SAMPLE_BYTES];
+        sample[2] = 1;
+        sample[3] = 0x65;
+        write(muxer, 0, frame * FRAME_US, sample, sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+    }
+
+    private static void write(HlsMuxer muxer, int track, long timeUs, byte[] sample, int flags) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.size = sample.length;
+        info.presentationTimeUs = timeUs;
+        info.flags = flags;
+        muxer.writeSampleData(track, ByteBuffer.wrap(sample), info);
+    }
+
+    private static void assertFragment(ByteBuffer segment, int sequence) {
+        ByteBuffer moof = child(segment, "moof");
+        assertNotNull(moof);
+        assertEquals(sequence, fullBox(moof, "mfhd", 0).getInt());
+        // moof and mdat, nothing else
+        assertEquals(segment.limit(), segment.getInt(0) + segment.getInt(segment.getInt(0)));
+    }
+
+    private static void assertTfdt(ByteBuffer traf, long baseMediaDecodeTime) {
+        ByteBuffer tfdt = child(traf, "tfdt");
+        assertEquals(12, tfdt.remaining());
+        assertEquals(1 << 24, tfdt.getInt());
+        assertEquals(baseMediaDecodeTime, tfdt.getLong());
+    }
+
+    /**
+     * @param syncSample sample expected to be flagged sync, -1 for all of them
+     */
+    private static void assertTrun(ByteBuffer traf, int count, int syncSample, int duration, int size, int dataOffset) {
+        ByteBuffer trun = fullBox(traf, "trun", 0x000701);
+        assertEquals(8 + count * 12, trun.remaining());
+        assertEquals(count, trun.getInt());
+        assertEquals(dataOffset, trun.getInt());
+        for (int s = 0; s < count; s++) {
+            assertEquals("duration of " + s, duration, trun.getInt());
+            assertEquals("size of " + s, size, trun.getInt());
+            boolean sync = syncSample < 0 || s == syncSample;
+            assertEquals("flags of " + s, sync ? Mp4Boxes.SAMPLE_FLAGS_SYNC : Mp4Boxes.SAMPLE_FLAGS_NON_SYNC, trun.getInt());
+        }
+    }
+
+    /**
+     * @return content of the first box of type in parent's content, null if none
+     */
+    private static ByteBuffer child(ByteBuffer parent, String type) {
+        ByteBuffer boxes = parent.duplicate();
+        while (boxes.remaining() >= 8) {
+            int start = boxes.position();
+            int size = boxes.getInt();
+            byte[] name = new byte[4];
+            boxes.get(name);
+            if (type.equals(new String(name, Charset.forName("US-ASCII")))) {
+                ByteBuffer content = boxes.slice();
+                content.limit(size - 8);
+                return content;
+            }
+            boxes.position(start + size);
+        }
+        return null;
+    }
+
+    /**
+     * @return content of the traf after sibling, a traf in parent returned by {@link #child}
+     */
+    private static ByteBuffer nextTraf(ByteBuffer parent, ByteBuffer sibling) {
+        ByteBuffer rest = parent.duplicate();
+        // sibling shares parent's content, its offset in it is where its array offset differs
+        rest.position(sibling.arrayOffset() - parent.arrayOffset() + sibling.limit());
+        return child(rest.slice(), "traf");
+    }
+
+    private static ByteBuffer fullBox(ByteBuffer parent, String type, int versionAndFlags) {
+        ByteBuffer content = child(parent, type);
+        assertNotNull(type, content);
+        assertEquals(type + " version and flags", versionAndFlags, content.getInt());
+        return content.slice();
+    }
+
+    private String readPlaylist() throws IOException {
+        ByteBuffer bytes = readFile(HlsMuxer.PLAYLIST_NAME);
+        return new String(bytes.array(), 0, bytes.limit(), Charset.forName("US-ASCII"));
+    }
+
+    private ByteBuffer readFile(String name) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, name), "r")) {
+            byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+            return ByteBuffer.wrap(bytes);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.nagihong.videocompressor.transcoder;
+
+import android.content.ComponentCallbacks2;
+
+import com.nagihong.videocompressor.utils.ByteBufferPool;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class MemoryBudgetTest {
+    private static final long WAIT_MS = 5000;
+
+    private final long[] nowMs = {1000};
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBudgetNotPositive() {
+        new MemoryBudget(0, () -> nowMs[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeBytes() throws InterruptedException {
+        new MemoryBudget(100, () -> nowMs[0]).acquire(-1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsReleaseWithoutJob() {
+        new MemoryBudget(100, () -> nowMs[0]).release(0);
+    }
+
+    @Test
+    public void admitsJobsThatFit() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(100, () -> nowMs[0]);
+        budget.acquire(60);
+        budget.acquire(40);
+
+        assertEquals(100, budget.getUsedBytes());
+        assertEquals(2, budget.getRunningJobs());
+        budget.release(60);
+        assertEquals(40, budget.getUsedBytes());
+        assertEquals(1, budget.getRunningJobs());
+    }
+
+    @Test
+    public void blocksUntilBytesAreReleased() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100, () -> nowMs[0]);
+        budget.acquire(60);
+        Job job = new Job(budget, 50);
+
+        awaitBlocked(job);
+        assertFalse(job.admitted.get());
+        assertEquals(1, budget.getRunningJobs());
+
+        budget.release(60);
+        job.join(WAIT_MS);
+        assertTrue(job.admitted.get());
+        assertEquals(50, budget.getUsedBytes());
+    }
+
+    @Test
+    public void runsJobLargerThanBudgetAlone() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100, () -> nowMs[0]);
+        budget.acquire(1000);
+        assertEquals(1000, budget.getUsedBytes());
+
+        Job job = new Job(budget, 1);
+        awaitBlocked(job);
+        budget.release(1000);
+        job.join(WAIT_MS);
+        assertTrue(job.admitted.get());
+
+        // and waits for the running ones itself
+        Job large = new Job(budget, 1000);
+        awaitBlocked(large);
+        budget.release(1);
+        large.join(WAIT_MS);
+        assertTrue(large.admitted.get());
+    }
+
+    @Test
+    public void trimLevelsPauseAdmission() {
+        MemoryBudget budget = new MemoryBudget(100, () -> nowMs[0]);
+
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertFalse(budget.isPaused());
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertFalse(budget.isPaused());
+
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertTrue(budget.isPaused());
+        nowMs[0] += 4999;
+        assertTrue(budget.isPaused());
+        nowMs[0] += 1;
+        assertFalse(budget.isPaused());
+
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        nowMs[0] += 5000;
+        assertFalse(budget.isPaused());
+
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+        nowMs[0] += 29999;
+        assertTrue(budget.isPaused());
+        nowMs[0] += 1;
+        assertFalse(budget.isPaused());
+
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+        nowMs[0] += 29999;
+        assertTrue(budget.isPaused());
+        nowMs[0] += 1;
+        assertFalse(budget.isPaused());
+
+        budget.onLowMemory();
+        nowMs[0] += 29999;
+        assertTrue(budget.isPaused());
+    }
+
+    @Test
+    public void shorterPauseDoesNotCutLongerOne() {
+        MemoryBudget budget = new MemoryBudget(100, () -> nowMs[0]);
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        nowMs[0] += 1000;
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+
+        nowMs[0] += 28999;
+        assertTrue(budget.isPaused());
+        nowMs[0] += 1;
+        assertFalse(budget.isPaused());
+    }
+
+    @Test
+    public void pausedAdmissionResumes() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100, () -> nowMs[0]);
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+        Job job = new Job(budget, 1);
+
+        awaitBlocked(job);
+        assertFalse("fits but is paused", job.admitted.get());
+        assertEquals(0, budget.getRunningJobs());
+
+        nowMs[0] += 30000;
+        // the next job through wakes the waiting one
+        budget.acquire(0);
+        budget.release(0);
+        job.join(WAIT_MS);
+        assertTrue(job.admitted.get());
+        assertEquals(1, budget.getUsedBytes());
+    }
+
+    @Test
+    public void trimMemoryTrimsDefaultPool() {
+        ByteBufferPool pool = ByteBufferPool.getDefault();
+        pool.release(pool.acquire(1));
+        assertTrue(pool.getStats().pooledBytes > 0);
+
+        new MemoryBudget(100, () -> nowMs[0]).onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(0, pool.getStats().pooledBytes);
+    }
+
+    @Test
+    public void estimates() {
+        long frame1080p = 1920 * 1080 * 3 / 2;
+        assertEquals(4 * 1024 * 1024 + 8 * frame1080p, MemoryBudget.estimateDecoderBytes(1920, 1080, 1024 * 1024));
+
+        long frame720p = 1280 * 720 * 3 / 2;
+        assertEquals(8 * frame720p + 3 * 1280 * 720 * 4, MemoryBudget.estimateEncoderBytes(1280, 720, true));
+        assertEquals(9 * frame720p, MemoryBudget.estimateEncoderBytes(1280, 720, false));
+        assertEquals(22118400, MemoryBudget.estimateEncoderBytes(1280, 720, true));
+        assertEquals(2 * 1024 * 1024, MemoryBudget.estimateAudioTranscodeBytes());
+    }
+
+    //========================= helpers ========================================================
+    private static void awaitBlocked(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING) {
+            assertTrue("job did not block", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static class Job extends Thread {
+        final AtomicBoolean admitted = new AtomicBoolean();
+        private final MemoryBudget budget;
+        private final long bytes;
+
+        Job(MemoryBudget budget, long bytes) {
+            this.budget = budget;
+            this.bytes = bytes;
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                budget.acquire(bytes);
+                admitted.set(true);
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+}
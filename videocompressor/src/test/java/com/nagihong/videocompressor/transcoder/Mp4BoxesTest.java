@@ -0,0 +1,99 @@
+package com.nagihong.videocompressor.transcoder;
+
+import com.nagihong.videocompressor.utils.Mp4BoxWriter;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class Mp4BoxesTest {
+
+    @Test
+    public void ftyp() {
+        Mp4BoxWriter writer = new Mp4BoxWriter(64);
+        Mp4Boxes.writeFtyp(writer, "iso6", "iso6", "mp41");
+
+        assertArrayEquals(new byte[]{
+                0, 0, 0, 24, 'f', 't', 'y', 'p', 'i', 's', 'o', '6', 0, 0, 0, 0, 'i', 's', 'o', '6', 'm', 'p', '4', '1',
+        }, bytes(writer));
+    }
+
+    @Test
+    public void mvhd() {
+        Mp4BoxWriter writer = new Mp4BoxWriter(64);
+        Mp4Boxes.writeMvhd(writer, 12345, 3);
+
+        ByteBuffer box = writer.getBuffer();
+        assertEquals(108, box.remaining());
+        assertEquals(108, box.getInt(0));
+        assertEquals(0, box.getInt(8)); // version and flags
+        assertEquals(Mp4Boxes.MOVIE_TIMESCALE, box.getInt(20));
+        assertEquals(12345, box.getInt(24));
+        assertEquals(0x10000, box.getInt(28)); // rate 1.0
+        assertEquals(0x0100, box.getShort(32)); // volume 1.0
+        // identity matrix
+        assertEquals(0x10000, box.getInt(44));
+        assertEquals(0x10000, box.getInt(60));
+        assertEquals(0x40000000, box.getInt(76));
+        assertEquals(3, box.getInt(104));
+    }
+
+    @Test
+    public void toTimescale() {
+        assertEquals(90000, Mp4Boxes.toTimescale(1000000, Mp4Boxes.VIDEO_TIMESCALE));
+        assertEquals(3600, Mp4Boxes.toTimescale(40000, Mp4Boxes.VIDEO_TIMESCALE));
+        assertEquals(1024, Mp4Boxes.toTimescale(23220, 44100));
+        // hours of video do not overflow
+        assertEquals(3600L * 10 * 90000, Mp4Boxes.toTimescale(3600L * 10 * 1000000, Mp4Boxes.VIDEO_TIMESCALE));
+    }
+
+    @Test
+    public void splitNalUnits() {
+        ByteBuffer annexB = ByteBuffer.wrap(new byte[]{
+                0, 0, 0, 1, 0x67, 1, 2,
+                0, 0, 1, 0x68, 3,
+                0, 0, 0, 1, 0x65, 0, 4, 5, 0, 0, // zero inside, trailing zeros
+        });
+        List<ByteBuffer> nalUnits = Mp4Boxes.splitNalUnits(annexB);
+
+        assertEquals(3, nalUnits.size());
+        assertEquals(ByteBuffer.wrap(new byte[]{0x67, 1, 2}), nalUnits.get(0));
+        assertEquals(ByteBuffer.wrap(new byte[]{0x68, 3}), nalUnits.get(1));
+        assertEquals(ByteBuffer.wrap(new byte[]{0x65, 0, 4, 5, 0, 0}), nalUnits.get(2));
+        assertEquals(0, annexB.position());
+    }
+
+    @Test
+    public void splitNalUnitsWithoutStartCode() {
+        assertTrue(Mp4Boxes.splitNalUnits(ByteBuffer.wrap(new byte[]{0, 0, 0, 5, 0x65, 1, 2, 3, 4})).isEmpty());
+    }
+
+    @Test
+    public void appendLengthPrefixed() {
+        Mp4BoxWriter writer = new Mp4BoxWriter(4);
+        ByteBuffer annexB = ByteBuffer.wrap(new byte[]{0, 0, 1, 0x06, 9, 0, 0, 0, 1, 0x65, 1, 2, 3});
+
+        assertEquals(14, Mp4Boxes.appendLengthPrefixed(annexB, writer));
+        assertArrayEquals(new byte[]{0, 0, 0, 2, 0x06, 9, 0, 0, 0, 4, 0x65, 1, 2, 3}, bytes(writer));
+    }
+
+    @Test
+    public void appendLengthPrefixedKeepsPrefixedSample() {
+        Mp4BoxWriter writer = new Mp4BoxWriter(4);
+        byte[] prefixed = {0, 0, 0, 4, 0x65, 1, 2, 3};
+
+        assertEquals(prefixed.length, Mp4Boxes.appendLengthPrefixed(ByteBuffer.wrap(prefixed), writer));
+        assertArrayEquals(prefixed, bytes(writer));
+    }
+
+    //========================= helpers ========================================================
+    static byte[] bytes(Mp4BoxWriter writer) {
+        ByteBuffer buffer = writer.getBuffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,247 @@
+package com.nagihong.videocompressor.transcoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class QueuedMuxerTest {
+    private static final long CHUNK_US = 500000;
+    private static final long VIDEO_FRAME_US = 40000;
+    private static final long AUDIO_FRAME_US = 20000;
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+
+    private File dir;
+    private final FakeMuxer muxer = new FakeMuxer();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("QueuedMuxerTest", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (null != files) {
+            for (File file : files) file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void writesAsTheyComeWithoutInterleaving() {
+        QueuedMuxer queuedMuxer = newQueuedMuxer(0);
+        write(queuedMuxer, VIDEO, 0, 10, 0);
+        write(queuedMuxer, AUDIO, 0, 10, 0);
+        assertTrue("waits for formats", muxer.samples.isEmpty());
+        start(queuedMuxer);
+        write(queuedMuxer, VIDEO, VIDEO_FRAME_US, 10, 0);
+
+        assertEquals(3, muxer.samples.size());
+        assertSample(muxer.samples.get(0), VIDEO, 0);
+        assertSample(muxer.samples.get(1), AUDIO, 0);
+        assertSample(muxer.samples.get(2), VIDEO, VIDEO_FRAME_US);
+    }
+
+    @Test
+    public void interleavesChunksByDecodeTime() {
+        QueuedMuxer queuedMuxer = newQueuedMuxer(CHUNK_US);
+        start(queuedMuxer);
+        // video comes in a burst ahead of audio, within its window
+        for (int i = 0; i < 50; i++) write(queuedMuxer, VIDEO, i * VIDEO_FRAME_US, 10, 0);
+        assertTrue("waits for audio", muxer.samples.isEmpty());
+        for (int i = 0; i < 100; i++) write(queuedMuxer, AUDIO, i * AUDIO_FRAME_US, 10, 0);
+        write(queuedMuxer, AUDIO, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        write(queuedMuxer, VIDEO, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        queuedMuxer.flush();
+
+        // runs of track, first and last time, each run within a chunk from the earliest sample queued
+        assertRuns(new long[][]{
+                {VIDEO, 0, 480000},
+                {AUDIO, 0, 980000},
+                {VIDEO, 520000, 1000000},
+                {AUDIO, 1000000, 1480000},
+                {VIDEO, 1040000, 1520000},
+                {AUDIO, 1500000, 1980000},
+                {VIDEO, 1560000, 1960000},
+        });
+        assertOrderedPerTrack(50, 100);
+    }
+
+    @Test
+    public void trackAheadBeyondWindowIsWritten() {
+        QueuedMuxer queuedMuxer = newQueuedMuxer(CHUNK_US);
+        start(queuedMuxer);
+        // four chunks of video without audio, then one frame more
+        for (int i = 0; i <= 50; i++) write(queuedMuxer, VIDEO, i * VIDEO_FRAME_US, 10, 0);
+        assertTrue(muxer.samples.isEmpty());
+        write(queuedMuxer, VIDEO, 51 * VIDEO_FRAME_US, 10, 0);
+
+        assertFalse(muxer.samples.isEmpty());
+        for (long[] sample : muxer.samples) assertEquals(VIDEO, sample[0]);
+        queuedMuxer.release();
+    }
+
+    @Test
+    public void tracksShareMemoryLimit() {
+        QueuedMuxer queuedMuxer = newQueuedMuxer(CHUNK_US);
+        queuedMuxer.setBufferMemoryLimit(4 * SampleQueue.SEGMENT_SIZE);
+        start(queuedMuxer);
+        int sampleBytes = 100 * 1024;
+
+        // half of the limit each, two samples fit a segment, so the fifth video sample spills
+        for (int i = 0; i < 4; i++) write(queuedMuxer, VIDEO, i * 1000, sampleBytes, 0);
+        assertEquals(0, dir.listFiles().length);
+        write(queuedMuxer, VIDEO, 4 * 1000, sampleBytes, 0);
+        assertEquals(1, dir.listFiles().length);
+
+        // held back while audio may still come, until the queued bytes of all tracks pass the limit
+        for (int i = 5; i < 9; i++) write(queuedMuxer, VIDEO, i * 1000, sampleBytes, 0);
+        assertTrue(muxer.samples.isEmpty());
+        write(queuedMuxer, VIDEO, 9 * 1000, sampleBytes, 0);
+        assertEquals(10, muxer.samples.size());
+        queuedMuxer.release();
+    }
+
+    @Test
+    public void queuesSamplesBeforeStartThenInterleaves() {
+        QueuedMuxer queuedMuxer = newQueuedMuxer(CHUNK_US);
+        for (int i = 0; i < 25; i++) write(queuedMuxer, VIDEO, i * VIDEO_FRAME_US, 10, 0);
+        for (int i = 0; i < 50; i++) write(queuedMuxer, AUDIO, i * AUDIO_FRAME_US, 10, 0);
+        assertEquals(25, queuedMuxer.getWrittenSampleCount(VIDEO));
+        assertEquals(50, queuedMuxer.getWrittenSampleCount(AUDIO));
+        start(queuedMuxer);
+        write(queuedMuxer, VIDEO, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        write(queuedMuxer, AUDIO, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        queuedMuxer.flush();
+
+        assertRuns(new long[][]{
+                {VIDEO, 0, 480000},
+                {AUDIO, 0, 980000},
+                {VIDEO, 520000, 960000},
+        });
+        assertOrderedPerTrack(25, 50);
+    }
+
+    //========================= helpers ========================================================
+    private QueuedMuxer newQueuedMuxer(long chunkUs) {
+        QueuedMuxer queuedMuxer = new QueuedMuxer(muxer, () -> {
+        });
+        queuedMuxer.setSpillDirectory(dir);
+        queuedMuxer.setInterleaveChunkDurationUs(chunkUs);
+        queuedMuxer.addTrack();
+        queuedMuxer.addTrack();
+        return queuedMuxer;
+    }
+
+    private void start(QueuedMuxer queuedMuxer) {
+        queuedMuxer.setOutputFormat(VIDEO, new MediaFormat());
+        assertFalse(muxer.started);
+        queuedMuxer.setOutputFormat(AUDIO, new MediaFormat());
+        assertTrue(muxer.started);
+        assertEquals(2, muxer.tracks);
+    }
+
+    private static void write(QueuedMuxer queuedMuxer, int track, long timeUs, int size, int flags) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.size = size;
+        info.presentationTimeUs = timeUs;
+        info.flags = flags;
+        queuedMuxer.writeSampleData(track, ByteBuffer.allocate(size), info);
+    }
+
+    private static void assertSample(long[] sample, int track, long timeUs) {
+        assertEquals(track, sample[0]);
+        assertEquals(timeUs, sample[1]);
+    }
+
+    /**
+     * @param expected track, first and last time of each run of samples of the same track, end of stream excluded
+     */
+    private void assertRuns(long[][] expected) {
+        List<long[]> runs = new ArrayList<>();
+        for (long[] sample : muxer.samples) {
+            if ((sample[2] & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) continue;
+            long[] run = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+            if (run != null && run[0] == sample[0]) {
+                run[2] = sample[1];
+            } else {
+                runs.add(new long[]{sample[0], sample[1], sample[1]});
+            }
+        }
+        assertEquals(expected.length, runs.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals("run " + i, expected[i], runs.get(i));
+        }
+    }
+
+    /**
+     * every sample written once in its track's order, end of stream last
+     */
+    private void assertOrderedPerTrack(int videoSamples, int audioSamples) {
+        long[] expectedUs = {0, 0};
+        int[] counts = new int[2];
+        boolean[] ended = new boolean[2];
+        for (long[] sample : muxer.samples) {
+            int track = (int) sample[0];
+            assertFalse("sample after end of stream", ended[track]);
+            if ((sample[2] & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                ended[track] = true;
+                continue;
+            }
+            assertEquals(expectedUs[track], sample[1]);
+            expectedUs[track] += track == VIDEO ? VIDEO_FRAME_US : AUDIO_FRAME_US;
+            counts[track]++;
+        }
+        assertEquals(videoSamples, counts[VIDEO]);
+        assertEquals(audioSamples, counts[AUDIO]);
+        assertTrue(ended[VIDEO] && ended[AUDIO]);
+    }
+
+    private static class FakeMuxer implements Muxer {
+        // track, time, flags
+        final List<long[]> samples = new ArrayList<>();
+        int tracks;
+        boolean started;
+
+        @Override
+        public void setOrientationHint(int degrees) {
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return tracks++;
+        }
+
+        @Override
+        public void start() {
+            started = true;
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+            assertTrue(started);
+            samples.add(new long[]{trackIndex, bufferInfo.presentationTimeUs, bufferInfo.flags});
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
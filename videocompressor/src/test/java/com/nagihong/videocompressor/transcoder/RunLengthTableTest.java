@@ -0,0 +1,127 @@
+package com.nagihong.videocompressor.transcoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RunLengthTableTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("RunLengthTableTest", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (null != files) {
+            for (File file : files) file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCapacityBelowTwo() {
+        new RunLengthTable(dir, 1);
+    }
+
+    @Test
+    public void mergesEqualValues() throws IOException {
+        RunLengthTable table = new RunLengthTable(dir, 4);
+        table.add(10);
+        table.add(10);
+        table.add(20, 3);
+        table.add(20);
+        table.add(10);
+        table.add(30, 0);
+
+        assertEquals(7, table.getCount());
+        assertEquals(3, table.getRunCount());
+        assertEquals(10, table.getLastValue(-1));
+        assertRuns(table, new long[][]{{2, 10}, {4, 20}, {1, 10}});
+        assertEquals(0, dir.listFiles().length);
+        table.release();
+    }
+
+    @Test
+    public void spillsRunsOverCapacityInOrder() throws IOException {
+        RunLengthTable table = new RunLengthTable(dir, 3);
+        List<long[]> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            int count = i % 7 + 1;
+            // runs around a spill grow after it
+            for (int j = 0; j < count; j++) table.add(i);
+            expected.add(new long[]{count, i});
+        }
+
+        assertEquals(100, table.getRunCount());
+        assertEquals(1, dir.listFiles().length);
+        assertRuns(table, expected.toArray(new long[0][]));
+        // still appendable after reading back
+        table.add(99);
+        table.add(100, 2);
+        expected.set(99, new long[]{99 % 7 + 2, 99});
+        expected.add(new long[]{2, 100});
+        assertRuns(table, expected.toArray(new long[0][]));
+        table.release();
+    }
+
+    @Test
+    public void constantWhenOneRun() {
+        RunLengthTable table = new RunLengthTable(dir, 2);
+        assertEquals(-1, table.getConstant(-1));
+        assertEquals(-1, table.getLastValue(-1));
+
+        for (int i = 0; i < 10000; i++) table.add(1024);
+        assertEquals(1024, table.getConstant(-1));
+        assertEquals(10000, table.getCount());
+        assertEquals(0, dir.listFiles().length);
+
+        table.add(512);
+        assertEquals(-1, table.getConstant(-1));
+        assertEquals(512, table.getLastValue(-1));
+    }
+
+    @Test
+    public void runCountDoesNotOverflow() throws IOException {
+        RunLengthTable table = new RunLengthTable(dir, 4);
+        table.add(7, Integer.MAX_VALUE - 1);
+        table.add(7, 2);
+
+        assertEquals(Integer.MAX_VALUE + 1L, table.getCount());
+        assertRuns(table, new long[][]{{Integer.MAX_VALUE - 1, 7}, {2, 7}});
+        table.release();
+    }
+
+    @Test
+    public void releaseDeletesSpillFile() {
+        RunLengthTable table = new RunLengthTable(dir, 2);
+        for (int i = 0; i < 10; i++) table.add(i);
+        File[] files = dir.listFiles();
+        assertEquals(1, files.length);
+
+        table.release();
+        assertFalse(files[0].exists());
+        table.release();
+    }
+
+    //========================= helpers ========================================================
+    private static void assertRuns(RunLengthTable table, long[][] expected) throws IOException {
+        List<long[]> runs = new ArrayList<>();
+        table.forEachRun((count, value) -> runs.add(new long[]{count, value}));
+        assertEquals(expected.length, runs.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("count of run " + i, expected[i][0], runs.get(i)[0]);
+            assertEquals("value of run " + i, expected[i][1], runs.get(i)[1]);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.nagihong.videocompressor.transcoder;
+
+import android.media.MediaCodec;
+
+import com.nagihong.videocompressor.utils.ByteBufferPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SampleQueueTest {
+    private static final int LARGE_SAMPLE = 100 * 1024;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("SampleQueueTest", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (null != files) {
+            for (File file : files) file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void keepsOrderInMemory() {
+        SampleQueue queue = new SampleQueue(dir, SampleQueue.DEFAULT_MEMORY_LIMIT);
+        for (int i = 0; i < 10; i++) add(queue, i % 2, i * 1000L, 100 + i, i);
+
+        assertEquals(10, queue.size());
+        assertEquals(SampleQueue.SEGMENT_SIZE, queue.getMemoryBytes());
+        assertEquals(0, queue.getSpilledBytes());
+        for (int i = 0; i < 10; i++) assertHead(queue, i % 2, i * 1000L, 100 + i, i);
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.getMemoryBytes());
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void spillsPastMemoryLimit() {
+        SampleQueue queue = new SampleQueue(dir, SampleQueue.SEGMENT_SIZE);
+        for (int i = 0; i < 6; i++) add(queue, 0, i * 1000L, LARGE_SAMPLE, i);
+
+        // two samples fit the one segment allowed, the others went to a file
+        assertEquals(SampleQueue.SEGMENT_SIZE, queue.getMemoryBytes());
+        assertEquals(4L * LARGE_SAMPLE, queue.getSpilledBytes());
+        File[] files = dir.listFiles();
+        assertEquals(1, files.length);
+        assertEquals(4L * LARGE_SAMPLE, files[0].length());
+
+        for (int i = 0; i < 6; i++) assertHead(queue, 0, i * 1000L, LARGE_SAMPLE, i);
+        assertEquals(0, queue.getSpilledBytes());
+        assertEquals(0, queue.getMemoryBytes());
+        queue.release();
+        assertFalse(files[0].exists());
+    }
+
+    @Test
+    public void spillsAgainAfterDrained() {
+        SampleQueue queue = new SampleQueue(dir, SampleQueue.SEGMENT_SIZE);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 4; i++) add(queue, 1, i, LARGE_SAMPLE, round * 10 + i);
+            assertEquals(2L * LARGE_SAMPLE, queue.getSpilledBytes());
+            for (int i = 0; i < 4; i++) assertHead(queue, 1, i, LARGE_SAMPLE, round * 10 + i);
+        }
+        // the file is written from its start again once empty
+        assertEquals(2L * LARGE_SAMPLE, dir.listFiles()[0].length());
+        queue.release();
+    }
+
+    @Test
+    public void exceedsMemoryLimitWithoutSpillDirectory() {
+        SampleQueue queue = new SampleQueue(null, SampleQueue.SEGMENT_SIZE);
+        for (int i = 0; i < 6; i++) add(queue, 0, i, LARGE_SAMPLE, i);
+
+        assertEquals(0, queue.getSpilledBytes());
+        // segments over the limit are filled up too
+        assertEquals(3L * SampleQueue.SEGMENT_SIZE, queue.getMemoryBytes());
+        for (int i = 0; i < 6; i++) assertHead(queue, 0, i, LARGE_SAMPLE, i);
+    }
+
+    @Test
+    public void sampleLargerThanSegment() {
+        SampleQueue queue = new SampleQueue(dir, SampleQueue.DEFAULT_MEMORY_LIMIT);
+        add(queue, 0, 0, 10, 1);
+        add(queue, 0, 1, SampleQueue.SEGMENT_SIZE + 1, 2);
+
+        assertEquals(3L * SampleQueue.SEGMENT_SIZE, queue.getMemoryBytes());
+        assertHead(queue, 0, 0, 10, 1);
+        assertEquals(2L * SampleQueue.SEGMENT_SIZE, queue.getMemoryBytes());
+        assertHead(queue, 0, 1, SampleQueue.SEGMENT_SIZE + 1, 2);
+    }
+
+    @Test
+    public void recyclesSegmentsIntoPool() {
+        ByteBufferPool.Stats before = ByteBufferPool.getDefault().getStats();
+        SampleQueue queue = new SampleQueue(dir, SampleQueue.DEFAULT_MEMORY_LIMIT);
+        // two samples per segment, three segments
+        for (int i = 0; i < 6; i++) add(queue, 0, i, LARGE_SAMPLE, i);
+        assertEquals(3L * SampleQueue.SEGMENT_SIZE, queue.getMemoryBytes());
+
+        assertHead(queue, 0, 0, LARGE_SAMPLE, 0);
+        assertEquals("first segment still holds a sample", 3L * SampleQueue.SEGMENT_SIZE, queue.getMemoryBytes());
+        assertHead(queue, 0, 1, LARGE_SAMPLE, 1);
+        assertEquals(2L * SampleQueue.SEGMENT_SIZE, queue.getMemoryBytes());
+        ByteBufferPool.Stats recycled = ByteBufferPool.getDefault().getStats();
+        assertEquals(before.released + 1, recycled.released);
+
+        // the next segment comes from the pool
+        for (int i = 6; i < 8; i++) add(queue, 0, i, LARGE_SAMPLE, i);
+        ByteBufferPool.Stats reused = ByteBufferPool.getDefault().getStats();
+        assertEquals(recycled.reused + 1, reused.reused);
+        assertEquals(recycled.allocated, reused.allocated);
+
+        queue.release();
+        assertEquals(before.outstandingBytes, ByteBufferPool.getDefault().getStats().outstandingBytes);
+    }
+
+    @Test
+    public void keepsOrderWhenRingGrows() {
+        SampleQueue queue = new SampleQueue(dir, SampleQueue.DEFAULT_MEMORY_LIMIT);
+        int added = 0;
+        int removed = 0;
+        // head moves away from 0 before the metadata arrays grow
+        for (; added < 50; added++) add(queue, 0, added, 10, added);
+        for (; removed < 40; removed++) assertHead(queue, 0, removed, 10, removed);
+        for (; added < 300; added++) add(queue, added % 3, added, 10, added);
+        for (; removed < 300; removed++) assertHead(queue, removed < 50 ? 0 : removed % 3, removed, 10, removed);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void decodeTimeIsSmallestTimeOfTrack() {
+        SampleQueue queue = new SampleQueue(dir, SampleQueue.DEFAULT_MEMORY_LIMIT);
+        assertEquals(Long.MAX_VALUE, queue.peekDecodeTimeUs(0));
+        // I P B B of track 0 in decode order, audio in between
+        add(queue, 0, 0, 10, 0);
+        add(queue, 1, 5, 10, 0);
+        add(queue, 0, 3000, 10, 0);
+        add(queue, 0, 1000, 10, 0);
+        add(queue, 0, 2000, 10, 0);
+        add(queue, 1, 25, 10, 0);
+
+        assertEquals(0, queue.peekDecodeTimeUs(0));
+        assertEquals(5, queue.peekDecodeTimeUs(1));
+        queue.remove();
+        assertEquals(1000, queue.peekDecodeTimeUs(0));
+        queue.remove();
+        assertEquals(25, queue.peekDecodeTimeUs(1));
+        // the P frame is decoded before the B frames shown before it
+        queue.remove();
+        assertEquals(1000, queue.peekDecodeTimeUs(0));
+        queue.remove();
+        assertEquals(2000, queue.peekDecodeTimeUs(0));
+        queue.remove();
+        assertEquals(Long.MAX_VALUE, queue.peekDecodeTimeUs(0));
+        assertEquals(Long.MAX_VALUE, queue.peekDecodeTimeUs(7));
+    }
+
+    @Test
+    public void decodeTimeSkipsEmptyEndOfStream() {
+        SampleQueue queue = new SampleQueue(dir, SampleQueue.DEFAULT_MEMORY_LIMIT);
+        add(queue, 0, 3000, 10, 0);
+        addEndOfStream(queue, 0);
+        assertEquals(3000, queue.peekDecodeTimeUs(0));
+        queue.remove();
+        assertEquals(Long.MAX_VALUE, queue.peekDecodeTimeUs(0));
+        queue.remove();
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void decodeTimeMatchesScan() {
+        SampleQueue queue = new SampleQueue(dir, SampleQueue.DEFAULT_MEMORY_LIMIT);
+        Deque<long[]> expected = new ArrayDeque<>();
+        Random random = new Random(42);
+        for (int step = 0; step < 20000; step++) {
+            if (expected.isEmpty() || random.nextInt(5) < 3) {
+                int track = random.nextInt(3);
+                long timeUs = random.nextInt(100) * 1000L;
+                add(queue, track, timeUs, 1, 0);
+                expected.addLast(new long[]{track, timeUs});
+            } else {
+                queue.remove();
+                expected.removeFirst();
+            }
+            int track = random.nextInt(3);
+            long min = Long.MAX_VALUE;
+            for (long[] sample : expected) {
+                if (sample[0] == track) min = Math.min(min, sample[1]);
+            }
+            assertEquals("at step " + step, min, queue.peekDecodeTimeUs(track));
+        }
+        queue.release();
+        assertEquals(Long.MAX_VALUE, queue.peekDecodeTimeUs(0));
+    }
+
+    //========================= helpers ========================================================
+    private static void add(SampleQueue queue, int track, long timeUs, int size, int seed) {
+        // offset in the buffer must not matter
+        ByteBuffer buffer = ByteBuffer.allocate(size + 7);
+        for (int i = 0; i < size; i++) buffer.put(7 + i, (byte) (seed * 31 + i));
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.offset = 7;
+        info.size = size;
+        info.presentationTimeUs = timeUs;
+        info.flags = seed % 2 == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+        queue.add(track, buffer, info);
+    }
+
+    private static void addEndOfStream(SampleQueue queue, int track) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+        queue.add(track, ByteBuffer.allocate(0), info);
+    }
+
+    /**
+     * check the head sample against what {@link #add} put, and remove it
+     */
+    private static void assertHead(SampleQueue queue, int track, long timeUs, int size, int seed) {
+        assertEquals(track, queue.peekTrack());
+        assertEquals(timeUs, queue.peekPresentationTimeUs());
+        assertEquals(size, queue.peekSize());
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer buffer = queue.peek(info);
+        assertEquals(size, info.size);
+        assertEquals(timeUs, info.presentationTimeUs);
+        assertEquals(seed % 2 == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0, info.flags);
+        assertEquals(info.flags, queue.peekFlags());
+        for (int i = 0; i < size; i++) {
+            if (buffer.get(info.offset + i) != (byte) (seed * 31 + i)) fail("byte " + i + " of sample " + seed);
+        }
+        queue.remove();
+    }
+}
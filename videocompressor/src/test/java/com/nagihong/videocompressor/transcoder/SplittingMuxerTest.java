@@ -0,0 +1,290 @@
+package com.nagihong.videocompressor.transcoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SplittingMuxerTest {
+    private static final long FRAME_US = 33333;
+    private static final int GOP = 5;
+    private static final int FRAME_BYTES = 1000;
+    // room for two gops and their moov entries, not for three
+    private static final long MAX_PART_BYTES = 64 * 1024 + 12000;
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+
+    private final List<FakeMuxer> parts = new ArrayList<>();
+    private final ByteBuffer data = ByteBuffer.allocate(FRAME_BYTES);
+
+    @Test
+    public void partPaths() {
+        assertEquals("/x/video_1.mp4", SplittingMuxer.getPartPath("/x/video.mp4", 1));
+        assertEquals("/x/video.old_12.mp4", SplittingMuxer.getPartPath("/x/video.old.mp4", 12));
+        assertEquals("/x/video_2", SplittingMuxer.getPartPath("/x/video", 2));
+        assertEquals("/x.y/video_1", SplittingMuxer.getPartPath("/x.y/video", 1));
+        assertEquals("/x/.video_1", SplittingMuxer.getPartPath("/x/.video", 1));
+        assertEquals("video_3.mp4", SplittingMuxer.getPartPath("video.mp4", 3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPartSmallerThanMoov() {
+        new SplittingMuxer("/x/video.mp4", 64 * 1024, this::open);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsTrackAfterStart() {
+        SplittingMuxer muxer = newMuxer();
+        muxer.addTrack(null, true);
+        muxer.start();
+        muxer.addTrack(null, false);
+    }
+
+    @Test
+    public void rollsOverAtSyncFrameBeforeLimit() {
+        SplittingMuxer muxer = newMuxer();
+        muxer.addTrack(null, true);
+        muxer.start();
+        for (int i = 0; i < 30; i++) writeVideo(muxer, i);
+        muxer.stop();
+        muxer.release();
+
+        assertEquals(3, parts.size());
+        assertEquals(muxer.getPartPaths(), paths());
+        assertEquals("/x/video_3.mp4", parts.get(2).path);
+        for (FakeMuxer part : parts) {
+            assertTrue(part.stopped && part.released);
+            assertEquals(2 * GOP, part.samples.size());
+            assertTrue(isSync(part.samples.get(0)));
+            // rebased to 0, one frame apart
+            for (int i = 0; i < part.samples.size(); i++) assertEquals(i * FRAME_US, part.samples.get(i)[1]);
+        }
+    }
+
+    @Test
+    public void largerGopGoesOverLimitOnce() {
+        SplittingMuxer muxer = newMuxer();
+        muxer.addTrack(null, true);
+        muxer.start();
+        int frame = 0;
+        for (; frame < GOP; frame++) writeVideo(muxer, frame);
+        // a gop three times as large fits still, as the largest so far is small
+        for (; frame < 2 * GOP; frame++) write(muxer, VIDEO, frame * FRAME_US, 3 * FRAME_BYTES, frame % GOP == 0);
+        for (; frame < 4 * GOP; frame++) writeVideo(muxer, frame);
+        muxer.stop();
+
+        assertEquals(3, parts.size());
+        assertEquals(2 * GOP, parts.get(0).samples.size());
+        assertTrue(parts.get(0).getBytes() + 64 * 1024 > MAX_PART_BYTES);
+        // the largest gop is kept room for now, so one gop per part
+        assertEquals(GOP, parts.get(1).samples.size());
+        assertEquals(GOP, parts.get(2).samples.size());
+    }
+
+    @Test
+    public void withoutVideoAnySampleCuts() {
+        SplittingMuxer muxer = newMuxer();
+        muxer.addTrack(null, false);
+        muxer.start();
+        for (int i = 0; i < 25; i++) write(muxer, 0, i * 21333, FRAME_BYTES, false);
+        muxer.stop();
+
+        assertEquals(3, parts.size());
+        assertEquals(11, parts.get(0).samples.size());
+        assertEquals(11, parts.get(1).samples.size());
+        assertEquals(3, parts.get(2).samples.size());
+        assertEquals(0, parts.get(1).samples.get(0)[1]);
+    }
+
+    @Test
+    public void routesSamplesBeforeCutToPreviousPart() {
+        SplittingMuxer muxer = newMuxer();
+        muxer.addTrack(null, true);
+        muxer.addTrack(null, false);
+        muxer.start();
+        // audio lags three frames behind video
+        for (int i = 0; i < 15; i++) {
+            writeVideo(muxer, i);
+            if (i >= 3) write(muxer, AUDIO, (i - 3) * FRAME_US, 10, false);
+        }
+        muxer.stop();
+
+        assertEquals(2, parts.size());
+        FakeMuxer first = parts.get(0);
+        FakeMuxer second = parts.get(1);
+        assertEquals(2 * GOP, first.count(VIDEO));
+        long cutUs = 2 * GOP * FRAME_US;
+        // audio up to the cut went into the first part, which was finished with the first one past it
+        assertEquals(2 * GOP, first.count(AUDIO));
+        assertTrue(first.stoppedAfterSamples > 0);
+        assertEquals(first.samples.size(), first.stoppedAfterSamples);
+        assertEquals((2 * GOP - 1) * FRAME_US, first.last(AUDIO)[1]);
+        assertEquals(5, second.count(VIDEO));
+        assertEquals(2, second.count(AUDIO));
+        assertEquals(2 * GOP * FRAME_US - cutUs, second.first(AUDIO)[1]);
+        assertTrue(isSync(second.first(VIDEO)));
+    }
+
+    @Test
+    public void dropsLateSampleOfFinishedPart() {
+        SplittingMuxer muxer = newMuxer();
+        muxer.addTrack(null, true);
+        muxer.addTrack(null, false);
+        muxer.start();
+        for (int i = 0; i <= 2 * GOP; i++) writeVideo(muxer, i);
+        long cutUs = 2 * GOP * FRAME_US;
+        write(muxer, AUDIO, cutUs - 1, 10, false);
+        write(muxer, AUDIO, cutUs, 10, false);
+        assertTrue("first part finished", parts.get(0).stopped);
+
+        // came in late, the first part is finished and the second starts after it
+        write(muxer, AUDIO, cutUs - 1, 10, false);
+        write(muxer, AUDIO, cutUs + 1, 10, false);
+        muxer.stop();
+
+        assertEquals(1, parts.get(0).count(AUDIO));
+        assertEquals(2, parts.get(1).count(AUDIO));
+        assertEquals(0, parts.get(1).first(AUDIO)[1]);
+        assertEquals(1, parts.get(1).last(AUDIO)[1]);
+    }
+
+    @Test
+    public void dropsSampleOfTrackEndedBeforeCut() {
+        SplittingMuxer muxer = newMuxer();
+        muxer.addTrack(null, true);
+        muxer.addTrack(null, false);
+        muxer.start();
+        // audio ends in the first part, which is finished only when the next cut comes
+        write(muxer, AUDIO, 0, 10, false);
+        for (int i = 0; i <= 2 * GOP; i++) writeVideo(muxer, i);
+        assertFalse(parts.get(0).stopped);
+        for (int i = 2 * GOP + 1; i <= 4 * GOP; i++) writeVideo(muxer, i);
+        assertEquals(3, parts.size());
+        assertTrue(parts.get(0).stopped);
+        assertFalse(parts.get(1).stopped);
+
+        // before the cut, but also before the start of the still open second part
+        write(muxer, AUDIO, FRAME_US, 10, false);
+        muxer.stop();
+        assertEquals(1, parts.get(0).count(AUDIO));
+        assertEquals(0, parts.get(1).count(AUDIO));
+        assertEquals(0, parts.get(2).count(AUDIO));
+    }
+
+    //========================= helpers ========================================================
+    private SplittingMuxer newMuxer() {
+        return new SplittingMuxer("/x/video.mp4", MAX_PART_BYTES, this::open);
+    }
+
+    private Muxer open(String path) {
+        FakeMuxer muxer = new FakeMuxer(path);
+        parts.add(muxer);
+        return muxer;
+    }
+
+    private List<String> paths() {
+        List<String> paths = new ArrayList<>();
+        for (FakeMuxer part : parts) paths.add(part.path);
+        return paths;
+    }
+
+    private void writeVideo(SplittingMuxer muxer, int frame) {
+        write(muxer, VIDEO, frame * FRAME_US, FRAME_BYTES, frame % GOP == 0);
+    }
+
+    private void write(SplittingMuxer muxer, int track, long timeUs, int size, boolean sync) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.size = size;
+        info.presentationTimeUs = timeUs;
+        info.flags = sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+        muxer.writeSampleData(track, data, info);
+    }
+
+    private static boolean isSync(long[] sample) {
+        return (sample[2] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+    }
+
+    private static class FakeMuxer implements Muxer {
+        final String path;
+        // track, time, flags, size
+        final List<long[]> samples = new ArrayList<>();
+        int tracks;
+        boolean started;
+        boolean stopped;
+        boolean released;
+        int stoppedAfterSamples = -1;
+
+        FakeMuxer(String path) {
+            this.path = path;
+        }
+
+        int count(int track) {
+            int count = 0;
+            for (long[] sample : samples) {
+                if (sample[0] == track) count++;
+            }
+            return count;
+        }
+
+        long[] first(int track) {
+            for (long[] sample : samples) {
+                if (sample[0] == track) return sample;
+            }
+            return null;
+        }
+
+        long[] last(int track) {
+            long[] last = null;
+            for (long[] sample : samples) {
+                if (sample[0] == track) last = sample;
+            }
+            return last;
+        }
+
+        long getBytes() {
+            long bytes = 0;
+            for (long[] sample : samples) bytes += sample[3];
+            return bytes;
+        }
+
+        @Override
+        public void setOrientationHint(int degrees) {
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            assertFalse(started);
+            return tracks++;
+        }
+
+        @Override
+        public void start() {
+            started = true;
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+            assertTrue(started);
+            assertFalse("written after stop", stopped);
+            assertTrue(trackIndex < tracks);
+            samples.add(new long[]{trackIndex, bufferInfo.presentationTimeUs, bufferInfo.flags, bufferInfo.size});
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+            stoppedAfterSamples = samples.size();
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.nagihong.videocompressor.transcoder;
+
+import android.media.MediaFormat;
+import android.os.Build;
+
+import com.nagihong.videocompressor.strategies.MediaFormatStrategy;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TrackGraphTest {
+    private static final int API_25 = Build.VERSION_CODES.O - 1;
+    private static final int API_26 = Build.VERSION_CODES.O;
+
+    private final MediaFormat videoOutput = new MediaFormat();
+    private final MediaFormat audioOutput = new MediaFormat();
+
+    @Test
+    public void extraTracksDroppedBeforeApi26() {
+        TrackGraph graph = create(VideoCompressEngine.TrackMode.ALL, null, API_25, transcodeBoth());
+
+        assertActions(graph, TrackGraph.Action.TRANSCODE, TrackGraph.Action.TRANSCODE,
+                TrackGraph.Action.DROP, TrackGraph.Action.DROP, TrackGraph.Action.DROP, TrackGraph.Action.DROP);
+        assertSame(videoOutput, graph.getNodes().get(0).getOutputFormat());
+        assertSame(audioOutput, graph.getNodes().get(1).getOutputFormat());
+        assertEquals(2, graph.getOutputNodes().size());
+        assertFalse(graph.isCopyable());
+    }
+
+    @Test
+    public void extraTracksPassedThroughFromApi26() {
+        TrackGraph graph = create(VideoCompressEngine.TrackMode.ALL, null, API_26, transcodeBoth());
+
+        // the subtitle track has no place in MediaMuxer at any api level
+        assertActions(graph, TrackGraph.Action.TRANSCODE, TrackGraph.Action.TRANSCODE,
+                TrackGraph.Action.PASS_THROUGH, TrackGraph.Action.PASS_THROUGH, TrackGraph.Action.PASS_THROUGH,
+                TrackGraph.Action.DROP);
+        List<TrackGraph.Node> outputNodes = graph.getOutputNodes();
+        assertEquals(5, outputNodes.size());
+        for (int i = 0; i < outputNodes.size(); i++) assertEquals(i, outputNodes.get(i).getInputTrack());
+        assertNull(graph.getNodes().get(2).getOutputFormat());
+    }
+
+    @Test
+    public void nullOutputFormatPassesThrough() {
+        TrackGraph graph = create(VideoCompressEngine.TrackMode.ALL, null, API_26, formats(null, null));
+
+        assertEquals(TrackGraph.Action.PASS_THROUGH, graph.getNodes().get(0).getAction());
+        assertEquals(TrackGraph.Action.PASS_THROUGH, graph.getNodes().get(1).getAction());
+        assertNull(graph.getNodes().get(0).getOutputFormat());
+    }
+
+    @Test
+    public void copyableWhenEveryTrackPassesThrough() {
+        List<TrackGraph.Node> nodes = new ArrayList<>();
+        nodes.add(node(0, "video/avc", true));
+        nodes.add(node(1, "audio/mp4a-latm", true));
+        TrackGraph graph = TrackGraph.create(nodes, VideoCompressEngine.TrackMode.ALL, null, formats(null, null), API_25);
+
+        assertTrue(graph.isCopyable());
+    }
+
+    @Test
+    public void trackModes() {
+        TrackGraph dropAudio = create(VideoCompressEngine.TrackMode.DROP_AUDIO, null, API_26, transcodeBoth());
+        assertActions(dropAudio, TrackGraph.Action.TRANSCODE, TrackGraph.Action.DROP,
+                TrackGraph.Action.DROP, TrackGraph.Action.PASS_THROUGH, TrackGraph.Action.PASS_THROUGH,
+                TrackGraph.Action.DROP);
+
+        TrackGraph audioOnly = create(VideoCompressEngine.TrackMode.AUDIO_ONLY, null, API_26, transcodeBoth());
+        assertActions(audioOnly, TrackGraph.Action.DROP, TrackGraph.Action.TRANSCODE,
+                TrackGraph.Action.PASS_THROUGH, TrackGraph.Action.DROP, TrackGraph.Action.DROP,
+                TrackGraph.Action.DROP);
+    }
+
+    @Test
+    public void selectorOverridesDefaults() {
+        TrackGraph graph = create(VideoCompressEngine.TrackMode.ALL, node -> {
+            if (node.getInputTrack() == 0) assertEquals(TrackGraph.Action.TRANSCODE, node.getAction());
+            if (node.getInputTrack() == 1) return TrackGraph.Action.PASS_THROUGH;
+            if (node.getInputTrack() == 2) return TrackGraph.Action.TRANSCODE;
+            if (node.getInputTrack() == 4) return TrackGraph.Action.DROP;
+            return null;
+        }, API_26, transcodeBoth());
+
+        assertActions(graph, TrackGraph.Action.TRANSCODE, TrackGraph.Action.PASS_THROUGH,
+                TrackGraph.Action.TRANSCODE, TrackGraph.Action.PASS_THROUGH, TrackGraph.Action.DROP,
+                TrackGraph.Action.DROP);
+        assertNull(graph.getNodes().get(1).getOutputFormat());
+        // a second audio track is transcoded with the audio format too
+        assertSame(audioOutput, graph.getNodes().get(2).getOutputFormat());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTranscodingMetadata() {
+        create(VideoCompressEngine.TrackMode.ALL, node -> node.getInputTrack() == 4 ? TrackGraph.Action.TRANSCODE : null,
+                API_26, transcodeBoth());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTranscodingSubtitles() {
+        create(VideoCompressEngine.TrackMode.ALL, node -> node.getInputTrack() == 5 ? TrackGraph.Action.TRANSCODE : null,
+                API_25, transcodeBoth());
+    }
+
+    //========================= helpers ========================================================
+
+    /**
+     * primary video and audio, a second audio and video, timed metadata and subtitles
+     */
+    private static TrackGraph create(VideoCompressEngine.TrackMode trackMode, TrackGraph.TrackSelector selector,
+                                     int sdkInt, MediaFormatStrategy strategy) {
+        List<TrackGraph.Node> nodes = new ArrayList<>();
+        nodes.add(node(0, "video/avc", true));
+        nodes.add(node(1, "audio/mp4a-latm", true));
+        nodes.add(node(2, "audio/mp4a-latm", false));
+        nodes.add(node(3, "video/hevc", false));
+        nodes.add(node(4, "application/x-camera-motion", false));
+        nodes.add(node(5, "text/vtt", false));
+        return TrackGraph.create(nodes, trackMode, selector, strategy, sdkInt);
+    }
+
+    private static TrackGraph.Node node(int track, String mime, boolean primary) {
+        return new TrackGraph.Node(track, null, mime, primary);
+    }
+
+    private MediaFormatStrategy transcodeBoth() {
+        return formats(videoOutput, audioOutput);
+    }
+
+    private static MediaFormatStrategy formats(MediaFormat video, MediaFormat audio) {
+        return new MediaFormatStrategy() {
+            @Override
+            public MediaFormat createVideoOutputFormat(MediaFormat inputFormat) {
+                return video;
+            }
+
+            @Override
+            public MediaFormat createAudioOutputFormat(MediaFormat inputFormat) {
+                return audio;
+            }
+        };
+    }
+
+    private static void assertActions(TrackGraph graph, TrackGraph.Action... actions) {
+        assertEquals(actions.length, graph.getNodes().size());
+        for (int i = 0; i < actions.length; i++) {
+            assertEquals("track " + i, actions[i], graph.getNodes().get(i).getAction());
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.nagihong.videocompressor.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class AvcCsdUtilsTest {
+    // baseline profile, level 3.1, 640x480
+    private static final byte[] SPS = {0x42, (byte) 0xc0, 0x1f, (byte) 0xda, 0x02, (byte) 0x80, (byte) 0xf6, (byte) 0x80};
+
+    @Test
+    public void getSpsBuffer_skipsStartCodeAndNalHeader() {
+        for (byte[] startCode : new byte[][]{{0, 0, 0, 1}, {0, 0, 1}}) {
+            for (byte nal : new byte[]{0x67, 0x27, 0x47}) {
+                ByteBuffer csd = csd(startCode, nal, SPS);
+                ByteBuffer sps = AvcCsdUtils.getSpsBuffer(csd);
+                assertEquals(ByteBuffer.wrap(SPS), sps);
+                assertEquals("csd is left as it was", 0, csd.position());
+            }
+        }
+    }
+
+    @Test
+    public void getSpsBuffer_ofDirectBuffer() {
+        byte[] bytes = concat(new byte[]{0, 0, 0, 1, 0x67}, SPS);
+        ByteBuffer csd = ByteBuffer.allocateDirect(bytes.length);
+        csd.put(bytes).flip();
+
+        assertEquals(ByteBuffer.wrap(SPS), AvcCsdUtils.getSpsBuffer(csd));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void getSpsBuffer_rejectsPps() {
+        AvcCsdUtils.getSpsBuffer(csd(new byte[]{0, 0, 0, 1}, (byte) 0x68, SPS));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void getSpsBuffer_rejectsMissingStartCode() {
+        AvcCsdUtils.getSpsBuffer(csd(new byte[]{0, 0, 2, 1}, (byte) 0x67, SPS));
+    }
+
+    @Test
+    public void isSameBuffer_comparesBytes() {
+        ByteBuffer csd = csd(new byte[]{0, 0, 0, 1}, (byte) 0x67, SPS);
+        ByteBuffer direct = ByteBuffer.allocateDirect(csd.remaining());
+        direct.put(csd.duplicate()).flip();
+        assertTrue(AvcCsdUtils.isSameBuffer(csd, direct));
+        assertTrue(AvcCsdUtils.isSameBuffer(csd, csd(new byte[]{0, 0, 0, 1}, (byte) 0x67, SPS)));
+
+        byte[] otherSps = SPS.clone();
+        otherSps[2] = 0x1e;
+        assertFalse("other level", AvcCsdUtils.isSameBuffer(csd, csd(new byte[]{0, 0, 0, 1}, (byte) 0x67, otherSps)));
+        assertFalse("other start code", AvcCsdUtils.isSameBuffer(csd, csd(new byte[]{0, 0, 1}, (byte) 0x67, SPS)));
+        assertFalse("shorter", AvcCsdUtils.isSameBuffer(csd, ByteBuffer.wrap(csd.array(), 0, csd.limit() - 1)));
+        assertEquals(0, csd.position());
+        assertEquals(0, direct.position());
+    }
+
+    @Test
+    public void isSameBuffer_missingOnBothOnly() {
+        ByteBuffer csd = csd(new byte[]{0, 0, 0, 1}, (byte) 0x67, SPS);
+        assertTrue(AvcCsdUtils.isSameBuffer(null, null));
+        assertFalse(AvcCsdUtils.isSameBuffer(csd, null));
+        assertFalse(AvcCsdUtils.isSameBuffer(null, csd));
+    }
+
+    //========================= helpers ========================================================
+    private static ByteBuffer csd(byte[] startCode, byte nal, byte[] sps) {
+        return ByteBuffer.wrap(concat(concat(startCode, new byte[]{nal}), sps));
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] bytes = new byte[a.length + b.length];
+        System.arraycopy(a, 0, bytes, 0, a.length);
+        System.arraycopy(b, 0, bytes, a.length, b.length);
+        return bytes;
+    }
+}
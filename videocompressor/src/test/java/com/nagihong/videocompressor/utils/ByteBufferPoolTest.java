@@ -0,0 +1,153 @@
+package com.nagihong.videocompressor.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class ByteBufferPoolTest {
+
+    @Test
+    public void roundsUpToSizeClass() {
+        ByteBufferPool pool = new ByteBufferPool(ByteBufferPool.DEFAULT_MAX_POOLED_BYTES);
+
+        assertEquals(ByteBufferPool.MIN_CLASS_BYTES, pool.acquire(0).capacity());
+        assertEquals(ByteBufferPool.MIN_CLASS_BYTES, pool.acquire(1).capacity());
+        assertEquals(ByteBufferPool.MIN_CLASS_BYTES, pool.acquire(ByteBufferPool.MIN_CLASS_BYTES).capacity());
+        assertEquals(2 * ByteBufferPool.MIN_CLASS_BYTES, pool.acquire(ByteBufferPool.MIN_CLASS_BYTES + 1).capacity());
+        assertEquals(1 << 20, pool.acquire((1 << 19) + 1).capacity());
+        assertEquals(ByteBufferPool.MAX_CLASS_BYTES, pool.acquire(ByteBufferPool.MAX_CLASS_BYTES).capacity());
+    }
+
+    @Test
+    public void acquiresClearedDirectBuffersInNativeOrder() {
+        ByteBufferPool pool = new ByteBufferPool(ByteBufferPool.DEFAULT_MAX_POOLED_BYTES);
+        ByteBuffer buffer = pool.acquire(100);
+        buffer.order(ByteOrder.BIG_ENDIAN == ByteOrder.nativeOrder() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        buffer.position(10).limit(20);
+        pool.release(buffer);
+
+        ByteBuffer again = pool.acquire(100);
+        assertSame(buffer, again);
+        assertTrue(again.isDirect());
+        assertEquals(ByteOrder.nativeOrder(), again.order());
+        assertEquals(0, again.position());
+        assertEquals(again.capacity(), again.limit());
+    }
+
+    @Test
+    public void largerThanAllClassesIsNotPooled() {
+        ByteBufferPool pool = new ByteBufferPool(ByteBufferPool.DEFAULT_MAX_POOLED_BYTES);
+        int capacity = ByteBufferPool.MAX_CLASS_BYTES + 1;
+        ByteBuffer buffer = pool.acquire(capacity);
+        assertEquals(capacity, buffer.capacity());
+        pool.release(buffer);
+
+        ByteBufferPool.Stats stats = pool.getStats();
+        assertEquals(1, stats.dropped);
+        assertEquals(0, stats.pooledBytes);
+        assertNotSame(buffer, pool.acquire(capacity));
+    }
+
+    @Test
+    public void reusesReleasedBufferOfSameClass() {
+        ByteBufferPool pool = new ByteBufferPool(ByteBufferPool.DEFAULT_MAX_POOLED_BYTES);
+        ByteBuffer buffer = pool.acquire(5000);
+        pool.release(buffer);
+
+        assertSame(buffer, pool.acquire(6000));
+        assertNotSame(buffer, pool.acquire(6000));
+        ByteBufferPool.Stats stats = pool.getStats();
+        assertEquals(3, stats.acquired);
+        assertEquals(1, stats.reused);
+        assertEquals(2, stats.allocated);
+        assertEquals(4 * ByteBufferPool.MIN_CLASS_BYTES, stats.allocatedBytes);
+        assertEquals(4 * ByteBufferPool.MIN_CLASS_BYTES, stats.outstandingBytes);
+    }
+
+    @Test
+    public void keepsAtMostMaxPooledBytes() {
+        ByteBufferPool pool = new ByteBufferPool(2 * ByteBufferPool.MIN_CLASS_BYTES);
+        ByteBuffer first = pool.acquire(1);
+        ByteBuffer second = pool.acquire(1);
+        ByteBuffer third = pool.acquire(1);
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+
+        ByteBufferPool.Stats stats = pool.getStats();
+        assertEquals(2 * ByteBufferPool.MIN_CLASS_BYTES, stats.pooledBytes);
+        assertEquals(1, stats.dropped);
+        assertEquals(0, stats.outstandingBytes);
+        assertSame(first, pool.acquire(1));
+        assertSame(second, pool.acquire(1));
+        assertEquals(2, pool.getStats().reused);
+    }
+
+    @Test
+    public void trimDropsFreeBuffersOnly() {
+        ByteBufferPool pool = new ByteBufferPool(ByteBufferPool.DEFAULT_MAX_POOLED_BYTES);
+        ByteBuffer inUse = pool.acquire(1);
+        ByteBuffer free = pool.acquire(1);
+        ByteBuffer larger = pool.acquire(ByteBufferPool.MIN_CLASS_BYTES + 1);
+        pool.release(free);
+        pool.release(larger);
+
+        pool.trim();
+        ByteBufferPool.Stats stats = pool.getStats();
+        assertEquals(0, stats.pooledBytes);
+        assertEquals(2, stats.dropped);
+        assertEquals(ByteBufferPool.MIN_CLASS_BYTES, stats.outstandingBytes);
+        assertNotSame(free, pool.acquire(1));
+        pool.release(inUse);
+        assertSame(inUse, pool.acquire(1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void doubleReleaseThrowsWithLeakTracking() {
+        ByteBufferPool pool = new ByteBufferPool(ByteBufferPool.DEFAULT_MAX_POOLED_BYTES);
+        pool.setLeakTracking(true);
+        ByteBuffer buffer = pool.acquire(1);
+        pool.release(buffer);
+        pool.release(buffer);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void foreignReleaseThrowsWithLeakTracking() {
+        ByteBufferPool pool = new ByteBufferPool(ByteBufferPool.DEFAULT_MAX_POOLED_BYTES);
+        pool.setLeakTracking(true);
+        pool.release(ByteBuffer.allocateDirect(ByteBufferPool.MIN_CLASS_BYTES));
+    }
+
+    @Test
+    public void doubleReleaseIsNotCheckedWithoutLeakTracking() {
+        ByteBufferPool pool = new ByteBufferPool(ByteBufferPool.DEFAULT_MAX_POOLED_BYTES);
+        ByteBuffer buffer = pool.acquire(1);
+        pool.release(buffer);
+        pool.release(buffer);
+        pool.release(null);
+
+        assertEquals(2, pool.getStats().released);
+    }
+
+    @Test
+    public void logLeaksCountsBuffersNotReleased() {
+        ByteBufferPool pool = new ByteBufferPool(ByteBufferPool.DEFAULT_MAX_POOLED_BYTES);
+        ByteBuffer untracked = pool.acquire(1);
+        pool.setLeakTracking(true);
+        assertEquals(0, pool.logLeaks());
+
+        ByteBuffer first = pool.acquire(1);
+        pool.acquire(ByteBufferPool.MAX_CLASS_BYTES + 1);
+        pool.acquire(1);
+        assertEquals(3, pool.logLeaks());
+        pool.release(first);
+        assertEquals(2, pool.logLeaks());
+
+        pool.setLeakTracking(false);
+        assertEquals(0, pool.logLeaks());
+        pool.release(untracked);
+    }
+}
@@ -0,0 +1,86 @@
+package com.nagihong.videocompressor.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Copy of a file by channel, with and without checksum, against the stream copy it replaced.
+ * Run by main(), results are per copy, divide the file size by them for bytes per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileIOUtilsBenchmark {
+    @Param({"1048576", "67108864"})
+    public int size;
+
+    private File dir;
+    private File src;
+    private File dest;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = File.createTempFile("FileIOUtilsBenchmark", "");
+        if (!dir.delete() || !dir.mkdir()) throw new IOException("Could not create " + dir);
+        src = new File(dir, "src.mp4");
+        dest = new File(dir, "dest.mp4");
+        FileOutputStream os = new FileOutputStream(src);
+        try {
+            os.write(FileIOUtilsTest.randomBytes(size));
+        } finally {
+            os.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        src.delete();
+        dest.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public boolean stream() throws IOException {
+        return FileIOUtils.writeFileFromIS(dest, new FileInputStream(src));
+    }
+
+    @Benchmark
+    public boolean channel() {
+        return FileIOUtils.copyFileByChannel(src, dest, null, null);
+    }
+
+    @Benchmark
+    public long channelWithChecksum() {
+        CRC32 checksum = new CRC32();
+        FileIOUtils.copyFileByChannel(src, dest, checksum, null);
+        return checksum.getValue();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(FileIOUtilsBenchmark.class.getSimpleName()).build()).run();
+    }
+}
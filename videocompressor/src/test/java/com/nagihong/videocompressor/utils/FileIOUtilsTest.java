@@ -0,0 +1,180 @@
+package com.nagihong.videocompressor.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FileIOUtilsTest {
+    // over one transfer chunk, so the last chunk is a partial one
+    private static final int LARGE_SIZE = 8 * 1024 * 1024 + 12345;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("FileIOUtilsTest", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (null != files) {
+            for (File file : files) file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void copyByChannel_copiesAllBytes() throws IOException {
+        byte[] data = randomBytes(LARGE_SIZE);
+        File src = write("src.mp4", data);
+        File dest = new File(dir, "dest.mp4");
+
+        assertTrue(FileIOUtils.copyFileByChannel(src, dest, null, null));
+
+        assertArrayEquals(data, read(dest));
+        assertEquals(2, dir.listFiles().length);
+    }
+
+    @Test
+    public void copyByChannel_checksumOfCopiedBytes() throws IOException {
+        byte[] data = randomBytes(LARGE_SIZE);
+        File src = write("src.mp4", data);
+        File dest = new File(dir, "dest.mp4");
+        CRC32 expected = new CRC32();
+        expected.update(data, 0, data.length);
+
+        CRC32 checksum = new CRC32();
+        assertTrue(FileIOUtils.copyFileByChannel(src, dest, checksum, null));
+
+        assertEquals(expected.getValue(), checksum.getValue());
+        assertArrayEquals(data, read(dest));
+    }
+
+    @Test
+    public void copyByChannel_replacesDest() throws IOException {
+        byte[] data = randomBytes(1000);
+        File src = write("src.mp4", data);
+        File dest = write("dest.mp4", randomBytes(5000));
+
+        assertTrue(FileIOUtils.copyFileByChannel(src, dest, null, null));
+
+        assertArrayEquals(data, read(dest));
+    }
+
+    @Test
+    public void copyByChannel_emptySource() throws IOException {
+        File src = write("src.mp4", new byte[0]);
+        File dest = new File(dir, "dest.mp4");
+
+        assertTrue(FileIOUtils.copyFileByChannel(src, dest, new CRC32(), null));
+
+        assertTrue(dest.isFile());
+        assertEquals(0, dest.length());
+    }
+
+    @Test
+    public void copyByChannel_cancelLeavesNoFile() throws IOException {
+        File src = write("src.mp4", randomBytes(LARGE_SIZE));
+        File dest = new File(dir, "dest.mp4");
+        final long[] progress = new long[2];
+
+        boolean copied = FileIOUtils.copyFileByChannel(src, dest, null, new FileIOUtils.CopyListener() {
+            @Override
+            public boolean onProgress(long copiedBytes, long totalBytes) {
+                progress[0] = copiedBytes;
+                progress[1] = totalBytes;
+                return false;
+            }
+        });
+
+        assertFalse(copied);
+        assertFalse(dest.exists());
+        assertTrue(progress[0] > 0 && progress[0] < LARGE_SIZE);
+        assertEquals(LARGE_SIZE, progress[1]);
+        // only src is left, no temp file
+        assertEquals(1, dir.listFiles().length);
+    }
+
+    @Test
+    public void copyByChannel_missingSource() {
+        File dest = new File(dir, "dest.mp4");
+
+        assertFalse(FileIOUtils.copyFileByChannel(new File(dir, "missing.mp4"), dest, null, null));
+
+        assertFalse(dest.exists());
+    }
+
+    @Test
+    public void copyByChannel_concurrentCopiesToSameDest() throws Exception {
+        final byte[] data = randomBytes(LARGE_SIZE);
+        final File src = write("src.mp4", data);
+        final File dest = new File(dir, "dest.mp4");
+        final boolean[] results = new boolean[4];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    results[index] = FileIOUtils.copyFileByChannel(src, dest, null, null);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) thread.join();
+
+        // each copy writes its own temp file, whichever is renamed last, dest is complete
+        for (boolean result : results) assertTrue(result);
+        assertArrayEquals(data, read(dest));
+        assertEquals(2, dir.listFiles().length);
+    }
+
+    //========================= helpers ========================================================
+
+    static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = new File(dir, name);
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream is = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int n = is.read(data, offset, data.length - offset);
+                if (n < 0) throw new IOException("Unexpected end of " + file);
+                offset += n;
+            }
+        } finally {
+            is.close();
+        }
+        return data;
+    }
+}
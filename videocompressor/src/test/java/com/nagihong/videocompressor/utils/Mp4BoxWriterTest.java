@@ -0,0 +1,108 @@
+package com.nagihong.videocompressor.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class Mp4BoxWriterTest {
+
+    @Test
+    public void nestedBoxSizes() {
+        Mp4BoxWriter writer = new Mp4BoxWriter(64);
+        writer.begin("moov");
+        writer.begin("mvhd", 1, 0x000203).putInt(7).end();
+        writer.begin("free").putZeros(3).end();
+        writer.end();
+
+        assertArrayEquals(new byte[]{
+                0, 0, 0, 35, 'm', 'o', 'o', 'v',
+                0, 0, 0, 16, 'm', 'v', 'h', 'd', 1, 0, 2, 3, 0, 0, 0, 7,
+                0, 0, 0, 11, 'f', 'r', 'e', 'e', 0, 0, 0,
+        }, bytes(writer));
+    }
+
+    @Test
+    public void bigEndianValues() {
+        Mp4BoxWriter writer = new Mp4BoxWriter(64);
+        writer.putByte(0x1FF).putShort(0x0102).putInt(0x03040506).putLong(0x0708090A0B0C0D0EL).putType("avc1");
+
+        assertArrayEquals(new byte[]{
+                (byte) 0xFF, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 'a', 'v', 'c', '1',
+        }, bytes(writer));
+    }
+
+    @Test
+    public void endCountsFollowingBytes() {
+        Mp4BoxWriter writer = new Mp4BoxWriter(64);
+        writer.begin("stbl").begin("stsz", 0, 0).putInt(0).end(100).end(100);
+
+        ByteBuffer buffer = writer.getBuffer();
+        assertEquals(24, buffer.remaining());
+        assertEquals(124, buffer.getInt(0));
+        assertEquals(116, buffer.getInt(8));
+    }
+
+    @Test
+    public void growsPastInitialCapacity() {
+        Mp4BoxWriter writer = new Mp4BoxWriter(4);
+        writer.begin("mdat");
+        for (int i = 0; i < 1000; i++) writer.putInt(i);
+        writer.end();
+
+        ByteBuffer buffer = writer.getBuffer();
+        assertEquals(4008, buffer.remaining());
+        assertEquals(4008, buffer.getInt(0));
+        for (int i = 0; i < 1000; i++) assertEquals(i, buffer.getInt(8 + i * 4));
+    }
+
+    @Test
+    public void putBytesKeepsSourcePosition() {
+        ByteBuffer source = ByteBuffer.wrap(new byte[]{1, 2, 3, 4});
+        source.position(1);
+        Mp4BoxWriter writer = new Mp4BoxWriter(2);
+        writer.putBytes(source).putBytes(new byte[]{5});
+
+        assertEquals(1, source.position());
+        assertArrayEquals(new byte[]{2, 3, 4, 5}, bytes(writer));
+    }
+
+    @Test
+    public void setIntAndReset() {
+        Mp4BoxWriter writer = new Mp4BoxWriter(16);
+        writer.putInt(0).putInt(2);
+        writer.setInt(0, 1);
+        assertArrayEquals(new byte[]{0, 0, 0, 1, 0, 0, 0, 2}, bytes(writer));
+        assertEquals(8, writer.position());
+
+        writer.reset();
+        assertEquals(0, writer.position());
+        assertEquals(0, writer.getBuffer().remaining());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTypeNotFourCharacters() {
+        new Mp4BoxWriter(16).begin("url");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsEndWithoutBox() {
+        new Mp4BoxWriter(16).begin("moov").end().end();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsResetInsideBox() {
+        Mp4BoxWriter writer = new Mp4BoxWriter(16);
+        writer.begin("moov");
+        writer.reset();
+    }
+
+    //========================= helpers ========================================================
+    private static byte[] bytes(Mp4BoxWriter writer) {
+        ByteBuffer buffer = writer.getBuffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,138 @@
+package com.nagihong.videocompressor.utils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelBandsTest {
+    private final ParallelBands bands = new ParallelBands(4);
+
+    @After
+    public void tearDown() {
+        bands.release();
+    }
+
+    @Test(timeout = 10000)
+    public void run_coversEveryRowOnce() {
+        for (int rows : new int[]{1, 3, 4, 63, 64, 257, 1080, 1081}) {
+            for (int minRowsPerBand : new int[]{1, 64}) {
+                final AtomicIntegerArray counts = new AtomicIntegerArray(rows);
+                final AtomicIntegerArray bandRuns = new AtomicIntegerArray(bands.getBandCount());
+                bands.run(rows, minRowsPerBand, new ParallelBands.Task() {
+                    @Override
+                    public void run(int band, int start, int end) {
+                        bandRuns.incrementAndGet(band);
+                        for (int row = start; row < end; row++) counts.incrementAndGet(row);
+                    }
+                });
+
+                for (int row = 0; row < rows; row++) {
+                    assertEquals(String.format("row %d of %d", row, rows), 1, counts.get(row));
+                }
+                int expectedBands = Math.min(4, Math.max(1, rows / minRowsPerBand));
+                for (int band = 0; band < bands.getBandCount(); band++) {
+                    assertEquals(band < expectedBands ? 1 : 0, bandRuns.get(band));
+                }
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void run_smallFrameOnCaller() {
+        final Thread caller = Thread.currentThread();
+        final Thread[] ran = new Thread[1];
+        bands.run(100, 64, new ParallelBands.Task() {
+            @Override
+            public void run(int band, int start, int end) {
+                ran[0] = Thread.currentThread();
+            }
+        });
+
+        assertSame(caller, ran[0]);
+    }
+
+    @Test(timeout = 10000)
+    public void run_firstBandOnCaller() {
+        final Thread caller = Thread.currentThread();
+        final Thread[] threads = new Thread[4];
+        bands.run(400, 1, new ParallelBands.Task() {
+            @Override
+            public void run(int band, int start, int end) {
+                threads[band] = Thread.currentThread();
+            }
+        });
+
+        assertSame(caller, threads[0]);
+        for (int band = 1; band < 4; band++) {
+            assertNotSame(caller, threads[band]);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void run_manyTimesInARow() {
+        final int[] sums = new int[4];
+        ParallelBands.Task task = new ParallelBands.Task() {
+            @Override
+            public void run(int band, int start, int end) {
+                sums[band] += end - start;
+            }
+        };
+        for (int i = 0; i < 20000; i++) {
+            bands.run(8 + i % 5, 2, task);
+        }
+
+        int total = 0;
+        for (int sum : sums) total += sum;
+        // 8 to 12 rows, 20000 times
+        assertEquals(20000 * 10, total);
+    }
+
+    @Test(timeout = 10000)
+    public void run_rethrowsFailureOfWorker() {
+        final RuntimeException failure = new IllegalStateException("band 2");
+        try {
+            bands.run(400, 1, new ParallelBands.Task() {
+                @Override
+                public void run(int band, int start, int end) {
+                    if (band == 2) throw failure;
+                }
+            });
+            fail("Failure of worker was lost.");
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
+        }
+
+        // and the next run goes on
+        final AtomicIntegerArray counts = new AtomicIntegerArray(400);
+        bands.run(400, 1, new ParallelBands.Task() {
+            @Override
+            public void run(int band, int start, int end) {
+                for (int row = start; row < end; row++) counts.incrementAndGet(row);
+            }
+        });
+        for (int row = 0; row < 400; row++) assertEquals(1, counts.get(row));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void run_afterRelease() {
+        bands.release();
+        bands.run(400, 1, new ParallelBands.Task() {
+            @Override
+            public void run(int band, int start, int end) {
+            }
+        });
+    }
+
+    @Test
+    public void defaultBandCount_inRange() {
+        int count = ParallelBands.defaultBandCount();
+        assertTrue(count >= 1 && count <= 4);
+    }
+}
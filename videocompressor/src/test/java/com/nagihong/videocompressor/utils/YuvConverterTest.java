@@ -0,0 +1,117 @@
+package com.nagihong.videocompressor.utils;
+
+import com.nagihong.videocompressor.videoProcessor.YuvFrame;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static com.nagihong.videocompressor.videoProcessor.YuvFrames.allocate;
+import static com.nagihong.videocompressor.videoProcessor.YuvFrames.assertSamePixels;
+import static com.nagihong.videocompressor.videoProcessor.YuvFrames.fill;
+import static com.nagihong.videocompressor.videoProcessor.YuvFrames.noise;
+import static org.junit.Assert.assertEquals;
+
+public class YuvConverterTest {
+    private final YuvConverter converter = new YuvConverter(1);
+
+    @After
+    public void tearDown() {
+        converter.release();
+    }
+
+    @Test
+    public void roundTrip_nv12ToI420AndBack() {
+        YuvFrame nv12 = fill(allocate(YuvFrame.Layout.NV12, 1280, 720, 1280, 736, 0, 0, true), noise(1));
+        YuvFrame i420 = allocate(YuvFrame.Layout.I420, 1280, 720);
+        YuvFrame back = allocate(YuvFrame.Layout.NV12, 1280, 720, 1280, 736, 0, 0, true);
+
+        converter.convert(nv12, i420);
+        assertSamePixels(nv12, i420);
+        converter.convert(i420, back);
+
+        assertSamePixels(nv12, back);
+    }
+
+    @Test
+    public void roundTrip_i420ToNv12AndBack_oddSize() {
+        YuvFrame i420 = fill(allocate(YuvFrame.Layout.I420, 321, 179), noise(2));
+        YuvFrame nv12 = allocate(YuvFrame.Layout.NV12, 321, 179, 336, 192, 0, 0, false);
+        YuvFrame back = allocate(YuvFrame.Layout.I420, 321, 179);
+
+        converter.convert(i420, nv12);
+        assertSamePixels(i420, nv12);
+        converter.convert(nv12, back);
+
+        assertSamePixels(i420, back);
+    }
+
+    @Test
+    public void everyLayoutPair_withStrideAndCrop() {
+        for (YuvFrame.Layout from : YuvFrame.Layout.values()) {
+            for (YuvFrame.Layout to : YuvFrame.Layout.values()) {
+                YuvFrame input = fill(allocate(from, 318, 178, 384, 192, 2, 6, true), noise(from.ordinal()));
+                YuvFrame output = allocate(to, 318, 178, 352, 184, 4, 2, false);
+
+                converter.convert(input, output);
+
+                assertSamePixels(input, output);
+            }
+        }
+    }
+
+    @Test
+    public void sameLayout_copied() {
+        for (YuvFrame.Layout layout : YuvFrame.Layout.values()) {
+            YuvFrame input = fill(allocate(layout, 175, 97, 192, 112, 4, 8, true), noise(3));
+            YuvFrame output = allocate(layout, 175, 97, 192, 112, 4, 8, false);
+
+            converter.convert(input, output);
+
+            assertSamePixels(input, output);
+        }
+    }
+
+    @Test
+    public void sameLayout_otherStride() {
+        for (YuvFrame.Layout layout : YuvFrame.Layout.values()) {
+            YuvFrame input = fill(allocate(layout, 176, 96, 192, 112, 0, 0, true), noise(4));
+            YuvFrame output = allocate(layout, 176, 96, 256, 96, 0, 0, false);
+
+            converter.convert(input, output);
+
+            assertSamePixels(input, output);
+        }
+    }
+
+    @Test
+    public void threads_sameAsOneThread() {
+        YuvFrame input = fill(allocate(YuvFrame.Layout.NV21, 1920, 1080, 1920, 1088, 0, 0, true), noise(5));
+        YuvFrame output = allocate(YuvFrame.Layout.I420, 1920, 1080);
+        YuvConverter parallel = new YuvConverter(4);
+        try {
+            parallel.convert(input, output);
+        } finally {
+            parallel.release();
+        }
+
+        assertSamePixels(input, output);
+    }
+
+    @Test
+    public void positions_leftAlone() {
+        YuvFrame input = fill(allocate(YuvFrame.Layout.NV12, 64, 48, 64, 48, 0, 0, true), noise(6));
+        YuvFrame output = allocate(YuvFrame.Layout.I420, 64, 48);
+        int inPosition = input.getBuffer().position();
+        int outPosition = output.getBuffer().position();
+
+        converter.convert(input, output);
+
+        assertEquals(inPosition, input.getBuffer().position());
+        assertEquals(outPosition, output.getBuffer().position());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void otherSize_rejected() {
+        converter.convert(allocate(YuvFrame.Layout.NV12, 64, 48), allocate(YuvFrame.Layout.I420, 64, 46));
+    }
+}
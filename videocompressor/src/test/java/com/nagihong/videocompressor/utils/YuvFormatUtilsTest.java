@@ -0,0 +1,127 @@
+package com.nagihong.videocompressor.utils;
+
+import android.media.MediaCodecInfo;
+
+import com.nagihong.videocompressor.videoProcessor.YuvFrame;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class YuvFormatUtilsTest {
+    private static final int PLANAR = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar;
+    private static final int SEMI_PLANAR = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
+
+    @Test
+    public void getLayout_ofColorFormats() {
+        assertEquals(YuvFrame.Layout.I420, YuvFormatUtils.getLayout(PLANAR));
+        assertEquals(YuvFrame.Layout.I420, YuvFormatUtils.getLayout(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar));
+        assertEquals(YuvFrame.Layout.NV12, YuvFormatUtils.getLayout(SEMI_PLANAR));
+        assertEquals(YuvFrame.Layout.NV12, YuvFormatUtils.getLayout(MediaCodecInfo.CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar));
+        assertEquals(YuvFrame.Layout.NV12, YuvFormatUtils.getLayout(YuvFormatUtils.COLOR_QCOM_FormatYUV420PackedSemiPlanar32m));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void getLayout_ofSurface() {
+        YuvFormatUtils.getLayout(MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+    }
+
+    @Test
+    public void isSupported_tiledAndPlanar() {
+        assertTrue(YuvFormatUtils.isSupported(YuvFormatUtils.COLOR_QCOM_FormatYUV420PackedSemiPlanar64x32Tile2m8ka));
+        assertTrue(YuvFormatUtils.isTiled(YuvFormatUtils.COLOR_QCOM_FormatYUV420PackedSemiPlanar64x32Tile2m8ka));
+        assertTrue(YuvFormatUtils.isSupported(PLANAR));
+        assertFalse(YuvFormatUtils.isTiled(PLANAR));
+        assertFalse(YuvFormatUtils.isSupported(MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface));
+    }
+
+    @Test
+    public void align_up() {
+        assertEquals(0, YuvFormatUtils.align(0, 16));
+        assertEquals(16, YuvFormatUtils.align(1, 16));
+        assertEquals(1088, YuvFormatUtils.align(1080, 16));
+        assertEquals(1088, YuvFormatUtils.align(1088, 16));
+    }
+
+    @Test
+    public void setFrame_unpaddedWhenNotReported() {
+        YuvFrame frame = set(SEMI_PLANAR, 1280, 720, 0, 0, 0, 0, -1, -1);
+
+        assertFrame(frame, YuvFrame.Layout.NV12, 1280, 720, 1280, 720, 0, 0);
+        assertEquals(1280 * 720, frame.getPlaneOffset(YuvFrame.PLANE_U));
+    }
+
+    @Test
+    public void setFrame_strideSmallerThanWidth() {
+        YuvFrame frame = set(PLANAR, 1280, 720, 640, 360, 0, 0, -1, -1);
+
+        assertFrame(frame, YuvFrame.Layout.I420, 1280, 720, 1280, 720, 0, 0);
+    }
+
+    @Test
+    public void setFrame_padding() {
+        YuvFrame frame = set(PLANAR, 1920, 1080, 2048, 1088, 0, 0, -1, -1);
+
+        assertFrame(frame, YuvFrame.Layout.I420, 1920, 1080, 2048, 1088, 0, 0);
+        assertEquals(2048 * 1088, frame.getPlaneOffset(YuvFrame.PLANE_U));
+        assertEquals(2048 * 1088 + 1024 * 544, frame.getPlaneOffset(YuvFrame.PLANE_V));
+        assertEquals(1024, frame.getPlaneRowStride(YuvFrame.PLANE_U));
+    }
+
+    @Test
+    public void setFrame_qcom32mAlignment() {
+        YuvFrame frame = set(YuvFormatUtils.COLOR_QCOM_FormatYUV420PackedSemiPlanar32m, 1920, 1080, 0, 0, 0, 0, -1, -1);
+
+        assertFrame(frame, YuvFrame.Layout.NV12, 1920, 1080, 1920, 1088, 0, 0);
+
+        frame = set(YuvFormatUtils.COLOR_QCOM_FormatYUV420PackedSemiPlanar32m, 1000, 500, 0, 0, 0, 0, -1, -1);
+
+        assertFrame(frame, YuvFrame.Layout.NV12, 1000, 500, 1024, 512, 0, 0);
+    }
+
+    @Test
+    public void setFrame_crop() {
+        // 1080p decoded as 1088 rows, crop keys are inclusive
+        YuvFrame frame = set(SEMI_PLANAR, 1920, 1088, 1920, 1088, 0, 0, 1919, 1079);
+
+        assertFrame(frame, YuvFrame.Layout.NV12, 1920, 1080, 1920, 1088, 0, 0);
+    }
+
+    @Test
+    public void setFrame_cropFromOddCorner() {
+        YuvFrame frame = set(PLANAR, 1280, 736, 1280, 736, 3, 9, 1275, 728);
+
+        // odd left and top keep one more column and row
+        assertFrame(frame, YuvFrame.Layout.I420, 1274, 721, 1280, 736, 2, 8);
+        assertEquals(8 * 1280 + 2, frame.getPlaneOffset(YuvFrame.PLANE_Y));
+        assertEquals(1280 * 736 + 4 * 640 + 1, frame.getPlaneOffset(YuvFrame.PLANE_U));
+    }
+
+    @Test
+    public void setFrame_cropBeyondFrame() {
+        YuvFrame frame = set(SEMI_PLANAR, 640, 480, 640, 480, 0, 0, 1023, 1023);
+
+        assertFrame(frame, YuvFrame.Layout.NV12, 640, 480, 640, 480, 0, 0);
+    }
+
+    //========================= helpers ========================================================
+
+    private static YuvFrame set(int colorFormat, int width, int height, int stride, int sliceHeight,
+                                int cropLeft, int cropTop, int cropRight, int cropBottom) {
+        return YuvFormatUtils.setFrame(new YuvFrame(), null, colorFormat, width, height, stride, sliceHeight,
+                cropLeft, cropTop, cropRight, cropBottom);
+    }
+
+    private static void assertFrame(YuvFrame frame, YuvFrame.Layout layout, int width, int height,
+                                    int rowStride, int sliceHeight, int cropLeft, int cropTop) {
+        assertEquals(layout, frame.getLayout());
+        assertEquals(width, frame.getWidth());
+        assertEquals(height, frame.getHeight());
+        assertEquals(rowStride, frame.getRowStride());
+        assertEquals(sliceHeight, frame.getSliceHeight());
+        assertEquals(cropLeft, frame.getCropLeft());
+        assertEquals(cropTop, frame.getCropTop());
+    }
+}
@@ -0,0 +1,118 @@
+package com.nagihong.videocompressor.videoProcessor;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Frames for tests, pixels are addressed by their own index math instead of the frame's plane offsets,
+ * so offsets, strides and crops of {@link YuvFrame} are checked along.
+ */
+public final class YuvFrames {
+    // frames start after some bytes of the buffer, like at position of a codec buffer
+    private static final int BUFFER_POSITION = 16;
+
+    private YuvFrames() {
+    }
+
+    public interface Picture {
+        int get(int plane, int x, int y);
+    }
+
+    /**
+     * frame in a buffer full of noise, padding and bytes before the frame included
+     */
+    public static YuvFrame allocate(YuvFrame.Layout layout, int width, int height, int rowStride, int sliceHeight,
+                                    int cropLeft, int cropTop, boolean direct) {
+        int size = BUFFER_POSITION + rowStride * sliceHeight + ((rowStride + 1) / 2 + 1) * ((sliceHeight + 1) / 2 + 1) * 2;
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        byte[] noise = new byte[size];
+        new Random(size).nextBytes(noise);
+        buffer.put(noise);
+        buffer.position(BUFFER_POSITION);
+        return new YuvFrame().set(buffer, layout, width, height, rowStride, sliceHeight, cropLeft, cropTop);
+    }
+
+    /**
+     * frame without padding, but rows of an even length for interleaved chroma of odd widths
+     */
+    public static YuvFrame allocate(YuvFrame.Layout layout, int width, int height) {
+        return allocate(layout, width, height, (width + 1) & ~1, height, 0, 0, false);
+    }
+
+    public static int index(YuvFrame frame, int plane, int x, int y) {
+        int rowStride = frame.getRowStride();
+        int left = frame.getCropLeft();
+        int top = frame.getCropTop();
+        int chromaStart = frame.getBuffer().position() + rowStride * frame.getSliceHeight();
+        if (plane == YuvFrame.PLANE_Y) {
+            return frame.getBuffer().position() + (top + y) * rowStride + left + x;
+        }
+        if (frame.getLayout() == YuvFrame.Layout.I420) {
+            int chromaRowStride = (rowStride + 1) / 2;
+            int planeStart = plane == YuvFrame.PLANE_U ? chromaStart
+                    : chromaStart + chromaRowStride * ((frame.getSliceHeight() + 1) / 2);
+            return planeStart + (top / 2 + y) * chromaRowStride + left / 2 + x;
+        }
+        boolean first = (plane == YuvFrame.PLANE_U) == (frame.getLayout() == YuvFrame.Layout.NV12);
+        return chromaStart + (top / 2 + y) * rowStride + left + 2 * x + (first ? 0 : 1);
+    }
+
+    public static int get(YuvFrame frame, int plane, int x, int y) {
+        return frame.getBuffer().get(index(frame, plane, x, y)) & 0xff;
+    }
+
+    public static void put(YuvFrame frame, int plane, int x, int y, int value) {
+        frame.getBuffer().put(index(frame, plane, x, y), (byte) value);
+    }
+
+    public static YuvFrame fill(YuvFrame frame, Picture picture) {
+        for (int plane = 0; plane < YuvFrame.PLANE_COUNT; plane++) {
+            for (int y = 0; y < frame.getPlaneHeight(plane); y++) {
+                for (int x = 0; x < frame.getPlaneWidth(plane); x++) {
+                    put(frame, plane, x, y, picture.get(plane, x, y));
+                }
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * smooth gradients with some texture, different per plane
+     */
+    public static Picture gradient() {
+        return new Picture() {
+            @Override
+            public int get(int plane, int x, int y) {
+                return (x * (plane + 1) + y * (3 - plane) + ((x * 7) ^ (y * 13)) % 17) & 0xff;
+            }
+        };
+    }
+
+    public static Picture noise(final long seed) {
+        return new Picture() {
+            @Override
+            public int get(int plane, int x, int y) {
+                long hash = (seed * 31 + plane) * 0x9E3779B97F4A7C15L + x * 0xBF58476D1CE4E5B9L + y * 0x94D049BB133111EBL;
+                return (int) ((hash ^ (hash >>> 29)) >>> 40) & 0xff;
+            }
+        };
+    }
+
+    public static void assertSamePixels(YuvFrame expected, YuvFrame actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int plane = 0; plane < YuvFrame.PLANE_COUNT; plane++) {
+            for (int y = 0; y < expected.getPlaneHeight(plane); y++) {
+                for (int x = 0; x < expected.getPlaneWidth(plane); x++) {
+                    int e = get(expected, plane, x, y);
+                    int a = get(actual, plane, x, y);
+                    if (e != a) {
+                        throw new AssertionError(String.format("plane %d at (%d, %d): expected %d but was %d", plane, x, y, e, a));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.nagihong.videocompressor.videoProcessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaling of a decoded frame into an encoder's input frame, the sizes compression meets most. Run by main(),
+ * results are per frame, 30 fps needs less than 33 ms.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class YuvScalerBenchmark {
+    // input and output size
+    @Param({"1920x1080:1280x720", "1920x1080:854x480", "1280x720:1920x1080"})
+    public String sizes;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private YuvScaler scaler;
+    private YuvFrame input;
+    private YuvFrame output;
+
+    @Setup
+    public void setUp() {
+        String[] pair = sizes.split(":");
+        String[] in = pair[0].split("x");
+        String[] out = pair[1].split("x");
+        int width = Integer.parseInt(in[0]);
+        int height = Integer.parseInt(in[1]);
+        // decoders pad to macroblocks, encoders take planar input
+        input = YuvFrames.fill(YuvFrames.allocate(YuvFrame.Layout.NV12, width, height, width, (height + 15) & ~15, 0, 0, true),
+                YuvFrames.gradient());
+        int outWidth = Integer.parseInt(out[0]);
+        int outHeight = Integer.parseInt(out[1]);
+        output = YuvFrames.allocate(YuvFrame.Layout.I420, outWidth, outHeight, outWidth, outHeight, 0, 0, true);
+        scaler = new YuvScaler(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        scaler.release();
+    }
+
+    @Benchmark
+    public YuvFrame scale() {
+        scaler.process(input, output);
+        return output;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(YuvScalerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,168 @@
+package com.nagihong.videocompressor.videoProcessor;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static com.nagihong.videocompressor.videoProcessor.YuvFrames.allocate;
+import static com.nagihong.videocompressor.videoProcessor.YuvFrames.assertSamePixels;
+import static com.nagihong.videocompressor.videoProcessor.YuvFrames.fill;
+import static com.nagihong.videocompressor.videoProcessor.YuvFrames.get;
+import static com.nagihong.videocompressor.videoProcessor.YuvFrames.gradient;
+import static com.nagihong.videocompressor.videoProcessor.YuvFrames.noise;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class YuvScalerTest {
+    private final YuvScaler scaler = new YuvScaler(1);
+
+    @After
+    public void tearDown() {
+        scaler.release();
+    }
+
+    @Test
+    public void sameSize_copiesBetweenLayouts() {
+        YuvFrame input = fill(allocate(YuvFrame.Layout.NV12, 322, 180, 384, 192, 6, 4, true), noise(1));
+        for (YuvFrame.Layout layout : YuvFrame.Layout.values()) {
+            YuvFrame output = allocate(layout, 322, 180, 336, 184, 2, 2, false);
+
+            scaler.process(input, output);
+
+            assertSamePixels(input, output);
+        }
+    }
+
+    @Test
+    public void strideAndCrop_doNotChangePicture() {
+        int[][] sizes = {{640, 360}, {426, 238}, {1000, 562}, {97, 55}};
+        YuvFrame tight = fill(allocate(YuvFrame.Layout.I420, 854, 480), gradient());
+        YuvFrame padded = fill(allocate(YuvFrame.Layout.NV21, 854, 480, 1024, 512, 8, 16, true), gradient());
+        for (int[] size : sizes) {
+            YuvFrame expected = allocate(YuvFrame.Layout.I420, size[0], size[1]);
+            YuvFrame actual = allocate(YuvFrame.Layout.NV12, size[0], size[1], size[0] + 30, size[1] + 10, 4, 2, true);
+
+            scaler.process(tight, expected);
+            scaler.process(padded, actual);
+
+            assertSamePixels(expected, actual);
+        }
+    }
+
+    @Test
+    public void flatPlanes_stayFlat() {
+        final int[] values = {16, 128, 235};
+        YuvFrames.Picture flat = new YuvFrames.Picture() {
+            @Override
+            public int get(int plane, int x, int y) {
+                return values[plane];
+            }
+        };
+        int[][] sizes = {{1920, 1080, 1280, 720}, {1280, 720, 1920, 1080}, {101, 77, 33, 19}, {33, 19, 101, 77},
+                {640, 480, 641, 240}, {7, 5, 1, 1}};
+        for (int[] size : sizes) {
+            YuvFrame input = fill(allocate(YuvFrame.Layout.NV12, size[0], size[1]), flat);
+            YuvFrame output = allocate(YuvFrame.Layout.I420, size[2], size[3]);
+
+            scaler.process(input, output);
+
+            for (int plane = 0; plane < YuvFrame.PLANE_COUNT; plane++) {
+                for (int y = 0; y < output.getPlaneHeight(plane); y++) {
+                    for (int x = 0; x < output.getPlaneWidth(plane); x++) {
+                        assertEquals(values[plane], get(output, plane, x, y));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void halfSize_averagesSquares() {
+        YuvFrame input = fill(allocate(YuvFrame.Layout.I420, 200, 120), noise(2));
+        YuvFrame output = allocate(YuvFrame.Layout.I420, 100, 60);
+
+        scaler.process(input, output);
+
+        for (int plane = 0; plane < YuvFrame.PLANE_COUNT; plane++) {
+            for (int y = 0; y < output.getPlaneHeight(plane); y++) {
+                for (int x = 0; x < output.getPlaneWidth(plane); x++) {
+                    int sum = get(input, plane, 2 * x, 2 * y) + get(input, plane, 2 * x + 1, 2 * y)
+                            + get(input, plane, 2 * x, 2 * y + 1) + get(input, plane, 2 * x + 1, 2 * y + 1);
+                    assertEquals((sum + 2) / 4, get(output, plane, x, y));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void doubleSize_interpolatesBetweenCenters() {
+        YuvFrames.Picture ramp = new YuvFrames.Picture() {
+            @Override
+            public int get(int plane, int x, int y) {
+                return 3 * x + y;
+            }
+        };
+        YuvFrame input = fill(allocate(YuvFrame.Layout.I420, 60, 40), ramp);
+        YuvFrame output = allocate(YuvFrame.Layout.I420, 120, 80);
+
+        scaler.process(input, output);
+
+        for (int y = 0; y < 80; y++) {
+            for (int x = 0; x < 120; x++) {
+                // centers of output pixels sit at a quarter and three quarters of input pixels, edges repeat
+                double sourceX = Math.min(59, Math.max(0, (x + 0.5) / 2 - 0.5));
+                double sourceY = Math.min(39, Math.max(0, (y + 0.5) / 2 - 0.5));
+                double expected = 3 * sourceX + sourceY;
+                int actual = get(output, YuvFrame.PLANE_Y, x, y);
+                assertTrue(String.format("(%d, %d): %.2f vs %d", x, y, expected, actual), Math.abs(expected - actual) <= 0.5);
+            }
+        }
+    }
+
+    @Test
+    public void threads_sameAsOneThread() {
+        YuvFrame input = fill(allocate(YuvFrame.Layout.NV12, 1920, 1080, 1920, 1088, 0, 0, true), noise(3));
+        YuvFrame expected = allocate(YuvFrame.Layout.NV12, 1280, 720);
+        YuvFrame actual = allocate(YuvFrame.Layout.NV12, 1280, 720);
+        YuvScaler parallel = new YuvScaler(4);
+        try {
+            scaler.process(input, expected);
+            parallel.process(input, actual);
+        } finally {
+            parallel.release();
+        }
+
+        assertSamePixels(expected, actual);
+    }
+
+    @Test
+    public void sizeChange_reconfigures() {
+        YuvFrame input = fill(allocate(YuvFrame.Layout.I420, 320, 240), gradient());
+        YuvFrame small = allocate(YuvFrame.Layout.I420, 160, 120);
+        YuvFrame large = allocate(YuvFrame.Layout.I420, 480, 360);
+        YuvFrame expected = allocate(YuvFrame.Layout.I420, 160, 120);
+        YuvScaler fresh = new YuvScaler(1);
+        try {
+            fresh.process(input, expected);
+        } finally {
+            fresh.release();
+        }
+
+        scaler.process(input, large);
+        scaler.process(input, small);
+
+        assertSamePixels(expected, small);
+    }
+
+    @Test
+    public void positions_leftAlone() {
+        YuvFrame input = fill(allocate(YuvFrame.Layout.NV12, 64, 48, 64, 48, 0, 0, true), gradient());
+        YuvFrame output = allocate(YuvFrame.Layout.I420, 32, 24);
+        int inPosition = input.getBuffer().position();
+        int outPosition = output.getBuffer().position();
+
+        scaler.process(input, output);
+
+        assertEquals(inPosition, input.getBuffer().position());
+        assertEquals(outPosition, output.getBuffer().position());
+    }
+}